@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.controllers;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.geppetto.core.model.runtime.AspectSubTreeNode;
+import org.geppetto.core.model.state.visitors.SerializeTreeVisitor;
+import org.geppetto.frontend.messages.TransportMessageWriter;
+
+/**
+ * Writes the replies that hold the subtrees of several aspects, <code>[{"aspectInstancePath":..,..},..]</code> where each object has the members of the serialized subtree after the path of its
+ * aspect.
+ * 
+ * The reply is written into a single {@link Writer}: each subtree goes in as soon as it is serialized, from after its opening brace, rather than being cut out of its serialization and
+ * concatenated to the reply so far. The reply is complete once {@link #finish()} is called.
+ */
+public class AspectTreesResponse
+{
+
+	private final Writer out;
+
+	private boolean empty = true;
+
+	private boolean finished = false;
+
+	/**
+	 * @param out
+	 *            where the reply is written
+	 * @throws IOException
+	 */
+	public AspectTreesResponse(Writer out) throws IOException
+	{
+		this.out = out;
+		out.write('[');
+	}
+
+	/**
+	 * Serialize the subtree of an aspect into the reply.
+	 * 
+	 * @param aspectInstancePath
+	 * @param subTree
+	 * @throws IOException
+	 */
+	public void append(String aspectInstancePath, AspectSubTreeNode subTree) throws IOException
+	{
+		if(finished)
+		{
+			throw new IllegalStateException("The reply is finished");
+		}
+
+		SerializeTreeVisitor serializeTreeVisitor = new SerializeTreeVisitor();
+		subTree.apply(serializeTreeVisitor);
+		String serializedTree = serializeTreeVisitor.getSerializedTree();
+
+		if(!empty)
+		{
+			out.write(',');
+		}
+		empty = false;
+		out.write("{\"aspectInstancePath\":");
+		TransportMessageWriter.writeString(out, aspectInstancePath);
+		out.write(',');
+		// the object of the aspect is closed by the brace that closes the serialized subtree
+		out.write(serializedTree, 1, serializedTree.length() - 1);
+	}
+
+	/**
+	 * Close the reply, an empty array if no subtree was appended.
+	 * 
+	 * @throws IOException
+	 */
+	public void finish() throws IOException
+	{
+		if(!finished)
+		{
+			finished = true;
+			out.write(']');
+		}
+	}
+}
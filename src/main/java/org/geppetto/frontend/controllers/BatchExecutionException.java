@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.controllers;
+
+import java.util.Map;
+
+import org.geppetto.core.common.GeppettoExecutionException;
+import org.geppetto.core.model.runtime.AspectSubTreeNode;
+
+/**
+ * A command of a batch failed. The commands before it were applied to the runtime tree and stay so.
+ */
+public class BatchExecutionException extends GeppettoExecutionException
+{
+
+	private static final long serialVersionUID = 1L;
+
+	private final int appliedCommands;
+
+	private final Map<String, AspectSubTreeNode> changedAspects;
+
+	/**
+	 * @param appliedCommands
+	 *            the number of commands applied before the failing one
+	 * @param changedAspects
+	 *            the subtree of each aspect the applied commands changed, by aspect instance path
+	 * @param cause
+	 *            why the failing command failed
+	 */
+	public BatchExecutionException(int appliedCommands, Map<String, AspectSubTreeNode> changedAspects, Throwable cause)
+	{
+		super("Command " + (appliedCommands + 1) + " of the batch failed, the " + appliedCommands + " before it were applied", cause);
+		this.appliedCommands = appliedCommands;
+		this.changedAspects = changedAspects;
+	}
+
+	public int getAppliedCommands()
+	{
+		return appliedCommands;
+	}
+
+	public Map<String, AspectSubTreeNode> getChangedAspects()
+	{
+		return changedAspects;
+	}
+}
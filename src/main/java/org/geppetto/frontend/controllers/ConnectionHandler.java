@@ -36,6 +36,8 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
 import java.lang.reflect.Type;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -148,6 +150,32 @@ public class ConnectionHandler
 		loadGeppettoProject(requestID, geppettoProject, -1l);
 	}
 
+	/**
+	 * @param requestID
+	 * @param projectContent
+	 *            the project is read as it is uncompressed, the reader is closed once it is
+	 */
+	public void loadProjectFromContent(String requestID, Reader projectContent)
+	{
+		try
+		{
+			IGeppettoProject geppettoProject;
+			try
+			{
+				geppettoProject = DataManagerHelper.getDataManager().getProjectFromJson(getGson(), projectContent);
+			}
+			finally
+			{
+				projectContent.close();
+			}
+			loadGeppettoProject(requestID, geppettoProject, -1l);
+		}
+		catch(IOException e)
+		{
+			error(e, "Could not load geppetto project");
+		}
+	}
+
 	/**
 	 * @param requestID
 	 * @param urlString
@@ -244,6 +272,10 @@ public class ConnectionHandler
 			if(experiment != null)
 			{
 				RuntimeTreeRoot runtimeTree = geppettoManager.loadExperiment(requestID, experiment);
+				if(isCancelled(requestID))
+				{
+					return;
+				}
 
 				SerializeTreeVisitor serializeTreeVisitor = new SerializeTreeVisitor();
 				runtimeTree.apply(serializeTreeVisitor);
@@ -389,24 +421,22 @@ public class ConnectionHandler
 			try
 			{
 				simulationTree = geppettoManager.playExperiment(requestID, experiment);
+				if(isCancelled(requestID))
+				{
+					return;
+				}
 
-				String simulationTreeString = "[";
+				StringWriter simulationTreeString = new StringWriter();
+				AspectTreesResponse response = new AspectTreesResponse(simulationTreeString);
 				for(Map.Entry<String, AspectSubTreeNode> entry : simulationTree.entrySet())
 				{
-					SerializeTreeVisitor updateClientVisitor = new SerializeTreeVisitor();
-					entry.getValue().apply(updateClientVisitor);
-					String simTree = updateClientVisitor.getSerializedTree();
-					// remove first and last bracket of sim tree before adding to string
-					// that'll be send to client
-					String formattedTree = simTree.substring(1, simTree.length() - 1);
-					simulationTreeString += "{\"aspectInstancePath\":" + '"' + entry.getKey() + '"' + "," + formattedTree + "},";
+					response.append(entry.getKey(), entry.getValue());
 				}
-				simulationTreeString = simulationTreeString.substring(0, simulationTreeString.length() - 1);
-				simulationTreeString += "]";
+				response.finish();
 
-				websocketConnection.sendMessage(requestID, OutboundMessages.PLAY_EXPERIMENT, simulationTreeString);
+				websocketConnection.sendMessage(requestID, OutboundMessages.PLAY_EXPERIMENT, simulationTreeString.toString());
 			}
-			catch(GeppettoExecutionException e)
+			catch(GeppettoExecutionException | IOException e)
 			{
 				error(e, "Error playing the experiment " + experimentId);
 			}
@@ -430,27 +460,21 @@ public class ConnectionHandler
 		{
 			modelTree = geppettoManager.getModelTree(aspectInstancePath, experiment, geppettoProject);
 
-			String modelTreeString = "[";
+			StringWriter modelTreeString = new StringWriter();
+			AspectTreesResponse response = new AspectTreesResponse(modelTreeString);
 			for(Map.Entry<String, AspectSubTreeNode> entry : modelTree.entrySet())
 			{
-				SerializeTreeVisitor updateClientVisitor = new SerializeTreeVisitor();
-				entry.getValue().apply(updateClientVisitor);
-				String simTree = updateClientVisitor.getSerializedTree();
-				// remove first and last bracket of sim tree before adding to string
-				// that'll be send to client
-				String formattedTree = simTree.substring(1, simTree.length() - 1);
-				modelTreeString += "{\"aspectInstancePath\":" + '"' + entry.getKey() + '"' + "," + formattedTree + "},";
+				response.append(entry.getKey(), entry.getValue());
 
 				// reset flags
 				ModelTreeExitVisitor exitVisitor = new ModelTreeExitVisitor();
 				entry.getValue().apply(exitVisitor);
 			}
-			modelTreeString = modelTreeString.substring(0, modelTreeString.length() - 1);
-			modelTreeString += "]";
+			response.finish();
 
-			websocketConnection.sendMessage(requestID, OutboundMessages.GET_MODEL_TREE, modelTreeString);
+			websocketConnection.sendMessage(requestID, OutboundMessages.GET_MODEL_TREE, modelTreeString.toString());
 		}
-		catch(GeppettoExecutionException e)
+		catch(GeppettoExecutionException | IOException e)
 		{
 			error(e, "Error populating the model tree for " + aspectInstancePath);
 		}
@@ -468,24 +492,22 @@ public class ConnectionHandler
 		try
 		{
 			simulationTree = geppettoManager.getSimulationTree(aspectInstancePath, experiment, geppettoProject);
+			if(isCancelled(requestID))
+			{
+				return;
+			}
 
-			String simulationTreeString = "[";
+			StringWriter simulationTreeString = new StringWriter();
+			AspectTreesResponse response = new AspectTreesResponse(simulationTreeString);
 			for(Map.Entry<String, AspectSubTreeNode> entry : simulationTree.entrySet())
 			{
-				SerializeTreeVisitor updateClientVisitor = new SerializeTreeVisitor();
-				entry.getValue().apply(updateClientVisitor);
-				String simTree = updateClientVisitor.getSerializedTree();
-				// remove first and last bracket of sim tree before adding to string
-				// that'll be send to client
-				String formattedTree = simTree.substring(1, simTree.length() - 1);
-				simulationTreeString += "{\"aspectInstancePath\":" + '"' + entry.getKey() + '"' + "," + formattedTree + "},";
+				response.append(entry.getKey(), entry.getValue());
 			}
-			simulationTreeString = simulationTreeString.substring(0, simulationTreeString.length() - 1);
-			simulationTreeString += "]";
+			response.finish();
 
-			websocketConnection.sendMessage(requestID, OutboundMessages.GET_SIMULATION_TREE, simulationTreeString);
+			websocketConnection.sendMessage(requestID, OutboundMessages.GET_SIMULATION_TREE, simulationTreeString.toString());
 		}
-		catch(GeppettoExecutionException e)
+		catch(GeppettoExecutionException | IOException e)
 		{
 			error(e, "Error populating the simulation tree for " + aspectInstancePath);
 		}
@@ -622,30 +644,116 @@ public class ConnectionHandler
 			try
 			{
 				AspectSubTreeNode modelTreeNode = geppettoManager.setModelParameters(modelPath, modelParameters, experiment, geppettoProject);
-				String modelTreeString = "[";
-				SerializeTreeVisitor updateClientVisitor = new SerializeTreeVisitor();
-				modelTreeNode.apply(updateClientVisitor);
-				String simTree = updateClientVisitor.getSerializedTree();
-				String formattedTree = simTree.substring(1, simTree.length());
-
-				modelTreeString += "{\"aspectInstancePath\":" + '"' + modelPath + '"' + "," + formattedTree + "}";
-
-				modelTreeString = modelTreeString.substring(0, modelTreeString.length() - 1);
-				modelTreeString += "]";
+				StringWriter modelTreeString = new StringWriter();
+				AspectTreesResponse response = new AspectTreesResponse(modelTreeString);
+				response.append(modelPath, modelTreeNode);
+				response.finish();
 
 				// reset flags
 				ModelTreeExitVisitor exitVisitor = new ModelTreeExitVisitor();
 				modelTreeNode.apply(exitVisitor);
 
-				websocketConnection.sendMessage(requestID, OutboundMessages.UPDATE_MODEL_TREE, modelTreeString);
+				websocketConnection.sendMessage(requestID, OutboundMessages.UPDATE_MODEL_TREE, modelTreeString.toString());
 			}
-			catch(GeppettoExecutionException e)
+			catch(GeppettoExecutionException | IOException e)
 			{
 				error(e, "There was an error setting parameters");
 			}
 		}
 	}
 
+	/**
+	 * Carries out a batch of commands setting parameters, in order, see {@link IBatchRuntimeTreeManager}. The subtrees of all the aspects are sent in a single update.
+	 * 
+	 * If a command fails the commands before it stay applied to the runtime tree but the project is not saved: the subtrees they changed are sent anyway, so that the client shows what the
+	 * experiment holds, followed by an error telling how many commands were applied.
+	 * 
+	 * @param requestID
+	 * @param commands
+	 * @param projectId
+	 * @param experimentID
+	 */
+	public void setParameters(String requestID, List<ParametersCommand> commands, long projectId, long experimentID)
+	{
+		if(DataManagerHelper.getDataManager().isDefault())
+		{
+			info(requestID,Resources.UNSUPPORTED_OPERATION.toString());
+			return;
+		}
+		IGeppettoProject geppettoProject = retrieveGeppettoProject(projectId);
+		IExperiment experiment = retrieveExperiment(experimentID, geppettoProject);
+		if(geppettoProject.isVolatile())
+		{
+			info(requestID,Resources.VOLATILE_PROJECT.toString());
+			return;
+		}
+		else
+		{
+
+			try
+			{
+				sendModelTreeUpdate(requestID, setModelParameters(commands, experiment, geppettoProject));
+			}
+			catch(BatchExecutionException e)
+			{
+				logger.error("Batch " + requestID + " failed after " + e.getAppliedCommands() + " of " + commands.size() + " commands", e);
+				try
+				{
+					if(!e.getChangedAspects().isEmpty())
+					{
+						sendModelTreeUpdate(requestID, e.getChangedAspects());
+					}
+				}
+				catch(IOException ioe)
+				{
+					logger.error("Error sending the aspects changed by the batch", ioe);
+				}
+				Error error = new Error(GeppettoErrorCodes.EXCEPTION, e.getMessage(), e.getCause() != null ? e.getCause().toString() : "");
+				websocketConnection.sendMessage(requestID, OutboundMessages.ERROR, getGson().toJson(error));
+			}
+			catch(IOException e)
+			{
+				error(e, "There was an error setting parameters");
+			}
+		}
+	}
+
+	private void sendModelTreeUpdate(String requestID, Map<String, AspectSubTreeNode> modelTreeNodes) throws IOException
+	{
+		StringWriter modelTreeString = new StringWriter();
+		AspectTreesResponse response = new AspectTreesResponse(modelTreeString);
+		for(Map.Entry<String, AspectSubTreeNode> modelTreeNode : modelTreeNodes.entrySet())
+		{
+			response.append(modelTreeNode.getKey(), modelTreeNode.getValue());
+
+			// reset flags
+			ModelTreeExitVisitor exitVisitor = new ModelTreeExitVisitor();
+			modelTreeNode.getValue().apply(exitVisitor);
+		}
+		response.finish();
+
+		websocketConnection.sendMessage(requestID, OutboundMessages.UPDATE_MODEL_TREE, modelTreeString.toString());
+	}
+
+	/**
+	 * Carries out the commands at once if the manager supports it, else one by one.
+	 */
+	private Map<String, AspectSubTreeNode> setModelParameters(List<ParametersCommand> commands, final IExperiment experiment, final IGeppettoProject geppettoProject) throws BatchExecutionException
+	{
+		if(geppettoManager instanceof IBatchRuntimeTreeManager)
+		{
+			return ((IBatchRuntimeTreeManager) geppettoManager).setModelParameters(commands, experiment, geppettoProject);
+		}
+		return ParametersCommand.apply(commands, new ParametersCommand.Target()
+		{
+			@Override
+			public AspectSubTreeNode setModelParameters(String aspectInstancePath, Map<String, String> parameters) throws Exception
+			{
+				return geppettoManager.setModelParameters(aspectInstancePath, parameters, experiment, geppettoProject);
+			}
+		});
+	}
+
 	/**
 	 * @param experimentID
 	 * @param geppettoProject
@@ -741,6 +849,19 @@ public class ConnectionHandler
 
 	}
 
+	/**
+	 * Tell the client a request was refused without any of it being carried out.
+	 * 
+	 * @param requestID
+	 * @param errorMessage
+	 */
+	public void rejectRequest(String requestID, String errorMessage)
+	{
+		Error error = new Error(GeppettoErrorCodes.EXCEPTION, errorMessage, "");
+		logger.warn("Rejected request " + requestID + ": " + errorMessage);
+		websocketConnection.sendMessage(requestID, OutboundMessages.ERROR, getGson().toJson(error));
+	}
+
 	/**
 	 * @param requestID 
 	 * @param exception
@@ -780,16 +901,21 @@ public class ConnectionHandler
 			if(geppettoProject != null)
 			{
 				List<? extends IExperiment> experiments = geppettoManager.checkExperimentsStatus(requestID, geppettoProject);
-				String status = "[";
+				// keyed by experiment so that a delta encoded status only carries the experiments whose status changed
+				String status = "{";
 				for(IExperiment e : experiments)
 				{
 					// FIXME
-					status += "{\"projectID\":" + '"' + projectId + '"' + ",\"experimentID\":" + '"' + e.getId() + '"' + ",\"status\":" + '"' + e.getStatus().toString() + '"' + "},";
+					status += '"' + String.valueOf(e.getId()) + '"' + ":{\"projectID\":" + '"' + projectId + '"' + ",\"experimentID\":" + '"' + e.getId() + '"' + ",\"status\":" + '"' + e.getStatus().toString() + '"' + "},";
 
 				}
-				status = status.substring(0, status.length() - 1);
-				status += "]";
-				websocketConnection.sendMessage(requestID, OutboundMessages.EXPERIMENT_STATUS, status);
+				if(!experiments.isEmpty())
+				{
+					status = status.substring(0, status.length() - 1);
+				}
+				status += "}";
+				// each poll supersedes the previous one of the same project
+				websocketConnection.sendMessage(requestID, OutboundMessages.EXPERIMENT_STATUS, status, projectId);
 			}
 			else
 			{
@@ -988,6 +1114,10 @@ public class ConnectionHandler
 			{
 				// Convert model
 				URL url = geppettoManager.downloadResults(aspectPath, resultsFormat, experiment, geppettoProject);
+				if(isCancelled(requestID))
+				{
+					return;
+				}
 
 				if(url != null)
 				{
@@ -1193,6 +1323,10 @@ public class ConnectionHandler
 	 */
 	public void closeProject()
 	{
+		if(geppettoProject != null)
+		{
+			websocketConnection.closeScope(String.valueOf(geppettoProject.getId()));
+		}
 		try
 		{
 			geppettoManager.closeProject(null, geppettoProject);
@@ -1206,6 +1340,29 @@ public class ConnectionHandler
 
 	}
 
+	/**
+	 * @param websocketConnection
+	 *            the connection that resumed the session of this handler
+	 */
+	protected void setWebsocketConnection(WebsocketConnection websocketConnection)
+	{
+		this.websocketConnection = websocketConnection;
+	}
+
+	/**
+	 * @param requestID
+	 * @return true if the client cancelled the request, in which case its reply is neither built nor sent
+	 */
+	private boolean isCancelled(String requestID)
+	{
+		if(websocketConnection.isCancelled(requestID))
+		{
+			logger.info("Request " + requestID + " was cancelled by the client");
+			return true;
+		}
+		return false;
+	}
+
 	/**
 	 * @param geppettoProject
 	 * @throws GeppettoExecutionException
@@ -1214,6 +1371,8 @@ public class ConnectionHandler
 	{
 		if(this.geppettoProject != null)
 		{
+			// the experiment status of the project, sent by project id, has no more updates to be delta encoded against
+			websocketConnection.closeScope(String.valueOf(this.geppettoProject.getId()));
 			geppettoManager.closeProject(null, this.geppettoProject);
 		}
 		this.geppettoProject = geppettoProject;
@@ -5,6 +5,11 @@ import java.nio.CharBuffer;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
@@ -25,6 +30,12 @@ public class ConnectionsManager
 	
 	
 	private final ConcurrentHashMap<String, WebsocketConnection> _connections = new ConcurrentHashMap<String, WebsocketConnection>();
+
+	// connections lost less than a grace period ago, by session token, waiting for their client to reconnect
+	private final ConcurrentHashMap<String, SuspendedSession> _suspendedSessions = new ConcurrentHashMap<String, SuspendedSession>();
+
+	private ScheduledExecutorService _sessionTimer;
+
 	/**
 	 * @return
 	 */
@@ -63,6 +74,11 @@ public class ConnectionsManager
 	{
 		for(WebsocketConnection client : this.getConnections())
 		{
+			if(client.isSuspended())
+			{
+				// its socket is gone already, the session is kept until it's resumed or expires
+				continue;
+			}
 			CharBuffer buffer = CharBuffer.wrap("ping");
 			try
 			{
@@ -91,6 +107,116 @@ public class ConnectionsManager
 		}
 	}
 
+	/**
+	 * Keep the session of a lost connection for a grace period, after which it's closed unless a new connection resumed it.
+	 * 
+	 * @param token
+	 *            - The token the client presents to resume the session
+	 * @param websocketConnection
+	 *            - The connection that was lost
+	 * @param gracePeriod
+	 *            - How long to wait for the client, in milliseconds
+	 */
+	public void suspendSession(final String token, final WebsocketConnection websocketConnection, long gracePeriod)
+	{
+		final SuspendedSession session = new SuspendedSession(websocketConnection);
+		_suspendedSessions.put(token, session);
+		session.expiry = getSessionTimer().schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// unless it was resumed in the meantime
+				if(_suspendedSessions.remove(token, session))
+				{
+					_logger.info("Session of websocket connection " + websocketConnection.getConnectionID() + " expired");
+					websocketConnection.closeSession();
+				}
+			}
+		}, gracePeriod, TimeUnit.MILLISECONDS);
+		_logger.info("Websocket connection " + websocketConnection.getConnectionID() + " suspended for " + gracePeriod + "ms");
+	}
+
+	/**
+	 * Take a suspended session over, it won't expire anymore. Only the HTTP session and user that opened the session can take it over.
+	 * 
+	 * @param token
+	 *            - The token of the session
+	 * @param websocketConnection
+	 *            - The connection resuming the session
+	 * @return the connection that was lost, or null if there is no such session, it expired or it belongs to someone else
+	 */
+	public WebsocketConnection resumeSession(String token, WebsocketConnection websocketConnection)
+	{
+		SuspendedSession session = _suspendedSessions.get(token);
+		if(session == null)
+		{
+			// the client can notice that its connection was lost before the server does
+			for(WebsocketConnection connection : this.getConnections())
+			{
+				if(token.equals(connection.getSessionToken()))
+				{
+					if(!connection.hasSameOwner(websocketConnection))
+					{
+						_logger.warn("Refused to resume the session of websocket connection " + connection.getConnectionID() + " from another HTTP session");
+						return null;
+					}
+					connection.suspend();
+				}
+			}
+			session = _suspendedSessions.get(token);
+			if(session == null)
+			{
+				return null;
+			}
+		}
+		if(!session.websocketConnection.hasSameOwner(websocketConnection))
+		{
+			_logger.warn("Refused to resume the session of websocket connection " + session.websocketConnection.getConnectionID() + " from another HTTP session");
+			return null;
+		}
+		if(!_suspendedSessions.remove(token, session))
+		{
+			// expired or resumed by another connection in the meantime
+			return null;
+		}
+		if(session.expiry != null)
+		{
+			session.expiry.cancel(false);
+		}
+		return session.websocketConnection;
+	}
+
+	/**
+	 * Replace a lost connection with the one that resumed its session, under the same id.
+	 * 
+	 * @param websocketConnection
+	 *            - The connection that resumed the session
+	 */
+	public void addResumedConnection(WebsocketConnection websocketConnection)
+	{
+		_connections.put(websocketConnection.getConnectionID(), websocketConnection);
+		_logger.info("Websocket connection " + websocketConnection.getConnectionID() + " resumed");
+	}
+
+	private synchronized ScheduledExecutorService getSessionTimer()
+	{
+		if(_sessionTimer == null)
+		{
+			_sessionTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "geppetto-session-timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return _sessionTimer;
+	}
+
 	/**
 	 * Return all the current web socket connections
 	 * 
@@ -108,4 +234,15 @@ public class ConnectionsManager
 	{
 		return "Connection"+connectionsCounter.incrementAndGet();
 	}
+
+	private static class SuspendedSession
+	{
+		private final WebsocketConnection websocketConnection;
+		private volatile ScheduledFuture<?> expiry;
+
+		private SuspendedSession(WebsocketConnection websocketConnection)
+		{
+			this.websocketConnection = websocketConnection;
+		}
+	}
 }
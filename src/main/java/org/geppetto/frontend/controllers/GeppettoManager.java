@@ -39,6 +39,7 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -65,6 +66,7 @@ import org.geppetto.core.services.DropboxUploadService;
 import org.geppetto.core.services.ModelFormat;
 import org.geppetto.core.utilities.URLReader;
 import org.geppetto.core.utilities.Zipper;
+import org.geppetto.simulation.RuntimeExperiment;
 import org.geppetto.simulation.RuntimeProject;
 import org.springframework.stereotype.Component;
 import org.springframework.web.context.support.SpringBeanAutowiringSupport;
@@ -79,7 +81,7 @@ import org.springframework.web.context.support.SpringBeanAutowiringSupport;
  * 
  */
 @Component
-public class GeppettoManager implements IGeppettoManager
+public class GeppettoManager implements IGeppettoManager, IBatchRuntimeTreeManager
 {
 
 	private static Log logger = LogFactory.getLog(GeppettoManager.class);
@@ -452,9 +454,46 @@ public class GeppettoManager implements IGeppettoManager
 	@Override
 	public AspectSubTreeNode setModelParameters(String aspectInstancePath, Map<String, String> parameters, IExperiment experiment, IGeppettoProject project) throws GeppettoExecutionException
 	{
-		AspectSubTreeNode setParameters = getRuntimeProject(project).getRuntimeExperiment(experiment).setModelParameters(aspectInstancePath, parameters);
-		DataManagerHelper.getDataManager().saveEntity(project);
-		return setParameters;
+		RuntimeExperiment runtimeExperiment = getRuntimeProject(project).getRuntimeExperiment(experiment);
+		synchronized(runtimeExperiment)
+		{
+			AspectSubTreeNode setParameters = runtimeExperiment.setModelParameters(aspectInstancePath, parameters);
+			DataManagerHelper.getDataManager().saveEntity(project);
+			return setParameters;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.geppetto.frontend.controllers.IBatchRuntimeTreeManager#setModelParameters(java.util.List, org.geppetto.core.data.model.IExperiment, org.geppetto.core.data.model.IGeppettoProject)
+	 */
+	@Override
+	public Map<String, AspectSubTreeNode> setModelParameters(List<ParametersCommand> commands, IExperiment experiment, IGeppettoProject project) throws BatchExecutionException
+	{
+		final RuntimeExperiment runtimeExperiment;
+		try
+		{
+			runtimeExperiment = getRuntimeProject(project).getRuntimeExperiment(experiment);
+		}
+		catch(GeppettoExecutionException e)
+		{
+			throw new BatchExecutionException(0, Collections.<String, AspectSubTreeNode> emptyMap(), e);
+		}
+		// the runtime project is shared by the connections of a session, the experiment is locked once for the whole batch
+		synchronized(runtimeExperiment)
+		{
+			Map<String, AspectSubTreeNode> setParameters = ParametersCommand.apply(commands, new ParametersCommand.Target()
+			{
+				@Override
+				public AspectSubTreeNode setModelParameters(String aspectInstancePath, Map<String, String> parameters) throws Exception
+				{
+					return runtimeExperiment.setModelParameters(aspectInstancePath, parameters);
+				}
+			});
+			DataManagerHelper.getDataManager().saveEntity(project);
+			return setParameters;
+		}
 	}
 
 	/*
@@ -35,6 +35,7 @@ package org.geppetto.frontend.controllers;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
 
 import org.apache.catalina.websocket.StreamInbound;
 import org.apache.catalina.websocket.WebSocketServlet;
@@ -53,7 +54,10 @@ public class GeppettoServlet extends WebSocketServlet
 	@Override
 	protected StreamInbound createWebSocketInbound(String subProtocol, HttpServletRequest request)
 	{
-		return new WebsocketConnection();
+		// a client that lost its connection reconnects asking to resume, the token of its session comes in the first message rather than in the URL
+		boolean resuming = Boolean.parseBoolean(request.getParameter("resume"));
+		HttpSession httpSession = request.getSession(false);
+		return new WebsocketConnection(httpSession != null ? httpSession.getId() : null, resuming);
 	}
 
 	@Override
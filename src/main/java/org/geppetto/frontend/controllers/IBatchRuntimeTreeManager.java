@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.controllers;
+
+import java.util.List;
+import java.util.Map;
+
+import org.geppetto.core.data.model.IExperiment;
+import org.geppetto.core.data.model.IGeppettoProject;
+import org.geppetto.core.model.runtime.AspectSubTreeNode;
+
+/**
+ * Operations of the runtime tree carried out on several aspects at once, e.g. for a batch of commands.
+ */
+public interface IBatchRuntimeTreeManager
+{
+
+	/**
+	 * Sets the parameters of several aspects as one operation: the commands are carried out in the order given, no other request sets parameters of the experiment in between, and the project is
+	 * saved once, after all of them are carried out.
+	 * 
+	 * @param commands
+	 *            the commands, an aspect may be set by several
+	 * @param experiment
+	 * @param project
+	 * @return the subtree of each aspect whose parameters were set, by aspect instance path in the order the aspects were first set
+	 * @throws BatchExecutionException
+	 *             if a command fails, the commands before it stay applied to the runtime tree but the project is not saved
+	 */
+	Map<String, AspectSubTreeNode> setModelParameters(List<ParametersCommand> commands, IExperiment experiment, IGeppettoProject project) throws BatchExecutionException;
+
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.controllers;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geppetto.frontend.messages.InboundMessages;
+
+/**
+ * The payloads of the messages received from the clients, one class per shape of payload. The decoder reads the payload of a message straight into the class registered for its type in
+ * {@link #getPayloadTypes()}, the types not registered get their payload as a string.
+ */
+final class InboundPayloads
+{
+
+	private InboundPayloads()
+	{
+	}
+
+	static Map<InboundMessages, Class<?>> getPayloadTypes()
+	{
+		Map<InboundMessages, Class<?>> payloadTypes = new EnumMap<InboundMessages, Class<?>>(InboundMessages.class);
+		register(payloadTypes, Project.class, InboundMessages.NEW_EXPERIMENT, InboundMessages.PERSIST_PROJECT);
+		register(payloadTypes, Experiment.class, InboundMessages.LOAD_PROJECT_FROM_ID, InboundMessages.LOAD_EXPERIMENT, InboundMessages.PLAY_EXPERIMENT, InboundMessages.DELETE_EXPERIMENT,
+				InboundMessages.RUN_EXPERIMENT, InboundMessages.CLEAR_WATCHED_VARIABLES);
+		register(payloadTypes, Properties.class, InboundMessages.SAVE_PROJECT_PROPERTIES, InboundMessages.SAVE_EXPERIMENT_PROPERTIES);
+		register(payloadTypes, WatchedVariables.class, InboundMessages.SET_WATCHED_VARIABLES);
+		register(payloadTypes, Instance.class, InboundMessages.GET_MODEL_TREE, InboundMessages.GET_SIMULATION_TREE, InboundMessages.GET_SUPPORTED_OUTPUTS, InboundMessages.DOWNLOAD_MODEL);
+		register(payloadTypes, Parameters.class, InboundMessages.SET_PARAMETERS);
+		register(payloadTypes, Batch.class, InboundMessages.BATCH);
+		register(payloadTypes, AspectFile.class, InboundMessages.UPLOAD_MODEL, InboundMessages.UPLOAD_RESULTS, InboundMessages.DOWNLOAD_RESULTS);
+		register(payloadTypes, Key.class, InboundMessages.LINK_DROPBOX, InboundMessages.UNLINK_DROPBOX, InboundMessages.RESYNC);
+		register(payloadTypes, Capabilities.class, InboundMessages.CLIENT_CAPABILITIES);
+		register(payloadTypes, FileChunkAck.class, InboundMessages.FILE_CHUNK_ACK);
+		register(payloadTypes, Credit.class, InboundMessages.CREDIT);
+		register(payloadTypes, Resume.class, InboundMessages.RESUME);
+		return payloadTypes;
+	}
+
+	private static void register(Map<InboundMessages, Class<?>> payloadTypes, Class<?> payloadType, InboundMessages... types)
+	{
+		for(InboundMessages type : types)
+		{
+			payloadTypes.put(type, payloadType);
+		}
+	}
+
+	/**
+	 * A request on a project.
+	 */
+	static class Project
+	{
+		Long projectId;
+	}
+
+	/**
+	 * A request on an experiment of a project.
+	 */
+	static class Experiment extends Project
+	{
+		Long experimentId;
+	}
+
+	static class Properties extends Experiment
+	{
+		Map<String, String> properties;
+	}
+
+	static class WatchedVariables extends Experiment
+	{
+		List<String> variables;
+	}
+
+	/**
+	 * A request on an instance of the model of an experiment, format is only used to download the model.
+	 */
+	static class Instance extends Experiment
+	{
+		String instancePath;
+		String format;
+	}
+
+	static class Parameters extends Experiment
+	{
+		String modelAspectPath;
+		Map<String, String> modelParameters;
+	}
+
+	static class Batch extends Experiment
+	{
+		List<Command> commands;
+	}
+
+	/**
+	 * A command of a batch, a message without request id.
+	 */
+	static class Command
+	{
+		String type;
+		Parameters data;
+	}
+
+	static class AspectFile extends Experiment
+	{
+		String aspectPath;
+		String format;
+	}
+
+	/**
+	 * The key of a dropbox account, or of the delta encoded updates a client asks a keyframe for.
+	 */
+	static class Key
+	{
+		String key;
+	}
+
+	static class Capabilities
+	{
+		List<String> codecs;
+		boolean deltaUpdates;
+		boolean chunkedFiles;
+		boolean fragments;
+		boolean batches;
+		boolean sharedFrames;
+		boolean numericFrames;
+		Credit flowControl;
+	}
+
+	static class FileChunkAck
+	{
+		int transferId;
+		Long received;
+	}
+
+	static class Credit
+	{
+		int messages;
+		long bytes;
+	}
+
+	static class Resume
+	{
+		String token;
+		long received;
+	}
+}
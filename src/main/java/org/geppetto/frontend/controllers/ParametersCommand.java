@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.controllers;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geppetto.core.model.runtime.AspectSubTreeNode;
+
+/**
+ * A command setting parameters of an aspect, one of the ordered commands of a batch.
+ */
+public class ParametersCommand
+{
+
+	private final String aspectInstancePath;
+
+	private final Map<String, String> parameters;
+
+	/**
+	 * @param aspectInstancePath
+	 * @param parameters
+	 *            the values of the parameters to set, by instance path
+	 */
+	public ParametersCommand(String aspectInstancePath, Map<String, String> parameters)
+	{
+		this.aspectInstancePath = aspectInstancePath;
+		this.parameters = parameters;
+	}
+
+	public String getAspectInstancePath()
+	{
+		return aspectInstancePath;
+	}
+
+	public Map<String, String> getParameters()
+	{
+		return parameters;
+	}
+
+	/**
+	 * Carry out commands in order, stopping at the first that fails.
+	 * 
+	 * @param commands
+	 * @param target
+	 *            what sets the parameters
+	 * @return the subtree of each aspect whose parameters were set, by aspect instance path in the order the aspects were first set
+	 * @throws BatchExecutionException
+	 *             if a command fails, telling how many were carried out before it
+	 */
+	public static Map<String, AspectSubTreeNode> apply(List<ParametersCommand> commands, Target target) throws BatchExecutionException
+	{
+		Map<String, AspectSubTreeNode> setParameters = new LinkedHashMap<String, AspectSubTreeNode>();
+		for(int i = 0; i < commands.size(); i++)
+		{
+			ParametersCommand command = commands.get(i);
+			try
+			{
+				// an aspect set again keeps its place, with its latest subtree
+				setParameters.put(command.getAspectInstancePath(), target.setModelParameters(command.getAspectInstancePath(), command.getParameters()));
+			}
+			catch(Exception e)
+			{
+				// the earlier commands aren't undone, the caller tells the client which were carried out
+				throw new BatchExecutionException(i, setParameters, e);
+			}
+		}
+		return setParameters;
+	}
+
+	/**
+	 * Sets the parameters of an aspect.
+	 */
+	public interface Target
+	{
+		AspectSubTreeNode setModelParameters(String aspectInstancePath, Map<String, String> parameters) throws Exception;
+	}
+}
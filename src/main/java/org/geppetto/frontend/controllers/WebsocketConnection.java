@@ -33,31 +33,63 @@
 package org.geppetto.frontend.controllers;
 
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.CharArrayReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import org.apache.catalina.websocket.Constants;
 import org.apache.catalina.websocket.MessageInbound;
 import org.apache.catalina.websocket.WsOutbound;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geppetto.core.common.GeppettoExecutionException;
 import org.geppetto.core.common.GeppettoInitializationException;
+import org.geppetto.core.data.model.IUser;
 import org.geppetto.core.manager.IGeppettoManager;
 import org.geppetto.core.utilities.URLReader;
-import org.geppetto.frontend.messages.GeppettoTransportMessage;
+import org.geppetto.frontend.controllers.InboundPayloads.AspectFile;
+import org.geppetto.frontend.controllers.InboundPayloads.Batch;
+import org.geppetto.frontend.controllers.InboundPayloads.Capabilities;
+import org.geppetto.frontend.controllers.InboundPayloads.Command;
+import org.geppetto.frontend.controllers.InboundPayloads.Credit;
+import org.geppetto.frontend.controllers.InboundPayloads.Experiment;
+import org.geppetto.frontend.controllers.InboundPayloads.FileChunkAck;
+import org.geppetto.frontend.controllers.InboundPayloads.Instance;
+import org.geppetto.frontend.controllers.InboundPayloads.Key;
+import org.geppetto.frontend.controllers.InboundPayloads.Parameters;
+import org.geppetto.frontend.controllers.InboundPayloads.Project;
+import org.geppetto.frontend.controllers.InboundPayloads.Properties;
+import org.geppetto.frontend.controllers.InboundPayloads.Resume;
+import org.geppetto.frontend.controllers.InboundPayloads.WatchedVariables;
+import org.geppetto.frontend.messages.InboundMessage;
+import org.geppetto.frontend.messages.InboundMessageDecoder;
 import org.geppetto.frontend.messages.InboundMessages;
 import org.geppetto.frontend.messages.OutboundMessages;
 import org.geppetto.frontend.messaging.DefaultMessageSenderFactory;
+import org.geppetto.frontend.messaging.InboundRequestExecutor;
+import org.geppetto.frontend.messaging.InboundRequestExecutorFactory;
+import org.geppetto.frontend.messaging.RequestAdmission;
 import org.geppetto.frontend.messaging.MessageSender;
 import org.geppetto.frontend.messaging.MessageSenderEvent;
 import org.geppetto.frontend.messaging.MessageSenderListener;
+import org.geppetto.frontend.messaging.SingleFlightGroup;
+import org.geppetto.frontend.messaging.SingleFlightGroup.Participant;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.web.context.support.SpringBeanAutowiringSupport;
@@ -65,12 +97,23 @@ import org.springframework.web.context.support.SpringBeanAutowiringSupport;
 /**
  * Class used to process Web Socket Connections. Messages sent from the connecting clients, web socket connections, are received in here.
  * 
+ * If the message sender is resumable the session outlives the connection: when the connection is lost the sender is detached and the session, with its project, is kept for a grace period. The
+ * client reconnects asking to resume and sends, as the first message of the new connection, the token it was sent in the session message and the number of the last frame it received. The token is never
+ * part of the URL, which ends up in access logs. If the new connection belongs to the same HTTP session and user as the lost one it takes the session over and the sender writes the frames the
+ * client missed. The sender numbers the frames of a resumable session from the session message, which is the first one, and sends the number with each frame, see {@link org.geppetto.frontend.messaging.FrameWriter}.
  */
 public class WebsocketConnection extends MessageInbound implements MessageSenderListener
 {
 
 	private static Log logger = LogFactory.getLog(WebsocketConnection.class);
 
+	/**
+	 * Decodes the payload of the messages in the class registered for their type, the others have theirs as a string. A project sent in a binary message is read as it is uncompressed.
+	 */
+	private static final InboundMessageDecoder DECODER = new InboundMessageDecoder(InboundPayloads.getPayloadTypes(), EnumSet.of(InboundMessages.LOAD_PROJECT_FROM_CONTENT));
+
+	private static final Gson GSON = new Gson();
+
 	private ConnectionHandler connectionHandler;
 
 	private String connectionID;
@@ -82,9 +125,30 @@ public class WebsocketConnection extends MessageInbound implements MessageSender
 
 	private MessageSender messageSender;
 
+	@Autowired
+	private InboundRequestExecutorFactory requestExecutorFactory;
+
+	private InboundRequestExecutor requestExecutor;
+
+	private RequestAdmission requestAdmission;
+
 	@Autowired
 	private IGeppettoManager geppettoManager;
 
+	// the token a client presents to resume this session on a new connection, null if the session can't be resumed
+	private String sessionToken;
+
+	// the HTTP session and the login of the user that opened the connection, only they can resume its session
+	private String httpSessionId;
+	private String userLogin;
+
+	// true until the first message of a connection opened to resume a session, which carries the token of the session
+	private boolean awaitingResume = false;
+
+	private volatile boolean suspended = false;
+
+	// true once the session was ended, the connection must not be suspended afterwards
+	private boolean closed = false;
 
 	public WebsocketConnection()
 	{
@@ -111,25 +175,237 @@ public class WebsocketConnection extends MessageInbound implements MessageSender
 		this.connectionHandler = new ConnectionHandler(this, geppettoManager);
 	}
 
+	/**
+	 * @param httpSessionId
+	 *            the HTTP session of the request that opened the connection, null if there is none, in which case the session of the connection can't be resumed
+	 * @param resuming
+	 *            true if the client lost its previous connection and asks to resume its session
+	 */
+	public WebsocketConnection(String httpSessionId, boolean resuming)
+	{
+		this();
+		this.httpSessionId = httpSessionId;
+		this.awaitingResume = resuming;
+		IUser user = geppettoManager.getUser();
+		this.userLogin = user != null ? user.getLogin() : null;
+	}
+
 	@Override
 	protected void onOpen(WsOutbound outbound)
+	{
+		if(!awaitingResume)
+		{
+			startSession();
+		}
+	}
+
+	/**
+	 * Start a new session on this connection.
+	 */
+	private void startSession()
 	{
 		messageSender = messageSenderFactory.getMessageSender(getWsOutbound(), this);
+		requestExecutor = requestExecutorFactory.getRequestExecutor();
+		IUser user = geppettoManager.getUser();
+		requestAdmission = requestExecutorFactory.getRequestAdmission(user != null ? user.getLogin() : null);
 		connectionID = ConnectionsManager.getInstance().addConnection(this);
+		if(messageSender.isResumable() && httpSessionId != null)
+		{
+			sessionToken = UUID.randomUUID().toString();
+			sendSessionMessage(false);
+		}
 		sendMessage(null, OutboundMessages.CLIENT_ID, connectionID);
 	}
 
 	@Override
 	protected void onClose(int status)
 	{
+		if(messageSender == null || suspended || isClosed())
+		{
+			// no session was started, the session waits for the client, was taken over by a new connection already, or was given up
+			return;
+		}
+		if(isResumable() && status != Constants.STATUS_CLOSE_NORMAL)
+		{
+			suspend();
+		}
+		else
+		{
+			closeSession();
+		}
+	}
+
+	/**
+	 * Take over the session of a lost connection.
+	 * 
+	 * @param token
+	 * @param received
+	 *            the number of the last frame the client received in the session
+	 * @return false if the session expired, belongs to someone else or the client missed more than the sender kept, in which case this connection starts a new one
+	 */
+	private boolean resumeSession(String token, long received)
+	{
+		WebsocketConnection lost = token != null ? ConnectionsManager.getInstance().resumeSession(token, this) : null;
+		if(lost == null)
+		{
+			logger.info("The session to resume expired");
+			return false;
+		}
+
+		lost.messageSender.removeListener(lost);
+		lost.messageSender.addListener(this);
+		if(!lost.messageSender.attach(getWsOutbound(), received))
+		{
+			lost.closeSession();
+			return false;
+		}
+
+		messageSender = lost.messageSender;
+		requestExecutor = lost.requestExecutor;
+		requestAdmission = lost.requestAdmission;
+		connectionHandler = lost.connectionHandler;
+		connectionHandler.setWebsocketConnection(this);
+		connectionID = lost.connectionID;
+		sessionToken = token;
+		httpSessionId = lost.httpSessionId;
+		userLogin = lost.userLogin;
+		ConnectionsManager.getInstance().addResumedConnection(this);
+		sendSessionMessage(true);
+		return true;
+	}
+
+	/**
+	 * The connection was lost, keep the session for the client to resume it.
+	 */
+	void suspend()
+	{
+		synchronized(this)
+		{
+			if(suspended)
+			{
+				return;
+			}
+			suspended = true;
+		}
+		messageSender.detach();
+		ConnectionsManager.getInstance().suspendSession(sessionToken, this, messageSenderFactory.getSessionGracePeriod());
+	}
+
+	/**
+	 * End the session, closing its project.
+	 */
+	protected void closeSession()
+	{
+		synchronized(this)
+		{
+			if(closed)
+			{
+				return;
+			}
+			closed = true;
+		}
+		requestExecutor.shutdown();
+		// the requests of other connections following the ones of this session won't get a reply
+		for(Participant follower : requestExecutorFactory.getSingleFlightGroup().abandon(messageSender))
+		{
+			sendThrottledMessage(follower, requestExecutorFactory.getBusyRetryAfter());
+		}
 		messageSender.shutdown();
 		connectionHandler.closeProject();
 	}
 
+	/**
+	 * @param requestID
+	 * @return true if the client cancelled the request while it was running, there is no point in preparing its reply
+	 */
+	public boolean isCancelled(String requestID)
+	{
+		return requestExecutor.isCancelled(requestID);
+	}
+
+	/**
+	 * @param scope
+	 *            the scope, e.g. a project, whose messages won't be sent anymore
+	 */
+	public void closeScope(String scope)
+	{
+		messageSender.closeScope(scope);
+	}
+
+	/**
+	 * @return the token of the session, null if it can't be resumed
+	 */
+	public String getSessionToken()
+	{
+		return sessionToken;
+	}
+
+	private synchronized boolean isClosed()
+	{
+		return closed;
+	}
+
+	private boolean isResumable()
+	{
+		return sessionToken != null;
+	}
+
+	/**
+	 * @param connection
+	 *            a connection asking to resume the session of this one
+	 * @return true if both were opened by the same HTTP session, of the same user
+	 */
+	boolean hasSameOwner(WebsocketConnection connection)
+	{
+		return httpSessionId != null && httpSessionId.equals(connection.httpSessionId) && (userLogin == null ? connection.userLogin == null : userLogin.equals(connection.userLogin));
+	}
+
+	/**
+	 * @return true if the connection was lost and the session waits to be resumed
+	 */
+	public boolean isSuspended()
+	{
+		return suspended;
+	}
+
+	private void sendSessionMessage(boolean resumed)
+	{
+		JsonObject session = new JsonObject();
+		session.addProperty("token", sessionToken);
+		session.addProperty("resumed", resumed);
+		sendMessage(null, OutboundMessages.SESSION, session.toString());
+	}
+
+	/**
+	 * Receives a message from the client with a compressed payload, see {@link InboundMessageDecoder}.
+	 * 
+	 * @throws IOException
+	 */
 	@Override
 	protected void onBinaryMessage(ByteBuffer message) throws IOException
 	{
-		throw new UnsupportedOperationException("Binary message not supported.");
+		receive(DECODER.decode(message, requestExecutorFactory.getMaxUncompressedPayloadLength()));
+	}
+
+	/**
+	 * The first message of a connection opened to resume a session tells which one, any other message starts a new session.
+	 * 
+	 * @return true if the message was the request to resume
+	 */
+	private boolean resumeOrStartSession(InboundMessage gmsg)
+	{
+		awaitingResume = false;
+		if(gmsg.getType() == InboundMessages.RESUME)
+		{
+			Resume resume = gmsg.getData();
+			if(!resumeSession(resume.token, resume.received))
+			{
+				startSession();
+			}
+			return true;
+		}
+		startSession();
+		return false;
 	}
 
 	/**
@@ -139,7 +415,46 @@ public class WebsocketConnection extends MessageInbound implements MessageSender
 	 */
 	public void sendMessage(String requestID, OutboundMessages type, String message)
 	{
-		messageSender.sendMessage(requestID, type, message);
+		List<String> joinedRequests = requestID != null ? requestExecutor.getJoinedRequests(requestID) : Collections.<String> emptyList();
+		List<Participant> followers = requestID != null ? requestExecutorFactory.getSingleFlightGroup().getFollowers(messageSender, requestID) : Collections.<Participant> emptyList();
+		if(joinedRequests.isEmpty() && followers.isEmpty())
+		{
+			messageSender.sendMessage(requestID, type, message);
+			return;
+		}
+
+		// identical requests that joined this one, on this connection or on others, get the same reply, compressed once
+		messageSender.sendSharedMessage(requestID, type, message);
+		for(String joinedRequest : joinedRequests)
+		{
+			messageSender.sendSharedMessage(joinedRequest, type, message);
+		}
+		for(Participant follower : followers)
+		{
+			follower.getSender().sendSharedMessage(follower.getRequestID(), type, message);
+		}
+	}
+
+	/**
+	 * Send a message that stands for the latest state of its scope, e.g. the status of the experiments of a project. Messages of the same type and scope may be coalesced or delta encoded, so
+	 * identical requests that joined this one are answered by the same message rather than a copy each. Identical requests of other connections are sent it through their own sender, which
+	 * keeps the state they are coalesced or delta encoded against.
+	 * 
+	 * @param requestID
+	 * @param type
+	 * @param message
+	 * @param scope
+	 */
+	public void sendMessage(String requestID, OutboundMessages type, String message, String scope)
+	{
+		messageSender.sendMessage(requestID, type, message, scope);
+		if(requestID != null)
+		{
+			for(Participant follower : requestExecutorFactory.getSingleFlightGroup().getFollowers(messageSender, requestID))
+			{
+				follower.getSender().sendMessage(follower.getRequestID(), type, message, scope);
+			}
+		}
 	}
 
 	/**
@@ -160,21 +475,188 @@ public class WebsocketConnection extends MessageInbound implements MessageSender
 	@Override
 	protected void onTextMessage(CharBuffer message) throws IOException
 	{
-		String msg = message.toString();
+		// de-serialize JSON, the payload straight into the class of its type
+		Reader json = message.hasArray() ? new CharArrayReader(message.array(), message.arrayOffset() + message.position(), message.remaining()) : new StringReader(message.toString());
+		receive(DECODER.decode(json));
+	}
 
-		Map<String, String> parameters;
-		long experimentId = -1;
-		long projectId = -1;
-		String instancePath = null;
+	/**
+	 * Admits a decoded message and hands it to the request executor.
+	 */
+	private void receive(final InboundMessage gmsg)
+	{
+		if(awaitingResume && resumeOrStartSession(gmsg))
+		{
+			return;
+		}
 
-		// de-serialize JSON
-		GeppettoTransportMessage gmsg = new Gson().fromJson(msg, GeppettoTransportMessage.class);
+		// a client sending more than its share is told to retry rather than queued
+		long retryAfter = requestAdmission.admit(gmsg.getType());
+		if(retryAfter > 0)
+		{
+			sendThrottledMessage(gmsg, retryAfter);
+			return;
+		}
 
-		String requestID = gmsg.requestID;
+		// a request identical to one in flight on any connection, whose reply doesn't depend on the connection, follows it
+		final String requestID = gmsg.getRequestID();
+		final SingleFlightGroup singleFlightGroup = requestExecutorFactory.getSingleFlightGroup();
+		final MessageSender sender = messageSender;
+		String flightKey = null;
+		if(isOfType(gmsg, requestExecutorFactory.getSharedSingleFlightMessageTypes()) || isOfType(gmsg, requestExecutorFactory.getSingleFlightMessageTypes()))
+		{
+			flightKey = getFlightKey(gmsg);
+		}
+		final boolean shared = flightKey != null && isOfType(gmsg, requestExecutorFactory.getSharedSingleFlightMessageTypes());
+		if(shared && singleFlightGroup.join(flightKey, gmsg.getType(), sender, requestID))
+		{
+			logger.debug(gmsg.getType() + " request " + requestID + " of connection " + connectionID + " follows an identical request");
+			return;
+		}
+
+		// so is a client with too many requests pending, this thread must go on reading its credit and cancellations
+		retryAfter = requestExecutor.execute(gmsg.getType(), requestID, getScope(gmsg), flightKey, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					handleMessage(gmsg);
+				}
+				finally
+				{
+					if(shared)
+					{
+						// the followers that came after the reply was sent run the request again
+						for(Participant follower : singleFlightGroup.land(sender, requestID))
+						{
+							sendThrottledMessage(follower, 1);
+						}
+					}
+				}
+			}
+		});
+		if(shared && retryAfter != 0)
+		{
+			// the request won't run, nor will its followers
+			for(Participant follower : singleFlightGroup.land(sender, requestID))
+			{
+				sendThrottledMessage(follower, retryAfter > 0 ? retryAfter : Math.max(requestExecutorFactory.getBusyRetryAfter(), 1));
+			}
+		}
+		if(retryAfter > 0)
+		{
+			sendThrottledMessage(gmsg, retryAfter);
+		}
+	}
+
+	private void sendThrottledMessage(InboundMessage message, long retryAfter)
+	{
+		logger.debug("Throttled " + message.getType() + " request " + message.getRequestID() + " of connection " + connectionID);
+		sendMessage(message.getRequestID(), OutboundMessages.THROTTLED, getThrottledMessage(message.getType(), retryAfter));
+	}
+
+	/**
+	 * Tell the client of another connection to send a request again, the request it followed won't reply.
+	 */
+	private void sendThrottledMessage(Participant follower, long retryAfter)
+	{
+		logger.debug("Throttled " + follower.getType() + " request " + follower.getRequestID() + " following a request of connection " + connectionID);
+		follower.getSender().sendMessage(follower.getRequestID(), OutboundMessages.THROTTLED, getThrottledMessage(follower.getType(), retryAfter));
+	}
+
+	private static String getThrottledMessage(InboundMessages type, long retryAfter)
+	{
+		JsonObject throttled = new JsonObject();
+		throttled.addProperty("type", type.toString());
+		throttled.addProperty("retryAfter", retryAfter);
+		return throttled.toString();
+	}
+
+	/**
+	 * @return the project the message works on, null if it works on the whole connection
+	 */
+	private static Object getScope(InboundMessage message)
+	{
+		Object data = message.getData();
+		if(data instanceof Project && message.getType() != InboundMessages.LOAD_PROJECT_FROM_ID)
+		{
+			return ((Project) data).projectId;
+		}
+		return null;
+	}
+
+	private static boolean isOfType(InboundMessage message, Set<InboundMessages> types)
+	{
+		return types != null && types.contains(message.getType());
+	}
+
+	/**
+	 * @return the type, the project and experiment the message works on and its whole payload normalized, equal for identical requests; null if the payload is streamed
+	 */
+	private static String getFlightKey(InboundMessage message)
+	{
+		Object data = message.getData();
+		if(data instanceof Reader)
+		{
+			return null;
+		}
+		Long projectId = null;
+		Long experimentId = null;
+		if(data instanceof Project)
+		{
+			projectId = ((Project) data).projectId;
+		}
+		if(data instanceof Experiment)
+		{
+			experimentId = ((Experiment) data).experimentId;
+		}
+		String payload = data instanceof String ? (String) data : normalize(GSON.toJsonTree(data)).toString();
+		return message.getType() + "/" + projectId + "/" + experimentId + "/" + payload;
+	}
+
+	/**
+	 * @return the element with the members of its objects sorted by name, so that identical payloads are serialized the same whatever the order the client sent them in
+	 */
+	private static JsonElement normalize(JsonElement element)
+	{
+		if(element.isJsonObject())
+		{
+			Map<String, JsonElement> members = new TreeMap<String, JsonElement>();
+			for(Map.Entry<String, JsonElement> member : element.getAsJsonObject().entrySet())
+			{
+				members.put(member.getKey(), normalize(member.getValue()));
+			}
+			JsonObject normalized = new JsonObject();
+			for(Map.Entry<String, JsonElement> member : members.entrySet())
+			{
+				normalized.add(member.getKey(), member.getValue());
+			}
+			return normalized;
+		}
+		if(element.isJsonArray())
+		{
+			JsonArray normalized = new JsonArray();
+			for(JsonElement item : element.getAsJsonArray())
+			{
+				normalized.add(normalize(item));
+			}
+			return normalized;
+		}
+		return element;
+	}
+
+	/**
+	 * Handles a message from the client, on one of the workers of the request executor unless the message type is executed inline.
+	 */
+	private void handleMessage(InboundMessage gmsg)
+	{
+		String requestID = gmsg.getRequestID();
 
 		// switch on message type
-		// NOTE: each message handler knows how to interpret the GeppettoMessage data field
-		switch(InboundMessages.valueOf(gmsg.type.toUpperCase()))
+		// NOTE: each message has its payload decoded in the class registered for its type in PAYLOAD_TYPES
+		switch(gmsg.getType())
 		{
 			case GEPPETTO_VERSION:
 			{
@@ -183,73 +665,67 @@ public class WebsocketConnection extends MessageInbound implements MessageSender
 			}
 			case NEW_EXPERIMENT:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				projectId = Long.parseLong(parameters.get("projectId"));
-				connectionHandler.newExperiment(requestID, projectId);
+				Project payload = gmsg.getData();
+				connectionHandler.newExperiment(requestID, payload.projectId);
 				break;
 			}
 			case LOAD_PROJECT_FROM_URL:
 			{
-				connectionHandler.loadProjectFromURL(requestID, gmsg.data);
+				String url = gmsg.getData();
+				connectionHandler.loadProjectFromURL(requestID, url);
 				messageSender.reset();
 				break;
 			}
 			case LOAD_PROJECT_FROM_ID:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				if(parameters.containsKey("experimentId"))
-				{
-					experimentId = Long.parseLong(parameters.get("experimentId"));
-				}
-				projectId = Long.parseLong(parameters.get("projectId"));
-				connectionHandler.loadProjectFromId(requestID, projectId, experimentId);
+				Experiment payload = gmsg.getData();
+				long experimentId = payload.experimentId != null ? payload.experimentId : -1;
+				connectionHandler.loadProjectFromId(requestID, payload.projectId, experimentId);
 				messageSender.reset();
 				break;
 			}
 			case LOAD_PROJECT_FROM_CONTENT:
 			{
-				connectionHandler.loadProjectFromContent(requestID, gmsg.data);
+				// a reader if the project came compressed in a binary message
+				Object content = gmsg.getData();
+				if(content instanceof Reader)
+				{
+					connectionHandler.loadProjectFromContent(requestID, (Reader) content);
+				}
+				else
+				{
+					connectionHandler.loadProjectFromContent(requestID, (String) content);
+				}
 				messageSender.reset();
 				break;
 			}
 			case PERSIST_PROJECT:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				projectId = Long.parseLong(parameters.get("projectId"));
-				connectionHandler.persistProject(requestID, projectId);
+				Project payload = gmsg.getData();
+				connectionHandler.persistProject(requestID, payload.projectId);
 				break;
 			}
 			case SAVE_PROJECT_PROPERTIES:
 			{
-				ReceivedObject receivedObject = new Gson().fromJson(gmsg.data, ReceivedObject.class);
-				connectionHandler.saveProjectProperties(requestID, receivedObject.projectId, receivedObject.properties);
+				Properties payload = gmsg.getData();
+				connectionHandler.saveProjectProperties(requestID, payload.projectId, payload.properties);
 				break;
 			}
 			case SAVE_EXPERIMENT_PROPERTIES:
 			{
-				ReceivedObject receivedObject = new Gson().fromJson(gmsg.data, ReceivedObject.class);
-				connectionHandler.saveExperimentProperties(requestID, receivedObject.projectId, receivedObject.experimentId, receivedObject.properties);
+				Properties payload = gmsg.getData();
+				connectionHandler.saveExperimentProperties(requestID, payload.projectId, payload.experimentId, payload.properties);
 				break;
 			}
 			case LOAD_EXPERIMENT:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				experimentId = Long.parseLong(parameters.get("experimentId"));
-				projectId = Long.parseLong(parameters.get("projectId"));
-				connectionHandler.loadExperiment(requestID, experimentId, projectId);
+				Experiment payload = gmsg.getData();
+				connectionHandler.loadExperiment(requestID, payload.experimentId, payload.projectId);
 				break;
 			}
 			case GET_SCRIPT:
 			{
-				String urlString = gmsg.data;
+				String urlString = gmsg.getData();
 				URL url = null;
 				try
 				{
@@ -266,40 +742,28 @@ public class WebsocketConnection extends MessageInbound implements MessageSender
 			}
 			case PLAY_EXPERIMENT:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				experimentId = Long.parseLong(parameters.get("experimentId"));
-				projectId = Long.parseLong(parameters.get("projectId"));
-				connectionHandler.playExperiment(requestID, experimentId, projectId);
+				Experiment payload = gmsg.getData();
+				connectionHandler.playExperiment(requestID, payload.experimentId, payload.projectId);
 				break;
 			}
 			case DELETE_EXPERIMENT:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				experimentId = Long.parseLong(parameters.get("experimentId"));
-				projectId = Long.parseLong(parameters.get("projectId"));
-				connectionHandler.deleteExperiment(requestID, experimentId, projectId);
+				Experiment payload = gmsg.getData();
+				connectionHandler.deleteExperiment(requestID, payload.experimentId, payload.projectId);
 				break;
 			}
 			case RUN_EXPERIMENT:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				experimentId = Long.parseLong(parameters.get("experimentId"));
-				projectId = Long.parseLong(parameters.get("projectId"));
-				connectionHandler.runExperiment(requestID, experimentId, projectId);
+				Experiment payload = gmsg.getData();
+				connectionHandler.runExperiment(requestID, payload.experimentId, payload.projectId);
 				break;
 			}
 			case SET_WATCHED_VARIABLES:
 			{
-				ReceivedObject receivedObject = new Gson().fromJson(gmsg.data, ReceivedObject.class);
+				WatchedVariables payload = gmsg.getData();
 				try
 				{
-					connectionHandler.setWatchedVariables(requestID, receivedObject.variables, receivedObject.experimentId, receivedObject.projectId);
+					connectionHandler.setWatchedVariables(requestID, payload.variables, payload.experimentId, payload.projectId);
 				}
 				catch(GeppettoExecutionException e)
 				{
@@ -316,8 +780,8 @@ public class WebsocketConnection extends MessageInbound implements MessageSender
 			{
 				try
 				{
-					ReceivedObject receivedObject = new Gson().fromJson(gmsg.data, ReceivedObject.class);
-					connectionHandler.clearWatchLists(requestID, receivedObject.experimentId, receivedObject.projectId);
+					Experiment payload = gmsg.getData();
+					connectionHandler.clearWatchLists(requestID, payload.experimentId, payload.projectId);
 				}
 				catch(GeppettoExecutionException e)
 				{
@@ -332,112 +796,131 @@ public class WebsocketConnection extends MessageInbound implements MessageSender
 			}
 			case GET_MODEL_TREE:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				experimentId = Long.parseLong(parameters.get("experimentId"));
-				projectId = Long.parseLong(parameters.get("projectId"));
-				instancePath = parameters.get("instancePath");
-				connectionHandler.getModelTree(requestID, instancePath, experimentId, projectId);
+				Instance payload = gmsg.getData();
+				connectionHandler.getModelTree(requestID, payload.instancePath, payload.experimentId, payload.projectId);
 				break;
 			}
 			case GET_SIMULATION_TREE:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				experimentId = Long.parseLong(parameters.get("experimentId"));
-				projectId = Long.parseLong(parameters.get("projectId"));
-				instancePath = parameters.get("instancePath");
-				connectionHandler.getSimulationTree(requestID, instancePath, experimentId, projectId);
+				Instance payload = gmsg.getData();
+				connectionHandler.getSimulationTree(requestID, payload.instancePath, payload.experimentId, payload.projectId);
 				break;
 			}
 			case GET_SUPPORTED_OUTPUTS:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				experimentId = Long.parseLong(parameters.get("experimentId"));
-				projectId = Long.parseLong(parameters.get("projectId"));
-				instancePath = parameters.get("instancePath");
-				connectionHandler.getSupportedOuputs(requestID, instancePath, experimentId, projectId);
+				Instance payload = gmsg.getData();
+				connectionHandler.getSupportedOuputs(requestID, payload.instancePath, payload.experimentId, payload.projectId);
 				break;
 			}
 			case DOWNLOAD_MODEL:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				experimentId = Long.parseLong(parameters.get("experimentId"));
-				projectId = Long.parseLong(parameters.get("projectId"));
-				instancePath = parameters.get("instancePath");
-				String format = parameters.get("format");
-				connectionHandler.downloadModel(requestID, instancePath, format, experimentId, projectId);
+				Instance payload = gmsg.getData();
+				connectionHandler.downloadModel(requestID, payload.instancePath, payload.format, payload.experimentId, payload.projectId);
 				break;
 			}
 			case SET_PARAMETERS:
 			{
-				ReceivedObject receivedObject = new Gson().fromJson(gmsg.data, ReceivedObject.class);
-				connectionHandler.setParameters(requestID, receivedObject.modelAspectPath, receivedObject.modelParameters, receivedObject.projectId, receivedObject.experimentId);
+				Parameters payload = gmsg.getData();
+				connectionHandler.setParameters(requestID, payload.modelAspectPath, payload.modelParameters, payload.projectId, payload.experimentId);
 				break;
 			}
-			case LINK_DROPBOX:
+			case BATCH:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
+				Batch batch = gmsg.getData();
+				List<ParametersCommand> batchCommands = getBatchCommands(batch.commands);
+				if(batchCommands == null)
 				{
-				}.getType());
-				String key = parameters.get("key");
-				connectionHandler.linkDropBox(requestID, key);
+					// nothing of a batch is carried out unless all of it can be
+					connectionHandler.rejectRequest(requestID, "Only " + InboundMessages.SET_PARAMETERS + " commands can be batched");
+				}
+				else
+				{
+					connectionHandler.setParameters(requestID, batchCommands, batch.projectId, batch.experimentId);
+				}
+				break;
+			}
+			case LINK_DROPBOX:
+			{
+				Key payload = gmsg.getData();
+				connectionHandler.linkDropBox(requestID, payload.key);
 				break;
 			}
 			case UNLINK_DROPBOX:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				String key = parameters.get("key");
-				connectionHandler.unLinkDropBox(requestID, key);
+				Key payload = gmsg.getData();
+				connectionHandler.unLinkDropBox(requestID, payload.key);
 				break;
 			}
 			case UPLOAD_MODEL:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				experimentId = Long.parseLong(parameters.get("experimentId"));
-				projectId = Long.parseLong(parameters.get("projectId"));
-				String format = parameters.get("format");
-				String aspectPath = parameters.get("aspectPath");
-				connectionHandler.uploadModel(aspectPath, projectId, experimentId, format);
+				AspectFile payload = gmsg.getData();
+				connectionHandler.uploadModel(payload.aspectPath, payload.projectId, payload.experimentId, payload.format);
 				break;
 			}
 			case UPLOAD_RESULTS:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				experimentId = Long.parseLong(parameters.get("experimentId"));
-				projectId = Long.parseLong(parameters.get("projectId"));
-				String format = parameters.get("format");
-				String aspectPath = parameters.get("aspectPath");
-				connectionHandler.uploadResults(aspectPath, projectId, experimentId, format);
+				AspectFile payload = gmsg.getData();
+				connectionHandler.uploadResults(payload.aspectPath, payload.projectId, payload.experimentId, payload.format);
 				break;
 			}
 			case DOWNLOAD_RESULTS:
 			{
-				parameters = new Gson().fromJson(gmsg.data, new TypeToken<HashMap<String, String>>()
-				{
-				}.getType());
-				experimentId = Long.parseLong(parameters.get("experimentId"));
-				projectId = Long.parseLong(parameters.get("projectId"));
-				String format = parameters.get("format");
-				String aspectPath = parameters.get("aspectPath");
-				connectionHandler.downloadResults(requestID, aspectPath, projectId, experimentId, format);
+				AspectFile payload = gmsg.getData();
+				connectionHandler.downloadResults(requestID, payload.aspectPath, payload.projectId, payload.experimentId, payload.format);
 				break;
 			}
 			case EXPERIMENT_STATUS:
-				connectionHandler.checkExperimentStatus(requestID, gmsg.data);
+				String projectId = gmsg.getData();
+				connectionHandler.checkExperimentStatus(requestID, projectId);
+				break;
+			case CLIENT_CAPABILITIES:
+			{
+				Capabilities capabilities = gmsg.getData();
+				if(capabilities.codecs != null)
+				{
+					messageSender.setClientCodecs(capabilities.codecs);
+				}
+				messageSender.setDeltaUpdatesSupported(capabilities.deltaUpdates);
+				messageSender.setChunkedFilesSupported(capabilities.chunkedFiles);
+				messageSender.setFragmentsSupported(capabilities.fragments);
+				messageSender.setBatchesSupported(capabilities.batches);
+				messageSender.setSharedFramesSupported(capabilities.sharedFrames);
+				messageSender.setNumericFramesSupported(capabilities.numericFrames);
+				if(capabilities.flowControl != null)
+				{
+					messageSender.enableFlowControl(capabilities.flowControl.messages, capabilities.flowControl.bytes);
+				}
 				break;
+			}
+			case RESYNC:
+			{
+				Key payload = gmsg.getData();
+				messageSender.requestKeyframe(payload.key);
+				break;
+			}
+			case CREDIT:
+			{
+				Credit credit = gmsg.getData();
+				messageSender.grantCredit(credit.messages, credit.bytes);
+				break;
+			}
+			case FILE_CHUNK_ACK:
+			{
+				FileChunkAck ack = gmsg.getData();
+				messageSender.acknowledgeFileChunk(ack.transferId, ack.received);
+				break;
+			}
+			case CANCEL:
+			{
+				String cancelledRequestID = gmsg.getData();
+				// a request other connections follow carries on for them
+				if(requestExecutorFactory.getSingleFlightGroup().cancel(messageSender, cancelledRequestID))
+				{
+					requestExecutor.cancel(cancelledRequestID);
+				}
+				messageSender.cancel(cancelledRequestID);
+				break;
+			}
 			default:
 			{
 				// NOTE: no other messages expected for now
@@ -466,21 +949,63 @@ public class WebsocketConnection extends MessageInbound implements MessageSender
 	{
 		if(event.getType().equals(MessageSenderEvent.Type.MESSAGE_SEND_FAILED))
 		{
+			if(isResumable())
+			{
+				// close the connection if it isn't already so that the client reconnects, nothing is lost meanwhile
+				suspend();
+				try
+				{
+					getWsOutbound().close(Constants.STATUS_UNEXPECTED_CONDITION, null);
+				}
+				catch(IOException e)
+				{
+					logger.debug("Connection already closed", e);
+				}
+				return;
+			}
 			messageSender.shutdown();
 			messageSender.removeListener(this);
 			ConnectionsManager.getInstance().removeConnection(this);
 		}
+		else if(event.getType().equals(MessageSenderEvent.Type.CREDIT_TIMEOUT))
+		{
+			if(suspended)
+			{
+				// the grace period ends the session if the client doesn't come back
+				return;
+			}
+			// the client stopped reading, waiting any longer would keep the messages of its producers queued for good
+			logger.warn("Closing websocket connection " + getConnectionID() + ", no credit granted");
+			closeSession();
+			try
+			{
+				getWsOutbound().close(Constants.STATUS_POLICY_VIOLATION, null);
+			}
+			catch(IOException e)
+			{
+				logger.debug("Connection already closed", e);
+			}
+		}
 	}
 
-	class ReceivedObject
+	/**
+	 * @return the commands of a batch in the order they are carried out, or null if the batch holds a command that can't be batched
+	 */
+	private static List<ParametersCommand> getBatchCommands(List<Command> commands)
 	{
-		Long projectId;
-		Long experimentId;
-		List<String> variables;
-		String modelAspectPath;
-		Map<String, String> modelParameters;
-		Map<String, String> properties;
+		if(commands == null)
+		{
+			return null;
+		}
+		List<ParametersCommand> batchCommands = new ArrayList<ParametersCommand>(commands.size());
+		for(Command command : commands)
+		{
+			if(!InboundMessages.SET_PARAMETERS.toString().equals(command.type) || command.data == null || command.data.modelParameters == null)
+			{
+				return null;
+			}
+			batchCommands.add(new ParametersCommand(command.data.modelAspectPath, command.data.modelParameters));
+		}
+		return batchCommands;
 	}
-
-
 }
@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messages;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Decodes the messages received from the clients, <code>{"requestID":..,"type":..,"data":..}</code>, in a single pass. The payload in data is read straight into the class registered for the type
+ * of the message; types without a class get their payload as a string.
+ * 
+ * The payload is a nested JSON object. Older clients send it as a string holding the JSON of the object, which is parsed in turn.
+ * 
+ * Large payloads come in binary messages instead: the id of the codec that compressed the payload (1 byte), the length of the header (2 bytes, little endian), the header, which is the
+ * message without its data, and the payload compressed. The payload is the JSON of the object for the types with a class, else the string itself, and it is uncompressed as it is read. The
+ * payload of the streamed types is given as a reader over the uncompressed data rather than a string, so that e.g. a project is read straight from it.
+ * 
+ * A decoder is thread safe, the adapters of the payload classes are looked up once when it is created. Only the API of Gson 2.1 is used.
+ */
+public class InboundMessageDecoder
+{
+
+	private static final Gson GSON = new Gson();
+
+	private static final Map<String, InboundMessages> TYPES = new HashMap<String, InboundMessages>();
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// ids of the codecs a binary message can be compressed with, the same as in the messages sent to the clients
+	private static final byte GZIP = 0;
+	private static final byte DEFLATE = 1;
+
+	/**
+	 * Uncompressed payloads longer than this are refused unless another limit is given, the compressed message is small enough to be received but it could inflate to anything.
+	 */
+	public static final long DEFAULT_MAX_UNCOMPRESSED_LENGTH = 4L * 1024 * 1024;
+
+	static
+	{
+		for(InboundMessages type : InboundMessages.values())
+		{
+			TYPES.put(type.name().toLowerCase(), type);
+			TYPES.put(type.toString(), type);
+		}
+	}
+
+	private final Map<InboundMessages, Class<?>> payloadTypes = new EnumMap<InboundMessages, Class<?>>(InboundMessages.class);
+
+	private final Map<InboundMessages, TypeAdapter<?>> adapters = new EnumMap<InboundMessages, TypeAdapter<?>>(InboundMessages.class);
+
+	private final Set<InboundMessages> streamedTypes = EnumSet.noneOf(InboundMessages.class);
+
+	/**
+	 * @param payloadTypes
+	 *            the class of the payload of each type of message
+	 */
+	public InboundMessageDecoder(Map<InboundMessages, Class<?>> payloadTypes)
+	{
+		this(payloadTypes, Collections.<InboundMessages> emptySet());
+	}
+
+	/**
+	 * @param payloadTypes
+	 *            the class of the payload of each type of message
+	 * @param streamedTypes
+	 *            the types of message whose payload is given as a reader when it comes in a binary message
+	 */
+	public InboundMessageDecoder(Map<InboundMessages, Class<?>> payloadTypes, Set<InboundMessages> streamedTypes)
+	{
+		for(Map.Entry<InboundMessages, Class<?>> payloadType : payloadTypes.entrySet())
+		{
+			this.payloadTypes.put(payloadType.getKey(), payloadType.getValue());
+			adapters.put(payloadType.getKey(), GSON.getAdapter(payloadType.getValue()));
+		}
+		this.streamedTypes.addAll(streamedTypes);
+	}
+
+	/**
+	 * @param json
+	 *            the message
+	 * @return the message with its payload decoded
+	 * @throws IOException
+	 *             if the message isn't valid JSON
+	 * @throws IllegalArgumentException
+	 *             if the type of the message is unknown
+	 */
+	public InboundMessage decode(Reader json) throws IOException
+	{
+		JsonReader reader = new JsonReader(json);
+		String requestID = null;
+		InboundMessages type = null;
+		Object data = null;
+		JsonElement dataBeforeType = null;
+
+		reader.beginObject();
+		while(reader.hasNext())
+		{
+			String name = reader.nextName();
+			if(name.equals("requestID") && reader.peek() != JsonToken.NULL)
+			{
+				requestID = reader.nextString();
+			}
+			else if(name.equals("type"))
+			{
+				type = getType(reader.nextString());
+			}
+			else if(name.equals("data") && type != null)
+			{
+				data = readData(reader, type);
+			}
+			else if(name.equals("data"))
+			{
+				// the type comes after, keep the tree of the payload until then
+				dataBeforeType = new JsonParser().parse(reader);
+			}
+			else
+			{
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if(type == null)
+		{
+			throw new IllegalArgumentException("Message without type");
+		}
+		if(dataBeforeType != null)
+		{
+			data = fromTree(dataBeforeType, type);
+		}
+		return new InboundMessage(requestID, type, data);
+	}
+
+	/**
+	 * @param message
+	 *            a binary message, it can be reused once this returns
+	 * @return the message with its payload decoded, or a reader over the uncompressed payload for the streamed types
+	 * @throws IOException
+	 *             if the message is truncated, its header or payload isn't valid JSON or its payload can't be uncompressed
+	 * @throws IllegalArgumentException
+	 *             if the type of the message or the codec is unknown
+	 */
+	public InboundMessage decode(ByteBuffer message) throws IOException
+	{
+		return decode(message, DEFAULT_MAX_UNCOMPRESSED_LENGTH);
+	}
+
+	/**
+	 * @param message
+	 *            a binary message, it can be reused once this returns
+	 * @param maxUncompressedLength
+	 *            the number of bytes the payload may uncompress to, reading more fails
+	 * @return the message with its payload decoded, or a reader over the uncompressed payload for the streamed types
+	 * @throws IOException
+	 *             if the message is truncated, its header or payload isn't valid JSON, its payload can't be uncompressed or is too long
+	 * @throws IllegalArgumentException
+	 *             if the type of the message or the codec is unknown
+	 */
+	public InboundMessage decode(ByteBuffer message, long maxUncompressedLength) throws IOException
+	{
+		if(message.remaining() < 3)
+		{
+			throw new IOException("Binary message too short: " + message.remaining() + " bytes");
+		}
+		byte codec = message.get();
+		int headerLength = (message.get() & 0xff) | (message.get() & 0xff) << 8;
+		if(headerLength > message.remaining())
+		{
+			throw new IOException("Binary message header of " + headerLength + " bytes, " + message.remaining() + " left");
+		}
+
+		byte[] header = new byte[headerLength];
+		message.get(header);
+		InboundMessage envelope = decode(new InputStreamReader(new ByteArrayInputStream(header), UTF_8));
+
+		// the message is copied compressed, the request might be executed after the buffer was reused
+		byte[] payload = new byte[message.remaining()];
+		message.get(payload);
+		Reader data = new InputStreamReader(new LimitedInputStream(uncompress(codec, new ByteArrayInputStream(payload)), maxUncompressedLength), UTF_8);
+
+		InboundMessages type = envelope.getType();
+		if(streamedTypes.contains(type))
+		{
+			return new InboundMessage(envelope.getRequestID(), type, data);
+		}
+		try
+		{
+			TypeAdapter<?> adapter = adapters.get(type);
+			return new InboundMessage(envelope.getRequestID(), type, adapter != null ? adapter.read(new JsonReader(data)) : readString(data));
+		}
+		finally
+		{
+			data.close();
+		}
+	}
+
+	private static InputStream uncompress(byte codec, InputStream in) throws IOException
+	{
+		switch(codec)
+		{
+			case GZIP:
+				return new GZIPInputStream(in);
+			case DEFLATE:
+				final Inflater inflater = new Inflater(true);
+				return new InflaterInputStream(in, inflater)
+				{
+					@Override
+					public void close() throws IOException
+					{
+						super.close();
+						inflater.end();
+					}
+				};
+			default:
+				throw new IllegalArgumentException("Unknown codec " + codec);
+		}
+	}
+
+	private static String readString(Reader reader) throws IOException
+	{
+		StringWriter string = new StringWriter();
+		char[] buffer = new char[8192];
+		int read;
+		while((read = reader.read(buffer)) != -1)
+		{
+			string.write(buffer, 0, read);
+		}
+		return string.toString();
+	}
+
+	private Object readData(JsonReader reader, InboundMessages type) throws IOException
+	{
+		Class<?> payloadType = payloadTypes.get(type);
+		switch(reader.peek())
+		{
+			case NULL:
+				reader.nextNull();
+				return null;
+			case STRING:
+				String data = reader.nextString();
+				return payloadType != null ? GSON.fromJson(data, payloadType) : data;
+			default:
+				return payloadType != null ? adapters.get(type).read(reader) : new JsonParser().parse(reader).toString();
+		}
+	}
+
+	private Object fromTree(JsonElement data, InboundMessages type)
+	{
+		Class<?> payloadType = payloadTypes.get(type);
+		if(data.isJsonNull())
+		{
+			return null;
+		}
+		if(data.isJsonPrimitive() && data.getAsJsonPrimitive().isString())
+		{
+			return payloadType != null ? GSON.fromJson(data.getAsString(), payloadType) : data.getAsString();
+		}
+		return payloadType != null ? GSON.fromJson(data, payloadType) : data.toString();
+	}
+
+	private static InboundMessages getType(String name)
+	{
+		InboundMessages type = TYPES.get(name);
+		if(type == null)
+		{
+			type = InboundMessages.valueOf(name.toUpperCase());
+		}
+		return type;
+	}
+
+	/**
+	 * Fails once more than a given number of bytes were read.
+	 */
+	private static class LimitedInputStream extends FilterInputStream
+	{
+
+		private final long limit;
+
+		private long left;
+
+		LimitedInputStream(InputStream in, long limit)
+		{
+			super(in);
+			this.limit = limit;
+			this.left = limit;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+			if(b != -1)
+			{
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			int read = super.read(b, off, len);
+			if(read > 0)
+			{
+				count(read);
+			}
+			return read;
+		}
+
+		private void count(int read) throws IOException
+		{
+			left -= read;
+			if(left < 0)
+			{
+				throw new IOException("Uncompressed payload longer than " + limit + " bytes");
+			}
+		}
+	}
+}
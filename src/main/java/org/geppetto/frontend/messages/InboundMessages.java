@@ -69,7 +69,14 @@ public enum InboundMessages {
 	UNLINK_DROPBOX("unlink_drobpox"),
 	UPLOAD_MODEL("upload_model"),
 	UPLOAD_RESULTS("upload_results"),
-	DOWNLOAD_RESULTS("download_results"), GEPPETTO_PERSISTENCE("geppetto_persistence");
+	DOWNLOAD_RESULTS("download_results"), GEPPETTO_PERSISTENCE("geppetto_persistence"),
+	CLIENT_CAPABILITIES("client_capabilities"),
+	RESYNC("resync"),
+	CREDIT("credit"),
+	FILE_CHUNK_ACK("file_chunk_ack"),
+	CANCEL("cancel"),
+	BATCH("batch"),
+	RESUME("resume");
 
 	
 	private InboundMessages(final String text) {
@@ -83,7 +83,11 @@ public enum OutboundMessages {
 	MODEL_UPLOADED("model_uploaded"),
 	DOWNLOAD_RESULTS("download_results"),
 	UPDATE_MODEL_TREE("update_model_tree"), 
-	EXPERIMENT_CREATED("experiment_created");
+	EXPERIMENT_CREATED("experiment_created"),
+	DELTA_UPDATE("delta_update"),
+	BATCH("batch"),
+	SESSION("session"),
+	THROTTLED("throttled");
 
 	private OutboundMessages(final String text) {
 		this.text = text;
@@ -61,8 +61,18 @@ public class TransportMessageFactory {
 	 */
 	public static GeppettoTransportMessage getTransportMessage(String requestID, OutboundMessages type, String update){
 
-		String messageType = type.toString();
-		
+		return createTransportMessage(requestID, type.toString(), getParameters(type, update));
+	}
+	
+	/**
+	 * Create the name-value pairs that make up the data of a message of the given type
+	 * 
+	 * @param type - Type of message of requested
+	 * @param update - the payload of the message
+	 * @return
+	 */
+	public static List<SimpleEntry<String, String>> getParameters(OutboundMessages type, String update){
+
 		List<SimpleEntry<String, String>> params = new ArrayList<SimpleEntry<String, String>>();
 
 		switch(type){
@@ -112,6 +122,9 @@ public class TransportMessageFactory {
 			case EXPERIMENT_UPDATE:
 				params.add(new SimpleEntry<String, String>("update", (update!=null) ? update : EMPTY_STRING));
 				break;
+			case DELTA_UPDATE:
+				params.add(new SimpleEntry<String, String>("update", (update!=null) ? update : EMPTY_STRING));
+				break;
 			case DOWNLOAD_MODEL:
 				params.add(new SimpleEntry<String, String>("update", (update!=null) ? update : EMPTY_STRING));
 				break;
@@ -148,6 +161,12 @@ public class TransportMessageFactory {
 			case CLIENT_ID:
 				params.add(new SimpleEntry<String, String>("clientID", (update!=null) ? update : EMPTY_STRING));
 				break;
+			case SESSION:
+				params.add(new SimpleEntry<String, String>(OutboundMessages.SESSION.toString(), (update!=null) ? update : EMPTY_STRING));
+				break;
+			case THROTTLED:
+				params.add(new SimpleEntry<String, String>(OutboundMessages.THROTTLED.toString(), (update!=null) ? update : EMPTY_STRING));
+				break;
 			case SET_PARAMETERS:
 				params.add(new SimpleEntry<String, String>(OutboundMessages.SET_PARAMETERS.toString(), (update!=null) ? update : EMPTY_STRING));
 				break;
@@ -176,7 +195,7 @@ public class TransportMessageFactory {
 				break;
 		}
 		
-		return createTransportMessage(requestID,messageType, params);
+		return params;
 	}
 	
 	/**
@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messages;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.AbstractMap.SimpleEntry;
+
+/**
+ * Writes the JSON envelope of a message to the clients straight into a {@link Writer}.
+ * 
+ * The output is the same as serialising the {@link GeppettoTransportMessage} built by {@link TransportMessageFactory}, i.e. <code>{"requestID":..,"type":..,"data":".."}</code> where data is a JSON
+ * object stored as a string. Here the data object and the payload inside it are escaped while they are written, so a large payload is never copied into intermediate strings.
+ * 
+ * A message written to a client that can resume its session starts with <code>"seq":..</code>, the number of the frame, see {@link org.geppetto.frontend.messaging.ReplayBuffer}.
+ * 
+ * A {@link OutboundMessages#BATCH} is written as <code>{"type":"batch","messages":[..]}</code>, its payload being the JSON array of the envelopes of the messages it holds, so that they are not
+ * escaped once more.
+ * 
+ */
+public class TransportMessageWriter
+{
+
+	/**
+	 * @param out - where the message is written
+	 * @param requestID
+	 * @param type - Type of message
+	 * @param update - the payload of the message
+	 * @throws IOException
+	 */
+	public static void write(Writer out, String requestID, OutboundMessages type, String update) throws IOException
+	{
+		write(out, 0, requestID, type, update);
+	}
+
+	/**
+	 * @param out - where the message is written
+	 * @param sequence - the number of the frame, 0 to write none
+	 * @param requestID
+	 * @param type - Type of message
+	 * @param update - the payload of the message
+	 * @throws IOException
+	 */
+	public static void write(Writer out, long sequence, String requestID, OutboundMessages type, String update) throws IOException
+	{
+		out.write('{');
+		if(sequence > 0)
+		{
+			out.write("\"seq\":");
+			out.write(Long.toString(sequence));
+			out.write(',');
+		}
+
+		if(type == OutboundMessages.BATCH)
+		{
+			out.write("\"type\":");
+			writeString(out, type.toString());
+			out.write(",\"messages\":");
+			out.write(update);
+			out.write('}');
+			return;
+		}
+
+		if(requestID != null)
+		{
+			out.write("\"requestID\":");
+			writeString(out, requestID);
+			out.write(',');
+		}
+		out.write("\"type\":");
+		writeString(out, type.toString());
+
+		// data is a JSON object stored as a string, everything written to it is escaped once more
+		out.write(",\"data\":\"");
+		Writer data = new JsonStringWriter(out);
+		data.write('{');
+		boolean first = true;
+		for(SimpleEntry<String, String> param : TransportMessageFactory.getParameters(type, update))
+		{
+			if(!first)
+			{
+				data.write(',');
+			}
+			first = false;
+			writeString(data, param.getKey());
+			data.write(':');
+			if(param.getValue() == null)
+			{
+				data.write("null");
+			}
+			else
+			{
+				writeString(data, param.getValue());
+			}
+		}
+		data.write('}');
+		out.write("\"}");
+	}
+
+	/**
+	 * Write a value as a JSON string, quoted and escaped.
+	 * 
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	public static void writeString(Writer out, String value) throws IOException
+	{
+		out.write('"');
+		new JsonStringWriter(out).write(value);
+		out.write('"');
+	}
+
+	/**
+	 * Escapes the characters written to it as the content of a JSON string.
+	 */
+	private static class JsonStringWriter extends Writer
+	{
+
+		private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+		private final Writer out;
+
+		JsonStringWriter(Writer out)
+		{
+			this.out = out;
+		}
+
+		@Override
+		public void write(int c) throws IOException
+		{
+			String replacement = replacement((char) c);
+			if(replacement == null)
+			{
+				out.write(c);
+			}
+			else
+			{
+				out.write(replacement);
+			}
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException
+		{
+			int start = off;
+			int end = off + len;
+			for(int i = off; i < end; i++)
+			{
+				String replacement = replacement(str.charAt(i));
+				if(replacement != null)
+				{
+					// copy the run of characters that need no escaping in one go
+					out.write(str, start, i - start);
+					out.write(replacement);
+					start = i + 1;
+				}
+			}
+			out.write(str, start, end - start);
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException
+		{
+			int start = off;
+			int end = off + len;
+			for(int i = off; i < end; i++)
+			{
+				String replacement = replacement(cbuf[i]);
+				if(replacement != null)
+				{
+					out.write(cbuf, start, i - start);
+					out.write(replacement);
+					start = i + 1;
+				}
+			}
+			out.write(cbuf, start, end - start);
+		}
+
+		private static String replacement(char c)
+		{
+			switch(c)
+			{
+				case '"':
+					return "\\\"";
+				case '\\':
+					return "\\\\";
+				case '\n':
+					return "\\n";
+				case '\r':
+					return "\\r";
+				case '\t':
+					return "\\t";
+				case '\b':
+					return "\\b";
+				case '\f':
+					return "\\f";
+				case '\u2028':
+					return "\\u2028";
+				case '\u2029':
+					return "\\u2029";
+				default:
+					if(c < 0x20)
+					{
+						return new String(new char[] { '\\', 'u', '0', '0', HEX[c >> 4], HEX[c & 0xf] });
+					}
+					return null;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			// the underlying writer is owned by the caller
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of byte arrays in size classes, the powers of two from {@link #MIN_BUFFER_SIZE} to <code>maxBufferSize</code>, used to assemble binary frames without allocating new arrays for every
+ * message.
+ *
+ * A borrowed array is at least as long as asked, often longer. Arrays larger than <code>maxBufferSize</code> are allocated when asked for and left to the garbage collector when released. An array
+ * that is never released is simply not reused.
+ *
+ * The arrays are heap arrays: Tomcat writes binary messages from the array backing the buffer, which direct buffers don't have.
+ */
+public class BufferPool
+{
+
+	public static final int MIN_BUFFER_SIZE = 4096;
+
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+
+	public static final int DEFAULT_BUFFERS_PER_SIZE = 16;
+
+	private final int maxBufferSize;
+
+	/**
+	 * Idle arrays, by size class.
+	 */
+	private final List<BlockingQueue<byte[]>> idle;
+
+	public BufferPool()
+	{
+		this(DEFAULT_MAX_BUFFER_SIZE, DEFAULT_BUFFERS_PER_SIZE);
+	}
+
+	/**
+	 * @param maxBufferSize
+	 *            the size of the largest arrays kept, rounded up to a power of two
+	 * @param buffersPerSize
+	 *            the number of idle arrays kept in each size class
+	 */
+	public BufferPool(int maxBufferSize, int buffersPerSize)
+	{
+		int sizes = sizeClass(Math.max(maxBufferSize, MIN_BUFFER_SIZE)) + 1;
+		this.maxBufferSize = MIN_BUFFER_SIZE << (sizes - 1);
+		this.idle = new ArrayList<>(sizes);
+		for(int i = 0; i < sizes; i++)
+		{
+			idle.add(new ArrayBlockingQueue<byte[]>(buffersPerSize));
+		}
+	}
+
+	/**
+	 * @return an array at least <code>size</code> long
+	 */
+	public byte[] borrow(int size)
+	{
+		if(size > maxBufferSize)
+		{
+			return new byte[size];
+		}
+		int sizeClass = sizeClass(size);
+		byte[] buffer = idle.get(sizeClass).poll();
+		return buffer != null ? buffer : new byte[MIN_BUFFER_SIZE << sizeClass];
+	}
+
+	/**
+	 * Give back an array that was borrowed, the caller must not use it any more.
+	 */
+	public void release(byte[] buffer)
+	{
+		int length = buffer.length;
+		if(length < MIN_BUFFER_SIZE || length > maxBufferSize || Integer.bitCount(length) != 1)
+		{
+			return;
+		}
+		// dropped if the class already has enough idle arrays
+		idle.get(sizeClass(length)).offer(buffer);
+	}
+
+	public int getMaxBufferSize()
+	{
+		return maxBufferSize;
+	}
+
+	/**
+	 * @return the index of the smallest size class holding <code>size</code> bytes
+	 */
+	private static int sizeClass(int size)
+	{
+		if(size <= MIN_BUFFER_SIZE)
+		{
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+	}
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file sent to a client in chunks, read through a {@link FileChannel} so that only one chunk is in memory at a time.
+ *
+ * Each chunk is a binary frame:
+ * <ul>
+ * <li>byte 0: the frame type, {@link #FRAME_TYPE}</li>
+ * <li>bytes 1-4: the id of the transfer</li>
+ * <li>bytes 5-12: the offset of the chunk in the file</li>
+ * <li>bytes 13-20: the size of the file</li>
+ * <li>bytes 21-22: the length of the file name, 0 except in the first chunk</li>
+ * <li>the file name, UTF-8, in the first chunk only</li>
+ * <li>the data</li>
+ * </ul>
+ * Numbers are little endian. The client acknowledges each chunk and the next one is only sent then, so a transfer has a single chunk in flight. The first chunk is the one at offset 0, whenever
+ * it is sent.
+ */
+public class ChunkedFileTransfer implements Closeable
+{
+
+	/**
+	 * First byte of a binary frame holding a chunk of a file.
+	 */
+	public static final byte FRAME_TYPE = 4;
+
+	private static final int HEADER_LENGTH = 1 + 4 + 8 + 8 + 2;
+
+	private final int id;
+
+	private final Path path;
+
+	private final FileChannel channel;
+
+	private final byte[] name;
+
+	private final long size;
+
+	private long position = 0;
+
+	/**
+	 * Reused for every chunk. Tomcat copies the data out of it before the write returns, and it must be a heap buffer since Tomcat writes from its backing array.
+	 */
+	private final ByteBuffer buffer;
+
+	public ChunkedFileTransfer(int id, Path path, int chunkSize) throws IOException
+	{
+		this.id = id;
+		this.path = path;
+		this.name = path.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		this.size = channel.size();
+		this.buffer = ByteBuffer.allocate(HEADER_LENGTH + name.length + (int) Math.min(chunkSize, size)).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Read the next chunk of the file.
+	 *
+	 * @return the frame holding the chunk, valid until the next call
+	 * @throws IOException
+	 */
+	public ByteBuffer nextChunk() throws IOException
+	{
+		boolean first = position == 0;
+
+		buffer.clear();
+		buffer.put(FRAME_TYPE);
+		buffer.putInt(id);
+		buffer.putLong(position);
+		buffer.putLong(size);
+		buffer.putShort((short) (first ? name.length : 0));
+		if(first)
+		{
+			buffer.put(name);
+		}
+
+		// the name only takes room in the first chunk, later chunks carry that much more data
+		while(buffer.hasRemaining() && position < size)
+		{
+			int read = channel.read(buffer, position);
+			if(read < 0)
+			{
+				throw new IOException("File " + path + " is shorter than its size of " + size + " bytes");
+			}
+			position += read;
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Carry on from another point of the file, e.g. where the client says it got to.
+	 * 
+	 * @param position
+	 *            where the next chunk starts
+	 */
+	public void seek(long position)
+	{
+		if(position < 0 || position > size)
+		{
+			throw new IllegalArgumentException("Position " + position + " is outside of file " + path + " of " + size + " bytes");
+		}
+		this.position = position;
+	}
+
+	public boolean isComplete()
+	{
+		return position >= size;
+	}
+
+	public int getId()
+	{
+		return id;
+	}
+
+	public Path getPath()
+	{
+		return path;
+	}
+
+	public long getPosition()
+	{
+		return position;
+	}
+
+	public long getSize()
+	{
+		return size;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+}
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A compression format for the messages sent to the clients.
+ *
+ * Clients advertise the names of the codecs they can decode, the id of the codec used for a message is written in the header of its binary frame.
+ */
+public interface CompressionCodec
+{
+
+	/**
+	 * @return the name clients use to advertise support for this codec
+	 */
+	String getName();
+
+	/**
+	 * @return the id written in the header of the binary frames compressed with this codec
+	 */
+	byte getId();
+
+	/**
+	 * Wrap a stream so that everything written to the returned stream is compressed into it. Closing the returned stream finishes the compressed data and closes the wrapped stream.
+	 *
+	 * @param out
+	 * @return
+	 * @throws IOException
+	 */
+	OutputStream compress(OutputStream out) throws IOException;
+
+	/**
+	 * Same as {@link #compress(OutputStream)} at the given compression level instead of the one the codec was configured with.
+	 *
+	 * @param out
+	 * @param level
+	 *            the compression level, from 0 to 9 or -1 for the default level, ignored by codecs without levels
+	 * @return
+	 * @throws IOException
+	 */
+	OutputStream compress(OutputStream out, int level) throws IOException;
+
+	/**
+	 * @return true if the codec can compress at different levels
+	 */
+	boolean hasLevels();
+}
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geppetto.frontend.messages.OutboundMessages;
+
+/**
+ * Running statistics of how well, and how fast, the messages of each type compress with each codec and level. The statistics are shared by the message senders of all the connections, so a new
+ * connection takes its compression decisions from what was measured before it.
+ *
+ * The statistics are exponentially weighted moving averages, they follow the content of the messages when it changes.
+ */
+public class CompressionStatistics
+{
+
+	/**
+	 * Weight of a new sample in the moving averages.
+	 */
+	private static final double WEIGHT = 0.2;
+
+	private final ConcurrentMap<String, Average> averages = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<OutboundMessages, AtomicLong> messageCounts = new ConcurrentHashMap<>();
+
+	/**
+	 * Record the compression of a message.
+	 *
+	 * @param type
+	 * @param codec
+	 * @param level
+	 * @param uncompressedLength
+	 *            the length of the message before compression
+	 * @param compressedLength
+	 *            the length of the compressed message, in bytes
+	 * @param nanos
+	 *            the time spent compressing the message
+	 */
+	public void record(OutboundMessages type, CompressionCodec codec, int level, long uncompressedLength, long compressedLength, long nanos)
+	{
+		if(uncompressedLength <= 0)
+		{
+			return;
+		}
+
+		String key = getKey(type, codec, level);
+		Average average = averages.get(key);
+		if(average == null)
+		{
+			Average newAverage = new Average();
+			average = averages.putIfAbsent(key, newAverage);
+			if(average == null)
+			{
+				average = newAverage;
+			}
+		}
+		average.add((double) compressedLength / uncompressedLength, (double) nanos / uncompressedLength);
+	}
+
+	/**
+	 * @param type
+	 * @param codec
+	 * @param level
+	 * @return what is expected from compressing a message of the given type, null if no message of that type was compressed with the codec and level yet
+	 */
+	public Estimate getEstimate(OutboundMessages type, CompressionCodec codec, int level)
+	{
+		Average average = averages.get(getKey(type, codec, level));
+		return average != null ? average.getEstimate() : null;
+	}
+
+	/**
+	 * Count a message of the given type.
+	 *
+	 * @param type
+	 * @param interval
+	 * @return true once every <code>interval</code> messages of the type
+	 */
+	public boolean isSample(OutboundMessages type, int interval)
+	{
+		AtomicLong count = messageCounts.get(type);
+		if(count == null)
+		{
+			AtomicLong newCount = new AtomicLong();
+			count = messageCounts.putIfAbsent(type, newCount);
+			if(count == null)
+			{
+				count = newCount;
+			}
+		}
+		return interval > 0 && count.incrementAndGet() % interval == 0;
+	}
+
+	private String getKey(OutboundMessages type, CompressionCodec codec, int level)
+	{
+		return type + "/" + codec.getName() + (codec.hasLevels() ? "/" + level : "");
+	}
+
+	/**
+	 * The expected outcome of compressing a message.
+	 */
+	public static class Estimate
+	{
+
+		private final double ratio;
+		private final double nanosPerByte;
+		private final long samples;
+
+		public Estimate(double ratio, double nanosPerByte, long samples)
+		{
+			this.ratio = ratio;
+			this.nanosPerByte = nanosPerByte;
+			this.samples = samples;
+		}
+
+		/**
+		 * @return the compressed length over the uncompressed length
+		 */
+		public double getRatio()
+		{
+			return ratio;
+		}
+
+		/**
+		 * @return the fraction of the length saved by compression
+		 */
+		public double getSaving()
+		{
+			return 1 - ratio;
+		}
+
+		/**
+		 * @return the time spent compressing each byte, in nanoseconds
+		 */
+		public double getNanosPerByte()
+		{
+			return nanosPerByte;
+		}
+
+		/**
+		 * @return the number of messages the estimate is based on
+		 */
+		public long getSamples()
+		{
+			return samples;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("ratio: %.3f, %.2f ns/byte, %d samples", ratio, nanosPerByte, samples);
+		}
+	}
+
+	private static class Average
+	{
+
+		private double ratio;
+		private double nanosPerByte;
+		private long samples;
+
+		public synchronized void add(double ratio, double nanosPerByte)
+		{
+			if(samples == 0)
+			{
+				this.ratio = ratio;
+				this.nanosPerByte = nanosPerByte;
+			}
+			else
+			{
+				this.ratio += WEIGHT * (ratio - this.ratio);
+				this.nanosPerByte += WEIGHT * (nanosPerByte - this.nanosPerByte);
+			}
+			samples++;
+		}
+
+		public synchronized Estimate getEstimate()
+		{
+			return new Estimate(ratio, nanosPerByte, samples);
+		}
+	}
+}
@@ -32,58 +32,50 @@
  *******************************************************************************/
 package org.geppetto.frontend.messaging;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.zip.GZIPOutputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
  * Some utilities for compressing strings and byte arrays via Gzip.
+ *
+ * The compressed data is collected in pooled arrays and the deflaters are reused, only the returned array is allocated.
  */
 public class CompressionUtils {
 
     private static Log logger = LogFactory.getLog(CompressionUtils.class);
 
-    public static byte[] gzipCompress(String message) throws IOException {
-
-        long startTime = System.currentTimeMillis();
-
-        ByteArrayOutputStream compressedMessageStream = new ByteArrayOutputStream();
-        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressedMessageStream);
+    private static final BufferPool BUFFERS = new BufferPool();
 
-        gzipOutputStream.write(message.getBytes());
-        gzipOutputStream.close();
+    private static final GzipCodec GZIP = new GzipCodec(Deflater.DEFAULT_COMPRESSION);
 
-        byte[] compressedMessage = compressedMessageStream.toByteArray();
-        compressedMessageStream.close();
-
-        long elapsedTime = System.currentTimeMillis() - startTime;
-
-		logger.debug(String.format("Compressed message from %d to %d bytes in %dms", message.length(),
-								   compressedMessage.length, elapsedTime));
+    public static byte[] gzipCompress(String message) throws IOException {
 
-        return compressedMessage;
+        return gzipCompress(message.getBytes());
     }
 
     public static byte[] gzipCompress(byte[] message) throws IOException {
 
         long startTime = System.currentTimeMillis();
 
-        ByteArrayOutputStream compressedMessageStream = new ByteArrayOutputStream();
-        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressedMessageStream);
-
-        gzipOutputStream.write(message);
-        gzipOutputStream.close();
+        PooledOutputStream compressedMessageStream = new PooledOutputStream(BUFFERS, message.length / 4);
+        try {
+            OutputStream gzipOutputStream = GZIP.compress(compressedMessageStream);
+            gzipOutputStream.write(message);
+            gzipOutputStream.close();
 
-        byte[] compressedMessage = compressedMessageStream.toByteArray();
-        compressedMessageStream.close();
+            byte[] compressedMessage = compressedMessageStream.toByteArray();
 
-        long elapsedTime = System.currentTimeMillis() - startTime;
+            long elapsedTime = System.currentTimeMillis() - startTime;
 
-		logger.debug(String.format("Compressed message from %d to %d bytes in %dms", message.length,
-								   compressedMessage.length, elapsedTime));
+            logger.debug(String.format("Compressed message from %d to %d bytes in %dms", message.length,
+                                       compressedMessage.length, elapsedTime));
 
-        return compressedMessage;
+            return compressedMessage;
+        } finally {
+            compressedMessageStream.release();
+        }
     }
 }
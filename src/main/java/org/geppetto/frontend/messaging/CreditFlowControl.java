@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Credit based flow control between a sender and its client.
+ *
+ * The client declares a window, a number of messages and of bytes (characters for text messages), and grants credit back as it consumes messages. Every message sent uses credit. When the credit
+ * runs out the lane sending queued messages is held, so that the messages that follow wait in the queues, until the client grants more; messages that are not queued, replies to requests, are still
+ * sent, so the credit can go below zero. A client that grants no credit for <code>maxCreditWait</code> milliseconds is given up: the timeout task is run, see
+ * {@link MessageSenderEvent.Type#CREDIT_TIMEOUT}.
+ */
+public class CreditFlowControl
+{
+
+	private final long maxCreditWait;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final Runnable timeoutTask;
+
+	/**
+	 * True once the client asked for flow control.
+	 */
+	private boolean flowControlled = false;
+
+	/**
+	 * The credit left, in messages and bytes.
+	 */
+	private long messageCredit;
+	private long byteCredit;
+
+	/**
+	 * The lane held for lack of credit, null if none is.
+	 */
+	private PausableSerialExecutor heldLane;
+
+	/**
+	 * Fires when a lane waited for credit longer than maxCreditWait, null while no lane is waiting.
+	 */
+	private ScheduledFuture<?> creditTimeout;
+
+	private static final Log logger = LogFactory.getLog(CreditFlowControl.class);
+
+	/**
+	 * @param maxCreditWait
+	 *            longest time in milliseconds a lane waits for credit, 0 to wait forever
+	 * @param scheduler
+	 *            fires the timeout, can be null if maxCreditWait is 0
+	 * @param timeoutTask
+	 *            run when a lane waited for credit longer than maxCreditWait
+	 */
+	public CreditFlowControl(long maxCreditWait, ScheduledExecutorService scheduler, Runnable timeoutTask)
+	{
+		this.maxCreditWait = maxCreditWait;
+		this.scheduler = scheduler;
+		this.timeoutTask = timeoutTask;
+	}
+
+	/**
+	 * Start flow control with the window declared by the client, or start it over with a client that resumed its session: credit granted on the lost connection may not have arrived.
+	 */
+	public void enable(int messages, long bytes)
+	{
+		if(messages <= 0 || bytes <= 0)
+		{
+			return;
+		}
+		PausableSerialExecutor lane;
+		synchronized(this)
+		{
+			flowControlled = true;
+			messageCredit = messages;
+			byteCredit = bytes;
+			lane = release();
+		}
+		logger.info(String.format("Flow control enabled, window of %d messages and %d bytes", messages, bytes));
+		if(lane != null)
+		{
+			lane.release();
+		}
+	}
+
+	/**
+	 * Add to the credit, as the client consumed messages.
+	 */
+	public void grant(int messages, long bytes)
+	{
+		PausableSerialExecutor lane;
+		synchronized(this)
+		{
+			if(!flowControlled)
+			{
+				return;
+			}
+			messageCredit += messages;
+			byteCredit += bytes;
+			lane = hasCredit() ? release() : null;
+		}
+		if(lane != null)
+		{
+			logger.debug("Credit granted, sending queued messages");
+			lane.release();
+		}
+	}
+
+	/**
+	 * @return true if the client is under flow control and has no credit left
+	 */
+	public synchronized boolean isExhausted()
+	{
+		return !hasCredit();
+	}
+
+	/**
+	 * Called by a queued task before sending. Without credit the task is held in its lane until credit is granted. The held lane doesn't keep a thread, and the timeout starts.
+	 * 
+	 * @param lane
+	 *            the lane of the task
+	 * @param task
+	 *            the task, run again once credit is granted
+	 * @return true if the message can be sent now
+	 */
+	public boolean acquire(PausableSerialExecutor lane, Runnable task)
+	{
+		synchronized(this)
+		{
+			if(hasCredit())
+			{
+				return true;
+			}
+			lane.hold(task);
+			heldLane = lane;
+			if(creditTimeout == null && maxCreditWait > 0 && scheduler != null)
+			{
+				creditTimeout = scheduler.schedule(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						timedOut();
+					}
+				}, maxCreditWait, TimeUnit.MILLISECONDS);
+			}
+		}
+		logger.debug("Out of credit, holding queued messages");
+		return false;
+	}
+
+	/**
+	 * A message of the given length was sent.
+	 */
+	public synchronized void consume(long length)
+	{
+		if(flowControlled)
+		{
+			messageCredit--;
+			byteCredit -= length;
+		}
+	}
+
+	/**
+	 * Stop the timeout, the held lane stays held.
+	 */
+	public synchronized void shutdown()
+	{
+		cancelTimeout();
+		heldLane = null;
+	}
+
+	private boolean hasCredit()
+	{
+		return !flowControlled || (messageCredit > 0 && byteCredit > 0);
+	}
+
+	/**
+	 * Called holding the lock.
+	 * 
+	 * @return the held lane, to be released once the lock is let go
+	 */
+	private PausableSerialExecutor release()
+	{
+		cancelTimeout();
+		PausableSerialExecutor lane = heldLane;
+		heldLane = null;
+		return lane;
+	}
+
+	private void cancelTimeout()
+	{
+		if(creditTimeout != null)
+		{
+			creditTimeout.cancel(false);
+			creditTimeout = null;
+		}
+	}
+
+	private void timedOut()
+	{
+		synchronized(this)
+		{
+			if(creditTimeout == null || heldLane == null || !heldLane.isHeld())
+			{
+				return;
+			}
+			creditTimeout = null;
+		}
+		logger.warn("No credit granted for " + maxCreditWait + " ms, giving up the connection");
+		timeoutTask.run();
+	}
+}
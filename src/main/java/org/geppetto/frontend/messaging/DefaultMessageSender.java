@@ -32,41 +32,42 @@
  *******************************************************************************/
 package org.geppetto.frontend.messaging;
 
-import com.google.gson.Gson;
 import java.io.IOException;
-import java.math.BigInteger;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.RejectedExecutionHandler;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.zip.Deflater;
 import org.apache.catalina.websocket.WsOutbound;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.geppetto.frontend.messages.GeppettoTransportMessage;
 import org.geppetto.frontend.messages.OutboundMessages;
-import org.geppetto.frontend.messages.TransportMessageFactory;
 
 /**
  * <code>DefaultMessageSender</code> handles transmission of messages to a client via WebSockets.
  *
- * Messages are first processed and compressed in a separate worker thread. Processed messages are then handed off to another (separate) worker thread that delivers the messages via the WebSocket.
- *
- * Each worker thread is backed by a blocking queue. One queue and thread provide messaging processing. The other queue and thread provide message transmission via the WebSocket.
+ * Messages are first processed and compressed in a processing lane. Processed messages are then handed off to a sending lane that delivers the messages via the WebSocket. Each lane is a
+ * {@link PausableSerialExecutor} of this connection whose tasks run on executors shared by all the connections (see {@link DefaultMessageSenderFactory}). The processing lane is held rather than
+ * blocked while the sending lane is full, and the sending lane runs on writer threads, so a slow client only keeps its own writer busy.
  *
  * Queuing (and worker threads) and compression can be disabled. Without queuing DefaultMessageSender does not use worker threads and instead executes all tasks in the calling thread.
  *
  * Only message types specified in the queuedMessageTypes configuration are placed in the queues. All other message types are processed and transmitted in the calling thread.
  *
- * Queued message processing and transmission can be paused and resumed. When paused, the worker threads simply remove tasks from the queue and throw them away.
+ * Queued message processing and transmission can be paused and resumed. Pausing stops the lanes from running further tasks until they are resumed, resetting purges the queues and makes the next
+ * delta encoded update of every scope a keyframe. The replies to a cancelled request are dropped, queued or not.
  *
- * Compression is done with gzip. The configuration parameter, <code>minMessageLengthForCompression</code> specifies the minimum message size for compression. Messages smaller than this size are not
- * compressed.
+ * The features are carried out by {@link MessageCoalescer}, {@link MessageExpiry}, {@link MessageCompressor}, {@link SharedFrameEncoder}, {@link DeltaEncoder}, {@link MessageBatcher},
+ * {@link CreditFlowControl}, {@link FrameWriter} and {@link FileSender}.
  *
  * {@link org.geppetto.frontend.controllers.WebsocketConnection} loads the configuration via Spring from <code>app-config.xml</code>.
  */
@@ -99,20 +100,245 @@ public class DefaultMessageSender implements MessageSender
 	 */
 	private int minMessageLengthForCompression = 20000;
 
+	/**
+	 * The codec for messages shorter than <code>minMessageLengthForCompression</code>, if supported by the client. If null then such messages are not compressed.
+	 */
+	private String smallMessageCodec;
+
+	/**
+	 * The minimum message size for compression with <code>smallMessageCodec</code>.
+	 */
+	private int minMessageLengthForSmallMessageCodec = 1000;
+
+	/**
+	 * The compression level of the codecs that have levels, from 0 to 9 or -1 for the default level.
+	 */
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * Statistics of the compression of previous messages. If null then messages longer than <code>minMessageLengthForCompression</code> are always compressed.
+	 */
+	private CompressionStatistics compressionStatistics;
+
+	/**
+	 * The minimum fraction of the length of a message that compression must save for the message to be compressed.
+	 */
+	private double minCompressionSaving = 0.1;
+
+	/**
+	 * One message of a type in this many is compressed with an option the statistics did not choose, so that the statistics of every option stay current.
+	 */
+	private int compressionSampleInterval = 20;
+
+	/**
+	 * If true then the measured bandwidth of the connection weighs in the compression decisions.
+	 */
+	private boolean bandwidthAwareCompression = false;
+
+	/**
+	 * The codecs available to compress messages, by name.
+	 */
+	private Map<String, CompressionCodec> codecs = new HashMap<>();
+
+	/**
+	 * Codec names in order of preference, the first one supported by the client is used.
+	 */
+	private List<String> preferredCodecs;
+
+	/**
+	 * The codec to use for specific message types, if supported by the client.
+	 */
+	private Map<OutboundMessages, String> messageTypeCodecs;
+
+	private MessageCompressor messageCompressor;
+
+	private SharedFrameEncoder sharedFrameEncoder;
+
+	private NumericFrameEncoder numericFrameEncoder;
+
+	private MessageBatcher messageBatcher;
+
+	/**
+	 * Message types sent as deltas from the previous message of the same scope, to clients that support it. Messages sent without a scope are sent whole.
+	 */
+	private Set<OutboundMessages> deltaEncodedMessageTypes;
+
+	/**
+	 * The number of delta encoded updates between two keyframes.
+	 */
+	private int keyframeInterval = 50;
+
+	private DeltaEncoder deltaEncoder;
+
+	/**
+	 * True once the client declared it can apply delta encoded updates.
+	 */
+	private volatile boolean deltaUpdatesSupported = false;
+
+	/**
+	 * True if flow control is allowed. Flow control is only used with the clients that ask for it.
+	 */
+	private boolean flowControlEnabled = false;
+
+	/**
+	 * Longest time in milliseconds the sending lane waits for credit before the connection is given up, 0 to wait forever.
+	 */
+	private long maxCreditWait = 0;
+
+	private CreditFlowControl creditFlowControl;
+
+	/**
+	 * The priority of message types, {@link MessagePriority#NORMAL} for the types not listed. Files are sent at {@link MessagePriority#LOW}.
+	 */
+	private Map<OutboundMessages, MessagePriority> messageTypePriorities;
+
+	/**
+	 * The channel of message types, {@link MessageChannel#CONTROL} for the types not listed.
+	 */
+	private Map<OutboundMessages, MessageChannel> messageTypeChannels;
+
+	/**
+	 * The weights of the channels, the default weight of the channel if not listed.
+	 */
+	private Map<MessageChannel, Integer> channelWeights;
+
+	/**
+	 * Binary messages longer than this are sent in fragments, to clients that support it.
+	 */
+	private int maxFragmentSize = 64 * 1024;
+
+	/**
+	 * Message types whose compressed form is shared with the other connections sending the same payload, see {@link EncodedMessageCache}.
+	 */
+	private Set<OutboundMessages> sharedMessageTypes;
+
+	/**
+	 * Message types whose time series are sent as numeric frames to clients that support it, see {@link NumericFrameEncoder}.
+	 */
+	private Set<OutboundMessages> numericMessageTypes;
+
+	/**
+	 * If true then the values in numeric frames are 32 bit floats rather than doubles.
+	 */
+	private boolean numericFrameSinglePrecision = false;
+
+	/**
+	 * The cache of compressed messages shared by all the senders. If null then messages are never shared.
+	 */
+	private EncodedMessageCache encodedMessageCache;
+
+	/**
+	 * The longest time in milliseconds a queued message of a type may wait before it is dropped. Types not listed never go stale.
+	 */
+	private Map<OutboundMessages, Long> messageMaxAges;
+
+	private MessageSenderMetrics metrics = new MessageSenderMetrics();
+
+	private MessageExpiry messageExpiry;
+
+	/**
+	 * The number of cancelled requests remembered, the replies to older ones are sent again.
+	 */
+	private static final int MAX_CANCELLED_REQUESTS = 64;
+
+	/**
+	 * The last requests the client cancelled, the replies to them are dropped.
+	 */
+	private final Set<String> cancelledRequests = Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<String, Boolean>()
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+		{
+			return size() > MAX_CANCELLED_REQUESTS;
+		}
+	}));
+
+	/**
+	 * The arrays binary frames are assembled in. A frame discarded from a queue before it is sent is left to the garbage collector.
+	 */
+	private BufferPool bufferPool = new BufferPool();
+
+	/**
+	 * Message types collected into batches, for clients that support it.
+	 */
+	private Set<OutboundMessages> batchedMessageTypes;
+
+	/**
+	 * The longest time in milliseconds a batched message waits for others.
+	 */
+	private int batchWindow = 10;
+
+	/**
+	 * A batch is sent as soon as its messages add up to this many characters.
+	 */
+	private int maxBatchLength = 16384;
+
+	/**
+	 * Fires the end of batch windows and the credit timeouts, shared between connections.
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * True if the scheduler was created by this sender because none was configured.
+	 */
+	private boolean ownsScheduler = false;
+
+	/**
+	 * The size of the chunks files are sent in, to clients that support it.
+	 */
+	private int fileChunkSize = 1024 * 1024;
+
+	private FileSender fileSender;
+
 	/**
 	 * Message types that should be queued - and thus handled across multiple threads. All other message types are handled on the calling thread.
 	 */
 	private Set<OutboundMessages> queuedMessageTypes;
 
-	private ArrayBlockingQueue<Runnable> preprocessorQueue;
-	private PausableThreadPoolExecutor preprocessorExecutor;
-	private ArrayBlockingQueue<Runnable> senderQueue;
-	private PausableThreadPoolExecutor senderExecutor;
-	private WsOutbound wsOutbound;
+	/**
+	 * Queued message types for which only the latest message of each scope is kept while waiting to be processed.
+	 */
+	private Set<OutboundMessages> coalescedMessageTypes;
+
+	/**
+	 * Queues the coalesced message types in the processing lane.
+	 */
+	private MessageCoalescer messageCoalescer;
+
+	/**
+	 * The executor, shared between connections, whose threads run the tasks of the processing lanes.
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * True if the executor was created by this sender because none was configured, in which case it is shut down with the sender.
+	 */
+	private boolean ownsExecutor = false;
+
+	/**
+	 * The executor, shared between connections, whose threads run the tasks of the sending lanes and send the batches, which write to the socket and may block on a slow client.
+	 */
+	private ExecutorService writerExecutor;
+
+	private boolean ownsWriterExecutor = false;
+
+	private PausableSerialExecutor preprocessorLane;
+	private PausableSerialExecutor senderLane;
+
+	/**
+	 * The frames written lately, to be written again to a client that reconnects after losing some of them. Null if sessions can't be resumed.
+	 */
+	private ReplayBuffer replayBuffer;
+
+	private FrameWriter frameWriter;
+
 	private Set<MessageSenderListener> listeners = new HashSet<>();
 
 	private static final Log logger = LogFactory.getLog(DefaultMessageSender.class);
 
+
 	public DefaultMessageSender()
 	{
 	}
@@ -123,33 +349,90 @@ public class DefaultMessageSender implements MessageSender
 		logger.info(String.format("Initializing message sender - queuing: %b, compression: %b, " + "discard messages if queues full: %b", queuingEnabled, compressionEnabled,
 				discardMessagesIfQueueFull));
 
-		this.wsOutbound = wsOutbound;
+		this.deltaEncoder = new DeltaEncoder(keyframeInterval);
+		this.messageExpiry = new MessageExpiry(messageMaxAges, metrics);
 
 		if(queuingEnabled)
 		{
-
-			RejectedExecutionHandler rejectedExecutionHandler;
-
-			if(discardMessagesIfQueueFull)
-			{
-				rejectedExecutionHandler = new ThreadPoolExecutor.DiscardOldestPolicy();
-			}
-			else
+			if(executor == null)
 			{
-				rejectedExecutionHandler = new ThreadPoolExecutor.AbortPolicy();
+				// no shared executor was configured, give this sender its own threads
+				executor = Executors.newFixedThreadPool(1);
+				ownsExecutor = true;
 			}
+		}
 
-			preprocessorQueue = new ArrayBlockingQueue<>(maxQueueSize);
-
-			preprocessorExecutor = new PausableThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, preprocessorQueue, rejectedExecutionHandler);
-
-			preprocessorExecutor.prestartAllCoreThreads();
+		boolean batching = batchedMessageTypes != null && !batchedMessageTypes.isEmpty();
+		if((queuingEnabled || batching) && writerExecutor == null)
+		{
+			writerExecutor = Executors.newCachedThreadPool();
+			ownsWriterExecutor = true;
+		}
 
-			senderQueue = new ArrayBlockingQueue<>(maxQueueSize);
+		if(queuingEnabled)
+		{
+			preprocessorLane = new PausableSerialExecutor(executor, maxQueueSize, discardMessagesIfQueueFull);
+			senderLane = new PausableSerialExecutor(writerExecutor, maxQueueSize, discardMessagesIfQueueFull);
+			messageCoalescer = new MessageCoalescer(preprocessorLane, new MessageCoalescer.Processor()
+			{
+				@Override
+				public void process(String requestId, OutboundMessages type, String update, String scope, long enqueueTime)
+				{
+					preprocess(requestId, type, update, scope, enqueueTime);
+				}
+			});
+		}
 
-			senderExecutor = new PausableThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, senderQueue, rejectedExecutionHandler);
-			senderExecutor.prestartAllCoreThreads();
+		if((batching || (flowControlEnabled && maxCreditWait > 0)) && scheduler == null)
+		{
+			scheduler = Executors.newSingleThreadScheduledExecutor();
+			ownsScheduler = true;
 		}
+
+		creditFlowControl = new CreditFlowControl(maxCreditWait, scheduler, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				notifyListeners(MessageSenderEvent.Type.CREDIT_TIMEOUT);
+			}
+		});
+		frameWriter = new FrameWriter(wsOutbound, messageTypePriorities, messageTypeChannels, channelWeights, bufferPool, creditFlowControl, replayBuffer);
+		frameWriter.setMaxFragmentSize(maxFragmentSize);
+		fileSender = new FileSender(frameWriter, fileChunkSize);
+
+		sharedFrameEncoder = new SharedFrameEncoder(encodedMessageCache, bufferPool);
+		sharedFrameEncoder.setSharedMessageTypes(sharedMessageTypes);
+		numericFrameEncoder = new NumericFrameEncoder(bufferPool);
+		numericFrameEncoder.setNumericMessageTypes(numericMessageTypes);
+		numericFrameEncoder.setSinglePrecision(numericFrameSinglePrecision);
+		messageCompressor = new MessageCompressor(codecs, bufferPool, frameWriter, sharedFrameEncoder);
+		messageCompressor.setMinMessageLengthForCompression(minMessageLengthForCompression);
+		messageCompressor.setSmallMessageCodec(smallMessageCodec);
+		messageCompressor.setMinMessageLengthForSmallMessageCodec(minMessageLengthForSmallMessageCodec);
+		messageCompressor.setCompressionLevel(compressionLevel);
+		messageCompressor.setCompressionStatistics(compressionStatistics);
+		messageCompressor.setMinCompressionSaving(minCompressionSaving);
+		messageCompressor.setCompressionSampleInterval(compressionSampleInterval);
+		messageCompressor.setBandwidthAwareCompression(bandwidthAwareCompression);
+		messageCompressor.setPreferredCodecs(preferredCodecs);
+		messageCompressor.setMessageTypeCodecs(messageTypeCodecs);
+
+		messageBatcher = new MessageBatcher(batchedMessageTypes, batchWindow, maxBatchLength, scheduler, writerExecutor, new MessageBatcher.Sink()
+		{
+			@Override
+			public void send(String requestId, OutboundMessages type, String update) throws IOException
+			{
+				preprocessAndSendMessage(requestId, type, update, null);
+			}
+		}, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				notifyListeners(MessageSenderEvent.Type.MESSAGE_SEND_FAILED);
+			}
+		});
 	}
 
 	@Override
@@ -157,19 +440,33 @@ public class DefaultMessageSender implements MessageSender
 	{
 		logger.debug("Shutting down message sender");
 		listeners = new HashSet<>();
-		if(preprocessorExecutor != null)
+		if(preprocessorLane != null)
 		{
-			preprocessorExecutor.shutdownNow();
+			preprocessorLane.shutdown();
 		}
-		if(senderExecutor != null)
+		if(senderLane != null)
 		{
-			senderExecutor.shutdownNow();
+			senderLane.shutdown();
 		}
+		if(ownsExecutor)
+		{
+			executor.shutdownNow();
+		}
+		if(ownsWriterExecutor)
+		{
+			writerExecutor.shutdownNow();
+		}
+		messageBatcher.shutdown();
+		creditFlowControl.shutdown();
+		if(ownsScheduler)
+		{
+			scheduler.shutdownNow();
+		}
+		fileSender.shutdown();
 	}
 
 	/**
-	 * Pause queued message transmission. This is a simple/crude way to maintain the responsiveness of the user interface. This method sets a flag that causes the worker threads to simply dequeue
-	 * tasks and throw them away.
+	 * Pause queued message transmission. This method stops the lanes from running queued tasks until the sender is resumed, the tasks stay in the queues and are dropped on resume if they are stale.
 	 *
 	 * Note that message types that don't utilize queueing are processed and transmitted normally regardless of whether the message sender is paused or not.
 	 */
@@ -178,11 +475,9 @@ public class DefaultMessageSender implements MessageSender
 	{
 		if(queuingEnabled)
 		{
-			senderExecutor.setPaused(true);
-			preprocessorExecutor.setPaused(true);
-
-			preprocessorQueue.clear();
-			senderQueue.clear();
+			// the queued messages wait, those that have gone stale by the time the sender is resumed are dropped then
+			senderLane.setPaused(true);
+			preprocessorLane.setPaused(true);
 		}
 	}
 
@@ -191,8 +486,8 @@ public class DefaultMessageSender implements MessageSender
 	{
 		if(queuingEnabled)
 		{
-			preprocessorExecutor.setPaused(false);
-			senderExecutor.setPaused(false);
+			preprocessorLane.setPaused(false);
+			senderLane.setPaused(false);
 		}
 	}
 
@@ -202,8 +497,10 @@ public class DefaultMessageSender implements MessageSender
 		if(queuingEnabled)
 		{
 			pause();
-			preprocessorQueue.clear();
-			senderQueue.clear();
+			preprocessorLane.clear();
+			senderLane.clear();
+			clearPendingCoalescedMessages();
+			requestKeyframes();
 			logger.debug("Purged queues");
 			resume();
 		}
@@ -232,18 +529,43 @@ public class DefaultMessageSender implements MessageSender
 	@Override
 	public void sendMessage(String requestID, OutboundMessages messageType, String update)
 	{
+		sendMessage(requestID, messageType, update, null);
+	}
+
+	@Override
+	public void sendMessage(String requestID, OutboundMessages messageType, String update, String scope)
+	{
+
+		if(isCancelled(requestID))
+		{
+			dropCancelled(requestID, messageType);
+			return;
+		}
 
 		try
 		{
 
-			if(queuingEnabled && isQueuedMessageType(messageType))
+			if(messageBatcher.isBatched(messageType, update))
+			{
+				messageBatcher.add(requestID, messageType, update);
+			}
+			else if(queuingEnabled && isQueuedMessageType(messageType))
 			{
-				submitTask(preprocessorExecutor, new Preprocessor(requestID, messageType, update));
+				if(isCoalescedMessageType(messageType))
+				{
+					messageCoalescer.submit(requestID, messageType, update, scope);
+				}
+				else
+				{
+					submitTask(preprocessorLane, new Preprocessor(requestID, messageType, update, scope));
+				}
 
 			}
 			else
 			{
-				preprocessAndSendMessage(requestID, messageType, update);
+				// replies batched before this one go first
+				messageBatcher.flush();
+				preprocessAndSendMessage(requestID, messageType, update, scope);
 			}
 
 		}
@@ -257,32 +579,9 @@ public class DefaultMessageSender implements MessageSender
 	@Override
 	public void sendFile(Path path)
 	{
-		// TODO: We are sending file name and data but it can be improved to send a type and message
 		try
 		{
-			long startTime = System.currentTimeMillis();
-
-			// get filename and file content
-			byte[] name = path.getFileName().toString().getBytes("UTF-8");
-			byte[] data = Files.readAllBytes(path);
-
-			// add to the buffer:
-			// - type of message
-			// - filename length (filename length is needed client side to parse the message)
-			// - filename
-			// - file content
-			int bufferSize = 1 + 1 + name.length + data.length;
-			ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-			buffer.put(BigInteger.valueOf(1).toByteArray());
-			buffer.put(BigInteger.valueOf(name.length).toByteArray());
-			buffer.put(name);
-			buffer.put(data);
-
-			// write binary message in the socket
-			wsOutbound.writeBinaryMessage(buffer);
-
-			String debug = ((long) System.currentTimeMillis() - startTime) + "ms were spent sending a file of " + bufferSize / 1024 + "KB to the client";
-			logger.info(debug);
+			fileSender.send(path);
 		}
 		catch(IOException e)
 		{
@@ -291,125 +590,347 @@ public class DefaultMessageSender implements MessageSender
 		}
 	}
 
-	private void preprocessAndSendMessage(String requestID, OutboundMessages messageType, String update) throws IOException
+	@Override
+	public void acknowledgeFileChunk(int transferId, Long received)
+	{
+		try
+		{
+			fileSender.acknowledge(transferId, received);
+		}
+		catch(IOException e)
+		{
+			logger.warn("Failed to send chunk of file transfer " + transferId, e);
+			notifyListeners(MessageSenderEvent.Type.MESSAGE_SEND_FAILED);
+		}
+	}
+
+	@Override
+	public void setChunkedFilesSupported(boolean supported)
 	{
+		fileSender.setChunkedFilesSupported(supported);
+	}
 
-		int uncompressedMessageSize = 0;
+	private void preprocessAndSendMessage(String requestID, OutboundMessages messageType, String update, String scope) throws IOException
+	{
+		preprocessAndSendMessage(requestID, messageType, update, scope, sharedFrameEncoder.isShared(messageType));
+	}
 
-		if(update != null)
+	private void preprocessAndSendMessage(String requestID, OutboundMessages messageType, String update, String scope, boolean shared) throws IOException
+	{
+		if(isDeltaEncoded(messageType, scope))
 		{
-			uncompressedMessageSize = update.length();
+			update = deltaEncoder.encode(messageType, scope, update);
+			messageType = OutboundMessages.DELTA_UPDATE;
+			shared = false;
 		}
 
-		String message = preprocessMessage(requestID, messageType, update);
-
-		if(!compressionEnabled || message.length() < minMessageLengthForCompression)
+		PooledOutputStream numericMessage = encodeNumeric(requestID, messageType, update);
+		if(numericMessage != null)
 		{
-			sendTextMessage(message, messageType);
+			sendBinaryMessage(numericMessage, messageType, update.length(), false);
+			return;
+		}
 
+		PooledOutputStream compressedMessage = compressionEnabled ? messageCompressor.compress(requestID, messageType, update, shared) : null;
+		if(compressedMessage == null)
+		{
+			sendTextMessage(requestID, messageType, update);
 		}
 		else
 		{
-			byte[] compressedMessage = CompressionUtils.gzipCompress(message);
-			sendBinaryMessage(compressedMessage, messageType, uncompressedMessageSize, false);
+			sendBinaryMessage(compressedMessage, messageType, update.length(), false);
 		}
 	}
 
-	private void preprocessMessageAndEnqueue(String requestId, OutboundMessages messageType, String update)
+	@Override
+	public void setBatchesSupported(boolean supported)
 	{
+		messageBatcher.setBatchesSupported(supported);
+	}
 
-		try
-		{
-
-			int uncompressedMessageSize = update.length();
-			String message = preprocessMessage(requestId, messageType, update);
-
-			if(!compressionEnabled || message.length() < minMessageLengthForCompression)
-			{
-				submitTask(senderExecutor, new TextMessageSender(message, messageType));
+	@Override
+	public void cancel(String requestID)
+	{
+		cancelledRequests.add(requestID);
 
-			}
-			else
+		// the replies already queued are dropped now rather than when their turn comes, so that their pooled buffers go back at once
+		purgeCancelled(preprocessorLane);
+		purgeCancelled(senderLane);
+		if(messageCoalescer != null)
+		{
+			for(OutboundMessages messageType : messageCoalescer.remove(requestID))
 			{
-				byte[] compressedMessage = CompressionUtils.gzipCompress(message);
-				submitTask(senderExecutor, new BinaryMessageSender(compressedMessage, messageType, uncompressedMessageSize));
+				dropCancelled(requestID, messageType);
 			}
-
 		}
-		catch(Exception e)
+		for(OutboundMessages messageType : messageBatcher.remove(requestID))
 		{
-			logger.warn("Failed to process message before transmission", e);
-			notifyListeners(MessageSenderEvent.Type.MESSAGE_SEND_FAILED);
+			dropCancelled(requestID, messageType);
 		}
 	}
 
-	private String preprocessMessage(String requestId, OutboundMessages type, String update)
+	private boolean isCancelled(String requestId)
 	{
+		return requestId != null && cancelledRequests.contains(requestId);
+	}
 
-		long startTime = System.currentTimeMillis();
-
-		GeppettoTransportMessage transportMessage = TransportMessageFactory.getTransportMessage(requestId, type, update);
-
-		logger.debug(String.format("Created transport message in %dms", System.currentTimeMillis() - startTime));
-
-		startTime = System.currentTimeMillis();
-		String message = new Gson().toJson(transportMessage);
-		logger.debug(String.format("Created json in %dms", System.currentTimeMillis() - startTime));
-
-		return message;
+	private void dropCancelled(String requestId, OutboundMessages messageType)
+	{
+		metrics.recordCancelledDrop(messageType);
+		logger.debug(String.format("Dropped %s message of cancelled request %s", messageType, requestId));
 	}
 
-	private void submitTask(ThreadPoolExecutor executor, Runnable task) throws InterruptedException
+	private void purgeCancelled(PausableSerialExecutor lane)
 	{
+		if(lane == null)
+		{
+			return;
+		}
+		Iterator<Runnable> iterator = lane.getQueue().iterator();
+		while(iterator.hasNext())
+		{
+			Runnable task = iterator.next();
+			if(task instanceof Preprocessor && isCancelled(((Preprocessor) task).requestId))
+			{
+				iterator.remove();
+				dropCancelled(((Preprocessor) task).requestId, ((Preprocessor) task).type);
+			}
+			else if(task instanceof TextMessageSender && isCancelled(((TextMessageSender) task).requestId))
+			{
+				iterator.remove();
+				dropCancelled(((TextMessageSender) task).requestId, ((TextMessageSender) task).messageType);
+			}
+			else if(task instanceof BinaryMessageSender && isCancelled(((BinaryMessageSender) task).requestId))
+			{
+				iterator.remove();
+				((BinaryMessageSender) task).message.release();
+				dropCancelled(((BinaryMessageSender) task).requestId, ((BinaryMessageSender) task).messageType);
+			}
+		}
+	}
 
-		if(discardMessagesIfQueueFull)
+	/**
+	 * Process a queued message when its turn comes in the processing lane.
+	 */
+	private void preprocess(String requestId, OutboundMessages type, String update, String scope, long enqueueTime)
+	{
+		// dropped before any time is spent processing and compressing it
+		if(isCancelled(requestId))
 		{
-			executor.execute(task);
+			dropCancelled(requestId, type);
+			return;
 		}
-		else
+		if(messageExpiry.dropIfStale(type, enqueueTime))
 		{
-			executor.getQueue().put(task);
+			return;
 		}
+
+		preprocessMessageAndEnqueue(requestId, type, update, scope, enqueueTime);
 	}
 
-	private void sendTextMessage(String message, OutboundMessages messageType)
+	private void preprocessMessageAndEnqueue(String requestId, OutboundMessages messageType, String update, String scope, long enqueueTime)
 	{
 
 		try
 		{
+			// deltas are computed in the order the updates are processed, if one is lost on the way the client asks for a keyframe
+			if(isDeltaEncoded(messageType, scope))
+			{
+				update = deltaEncoder.encode(messageType, scope, update);
+				messageType = OutboundMessages.DELTA_UPDATE;
+			}
 
-			long startTime = System.currentTimeMillis();
-			CharBuffer buffer = CharBuffer.wrap(message);
-			wsOutbound.writeTextMessage(buffer);
-			if(messageType.equals("experiment_status"))
+			PooledOutputStream numericMessage = encodeNumeric(requestId, messageType, update);
+			if(numericMessage != null)
+			{
+				handOff(new BinaryMessageSender(requestId, numericMessage, messageType, update.length(), enqueueTime));
+				return;
+			}
+
+			PooledOutputStream compressedMessage = compressionEnabled ? messageCompressor.compress(requestId, messageType, update, sharedFrameEncoder.isShared(messageType)) : null;
+			if(compressedMessage == null)
 			{
-				logger.info(String.format("Sent text message - %s, length: %d bytes, took: %d ms", messageType, message.length(), System.currentTimeMillis() - startTime));
+				// the envelope is written when the message is sent
+				handOff(new TextMessageSender(requestId, messageType, update, enqueueTime));
+			}
+			else
+			{
+				handOff(new BinaryMessageSender(requestId, compressedMessage, messageType, update.length(), enqueueTime));
 			}
 
 		}
-		catch(IOException e)
+		catch(Exception e)
 		{
-			logger.warn("Failed to send message", e);
+			logger.warn("Failed to process message before transmission", e);
 			notifyListeners(MessageSenderEvent.Type.MESSAGE_SEND_FAILED);
 		}
 	}
 
-	private void sendBinaryMessage(byte[] message, OutboundMessages messageType, int uncompressedMessageSize, boolean fromQueue)
+	@Override
+	public void sendSharedMessage(String requestID, OutboundMessages messageType, String update)
 	{
+		if(isCancelled(requestID))
+		{
+			dropCancelled(requestID, messageType);
+			return;
+		}
 		try
 		{
-			long startTime = System.currentTimeMillis();
-
-			// add to the buffer:
-			// - type of message
-			// - message
-			int bufferSize = 1 + message.length;
-			ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-			buffer.put(BigInteger.valueOf(0).toByteArray());
-			buffer.put(message);
+			// replies batched before this one go first
+			messageBatcher.flush();
+			preprocessAndSendMessage(requestID, messageType, update, null, true);
+		}
+		catch(Exception e)
+		{
+			logger.warn("Failed to send shared message", e);
+			notifyListeners(MessageSenderEvent.Type.MESSAGE_SEND_FAILED);
+		}
+	}
+
+	@Override
+	public void setSharedFramesSupported(boolean supported)
+	{
+		sharedFrameEncoder.setSharedFramesSupported(supported);
+	}
+
+	@Override
+	public void setNumericFramesSupported(boolean supported)
+	{
+		numericFrameEncoder.setNumericFramesSupported(supported);
+	}
+
+	/**
+	 * @return the update as a numeric frame, not compressed as its values would hardly shrink, or null if it is not sent as one
+	 */
+	private PooledOutputStream encodeNumeric(String requestId, OutboundMessages messageType, String update)
+	{
+		return numericFrameEncoder.isNumeric(messageType) ? numericFrameEncoder.encode(requestId, messageType, update) : null;
+	}
+
+	@Override
+	public void setClientCodecs(Collection<String> codecs)
+	{
+		messageCompressor.setClientCodecs(codecs);
+	}
+
+	@Override
+	public void setDeltaUpdatesSupported(boolean supported)
+	{
+		this.deltaUpdatesSupported = supported;
+	}
+
+	@Override
+	public void requestKeyframe(String key)
+	{
+		deltaEncoder.requestKeyframe(key);
+	}
+
+	@Override
+	public void closeScope(String scope)
+	{
+		deltaEncoder.removeScope(scope);
+	}
+
+	private void requestKeyframes()
+	{
+		if(deltaEncoder != null)
+		{
+			deltaEncoder.requestKeyframes();
+		}
+	}
+
+	/**
+	 * Only messages sent with a scope are delta encoded, the encoder keeps the last update of each scope until the scope is closed.
+	 */
+	private boolean isDeltaEncoded(OutboundMessages messageType, String scope)
+	{
+		return deltaUpdatesSupported && scope != null && deltaEncodedMessageTypes != null && deltaEncodedMessageTypes.contains(messageType);
+	}
+
+	@Override
+	public void enableFlowControl(int messages, long bytes)
+	{
+		if(flowControlEnabled)
+		{
+			creditFlowControl.enable(messages, bytes);
+		}
+	}
+
+	@Override
+	public void grantCredit(int messages, long bytes)
+	{
+		creditFlowControl.grant(messages, bytes);
+	}
+
+	@Override
+	public boolean isCreditExhausted()
+	{
+		return creditFlowControl.isExhausted();
+	}
+
+	private void submitTask(PausableSerialExecutor lane, Runnable task) throws InterruptedException
+	{
+		lane.submit(task);
+	}
+
+	/**
+	 * Pass a processed message on to the sending lane. Called in the processing lane, which is held if the sending lane is full rather than blocking a shared thread, and offers the message again
+	 * once the sending lane has room.
+	 */
+	private void handOff(final Runnable messageSender)
+	{
+		boolean queued = senderLane.offer(messageSender, preprocessorLane, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				handOff(messageSender);
+			}
+		});
+		if(!queued)
+		{
+			logger.debug("Sending lane full, holding the processing lane");
+		}
+	}
+
+	private void clearPendingCoalescedMessages()
+	{
+		if(messageCoalescer != null)
+		{
+			messageCoalescer.clear();
+		}
+	}
+
+	private void sendTextMessage(String requestId, OutboundMessages messageType, String update)
+	{
+
+		try
+		{
+
+			long startTime = System.currentTimeMillis();
+			long length = frameWriter.writeText(requestId, messageType, update);
+
+			logger.debug(String.format("Sent text message - %s, length: %d chars, took: %d ms", messageType, length, System.currentTimeMillis() - startTime));
+
+		}
+		catch(IOException e)
+		{
+			logger.warn("Failed to send message", e);
+			notifyListeners(MessageSenderEvent.Type.MESSAGE_SEND_FAILED);
+		}
+	}
 
-			// ByteBuffer buffer = ByteBuffer.wrap(message);
-			wsOutbound.writeBinaryMessage(buffer);
+	/**
+	 * Send a binary frame and give its memory back to the pool.
+	 */
+	private void sendBinaryMessage(PooledOutputStream message, OutboundMessages messageType, int uncompressedMessageSize, boolean fromQueue)
+	{
+		int length = message.getLength();
+		try
+		{
+			long startTime = System.currentTimeMillis();
+			// the message already starts with its frame header
+			frameWriter.writeBinary(message.getBuffer(), length, messageType);
 
 			String logMessage = "Sent binary/compressed message - %s, length: %d (%d) bytes, duration: %d ms";
 			if(fromQueue)
@@ -417,7 +938,7 @@ public class DefaultMessageSender implements MessageSender
 				logMessage = "Sent binary/compressed message from queue - %s, length: %d (%d) bytes, duration: %d ms";
 			}
 
-			logger.info(String.format(logMessage, messageType, message.length, uncompressedMessageSize, System.currentTimeMillis() - startTime));
+			logger.info(String.format(logMessage, messageType, length, uncompressedMessageSize, System.currentTimeMillis() - startTime));
 
 		}
 		catch(IOException e)
@@ -425,6 +946,43 @@ public class DefaultMessageSender implements MessageSender
 			logger.warn("Failed to send binary message", e);
 			notifyListeners(MessageSenderEvent.Type.MESSAGE_SEND_FAILED);
 		}
+		finally
+		{
+			message.release();
+		}
+	}
+
+	@Override
+	public boolean isResumable()
+	{
+		return frameWriter.isResumable();
+	}
+
+	@Override
+	public void detach()
+	{
+		frameWriter.detach();
+	}
+
+	@Override
+	public boolean attach(WsOutbound wsOutbound, long received)
+	{
+		try
+		{
+			return frameWriter.attach(wsOutbound, received);
+		}
+		catch(IOException e)
+		{
+			logger.warn("Failed to write the frames the client missed", e);
+			notifyListeners(MessageSenderEvent.Type.MESSAGE_SEND_FAILED);
+			return true;
+		}
+	}
+
+	@Override
+	public void setFragmentsSupported(boolean supported)
+	{
+		frameWriter.setFragmentsSupported(supported);
 	}
 
 	private boolean isQueuedMessageType(OutboundMessages messageType)
@@ -432,6 +990,11 @@ public class DefaultMessageSender implements MessageSender
 		return queuedMessageTypes != null && queuedMessageTypes.contains(messageType);
 	}
 
+	private boolean isCoalescedMessageType(OutboundMessages messageType)
+	{
+		return coalescedMessageTypes != null && coalescedMessageTypes.contains(messageType);
+	}
+
 	public boolean isCompressionEnabled()
 	{
 		return compressionEnabled;
@@ -455,14 +1018,16 @@ public class DefaultMessageSender implements MessageSender
 		if(!queuingEnabled)
 		{
 
-			if(preprocessorQueue != null)
+			if(preprocessorLane != null)
 			{
-				preprocessorQueue.clear();
+				preprocessorLane.clear();
 			}
-			if(senderQueue != null)
+			if(senderLane != null)
 			{
-				senderQueue.clear();
+				senderLane.clear();
 			}
+			clearPendingCoalescedMessages();
+			requestKeyframes();
 		}
 	}
 
@@ -506,61 +1071,439 @@ public class DefaultMessageSender implements MessageSender
 		this.queuedMessageTypes = queuedMessageTypes;
 	}
 
+	public Set<OutboundMessages> getCoalescedMessageTypes()
+	{
+		return coalescedMessageTypes;
+	}
+
+	public void setCoalescedMessageTypes(Set<OutboundMessages> coalescedMessageTypes)
+	{
+		this.coalescedMessageTypes = coalescedMessageTypes;
+	}
+
+	public String getSmallMessageCodec()
+	{
+		return smallMessageCodec;
+	}
+
+	public void setSmallMessageCodec(String smallMessageCodec)
+	{
+		this.smallMessageCodec = smallMessageCodec;
+	}
+
+	public int getMinMessageLengthForSmallMessageCodec()
+	{
+		return minMessageLengthForSmallMessageCodec;
+	}
+
+	public void setMinMessageLengthForSmallMessageCodec(int minMessageLengthForSmallMessageCodec)
+	{
+		this.minMessageLengthForSmallMessageCodec = minMessageLengthForSmallMessageCodec;
+	}
+
+	public int getCompressionLevel()
+	{
+		return compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel)
+	{
+		this.compressionLevel = compressionLevel;
+	}
+
+	public CompressionStatistics getCompressionStatistics()
+	{
+		return compressionStatistics;
+	}
+
+	public void setCompressionStatistics(CompressionStatistics compressionStatistics)
+	{
+		this.compressionStatistics = compressionStatistics;
+	}
+
+	public double getMinCompressionSaving()
+	{
+		return minCompressionSaving;
+	}
+
+	public void setMinCompressionSaving(double minCompressionSaving)
+	{
+		this.minCompressionSaving = minCompressionSaving;
+	}
+
+	public int getCompressionSampleInterval()
+	{
+		return compressionSampleInterval;
+	}
+
+	public void setCompressionSampleInterval(int compressionSampleInterval)
+	{
+		this.compressionSampleInterval = compressionSampleInterval;
+	}
+
+	public boolean isBandwidthAwareCompression()
+	{
+		return bandwidthAwareCompression;
+	}
+
+	public void setBandwidthAwareCompression(boolean bandwidthAwareCompression)
+	{
+		this.bandwidthAwareCompression = bandwidthAwareCompression;
+	}
+
+	public Set<OutboundMessages> getSharedMessageTypes()
+	{
+		return sharedMessageTypes;
+	}
+
+	public void setSharedMessageTypes(Set<OutboundMessages> sharedMessageTypes)
+	{
+		this.sharedMessageTypes = sharedMessageTypes;
+	}
+
+	public Set<OutboundMessages> getNumericMessageTypes()
+	{
+		return numericMessageTypes;
+	}
+
+	public void setNumericMessageTypes(Set<OutboundMessages> numericMessageTypes)
+	{
+		this.numericMessageTypes = numericMessageTypes;
+	}
+
+	public boolean isNumericFrameSinglePrecision()
+	{
+		return numericFrameSinglePrecision;
+	}
+
+	public void setNumericFrameSinglePrecision(boolean numericFrameSinglePrecision)
+	{
+		this.numericFrameSinglePrecision = numericFrameSinglePrecision;
+	}
+
+	public EncodedMessageCache getEncodedMessageCache()
+	{
+		return encodedMessageCache;
+	}
+
+	public void setEncodedMessageCache(EncodedMessageCache encodedMessageCache)
+	{
+		this.encodedMessageCache = encodedMessageCache;
+	}
+
+	public ReplayBuffer getReplayBuffer()
+	{
+		return replayBuffer;
+	}
+
+	public void setReplayBuffer(ReplayBuffer replayBuffer)
+	{
+		this.replayBuffer = replayBuffer;
+	}
+
+	public Map<OutboundMessages, Long> getMessageMaxAges()
+	{
+		return messageMaxAges;
+	}
+
+	public void setMessageMaxAges(Map<OutboundMessages, Long> messageMaxAges)
+	{
+		this.messageMaxAges = messageMaxAges;
+	}
+
+	public MessageSenderMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	public void setMetrics(MessageSenderMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	public BufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+
+	public void setBufferPool(BufferPool bufferPool)
+	{
+		this.bufferPool = bufferPool;
+	}
+
+	public Set<OutboundMessages> getBatchedMessageTypes()
+	{
+		return batchedMessageTypes;
+	}
+
+	public void setBatchedMessageTypes(Set<OutboundMessages> batchedMessageTypes)
+	{
+		this.batchedMessageTypes = batchedMessageTypes;
+	}
+
+	public int getBatchWindow()
+	{
+		return batchWindow;
+	}
+
+	public void setBatchWindow(int batchWindow)
+	{
+		this.batchWindow = batchWindow;
+	}
+
+	public int getMaxBatchLength()
+	{
+		return maxBatchLength;
+	}
+
+	public void setMaxBatchLength(int maxBatchLength)
+	{
+		this.maxBatchLength = maxBatchLength;
+	}
+
+	public ScheduledExecutorService getScheduler()
+	{
+		return scheduler;
+	}
+
+	public void setScheduler(ScheduledExecutorService scheduler)
+	{
+		this.scheduler = scheduler;
+	}
+
+	public Map<OutboundMessages, MessagePriority> getMessageTypePriorities()
+	{
+		return messageTypePriorities;
+	}
+
+	public void setMessageTypePriorities(Map<OutboundMessages, MessagePriority> messageTypePriorities)
+	{
+		this.messageTypePriorities = messageTypePriorities;
+	}
+
+	public Map<OutboundMessages, MessageChannel> getMessageTypeChannels()
+	{
+		return messageTypeChannels;
+	}
+
+	public void setMessageTypeChannels(Map<OutboundMessages, MessageChannel> messageTypeChannels)
+	{
+		this.messageTypeChannels = messageTypeChannels;
+	}
+
+	public Map<MessageChannel, Integer> getChannelWeights()
+	{
+		return channelWeights;
+	}
+
+	public void setChannelWeights(Map<MessageChannel, Integer> channelWeights)
+	{
+		this.channelWeights = channelWeights;
+	}
+
+	public int getMaxFragmentSize()
+	{
+		return maxFragmentSize;
+	}
+
+	public void setMaxFragmentSize(int maxFragmentSize)
+	{
+		this.maxFragmentSize = maxFragmentSize;
+	}
+
+	public int getFileChunkSize()
+	{
+		return fileChunkSize;
+	}
+
+	public void setFileChunkSize(int fileChunkSize)
+	{
+		this.fileChunkSize = fileChunkSize;
+	}
+
+	public boolean isFlowControlEnabled()
+	{
+		return flowControlEnabled;
+	}
+
+	public void setFlowControlEnabled(boolean flowControlEnabled)
+	{
+		this.flowControlEnabled = flowControlEnabled;
+	}
+
+	public long getMaxCreditWait()
+	{
+		return maxCreditWait;
+	}
+
+	public void setMaxCreditWait(long maxCreditWait)
+	{
+		this.maxCreditWait = maxCreditWait;
+	}
+
+	public Set<OutboundMessages> getDeltaEncodedMessageTypes()
+	{
+		return deltaEncodedMessageTypes;
+	}
+
+	public void setDeltaEncodedMessageTypes(Set<OutboundMessages> deltaEncodedMessageTypes)
+	{
+		this.deltaEncodedMessageTypes = deltaEncodedMessageTypes;
+	}
+
+	public int getKeyframeInterval()
+	{
+		return keyframeInterval;
+	}
+
+	public void setKeyframeInterval(int keyframeInterval)
+	{
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	public Map<String, CompressionCodec> getCodecs()
+	{
+		return codecs;
+	}
+
+	public void setCodecs(Map<String, CompressionCodec> codecs)
+	{
+		this.codecs = codecs;
+	}
+
+	public List<String> getPreferredCodecs()
+	{
+		return preferredCodecs;
+	}
+
+	public void setPreferredCodecs(List<String> preferredCodecs)
+	{
+		this.preferredCodecs = preferredCodecs;
+	}
+
+	public Map<OutboundMessages, String> getMessageTypeCodecs()
+	{
+		return messageTypeCodecs;
+	}
+
+	public void setMessageTypeCodecs(Map<OutboundMessages, String> messageTypeCodecs)
+	{
+		this.messageTypeCodecs = messageTypeCodecs;
+	}
+
+	public ExecutorService getExecutor()
+	{
+		return executor;
+	}
+
+	public void setExecutor(ExecutorService executor)
+	{
+		this.executor = executor;
+	}
+
+	public ExecutorService getWriterExecutor()
+	{
+		return writerExecutor;
+	}
+
+	public void setWriterExecutor(ExecutorService writerExecutor)
+	{
+		this.writerExecutor = writerExecutor;
+	}
+
 	private class TextMessageSender implements Runnable
 	{
 
-		private String message;
+		private String requestId;
 		private OutboundMessages messageType;
+		private String update;
+		private long enqueueTime;
 
-		public TextMessageSender(String message, OutboundMessages messageType)
+		public TextMessageSender(String requestId, OutboundMessages messageType, String update, long enqueueTime)
 		{
-			this.message = message;
+			this.requestId = requestId;
 			this.messageType = messageType;
+			this.update = update;
+			this.enqueueTime = enqueueTime;
 		}
 
 		public void run()
 		{
-			sendTextMessage(message, messageType);
+			if(isCancelled(requestId))
+			{
+				dropCancelled(requestId, messageType);
+				return;
+			}
+			// delta updates have their own type by now and are never dropped here, the client would have to ask for a keyframe
+			if(messageExpiry.dropIfStale(messageType, enqueueTime))
+			{
+				return;
+			}
+			if(creditFlowControl.acquire(senderLane, this))
+			{
+				sendTextMessage(requestId, messageType, update);
+			}
 		}
 	}
 
 	private class BinaryMessageSender implements Runnable
 	{
 
-		private byte[] message;
+		private String requestId;
+		private PooledOutputStream message;
 		private OutboundMessages messageType;
 		private int uncompressedMessageSize;
+		private long enqueueTime;
 
-		public BinaryMessageSender(byte[] message, OutboundMessages messageType, int uncompressedMessageSize)
+		public BinaryMessageSender(String requestId, PooledOutputStream message, OutboundMessages messageType, int uncompressedMessageSize, long enqueueTime)
 		{
+			this.requestId = requestId;
 			this.message = message;
 			this.messageType = messageType;
 			this.uncompressedMessageSize = uncompressedMessageSize;
+			this.enqueueTime = enqueueTime;
 		}
 
 		public void run()
 		{
-			sendBinaryMessage(message, messageType, uncompressedMessageSize, true);
+			if(isCancelled(requestId))
+			{
+				dropCancelled(requestId, messageType);
+				message.release();
+				return;
+			}
+			if(messageExpiry.dropIfStale(messageType, enqueueTime))
+			{
+				message.release();
+				return;
+			}
+			if(creditFlowControl.acquire(senderLane, this))
+			{
+				sendBinaryMessage(message, messageType, uncompressedMessageSize, true);
+			}
 		}
 	}
 
 	private class Preprocessor implements Runnable
 	{
 
-		private String requestId;
-		private OutboundMessages type;
-		private String update;
+		private final String requestId;
+		private final OutboundMessages type;
+		private final String update;
+		private final String scope;
+		private final long enqueueTime = System.nanoTime();
 
-		public Preprocessor(String requestId, OutboundMessages type, String update)
+		public Preprocessor(String requestId, OutboundMessages type, String update, String scope)
 		{
 			this.requestId = requestId;
 			this.type = type;
 			this.update = update;
+			this.scope = scope;
 		}
 
 		public void run()
 		{
-			preprocessMessageAndEnqueue(requestId, type, update);
+			preprocess(requestId, type, update, scope, enqueueTime);
 		}
 	}
 }
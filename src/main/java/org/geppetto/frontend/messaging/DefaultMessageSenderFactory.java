@@ -32,11 +32,63 @@
  *******************************************************************************/
 package org.geppetto.frontend.messaging;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 import org.apache.catalina.websocket.WsOutbound;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.geppetto.frontend.messages.OutboundMessages;
+import org.springframework.core.io.Resource;
 
+/**
+ * Creates a {@link DefaultMessageSender} for each WebSocket connection.
+ *
+ * The factory owns a single worker pool, shared by all the message senders it creates, that processes and compresses queued messages. Each sender keeps its own ordered lanes on top of this
+ * pool, so adding connections adds queues but not threads. The pool size is set with <code>senderThreads</code>; if not positive the number of available processors is used. The workers never wait
+ * on a connection, the queued messages are written to the sockets by a second pool of writer threads, shared as well, that grows with the number of connections being written to at the same time,
+ * so that a client slow to read only holds up its own writer.
+ *
+ * The available compression codecs are gzip and raw deflate, both at <code>compressionLevel</code>, and lz4. <code>preferredCodecs</code> lists the codecs to use, in order of preference, with
+ * clients that support them and <code>messageTypeCodecs</code> overrides the choice for specific message types.
+ *
+ * With a <code>dictionary</code>, the {@link DictionaryDeflateCodec} of version <code>dictionaryVersion</code> is available too, and compresses the messages from
+ * <code>minMessageLengthForDictionaryCompression</code> up to <code>minMessageLengthForCompression</code> long for clients that hold the same version of the dictionary.
+ *
+ * The senders and codecs share a {@link BufferPool}, holding up to <code>pooledBuffersPerSize</code> idle arrays of each size up to <code>maxPooledBufferSize</code>, and a {@link DeflaterPool}
+ * holding up to <code>pooledDeflaters</code> idle deflaters of each level.
+ *
+ * The senders share an {@link EncodedMessageCache} of up to <code>sharedMessageCacheSize</code> messages, kept <code>sharedMessageCacheTimeToLive</code> milliseconds, so that the messages of the
+ * types in <code>sharedMessageTypes</code> and the replies to identical requests are compressed once for all the connections.
+ *
+ * With a positive <code>replayBufferSize</code> each sender keeps that many bytes of the last frames it wrote in a {@link ReplayBuffer}, and a session whose connection is lost can be resumed by
+ * a new connection for <code>sessionGracePeriod</code> milliseconds, see {@link org.geppetto.frontend.controllers.WebsocketConnection}.
+ *
+ * The time series in the messages of the types in <code>numericMessageTypes</code> are sent as packed numbers to the clients that support it, 32 bit floats with
+ * <code>numericFrameSinglePrecision</code> and doubles otherwise, see {@link NumericFrameEncoder}.
+ *
+ * The senders share one {@link MessageSenderMetrics}, where they count the queued messages dropped because they were older than their type's maximum age in <code>messageMaxAges</code>.
+ *
+ * Senders that batch messages or take part in flow control share a single scheduler thread that hands the batches over to be sent at the end of their window and notices the clients that
+ * granted no credit for <code>maxCreditWait</code> milliseconds.
+ *
+ * With <code>adaptiveCompression</code> the senders share one {@link CompressionStatistics} and use it to decide whether a message is worth compressing, see {@link DefaultMessageSender}.
+ */
 public class DefaultMessageSenderFactory {
 
 	private boolean queuingEnabled = false;
@@ -45,6 +97,53 @@ public class DefaultMessageSenderFactory {
 	private boolean compressionEnabled = false;
 	private int minMessageLengthForCompression = 20000;
 	private Set<OutboundMessages> queuedMessageTypes;
+	private Set<OutboundMessages> coalescedMessageTypes;
+	private Set<OutboundMessages> deltaEncodedMessageTypes;
+	private int keyframeInterval = 50;
+	private boolean flowControlEnabled = false;
+	private long maxCreditWait = 30000;
+	private int fileChunkSize = 1024 * 1024;
+	private Map<OutboundMessages, MessagePriority> messageTypePriorities;
+	private Map<OutboundMessages, MessageChannel> messageTypeChannels;
+	private Map<MessageChannel, Integer> channelWeights;
+	private Set<OutboundMessages> batchedMessageTypes;
+	private int batchWindow = 10;
+	private int maxBatchLength = 16384;
+	private ScheduledExecutorService scheduler;
+	private int maxPooledBufferSize = BufferPool.DEFAULT_MAX_BUFFER_SIZE;
+	private int pooledBuffersPerSize = BufferPool.DEFAULT_BUFFERS_PER_SIZE;
+	private int pooledDeflaters = DeflaterPool.DEFAULT_MAX_IDLE;
+	private BufferPool bufferPool;
+	private Map<OutboundMessages, Long> messageMaxAges;
+	private Set<OutboundMessages> sharedMessageTypes;
+	private Set<OutboundMessages> numericMessageTypes;
+	private boolean numericFrameSinglePrecision = false;
+	private int sharedMessageCacheSize = 8;
+	private long sharedMessageCacheTimeToLive = 10000;
+	private EncodedMessageCache encodedMessageCache;
+	private long replayBufferSize = 0;
+	private long sessionGracePeriod = 60000;
+	private final MessageSenderMetrics metrics = new MessageSenderMetrics();
+	private DeflaterPool deflaterPool;
+	private int maxFragmentSize = 64 * 1024;
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private List<String> preferredCodecs;
+	private Map<OutboundMessages, String> messageTypeCodecs;
+	private boolean adaptiveCompression = false;
+	private double minCompressionSaving = 0.1;
+	private int compressionSampleInterval = 20;
+	private boolean bandwidthAwareCompression = false;
+	private final CompressionStatistics compressionStatistics = new CompressionStatistics();
+	private Resource dictionary;
+	private int dictionaryVersion = 1;
+	private int minMessageLengthForDictionaryCompression = 1000;
+	private byte[] dictionaryBytes;
+	private boolean dictionaryLoaded = false;
+	private int senderThreads = 0;
+	private ExecutorService senderExecutor;
+	private ExecutorService writerExecutor;
+
+	private static final Log logger = LogFactory.getLog(DefaultMessageSenderFactory.class);
 
 	public DefaultMessageSender getMessageSender(WsOutbound wsOutbound, MessageSenderListener listener) {
 
@@ -57,12 +156,182 @@ public class DefaultMessageSenderFactory {
 		messageSender.setCompressionEnabled(compressionEnabled);
 		messageSender.setMinMessageLengthForCompression(minMessageLengthForCompression);
 		messageSender.setQueuedMessageTypes(queuedMessageTypes);
+		messageSender.setCoalescedMessageTypes(coalescedMessageTypes);
+		messageSender.setDeltaEncodedMessageTypes(deltaEncodedMessageTypes);
+		messageSender.setKeyframeInterval(keyframeInterval);
+		messageSender.setFlowControlEnabled(flowControlEnabled);
+		messageSender.setFileChunkSize(fileChunkSize);
+		messageSender.setMessageTypePriorities(messageTypePriorities);
+		messageSender.setMessageTypeChannels(messageTypeChannels);
+		messageSender.setChannelWeights(channelWeights);
+		messageSender.setMaxFragmentSize(maxFragmentSize);
+		messageSender.setBatchedMessageTypes(batchedMessageTypes);
+		messageSender.setBatchWindow(batchWindow);
+		messageSender.setMaxBatchLength(maxBatchLength);
+		messageSender.setMaxCreditWait(maxCreditWait);
+		if ((batchedMessageTypes != null && !batchedMessageTypes.isEmpty()) || (flowControlEnabled && maxCreditWait > 0)) {
+			messageSender.setScheduler(getScheduler());
+		}
+		messageSender.setBufferPool(getBufferPool());
+		messageSender.setMessageMaxAges(messageMaxAges);
+		messageSender.setSharedMessageTypes(sharedMessageTypes);
+		messageSender.setNumericMessageTypes(numericMessageTypes);
+		messageSender.setNumericFrameSinglePrecision(numericFrameSinglePrecision);
+		messageSender.setEncodedMessageCache(getEncodedMessageCache());
+		if (replayBufferSize > 0) {
+			messageSender.setReplayBuffer(new ReplayBuffer(replayBufferSize));
+		}
+		messageSender.setMetrics(metrics);
+		Map<String, CompressionCodec> codecs = createCodecs();
+		messageSender.setCodecs(codecs);
+		String dictionaryCodec = DictionaryDeflateCodec.getName(dictionaryVersion);
+		if (codecs.containsKey(dictionaryCodec)) {
+			messageSender.setSmallMessageCodec(dictionaryCodec);
+			messageSender.setMinMessageLengthForSmallMessageCodec(minMessageLengthForDictionaryCompression);
+		}
+		messageSender.setCompressionLevel(compressionLevel);
+		if (adaptiveCompression) {
+			messageSender.setCompressionStatistics(compressionStatistics);
+		}
+		messageSender.setMinCompressionSaving(minCompressionSaving);
+		messageSender.setCompressionSampleInterval(compressionSampleInterval);
+		messageSender.setBandwidthAwareCompression(bandwidthAwareCompression);
+		messageSender.setPreferredCodecs(preferredCodecs);
+		messageSender.setMessageTypeCodecs(messageTypeCodecs);
+		if (queuingEnabled) {
+			messageSender.setExecutor(getSenderExecutor());
+		}
+		if (queuingEnabled || (batchedMessageTypes != null && !batchedMessageTypes.isEmpty())) {
+			messageSender.setWriterExecutor(getWriterExecutor());
+		}
 
 		messageSender.initialize(wsOutbound);
 
 		return messageSender;
 	}
 
+	private Map<String, CompressionCodec> createCodecs() {
+
+		Map<String, CompressionCodec> codecs = new HashMap<>();
+		DeflaterPool deflaters = getDeflaterPool();
+		for (CompressionCodec codec : new CompressionCodec[] { new GzipCodec(compressionLevel, deflaters), new DeflateCodec(compressionLevel, deflaters), new Lz4Codec(getBufferPool()) }) {
+			codecs.put(codec.getName(), codec);
+		}
+
+		byte[] dictionary = getDictionaryBytes();
+		if (dictionary != null) {
+			CompressionCodec codec = new DictionaryDeflateCodec(dictionaryVersion, dictionary, compressionLevel, deflaters);
+			codecs.put(codec.getName(), codec);
+		}
+		return codecs;
+	}
+
+	/**
+	 * @return the content of the dictionary, read on first use, or null if there is none
+	 */
+	private synchronized byte[] getDictionaryBytes() {
+
+		if (!dictionaryLoaded) {
+			dictionaryLoaded = true;
+			if (dictionary != null) {
+				try (InputStream in = dictionary.getInputStream()) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					byte[] buffer = new byte[8192];
+					int read;
+					while ((read = in.read(buffer)) != -1) {
+						bytes.write(buffer, 0, read);
+					}
+					if (bytes.size() > DictionaryDeflateCodec.MAX_DICTIONARY_LENGTH) {
+						logger.warn("Compression dictionary " + dictionary.getDescription() + " is longer than " + DictionaryDeflateCodec.MAX_DICTIONARY_LENGTH + " bytes, not using it");
+					} else {
+						dictionaryBytes = bytes.toByteArray();
+						logger.info("Loaded compression dictionary version " + dictionaryVersion + " of " + dictionaryBytes.length + " bytes");
+					}
+				} catch (IOException e) {
+					logger.warn("Could not read compression dictionary " + dictionary.getDescription(), e);
+				}
+			}
+		}
+		return dictionaryBytes;
+	}
+
+	private synchronized ExecutorService getSenderExecutor() {
+
+		if (senderExecutor == null) {
+
+			int threads = senderThreads > 0 ? senderThreads : Runtime.getRuntime().availableProcessors();
+
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new SenderThreadFactory("geppetto-message-sender-"));
+			executor.allowCoreThreadTimeOut(true);
+			senderExecutor = executor;
+		}
+		return senderExecutor;
+	}
+
+	private synchronized ExecutorService getWriterExecutor() {
+
+		if (writerExecutor == null) {
+			// each sending lane uses at most one thread at a time, so there are never more writers than connections
+			writerExecutor = Executors.newCachedThreadPool(new SenderThreadFactory("geppetto-message-writer-"));
+		}
+		return writerExecutor;
+	}
+
+	private synchronized BufferPool getBufferPool() {
+
+		if (bufferPool == null) {
+			bufferPool = new BufferPool(maxPooledBufferSize, pooledBuffersPerSize);
+		}
+		return bufferPool;
+	}
+
+	private synchronized DeflaterPool getDeflaterPool() {
+
+		if (deflaterPool == null) {
+			deflaterPool = new DeflaterPool(pooledDeflaters);
+		}
+		return deflaterPool;
+	}
+
+	private synchronized EncodedMessageCache getEncodedMessageCache() {
+
+		if (encodedMessageCache == null && sharedMessageCacheSize > 0) {
+			encodedMessageCache = new EncodedMessageCache(sharedMessageCacheSize, sharedMessageCacheTimeToLive);
+		}
+		return encodedMessageCache;
+	}
+
+	private synchronized ScheduledExecutorService getScheduler() {
+
+		if (scheduler == null) {
+			// the thread only hands batches over to be sent and gives up connections without credit, one is enough for all the connections
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new SenderThreadFactory("geppetto-message-sender-"));
+			executor.setRemoveOnCancelPolicy(true);
+			scheduler = executor;
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Stop the shared worker pools and scheduler. Called by Spring when the application context is closed.
+	 */
+	public synchronized void shutdown() {
+
+		if (senderExecutor != null) {
+			senderExecutor.shutdownNow();
+			senderExecutor = null;
+		}
+		if (writerExecutor != null) {
+			writerExecutor.shutdownNow();
+			writerExecutor = null;
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
 	private boolean isQueuedMessageType(OutboundMessages messageType) {
 		return queuedMessageTypes != null && queuedMessageTypes.contains(messageType);
 	}
@@ -114,4 +383,308 @@ public class DefaultMessageSenderFactory {
 	public void setQueuedMessageTypes(Set<OutboundMessages> queuedMessageTypes) {
 		this.queuedMessageTypes = queuedMessageTypes;
 	}
+
+	public Set<OutboundMessages> getCoalescedMessageTypes() {
+		return coalescedMessageTypes;
+	}
+
+	public void setCoalescedMessageTypes(Set<OutboundMessages> coalescedMessageTypes) {
+		this.coalescedMessageTypes = coalescedMessageTypes;
+	}
+
+	public Set<OutboundMessages> getDeltaEncodedMessageTypes() {
+		return deltaEncodedMessageTypes;
+	}
+
+	public void setDeltaEncodedMessageTypes(Set<OutboundMessages> deltaEncodedMessageTypes) {
+		this.deltaEncodedMessageTypes = deltaEncodedMessageTypes;
+	}
+
+	public long getReplayBufferSize() {
+		return replayBufferSize;
+	}
+
+	public void setReplayBufferSize(long replayBufferSize) {
+		this.replayBufferSize = replayBufferSize;
+	}
+
+	public long getSessionGracePeriod() {
+		return sessionGracePeriod;
+	}
+
+	public void setSessionGracePeriod(long sessionGracePeriod) {
+		this.sessionGracePeriod = sessionGracePeriod;
+	}
+
+	public Set<OutboundMessages> getSharedMessageTypes() {
+		return sharedMessageTypes;
+	}
+
+	public void setSharedMessageTypes(Set<OutboundMessages> sharedMessageTypes) {
+		this.sharedMessageTypes = sharedMessageTypes;
+	}
+
+	public Set<OutboundMessages> getNumericMessageTypes() {
+		return numericMessageTypes;
+	}
+
+	public void setNumericMessageTypes(Set<OutboundMessages> numericMessageTypes) {
+		this.numericMessageTypes = numericMessageTypes;
+	}
+
+	public boolean isNumericFrameSinglePrecision() {
+		return numericFrameSinglePrecision;
+	}
+
+	public void setNumericFrameSinglePrecision(boolean numericFrameSinglePrecision) {
+		this.numericFrameSinglePrecision = numericFrameSinglePrecision;
+	}
+
+	public int getSharedMessageCacheSize() {
+		return sharedMessageCacheSize;
+	}
+
+	public void setSharedMessageCacheSize(int sharedMessageCacheSize) {
+		this.sharedMessageCacheSize = sharedMessageCacheSize;
+	}
+
+	public long getSharedMessageCacheTimeToLive() {
+		return sharedMessageCacheTimeToLive;
+	}
+
+	public void setSharedMessageCacheTimeToLive(long sharedMessageCacheTimeToLive) {
+		this.sharedMessageCacheTimeToLive = sharedMessageCacheTimeToLive;
+	}
+
+	public Map<OutboundMessages, Long> getMessageMaxAges() {
+		return messageMaxAges;
+	}
+
+	public void setMessageMaxAges(Map<OutboundMessages, Long> messageMaxAges) {
+		this.messageMaxAges = messageMaxAges;
+	}
+
+	/**
+	 * @return the counters of the messages the senders did not send
+	 */
+	public MessageSenderMetrics getMetrics() {
+		return metrics;
+	}
+
+	public int getMaxPooledBufferSize() {
+		return maxPooledBufferSize;
+	}
+
+	public void setMaxPooledBufferSize(int maxPooledBufferSize) {
+		this.maxPooledBufferSize = maxPooledBufferSize;
+	}
+
+	public int getPooledBuffersPerSize() {
+		return pooledBuffersPerSize;
+	}
+
+	public void setPooledBuffersPerSize(int pooledBuffersPerSize) {
+		this.pooledBuffersPerSize = pooledBuffersPerSize;
+	}
+
+	public int getPooledDeflaters() {
+		return pooledDeflaters;
+	}
+
+	public void setPooledDeflaters(int pooledDeflaters) {
+		this.pooledDeflaters = pooledDeflaters;
+	}
+
+	public Set<OutboundMessages> getBatchedMessageTypes() {
+		return batchedMessageTypes;
+	}
+
+	public void setBatchedMessageTypes(Set<OutboundMessages> batchedMessageTypes) {
+		this.batchedMessageTypes = batchedMessageTypes;
+	}
+
+	public int getBatchWindow() {
+		return batchWindow;
+	}
+
+	public void setBatchWindow(int batchWindow) {
+		this.batchWindow = batchWindow;
+	}
+
+	public int getMaxBatchLength() {
+		return maxBatchLength;
+	}
+
+	public void setMaxBatchLength(int maxBatchLength) {
+		this.maxBatchLength = maxBatchLength;
+	}
+
+	public Map<OutboundMessages, MessagePriority> getMessageTypePriorities() {
+		return messageTypePriorities;
+	}
+
+	public void setMessageTypePriorities(Map<OutboundMessages, MessagePriority> messageTypePriorities) {
+		this.messageTypePriorities = messageTypePriorities;
+	}
+
+	public Map<OutboundMessages, MessageChannel> getMessageTypeChannels() {
+		return messageTypeChannels;
+	}
+
+	public void setMessageTypeChannels(Map<OutboundMessages, MessageChannel> messageTypeChannels) {
+		this.messageTypeChannels = messageTypeChannels;
+	}
+
+	public Map<MessageChannel, Integer> getChannelWeights() {
+		return channelWeights;
+	}
+
+	public void setChannelWeights(Map<MessageChannel, Integer> channelWeights) {
+		this.channelWeights = channelWeights;
+	}
+
+	public int getMaxFragmentSize() {
+		return maxFragmentSize;
+	}
+
+	public void setMaxFragmentSize(int maxFragmentSize) {
+		this.maxFragmentSize = maxFragmentSize;
+	}
+
+	public int getFileChunkSize() {
+		return fileChunkSize;
+	}
+
+	public void setFileChunkSize(int fileChunkSize) {
+		this.fileChunkSize = fileChunkSize;
+	}
+
+	public boolean isFlowControlEnabled() {
+		return flowControlEnabled;
+	}
+
+	public void setFlowControlEnabled(boolean flowControlEnabled) {
+		this.flowControlEnabled = flowControlEnabled;
+	}
+
+	public long getMaxCreditWait() {
+		return maxCreditWait;
+	}
+
+	public void setMaxCreditWait(long maxCreditWait) {
+		this.maxCreditWait = maxCreditWait;
+	}
+
+	public int getKeyframeInterval() {
+		return keyframeInterval;
+	}
+
+	public void setKeyframeInterval(int keyframeInterval) {
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	public boolean isAdaptiveCompression() {
+		return adaptiveCompression;
+	}
+
+	public void setAdaptiveCompression(boolean adaptiveCompression) {
+		this.adaptiveCompression = adaptiveCompression;
+	}
+
+	public double getMinCompressionSaving() {
+		return minCompressionSaving;
+	}
+
+	public void setMinCompressionSaving(double minCompressionSaving) {
+		this.minCompressionSaving = minCompressionSaving;
+	}
+
+	public int getCompressionSampleInterval() {
+		return compressionSampleInterval;
+	}
+
+	public void setCompressionSampleInterval(int compressionSampleInterval) {
+		this.compressionSampleInterval = compressionSampleInterval;
+	}
+
+	public boolean isBandwidthAwareCompression() {
+		return bandwidthAwareCompression;
+	}
+
+	public void setBandwidthAwareCompression(boolean bandwidthAwareCompression) {
+		this.bandwidthAwareCompression = bandwidthAwareCompression;
+	}
+
+	public Resource getDictionary() {
+		return dictionary;
+	}
+
+	public void setDictionary(Resource dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	public int getDictionaryVersion() {
+		return dictionaryVersion;
+	}
+
+	public void setDictionaryVersion(int dictionaryVersion) {
+		this.dictionaryVersion = dictionaryVersion;
+	}
+
+	public int getMinMessageLengthForDictionaryCompression() {
+		return minMessageLengthForDictionaryCompression;
+	}
+
+	public void setMinMessageLengthForDictionaryCompression(int minMessageLengthForDictionaryCompression) {
+		this.minMessageLengthForDictionaryCompression = minMessageLengthForDictionaryCompression;
+	}
+
+	public List<String> getPreferredCodecs() {
+		return preferredCodecs;
+	}
+
+	public void setPreferredCodecs(List<String> preferredCodecs) {
+		this.preferredCodecs = preferredCodecs;
+	}
+
+	public Map<OutboundMessages, String> getMessageTypeCodecs() {
+		return messageTypeCodecs;
+	}
+
+	public void setMessageTypeCodecs(Map<OutboundMessages, String> messageTypeCodecs) {
+		this.messageTypeCodecs = messageTypeCodecs;
+	}
+
+	public int getSenderThreads() {
+		return senderThreads;
+	}
+
+	public void setSenderThreads(int senderThreads) {
+		this.senderThreads = senderThreads;
+	}
+
+	private static class SenderThreadFactory implements ThreadFactory {
+
+		private final String namePrefix;
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		public SenderThreadFactory(String namePrefix) {
+			this.namePrefix = namePrefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 }
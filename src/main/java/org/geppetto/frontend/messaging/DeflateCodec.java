@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Raw deflate, without the gzip header and trailer, at a configurable compression level.
+ */
+public class DeflateCodec implements CompressionCodec
+{
+
+	public static final String NAME = "deflate";
+
+	public static final byte ID = 1;
+
+	private final int level;
+
+	private final DeflaterPool deflaters;
+
+	/**
+	 * @param level
+	 *            the deflate compression level, from 0 to 9 or -1 for the default level
+	 */
+	public DeflateCodec(int level)
+	{
+		this(level, new DeflaterPool());
+	}
+
+	/**
+	 * @param level
+	 *            the deflate compression level, from 0 to 9 or -1 for the default level
+	 * @param deflaters
+	 *            the pool the deflaters are borrowed from
+	 */
+	public DeflateCodec(int level, DeflaterPool deflaters)
+	{
+		this.level = level;
+		this.deflaters = deflaters;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public byte getId()
+	{
+		return ID;
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out) throws IOException
+	{
+		return compress(out, level);
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out, int level) throws IOException
+	{
+		return new PooledDeflaterOutputStream(out, deflaters, level, true);
+	}
+
+	@Override
+	public boolean hasLevels()
+	{
+		return true;
+	}
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
+
+/**
+ * A pool of {@link Deflater}s by compression level and format, so that the native memory of a deflater is allocated once and reused rather than for every message.
+ *
+ * A borrowed deflater is given back with {@link #release(Deflater, int, boolean)} once its output is finished, it is reset and kept for the next message unless the pool already holds
+ * <code>maxIdle</code> deflaters of the same kind, in which case it is ended.
+ */
+public class DeflaterPool
+{
+
+	public static final int DEFAULT_MAX_IDLE = 16;
+
+	private final int maxIdle;
+
+	/**
+	 * Idle deflaters, by kind, see {@link #key(int, boolean)}.
+	 */
+	private final ConcurrentMap<Integer, BlockingQueue<Deflater>> idle = new ConcurrentHashMap<>();
+
+	public DeflaterPool()
+	{
+		this(DEFAULT_MAX_IDLE);
+	}
+
+	/**
+	 * @param maxIdle
+	 *            the number of idle deflaters kept for each level and format
+	 */
+	public DeflaterPool(int maxIdle)
+	{
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @param level
+	 *            the compression level, from 0 to 9 or -1 for the default level
+	 * @param nowrap
+	 *            true for raw deflate data, without the zlib header
+	 */
+	public Deflater borrow(int level, boolean nowrap)
+	{
+		Deflater deflater = getIdle(level, nowrap).poll();
+		return deflater != null ? deflater : new Deflater(level, nowrap);
+	}
+
+	/**
+	 * Give back a deflater borrowed with the same level and format. The caller must not use it any more.
+	 */
+	public void release(Deflater deflater, int level, boolean nowrap)
+	{
+		deflater.reset();
+		if(!getIdle(level, nowrap).offer(deflater))
+		{
+			deflater.end();
+		}
+	}
+
+	private BlockingQueue<Deflater> getIdle(int level, boolean nowrap)
+	{
+		Integer key = key(level, nowrap);
+		BlockingQueue<Deflater> deflaters = idle.get(key);
+		if(deflaters == null)
+		{
+			BlockingQueue<Deflater> created = new ArrayBlockingQueue<>(maxIdle);
+			deflaters = idle.putIfAbsent(key, created);
+			if(deflaters == null)
+			{
+				deflaters = created;
+			}
+		}
+		return deflaters;
+	}
+
+	private static Integer key(int level, boolean nowrap)
+	{
+		return (level + 1) * 2 + (nowrap ? 1 : 0);
+	}
+}
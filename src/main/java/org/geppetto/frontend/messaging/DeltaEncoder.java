@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.geppetto.frontend.messages.OutboundMessages;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Encodes successive updates of the same type and scope as the differences from the previous update, for one connection.
+ *
+ * Each encoded update is a JSON object with the type of the original message, the key identifying its type and scope, a sequence number, whether it is a keyframe, and the delta. A keyframe
+ * carries the whole update. Otherwise the delta holds the members that changed: a member that is an object on both sides is encoded as its own delta, any other changed member is sent whole, and
+ * the names of the removed members are listed under {@link #REMOVED}.
+ *
+ * A keyframe is sent for the first update of a scope, every <code>keyframeInterval</code> updates, and when one is requested, e.g. by a client that missed an update.
+ */
+public class DeltaEncoder
+{
+
+	/**
+	 * Name of the member listing, in a delta object, the members removed from the corresponding object.
+	 */
+	public static final String REMOVED = "__removed__";
+
+	private final int keyframeInterval;
+
+	private final Map<String, ScopeState> scopes = new HashMap<>();
+
+	// null members are part of the updates
+	private final Gson gson = new GsonBuilder().serializeNulls().create();
+
+	/**
+	 * @param keyframeInterval
+	 *            the number of updates between two keyframes
+	 */
+	public DeltaEncoder(int keyframeInterval)
+	{
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	/**
+	 * @param type
+	 * @param scope
+	 * @param update
+	 *            the update, JSON
+	 * @return the encoded update
+	 */
+	public synchronized String encode(OutboundMessages type, String scope, String update)
+	{
+		String key = type + "/" + scope;
+		ScopeState state = scopes.get(key);
+		if(state == null)
+		{
+			state = new ScopeState();
+			scopes.put(key, state);
+		}
+
+		JsonElement current = new JsonParser().parse(update);
+		boolean keyframe = state.last == null || state.keyframeRequested || state.sinceKeyframe >= keyframeInterval || !current.isJsonObject() || !state.last.isJsonObject();
+
+		JsonElement delta;
+		if(keyframe)
+		{
+			delta = current;
+			state.keyframeRequested = false;
+			state.sinceKeyframe = 0;
+		}
+		else
+		{
+			delta = diff(state.last.getAsJsonObject(), current.getAsJsonObject());
+			state.sinceKeyframe++;
+		}
+		state.last = current;
+		state.sequence++;
+
+		JsonObject encoded = new JsonObject();
+		encoded.addProperty("type", type.toString());
+		encoded.addProperty("key", key);
+		encoded.addProperty("seq", state.sequence);
+		encoded.addProperty("keyframe", keyframe);
+		encoded.add("delta", delta);
+		return gson.toJson(encoded);
+	}
+
+	/**
+	 * Make the next update of the given key a keyframe.
+	 *
+	 * @param key
+	 *            the key sent with the updates
+	 */
+	public synchronized void requestKeyframe(String key)
+	{
+		ScopeState state = scopes.get(key);
+		if(state != null)
+		{
+			state.keyframeRequested = true;
+		}
+	}
+
+	/**
+	 * Forget the last updates of a scope, of every type, e.g. of a project that was closed. The next update of the scope is a keyframe.
+	 *
+	 * @param scope
+	 */
+	public synchronized void removeScope(String scope)
+	{
+		Iterator<Map.Entry<String, ScopeState>> iterator = scopes.entrySet().iterator();
+		while(iterator.hasNext())
+		{
+			String key = iterator.next().getKey();
+			// the type never holds a slash, the scope may
+			if(key.substring(key.indexOf('/') + 1).equals(scope))
+			{
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Make the next update of every scope a keyframe, e.g. after updates were discarded.
+	 */
+	public synchronized void requestKeyframes()
+	{
+		for(ScopeState state : scopes.values())
+		{
+			state.keyframeRequested = true;
+		}
+	}
+
+	private JsonObject diff(JsonObject previous, JsonObject current)
+	{
+		JsonObject delta = new JsonObject();
+		for(Map.Entry<String, JsonElement> member : current.entrySet())
+		{
+			JsonElement before = previous.get(member.getKey());
+			JsonElement after = member.getValue();
+			if(before != null && before.isJsonObject() && after.isJsonObject())
+			{
+				JsonObject memberDelta = diff(before.getAsJsonObject(), after.getAsJsonObject());
+				if(!memberDelta.entrySet().isEmpty())
+				{
+					delta.add(member.getKey(), memberDelta);
+				}
+			}
+			else if(before == null || !same(before, after))
+			{
+				delta.add(member.getKey(), after);
+			}
+		}
+
+		JsonArray removed = null;
+		for(Map.Entry<String, JsonElement> member : previous.entrySet())
+		{
+			if(!current.has(member.getKey()))
+			{
+				if(removed == null)
+				{
+					removed = new JsonArray();
+				}
+				removed.add(new JsonPrimitive(member.getKey()));
+			}
+		}
+		if(removed != null)
+		{
+			delta.add(REMOVED, removed);
+		}
+		return delta;
+	}
+
+	private boolean same(JsonElement a, JsonElement b)
+	{
+		if(a.isJsonObject() && b.isJsonObject())
+		{
+			JsonObject objectA = a.getAsJsonObject();
+			JsonObject objectB = b.getAsJsonObject();
+			if(objectA.entrySet().size() != objectB.entrySet().size())
+			{
+				return false;
+			}
+			for(Map.Entry<String, JsonElement> member : objectA.entrySet())
+			{
+				JsonElement other = objectB.get(member.getKey());
+				if(other == null || !same(member.getValue(), other))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		if(a.isJsonArray() && b.isJsonArray())
+		{
+			JsonArray arrayA = a.getAsJsonArray();
+			JsonArray arrayB = b.getAsJsonArray();
+			if(arrayA.size() != arrayB.size())
+			{
+				return false;
+			}
+			Iterator<JsonElement> other = arrayB.iterator();
+			for(JsonElement element : arrayA)
+			{
+				if(!same(element, other.next()))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		return a.equals(b);
+	}
+
+	private static class ScopeState
+	{
+		JsonElement last;
+		long sequence;
+		int sinceKeyframe;
+		boolean keyframeRequested;
+	}
+}
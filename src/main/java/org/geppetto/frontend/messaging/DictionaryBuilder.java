@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Builds the preset dictionary of {@link DictionaryDeflateCodec} from recorded messages.
+ *
+ * Every line of the input files is a message as sent on the WebSocket (the text of a text frame, or the uncompressed JSON of a binary one). The dictionary is made of the segments of the messages
+ * that cover the most fragments shared by many messages. Fragments are counted once per message, so a single large message cannot fill the dictionary with its own repetitions. The segments are
+ * picked greedily, each one scored on the fragments not covered by the segments picked before it, and the best ones are written last, where deflate reaches them with the shortest distances.
+ *
+ * Usage: <code>DictionaryBuilder output-file dictionary-length input-file-or-directory...</code>
+ *
+ * A new dictionary must be published with a new version, in <code>app-config.xml</code> and in <code>GEPPETTO.MessageSocket.js</code>, since clients holding the previous one can't decode messages
+ * compressed with it.
+ */
+public class DictionaryBuilder
+{
+
+	/**
+	 * Length of the fragments counted across messages.
+	 */
+	private static final int FRAGMENT_LENGTH = 8;
+
+	/**
+	 * Length of the segments the dictionary is made of.
+	 */
+	private static final int SEGMENT_LENGTH = 48;
+
+	/**
+	 * Distance between the starts of the candidate segments of a message.
+	 */
+	private static final int SEGMENT_STRIDE = 8;
+
+	/**
+	 * Input beyond this many characters is ignored, the candidates of a larger corpus would not fit in memory.
+	 */
+	private static final int MAX_CORPUS_LENGTH = 16 * 1024 * 1024;
+
+	private final List<String> samples = new ArrayList<>();
+
+	private int corpusLength = 0;
+
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length < 3)
+		{
+			System.err.println("Usage: DictionaryBuilder output-file dictionary-length input-file-or-directory...");
+			System.exit(1);
+		}
+
+		int length = Integer.parseInt(args[1]);
+		if(length <= 0 || length > DictionaryDeflateCodec.MAX_DICTIONARY_LENGTH)
+		{
+			System.err.println("The dictionary length must be between 1 and " + DictionaryDeflateCodec.MAX_DICTIONARY_LENGTH);
+			System.exit(1);
+		}
+
+		DictionaryBuilder builder = new DictionaryBuilder();
+		for(int i = 2; i < args.length; i++)
+		{
+			builder.addSamples(new File(args[i]));
+		}
+
+		byte[] dictionary = builder.build(length);
+		Files.write(new File(args[0]).toPath(), dictionary);
+		System.out.println(String.format("Wrote a dictionary of %d bytes built from %d messages to %s", dictionary.length, builder.samples.size(), args[0]));
+	}
+
+	/**
+	 * Add the messages of a file, one per line, or of all the files of a directory.
+	 */
+	public void addSamples(File file) throws IOException
+	{
+		if(file.isDirectory())
+		{
+			File[] children = file.listFiles();
+			if(children != null)
+			{
+				for(File child : children)
+				{
+					addSamples(child);
+				}
+			}
+			return;
+		}
+
+		try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+		{
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				addSample(line);
+			}
+		}
+	}
+
+	public void addSample(String message)
+	{
+		if(message.length() < FRAGMENT_LENGTH || corpusLength >= MAX_CORPUS_LENGTH)
+		{
+			return;
+		}
+		samples.add(message);
+		corpusLength += message.length();
+	}
+
+	/**
+	 * @param length
+	 *            the maximum length of the dictionary, in bytes
+	 * @return the dictionary, UTF-8 encoded
+	 */
+	public byte[] build(int length)
+	{
+		Map<String, Integer> frequencies = countFragments();
+
+		// candidates are scored lazily: a candidate whose score dropped since it was queued goes back in the queue
+		PriorityQueue<Segment> candidates = new PriorityQueue<>();
+		Set<String> queued = new HashSet<>();
+		Set<String> covered = new HashSet<>();
+		for(String sample : samples)
+		{
+			for(int start = 0; start + FRAGMENT_LENGTH <= sample.length(); start += SEGMENT_STRIDE)
+			{
+				String text = sample.substring(start, Math.min(start + SEGMENT_LENGTH, sample.length()));
+				if(queued.add(text))
+				{
+					Segment segment = new Segment(text, score(text, frequencies, covered));
+					if(segment.score > 0)
+					{
+						candidates.add(segment);
+					}
+				}
+			}
+		}
+
+		List<byte[]> selected = new ArrayList<>();
+		int dictionaryLength = 0;
+		while(!candidates.isEmpty() && dictionaryLength < length)
+		{
+			Segment best = candidates.poll();
+			int score = score(best.text, frequencies, covered);
+			if(score <= 0)
+			{
+				continue;
+			}
+			if(score < best.score && !candidates.isEmpty() && score < candidates.peek().score)
+			{
+				best.score = score;
+				candidates.add(best);
+				continue;
+			}
+
+			byte[] bytes = best.text.getBytes(StandardCharsets.UTF_8);
+			if(dictionaryLength + bytes.length > length)
+			{
+				continue;
+			}
+			selected.add(bytes);
+			dictionaryLength += bytes.length;
+			for(int i = 0; i + FRAGMENT_LENGTH <= best.text.length(); i++)
+			{
+				covered.add(best.text.substring(i, i + FRAGMENT_LENGTH));
+			}
+		}
+
+		// the best segments go last, closest to the data
+		Collections.reverse(selected);
+		byte[] dictionary = new byte[dictionaryLength];
+		int position = 0;
+		for(byte[] bytes : selected)
+		{
+			System.arraycopy(bytes, 0, dictionary, position, bytes.length);
+			position += bytes.length;
+		}
+		return dictionary;
+	}
+
+	/**
+	 * @return for each fragment, the number of messages it appears in
+	 */
+	private Map<String, Integer> countFragments()
+	{
+		Map<String, Integer> frequencies = new HashMap<>();
+		Set<String> fragments = new HashSet<>();
+		for(String sample : samples)
+		{
+			fragments.clear();
+			for(int i = 0; i + FRAGMENT_LENGTH <= sample.length(); i++)
+			{
+				fragments.add(sample.substring(i, i + FRAGMENT_LENGTH));
+			}
+			for(String fragment : fragments)
+			{
+				Integer frequency = frequencies.get(fragment);
+				frequencies.put(fragment, frequency == null ? 1 : frequency + 1);
+			}
+		}
+		return frequencies;
+	}
+
+	/**
+	 * The score of a segment is the number of messages each of its fragments appears in, summed over the fragments not yet covered. Fragments found in a single message are not worth a place in
+	 * the dictionary.
+	 */
+	private int score(String text, Map<String, Integer> frequencies, Set<String> covered)
+	{
+		int score = 0;
+		Set<String> counted = new HashSet<>();
+		for(int i = 0; i + FRAGMENT_LENGTH <= text.length(); i++)
+		{
+			String fragment = text.substring(i, i + FRAGMENT_LENGTH);
+			Integer frequency = frequencies.get(fragment);
+			if(frequency != null && frequency > 1 && !covered.contains(fragment) && counted.add(fragment))
+			{
+				score += frequency;
+			}
+		}
+		return score;
+	}
+
+	private static class Segment implements Comparable<Segment>
+	{
+
+		private final String text;
+		private int score;
+
+		public Segment(String text, int score)
+		{
+			this.text = text;
+			this.score = score;
+		}
+
+		@Override
+		public int compareTo(Segment other)
+		{
+			// highest score first
+			return Integer.compare(other.score, score);
+		}
+	}
+}
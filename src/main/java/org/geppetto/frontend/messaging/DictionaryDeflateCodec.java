@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Raw deflate with a preset dictionary of the strings that recur in Geppetto messages (JSON keys, node types, instance path prefixes). The compressor can refer to the dictionary from the first
+ * byte, so messages too short to repeat much of themselves still compress well.
+ *
+ * The dictionary is versioned, a client advertises the version it holds in the codec name, e.g. <code>deflate-dict-1</code>, and the version is written before the compressed data. Dictionaries
+ * are built from recorded messages with {@link DictionaryBuilder}.
+ */
+public class DictionaryDeflateCodec implements CompressionCodec
+{
+
+	public static final String NAME_PREFIX = "deflate-dict-";
+
+	public static final byte ID = 3;
+
+	/**
+	 * Deflate only looks this far back, a longer dictionary would be partly out of reach.
+	 */
+	public static final int MAX_DICTIONARY_LENGTH = 32768;
+
+	private final int version;
+
+	private final byte[] dictionary;
+
+	private final int level;
+
+	private final DeflaterPool deflaters;
+
+	/**
+	 * @param version
+	 *            the version of the dictionary, from 0 to 255
+	 * @param dictionary
+	 * @param level
+	 *            the deflate compression level, from 0 to 9 or -1 for the default level
+	 */
+	public DictionaryDeflateCodec(int version, byte[] dictionary, int level)
+	{
+		this(version, dictionary, level, new DeflaterPool());
+	}
+
+	/**
+	 * @param version
+	 *            the version of the dictionary, from 0 to 255
+	 * @param dictionary
+	 * @param level
+	 *            the deflate compression level, from 0 to 9 or -1 for the default level
+	 * @param deflaters
+	 *            the pool the deflaters are borrowed from
+	 */
+	public DictionaryDeflateCodec(int version, byte[] dictionary, int level, DeflaterPool deflaters)
+	{
+		if(version < 0 || version > 255)
+		{
+			throw new IllegalArgumentException("Dictionary version must fit in a byte: " + version);
+		}
+		if(dictionary.length > MAX_DICTIONARY_LENGTH)
+		{
+			throw new IllegalArgumentException("Dictionary longer than " + MAX_DICTIONARY_LENGTH + " bytes: " + dictionary.length);
+		}
+		this.version = version;
+		this.dictionary = dictionary;
+		this.level = level;
+		this.deflaters = deflaters;
+	}
+
+	public static String getName(int version)
+	{
+		return NAME_PREFIX + version;
+	}
+
+	@Override
+	public String getName()
+	{
+		return getName(version);
+	}
+
+	@Override
+	public byte getId()
+	{
+		return ID;
+	}
+
+	public int getVersion()
+	{
+		return version;
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out) throws IOException
+	{
+		return compress(out, level);
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out, int level) throws IOException
+	{
+		out.write(version);
+
+		PooledDeflaterOutputStream deflaterStream = new PooledDeflaterOutputStream(out, deflaters, level, true);
+		deflaterStream.setDictionary(dictionary);
+		return deflaterStream;
+	}
+
+	@Override
+	public boolean hasLevels()
+	{
+		return true;
+	}
+}
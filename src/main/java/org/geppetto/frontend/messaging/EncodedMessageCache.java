@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import org.geppetto.frontend.messages.OutboundMessages;
+
+/**
+ * A short lived cache of compressed messages, shared by the senders of all the connections, so that a payload sent to many clients, e.g. a public project opened by a whole class, is compressed
+ * once.
+ *
+ * Entries are found by the content of the payload along with its type, codec and compression level. The payload is compared in full, which is quick when it is the same string, so different
+ * payloads with the same hash code never share an entry. When several senders miss the same entry at once, one of them encodes the message while the others wait for the result.
+ *
+ * At most <code>maxEntries</code> entries are kept, the least recently used is evicted first, and an entry expires <code>timeToLive</code> milliseconds after it was encoded. The payloads are held
+ * by the entries, so the cache is meant for a few recent messages.
+ */
+public class EncodedMessageCache
+{
+
+	private final int maxEntries;
+
+	private final long timeToLive;
+
+	private final Map<Key, CachedFrame> entries;
+
+	/**
+	 * @param maxEntries
+	 * @param timeToLive
+	 *            in milliseconds
+	 */
+	public EncodedMessageCache(final int maxEntries, long timeToLive)
+	{
+		this.maxEntries = maxEntries;
+		this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLive);
+		this.entries = new LinkedHashMap<Key, CachedFrame>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CachedFrame> eldest)
+			{
+				return size() > EncodedMessageCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @return the encoded message, from the cache or from the encoder if not cached
+	 * @throws IOException
+	 *             if the encoder failed
+	 */
+	public byte[] get(OutboundMessages type, String codec, int level, String update, Callable<byte[]> encoder) throws IOException
+	{
+		Key key = new Key(type, codec, level, update);
+		CachedFrame entry;
+		boolean encode = false;
+
+		synchronized(entries)
+		{
+			long now = System.nanoTime();
+			removeExpired(now);
+			entry = entries.get(key);
+			if(entry == null)
+			{
+				entry = new CachedFrame(new FutureTask<>(encoder), now);
+				entries.put(key, entry);
+				encode = true;
+			}
+		}
+
+		if(encode)
+		{
+			entry.frame.run();
+		}
+
+		try
+		{
+			return entry.frame.get();
+		}
+		catch(ExecutionException e)
+		{
+			synchronized(entries)
+			{
+				if(entries.get(key) == entry)
+				{
+					entries.remove(key);
+				}
+			}
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a message to be encoded", e);
+		}
+	}
+
+	private void removeExpired(long now)
+	{
+		Iterator<CachedFrame> iterator = entries.values().iterator();
+		while(iterator.hasNext())
+		{
+			if(now - iterator.next().created > timeToLive)
+			{
+				iterator.remove();
+			}
+		}
+	}
+
+	private static class Key
+	{
+
+		private final OutboundMessages type;
+		private final String codec;
+		private final int level;
+		private final String update;
+
+		Key(OutboundMessages type, String codec, int level, String update)
+		{
+			this.type = type;
+			this.codec = codec;
+			this.level = level;
+			this.update = update;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return ((type.hashCode() * 31 + codec.hashCode()) * 31 + level) * 31 + update.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(!(obj instanceof Key))
+			{
+				return false;
+			}
+			Key other = (Key) obj;
+			return type == other.type && level == other.level && codec.equals(other.codec) && update.equals(other.update);
+		}
+	}
+
+	private static class CachedFrame
+	{
+
+		private final FutureTask<byte[]> frame;
+		private final long created;
+
+		CachedFrame(FutureTask<byte[]> frame, long created)
+		{
+			this.frame = frame;
+			this.created = created;
+		}
+	}
+}
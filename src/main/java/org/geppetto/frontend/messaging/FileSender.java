@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Sends files to a client, at {@link MessagePriority#LOW} on {@link MessageChannel#FILES}.
+ *
+ * A client that supports it receives a file in chunks (see {@link ChunkedFileTransfer}): the next chunk is sent when the client acknowledges the previous one, telling how many bytes of the file it
+ * has, so that a chunk lost with a connection is sent again from there.
+ *
+ * Other clients receive the file in one binary message starting with a 1 byte, the length of the file name on one byte and the name, followed by the content of the file. The content is streamed
+ * from the file into the WebSocket, whatever its size, and such a message is not kept for replay.
+ */
+public class FileSender
+{
+
+	private final FrameWriter frameWriter;
+
+	/**
+	 * The size of the chunks files are sent in.
+	 */
+	private final int chunkSize;
+
+	/**
+	 * True once the client declared it can receive files in chunks.
+	 */
+	private volatile boolean chunkedFilesSupported = false;
+
+	private final Map<Integer, ChunkedFileTransfer> transfers = new HashMap<>();
+
+	private final AtomicInteger nextTransferId = new AtomicInteger();
+
+	private static final Log logger = LogFactory.getLog(FileSender.class);
+
+	/**
+	 * First byte of a binary frame holding a whole file.
+	 */
+	private static final int FILE = 1;
+
+	public FileSender(FrameWriter frameWriter, int chunkSize)
+	{
+		this.frameWriter = frameWriter;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Send a file, or its first chunk.
+	 */
+	public void send(Path path) throws IOException
+	{
+		if(chunkedFilesSupported)
+		{
+			ChunkedFileTransfer transfer = new ChunkedFileTransfer(nextTransferId.incrementAndGet(), path, chunkSize);
+			synchronized(transfers)
+			{
+				transfers.put(transfer.getId(), transfer);
+			}
+			logger.info(String.format("Sending file %s of %dKB in chunks of %dKB", path, transfer.getSize() / 1024, chunkSize / 1024));
+			sendChunk(transfer, transfer.getPosition());
+			return;
+		}
+
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			long startTime = System.currentTimeMillis();
+
+			byte[] name = path.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+			ByteBuffer header = ByteBuffer.allocate(1 + 1 + name.length);
+			header.put((byte) FILE);
+			// the client needs the length of the name to find where the content starts
+			header.put((byte) name.length);
+			header.put(name);
+			header.flip();
+
+			long size = channel.size();
+			frameWriter.writeBinary(header, channel, size, MessagePriority.LOW, MessageChannel.FILES);
+
+			logger.info((System.currentTimeMillis() - startTime) + "ms were spent sending a file of " + size / 1024 + "KB to the client");
+		}
+	}
+
+	/**
+	 * The client received a chunk of a file, send the next one.
+	 * 
+	 * @param transferId
+	 * @param received
+	 *            the number of bytes of the file the client has, null to carry on after the last chunk sent
+	 */
+	public void acknowledge(int transferId, Long received) throws IOException
+	{
+		ChunkedFileTransfer transfer;
+		synchronized(transfers)
+		{
+			transfer = transfers.get(transferId);
+		}
+		if(transfer == null)
+		{
+			logger.debug("Acknowledged chunk of unknown file transfer " + transferId);
+			return;
+		}
+		// the transfer paces itself with the acknowledgements, the chunk is sent right away rather than queued
+		sendChunk(transfer, received);
+	}
+
+	/**
+	 * @param from
+	 *            where in the file the chunk starts, null for after the last chunk sent
+	 */
+	private void sendChunk(ChunkedFileTransfer transfer, Long from) throws IOException
+	{
+		try
+		{
+			long startTime = System.currentTimeMillis();
+			synchronized(transfer)
+			{
+				if(from != null && from != transfer.getPosition())
+				{
+					// a chunk was lost with the connection, or was sent again and the client has it already
+					logger.debug(String.format("Client has %d bytes of file %s, sent up to %d", from, transfer.getPath(), transfer.getPosition()));
+					transfer.seek(from);
+				}
+				frameWriter.writeBinary(transfer.nextChunk(), MessagePriority.LOW, MessageChannel.FILES);
+			}
+
+			logger.debug(String.format("Sent chunk of file %s, %d of %d bytes, took %d ms", transfer.getPath(), transfer.getPosition(), transfer.getSize(), System.currentTimeMillis() - startTime));
+
+			if(transfer.isComplete())
+			{
+				end(transfer);
+				logger.info("Sent file " + transfer.getPath());
+			}
+		}
+		catch(IOException | RuntimeException e)
+		{
+			end(transfer);
+			throw e;
+		}
+	}
+
+	private void end(ChunkedFileTransfer transfer)
+	{
+		synchronized(transfers)
+		{
+			transfers.remove(transfer.getId());
+		}
+		try
+		{
+			transfer.close();
+		}
+		catch(IOException e)
+		{
+			logger.warn("Failed to close file " + transfer.getPath(), e);
+		}
+	}
+
+	/**
+	 * @return the number of files being sent in chunks
+	 */
+	public int getTransferCount()
+	{
+		synchronized(transfers)
+		{
+			return transfers.size();
+		}
+	}
+
+	/**
+	 * Close the files being sent.
+	 */
+	public void shutdown()
+	{
+		List<ChunkedFileTransfer> pending;
+		synchronized(transfers)
+		{
+			pending = new ArrayList<>(transfers.values());
+		}
+		for(ChunkedFileTransfer transfer : pending)
+		{
+			end(transfer);
+		}
+	}
+
+	public void setChunkedFilesSupported(boolean supported)
+	{
+		this.chunkedFilesSupported = supported;
+	}
+}
@@ -0,0 +1,538 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.catalina.websocket.WsOutbound;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geppetto.frontend.messages.OutboundMessages;
+import org.geppetto.frontend.messages.TransportMessageWriter;
+
+/**
+ * Writes the frames of a sender to its WebSocket.
+ *
+ * Writes are ordered by the {@link MessagePriority} of their message type, configured in messageTypePriorities, and among writers of the same priority the {@link MessageChannel}s of the message
+ * types take turns, weighted by channelWeights, see {@link PriorityWriteLock}. A message being written is not interrupted, so binary messages longer than <code>maxFragmentSize</code> are sent in
+ * fragments, to clients that support it, and a reply only waits for the fragment being written.
+ *
+ * Every frame written uses flow control credit and the time writes take gives an estimate of the bandwidth of the connection.
+ *
+ * With a {@link ReplayBuffer} every frame written is also kept there. When the connection is lost the writer is detached: it goes on as before but the frames are only kept, until it is attached to
+ * the connection the client opens again and writes the frames the client missed. The frames are then numbered from 1, so that the client knows which one it got last: text messages carry the
+ * number in their envelope and binary frames are sent in a frame starting with a 7 byte and the number on 4 bytes (little endian), followed by the frame itself.
+ */
+public class FrameWriter
+{
+
+	/**
+	 * The outbound of the connection, null while the writer is detached from a lost connection. Only changed holding the write lock.
+	 */
+	private volatile WsOutbound wsOutbound;
+
+	private final PriorityWriteLock writeLock;
+
+	private final Map<OutboundMessages, MessagePriority> messageTypePriorities;
+
+	private final Map<OutboundMessages, MessageChannel> messageTypeChannels;
+
+	private final BufferPool bufferPool;
+
+	private final CreditFlowControl creditFlowControl;
+
+	/**
+	 * The frames written lately, null if sessions can't be resumed.
+	 */
+	private final ReplayBuffer replayBuffer;
+
+	/**
+	 * Number of the last frame written when sessions can be resumed. Only changed holding the write lock.
+	 */
+	private long sequence = 0;
+
+	/**
+	 * Binary messages longer than this are sent in fragments, to clients that support it.
+	 */
+	private int maxFragmentSize = 64 * 1024;
+
+	/**
+	 * True once the client declared it can join fragmented messages.
+	 */
+	private volatile boolean fragmentsSupported = false;
+
+	private final AtomicInteger nextFragmentedMessageId = new AtomicInteger();
+
+	/**
+	 * Moving average of the bandwidth of the connection, in bytes per nanosecond, 0 until measured.
+	 */
+	private volatile double bandwidth = 0;
+
+	private static final Log logger = LogFactory.getLog(FrameWriter.class);
+
+	/**
+	 * First byte of a binary frame holding a fragment of a larger binary frame.
+	 */
+	private static final int FRAGMENT = 5;
+
+	private static final int FRAGMENT_HEADER_LENGTH = 1 + 4 + 1;
+
+	/**
+	 * First byte of a binary frame holding the number of the frame it is followed by.
+	 */
+	private static final int SEQUENCED = 7;
+
+	private static final int SEQUENCE_HEADER_LENGTH = 1 + 4;
+
+	/**
+	 * The size of the reads of streamed content.
+	 */
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Writes shorter than this mostly measure the socket buffer rather than the connection, they are not used to estimate the bandwidth.
+	 */
+	private static final int MIN_BANDWIDTH_SAMPLE_LENGTH = 64 * 1024;
+
+	/**
+	 * Weight of a new sample in the moving average of the bandwidth.
+	 */
+	private static final double BANDWIDTH_WEIGHT = 0.2;
+
+	/**
+	 * @param wsOutbound
+	 * @param messageTypePriorities
+	 *            the priority of message types, {@link MessagePriority#NORMAL} for the types not listed
+	 * @param messageTypeChannels
+	 *            the channel of message types, {@link MessageChannel#CONTROL} for the types not listed
+	 * @param channelWeights
+	 *            the weights of the channels, the default weight of the channel if not listed
+	 * @param bufferPool
+	 *            where the fragments are assembled
+	 * @param creditFlowControl
+	 * @param replayBuffer
+	 *            keeps the frames written, null if sessions can't be resumed
+	 */
+	public FrameWriter(WsOutbound wsOutbound, Map<OutboundMessages, MessagePriority> messageTypePriorities, Map<OutboundMessages, MessageChannel> messageTypeChannels,
+			Map<MessageChannel, Integer> channelWeights, BufferPool bufferPool, CreditFlowControl creditFlowControl, ReplayBuffer replayBuffer)
+	{
+		this.wsOutbound = wsOutbound;
+		this.messageTypePriorities = messageTypePriorities;
+		this.messageTypeChannels = messageTypeChannels;
+		this.writeLock = new PriorityWriteLock(channelWeights);
+		this.bufferPool = bufferPool;
+		this.creditFlowControl = creditFlowControl;
+		this.replayBuffer = replayBuffer;
+	}
+
+	/**
+	 * Write a text message. The message is streamed into the outbound, and kept for replay as it is if sessions can be resumed.
+	 *
+	 * @return the length of the message, in characters, 0 if the writer is detached and the message was only kept for replay
+	 */
+	public long writeText(String requestId, OutboundMessages messageType, String update) throws IOException
+	{
+		long length = 0;
+		// hold the outbound until the last fragment is out, other threads must not write in between
+		writeLock.lock(getPriority(messageType), getChannel(messageType));
+		try
+		{
+			WsOutbound outbound = wsOutbound;
+			long frameSequence = 0;
+			if(replayBuffer != null)
+			{
+				// the message is kept as it is, its envelope is written again if it is replayed
+				frameSequence = ++sequence;
+				replayBuffer.add(frameSequence, requestId, messageType, update);
+			}
+			if(outbound != null)
+			{
+				WsOutboundWriter writer = new WsOutboundWriter(outbound);
+				synchronized(outbound)
+				{
+					long writeStart = System.nanoTime();
+					TransportMessageWriter.write(writer, frameSequence, requestId, messageType, update);
+					writer.close();
+					recordBandwidth(writer.getLength(), System.nanoTime() - writeStart);
+				}
+				length = writer.getLength();
+			}
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+		creditFlowControl.consume(length);
+		return length;
+	}
+
+	/**
+	 * Write a binary message, in fragments if it is long and the client supports it.
+	 *
+	 * @param message
+	 *            the message, starting with its frame header
+	 * @param length
+	 *            the length of the message
+	 */
+	public void writeBinary(byte[] message, int length, OutboundMessages messageType) throws IOException
+	{
+		MessagePriority priority = getPriority(messageType);
+		MessageChannel channel = getChannel(messageType);
+		if(fragmentsSupported && length > maxFragmentSize)
+		{
+			writeFragments(message, length, priority, channel);
+			return;
+		}
+
+		// time the write only, not the wait for other writers
+		writeLock.lock(priority, channel);
+		try
+		{
+			long writeStart = System.nanoTime();
+			if(write(ByteBuffer.wrap(message, 0, length)))
+			{
+				recordBandwidth(length, System.nanoTime() - writeStart);
+			}
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+		creditFlowControl.consume(getFrameLength(length));
+	}
+
+	/**
+	 * Write a binary frame whole, e.g. a chunk of a file.
+	 */
+	public void writeBinary(ByteBuffer frame, MessagePriority priority, MessageChannel channel) throws IOException
+	{
+		int length = frame.remaining();
+		writeLock.lock(priority, channel);
+		try
+		{
+			write(frame);
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+		creditFlowControl.consume(getFrameLength(length));
+	}
+
+	/**
+	 * Write a binary message made of a header followed by the content of a channel, streamed into the outbound rather than read into memory first. The message is too long to be kept for replay,
+	 * a client that loses it can't resume its session.
+	 */
+	public void writeBinary(ByteBuffer header, ReadableByteChannel content, long contentLength, MessagePriority priority, MessageChannel channel) throws IOException
+	{
+		long length = header.remaining() + contentLength;
+		writeLock.lock(priority, channel);
+		try
+		{
+			if(replayBuffer != null)
+			{
+				replayBuffer.skip(++sequence);
+				header = sequence(header, sequence);
+				length += SEQUENCE_HEADER_LENGTH;
+			}
+			WsOutbound outbound = wsOutbound;
+			if(outbound != null)
+			{
+				byte[] array = bufferPool.borrow(STREAM_BUFFER_SIZE);
+				try
+				{
+					synchronized(outbound)
+					{
+						// the outbound sends what it buffered as parts of the one message, the flush ends the message
+						while(header.hasRemaining())
+						{
+							outbound.writeBinaryData(header.get());
+						}
+						ByteBuffer buffer = ByteBuffer.wrap(array, 0, STREAM_BUFFER_SIZE);
+						for(long remaining = contentLength; remaining > 0;)
+						{
+							buffer.clear();
+							buffer.limit((int) Math.min(STREAM_BUFFER_SIZE, remaining));
+							int read = content.read(buffer);
+							if(read < 0)
+							{
+								throw new IOException("Content ended " + remaining + " bytes short of its length of " + contentLength);
+							}
+							for(int i = 0; i < read; i++)
+							{
+								outbound.writeBinaryData(array[i]);
+							}
+							remaining -= read;
+						}
+						outbound.flush();
+					}
+				}
+				finally
+				{
+					bufferPool.release(array);
+				}
+			}
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+		creditFlowControl.consume(length);
+	}
+
+	/**
+	 * Send a binary frame as several fragments, releasing the outbound between them so that messages of a higher priority can go out before the rest of this one. Each fragment is a binary message
+	 * starting with a 5 byte, the id of the fragmented message on 4 bytes (little endian) and a byte set to 1 in the last fragment. The client joins the fragments and reads the result as any other
+	 * binary message.
+	 */
+	private void writeFragments(byte[] message, int messageLength, MessagePriority priority, MessageChannel channel) throws IOException
+	{
+		int id = nextFragmentedMessageId.incrementAndGet();
+		int fragments = 0;
+		long writeNanos = 0;
+
+		// the outbound copies the fragment before the write returns, one array does for all of them
+		byte[] array = bufferPool.borrow(FRAGMENT_HEADER_LENGTH + Math.min(maxFragmentSize, messageLength));
+		try
+		{
+			for(int offset = 0; offset < messageLength; offset += maxFragmentSize)
+			{
+				int length = Math.min(maxFragmentSize, messageLength - offset);
+				boolean last = offset + length == messageLength;
+
+				ByteBuffer fragment = ByteBuffer.wrap(array, 0, FRAGMENT_HEADER_LENGTH + length).order(ByteOrder.LITTLE_ENDIAN);
+				fragment.put((byte) FRAGMENT);
+				fragment.putInt(id);
+				fragment.put((byte) (last ? 1 : 0));
+				fragment.put(message, offset, length);
+				fragment.flip();
+
+				writeLock.lock(priority, channel);
+				try
+				{
+					long writeStart = System.nanoTime();
+					if(write(fragment))
+					{
+						writeNanos += System.nanoTime() - writeStart;
+					}
+				}
+				finally
+				{
+					writeLock.unlock();
+				}
+				creditFlowControl.consume(getFrameLength(fragment.limit()));
+				fragments++;
+			}
+		}
+		finally
+		{
+			bufferPool.release(array);
+		}
+
+		recordBandwidth(messageLength, writeNanos);
+		logger.debug(String.format("Sent message of %d bytes in %d fragments", messageLength, fragments));
+	}
+
+	/**
+	 * Write a binary frame, the caller holds the write lock. The frame is kept for replay if sessions can be resumed.
+	 *
+	 * @return false if the writer is detached and the frame was only kept for replay
+	 */
+	private boolean write(ByteBuffer frame) throws IOException
+	{
+		if(replayBuffer != null)
+		{
+			// the frame has to be copied to be kept, the copy starts with the number of the frame and is the one written
+			frame = sequence(frame, ++sequence);
+			replayBuffer.add(sequence, frame.array());
+		}
+
+		WsOutbound outbound = wsOutbound;
+		if(outbound == null)
+		{
+			return false;
+		}
+		synchronized(outbound)
+		{
+			outbound.writeBinaryMessage(frame);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the length of a binary frame as written, with the number of the frame if sessions can be resumed
+	 */
+	private int getFrameLength(int length)
+	{
+		return replayBuffer != null ? SEQUENCE_HEADER_LENGTH + length : length;
+	}
+
+	/**
+	 * @return a copy of the remaining bytes of a frame, the position of the buffer is left where it is, preceded by the number of the frame
+	 */
+	private static ByteBuffer sequence(ByteBuffer frame, long frameSequence)
+	{
+		ByteBuffer sequenced = ByteBuffer.allocate(SEQUENCE_HEADER_LENGTH + frame.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+		sequenced.put((byte) SEQUENCED);
+		sequenced.putInt((int) frameSequence);
+		sequenced.put(frame.duplicate());
+		sequenced.flip();
+		return sequenced;
+	}
+
+	/**
+	 * Update the estimate of the bandwidth of the connection with the time it took to write a message.
+	 */
+	private void recordBandwidth(long length, long nanos)
+	{
+		if(length < MIN_BANDWIDTH_SAMPLE_LENGTH || nanos <= 0)
+		{
+			return;
+		}
+
+		double sample = (double) length / nanos;
+		double bandwidth = this.bandwidth;
+		this.bandwidth = bandwidth == 0 ? sample : bandwidth + BANDWIDTH_WEIGHT * (sample - bandwidth);
+	}
+
+	/**
+	 * @return the measured bandwidth of the connection, in bytes per nanosecond, 0 until measured
+	 */
+	public double getBandwidth()
+	{
+		return bandwidth;
+	}
+
+	public boolean isResumable()
+	{
+		return replayBuffer != null;
+	}
+
+	/**
+	 * Stop writing and only keep the frames for replay.
+	 */
+	public void detach()
+	{
+		writeLock.lock(MessagePriority.HIGH);
+		try
+		{
+			wsOutbound = null;
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+		logger.info("Frame writer detached, " + replayBuffer.getLastSequence() + " frames written so far");
+	}
+
+	/**
+	 * Continue on a new connection, writing first the frames the client didn't receive.
+	 *
+	 * @param received
+	 *            the number of the last frame the client received
+	 * @return false if some of the frames the client missed aren't kept anymore, in which case the writer stays detached
+	 * @throws IOException
+	 *             if the missed frames could not be written, the writer is attached all the same
+	 */
+	public boolean attach(WsOutbound wsOutbound, long received) throws IOException
+	{
+		writeLock.lock(MessagePriority.HIGH);
+		try
+		{
+			List<ReplayBuffer.Frame> missed = replayBuffer.getFramesAfter(received);
+			if(missed == null)
+			{
+				logger.info(String.format("Can't resume, the client received %d frames and the oldest one kept is past that", received));
+				return false;
+			}
+
+			this.wsOutbound = wsOutbound;
+
+			// nothing else can be written until the client has caught up
+			synchronized(wsOutbound)
+			{
+				for(ReplayBuffer.Frame frame : missed)
+				{
+					if(frame.isText())
+					{
+						WsOutboundWriter writer = new WsOutboundWriter(wsOutbound);
+						TransportMessageWriter.write(writer, frame.getSequence(), frame.getRequestId(), frame.getType(), frame.getUpdate());
+						writer.close();
+					}
+					else
+					{
+						wsOutbound.writeBinaryMessage(ByteBuffer.wrap(frame.getBinary()));
+					}
+				}
+			}
+			logger.info(String.format("Frame writer attached to a new connection, %d frames written again", missed.size()));
+			return true;
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	private MessagePriority getPriority(OutboundMessages messageType)
+	{
+		MessagePriority priority = messageTypePriorities != null ? messageTypePriorities.get(messageType) : null;
+		return priority != null ? priority : MessagePriority.NORMAL;
+	}
+
+	private MessageChannel getChannel(OutboundMessages messageType)
+	{
+		MessageChannel channel = messageTypeChannels != null ? messageTypeChannels.get(messageType) : null;
+		return channel != null ? channel : MessageChannel.CONTROL;
+	}
+
+	public void setFragmentsSupported(boolean supported)
+	{
+		this.fragmentsSupported = supported;
+	}
+
+	public int getMaxFragmentSize()
+	{
+		return maxFragmentSize;
+	}
+
+	public void setMaxFragmentSize(int maxFragmentSize)
+	{
+		this.maxFragmentSize = maxFragmentSize;
+	}
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Gzip at a configurable compression level. Every client can decode gzip, it is used when a client doesn't advertise any other codec.
+ *
+ * The gzip header and trailer are written here rather than with {@link java.util.zip.GZIPOutputStream}, which creates a new deflater for every stream, so that the deflaters come from a
+ * {@link DeflaterPool}.
+ */
+public class GzipCodec implements CompressionCodec
+{
+
+	public static final String NAME = "gzip";
+
+	public static final byte ID = 0;
+
+	/**
+	 * Magic number, deflate method, no flags, no modification time, no extra flags and unknown OS, as written by {@link java.util.zip.GZIPOutputStream}.
+	 */
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0 };
+
+	private final int level;
+
+	private final DeflaterPool deflaters;
+
+	/**
+	 * @param level
+	 *            the deflate compression level, from 0 to 9 or -1 for the default level
+	 */
+	public GzipCodec(int level)
+	{
+		this(level, new DeflaterPool());
+	}
+
+	/**
+	 * @param level
+	 *            the deflate compression level, from 0 to 9 or -1 for the default level
+	 * @param deflaters
+	 *            the pool the deflaters are borrowed from
+	 */
+	public GzipCodec(int level, DeflaterPool deflaters)
+	{
+		this.level = level;
+		this.deflaters = deflaters;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public byte getId()
+	{
+		return ID;
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out) throws IOException
+	{
+		return compress(out, level);
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out, int level) throws IOException
+	{
+		out.write(HEADER);
+		return new GzipOutputStream(out, deflaters, level);
+	}
+
+	@Override
+	public boolean hasLevels()
+	{
+		return true;
+	}
+
+	/**
+	 * Raw deflate data followed by the gzip trailer, the CRC-32 and the length of the uncompressed data.
+	 */
+	private static class GzipOutputStream extends PooledDeflaterOutputStream
+	{
+
+		private final CRC32 crc = new CRC32();
+
+		public GzipOutputStream(OutputStream out, DeflaterPool deflaters, int level)
+		{
+			super(out, deflaters, level, true);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			super.write(b, off, len);
+			crc.update(b, off, len);
+		}
+
+		@Override
+		public void finish() throws IOException
+		{
+			if(!def.finished())
+			{
+				super.finish();
+				writeInt((int) crc.getValue());
+				writeInt((int) def.getBytesRead());
+			}
+		}
+
+		private void writeInt(int value) throws IOException
+		{
+			out.write(value);
+			out.write(value >>> 8);
+			out.write(value >>> 16);
+			out.write(value >>> 24);
+		}
+	}
+}
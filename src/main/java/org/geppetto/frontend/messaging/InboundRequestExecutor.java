@@ -0,0 +1,440 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geppetto.frontend.messages.InboundMessages;
+
+/**
+ * <code>InboundRequestExecutor</code> runs the requests received by a connection on a worker pool shared by every connection, so that a slow request doesn't hold the thread reading the
+ * connection.
+ *
+ * Each request has a scope, the project it works on, or null if it works on the whole connection, e.g. loading a project. Requests whose message type is read only run alongside each other,
+ * the others wait for every earlier request with the same scope and are waited for by every later one. A request with no scope is ordered in the same way with the requests of every scope.
+ * Requests that don't conflict with an earlier one start at once, in parallel.
+ *
+ * The message types in <code>inlineMessageTypes</code>, e.g. flow control credit, are cheap and must not wait behind a slow request: they run on the calling thread straight away.
+ *
+ * A request the client cancels is dropped if it hasn't started, otherwise it is flagged so that it can cut its work short, see {@link #isCancelled(String)}.
+ *
+ * Requests of the types in <code>singleFlightMessageTypes</code> have a key telling which requests are identical, e.g. two loads of the same experiment after a double click. A request identical
+ * to one that is waiting or running joins it instead of being executed again, unless a conflicting request came in between, and the replies to the first are sent to both, see
+ * {@link #getJoinedRequests(String)}. A request received again with the same requestID within <code>idempotencyWindow</code> milliseconds is a retry and is dropped.
+ *
+ * At most <code>maxPendingRequests</code> requests are waiting or running. When there are that many further requests are refused and the client is told to retry after
+ * <code>busyRetryAfter</code> milliseconds: the calling thread, the one reading the connection, never waits, since it must go on reading the inline messages such as credit and cancellations.
+ */
+public class InboundRequestExecutor
+{
+
+	private final Executor executor;
+	private final int maxPendingRequests;
+	private final Set<InboundMessages> inlineMessageTypes;
+	private final Set<InboundMessages> readOnlyMessageTypes;
+	private final Set<InboundMessages> singleFlightMessageTypes;
+	private final long idempotencyWindow;
+	private final long busyRetryAfter;
+
+	/**
+	 * The number of requestIDs remembered to recognise retries, older ones are forgotten even if still within the window.
+	 */
+	private static final int MAX_RECEIVED_REQUESTS = 1024;
+
+	/**
+	 * When the last requests were received, from {@link System#nanoTime()}, oldest first.
+	 */
+	private final Map<String, Long> receivedRequests = new LinkedHashMap<String, Long>();
+
+	private final LinkedList<Request> pending = new LinkedList<Request>();
+	private final List<Request> running = new ArrayList<Request>();
+	private boolean shutdown = false;
+
+	private static final Log logger = LogFactory.getLog(InboundRequestExecutor.class);
+
+	public InboundRequestExecutor(Executor executor, int maxPendingRequests, Set<InboundMessages> inlineMessageTypes, Set<InboundMessages> readOnlyMessageTypes,
+			Set<InboundMessages> singleFlightMessageTypes, long idempotencyWindow, long busyRetryAfter)
+	{
+		this.executor = executor;
+		this.maxPendingRequests = maxPendingRequests;
+		this.inlineMessageTypes = inlineMessageTypes;
+		this.readOnlyMessageTypes = readOnlyMessageTypes;
+		this.singleFlightMessageTypes = singleFlightMessageTypes;
+		this.idempotencyWindow = idempotencyWindow;
+		this.busyRetryAfter = busyRetryAfter;
+	}
+
+	/**
+	 * Execute a request once the earlier requests it conflicts with are done.
+	 * 
+	 * @param type
+	 *            the type of the message of the request
+	 * @param requestID
+	 * @param scope
+	 *            the project the request works on, null for the whole connection
+	 * @param flightKey
+	 *            equal for identical requests, used for the single flight message types
+	 * @param task
+	 * @return 0 if the request was taken or joined an identical one, -1 if it was dropped as a retry or because the session was closed, otherwise the time in milliseconds after which the client
+	 *         can send it again
+	 */
+	public long execute(InboundMessages type, String requestID, Object scope, String flightKey, Runnable task)
+	{
+		if(inlineMessageTypes != null && inlineMessageTypes.contains(type))
+		{
+			task.run();
+			return 0;
+		}
+
+		boolean readOnly = readOnlyMessageTypes != null && readOnlyMessageTypes.contains(type);
+		boolean singleFlight = singleFlightMessageTypes != null && singleFlightMessageTypes.contains(type);
+		Request request = new Request(type, requestID, scope, !readOnly, singleFlight ? flightKey : null, task);
+		List<Request> started;
+		synchronized(this)
+		{
+			if(shutdown)
+			{
+				logger.debug("Ignoring " + type + " request received after the session was closed");
+				return -1;
+			}
+			if(isRetry(requestID))
+			{
+				logger.debug("Dropped retry of " + type + " request " + requestID);
+				return -1;
+			}
+			if(join(request))
+			{
+				remember(requestID);
+				logger.debug(type + " request " + requestID + " joined an identical request");
+				return 0;
+			}
+			if(pending.size() + running.size() >= maxPendingRequests)
+			{
+				// not remembered, the client sends it again with the same requestID
+				logger.debug("Refused " + type + " request " + requestID + ", " + maxPendingRequests + " requests pending");
+				return Math.max(busyRetryAfter, 1);
+			}
+			remember(requestID);
+			pending.add(request);
+			started = startRequests();
+		}
+		dispatch(started);
+		return 0;
+	}
+
+	/**
+	 * Must be called holding the lock.
+	 * 
+	 * @return true if the request was received already within the idempotency window
+	 */
+	private boolean isRetry(String requestID)
+	{
+		if(idempotencyWindow <= 0 || requestID == null)
+		{
+			return false;
+		}
+
+		long now = System.nanoTime();
+		Iterator<Long> iterator = receivedRequests.values().iterator();
+		while(iterator.hasNext())
+		{
+			if(now - iterator.next() > TimeUnit.MILLISECONDS.toNanos(idempotencyWindow) || receivedRequests.size() >= MAX_RECEIVED_REQUESTS)
+			{
+				iterator.remove();
+			}
+			else
+			{
+				break;
+			}
+		}
+
+		return receivedRequests.containsKey(requestID);
+	}
+
+	/**
+	 * Remember the requestID of a request taken, to recognise its retries. Must be called holding the lock.
+	 */
+	private void remember(String requestID)
+	{
+		if(idempotencyWindow > 0 && requestID != null)
+		{
+			receivedRequests.put(requestID, System.nanoTime());
+		}
+	}
+
+	/**
+	 * Join the request to an identical one waiting or running, unless the identical request would make it overtake a conflicting request received in between. Must be called holding the lock.
+	 * 
+	 * @return true if the request joined another one
+	 */
+	private boolean join(Request duplicate)
+	{
+		if(duplicate.flightKey == null)
+		{
+			return false;
+		}
+
+		ListIterator<Request> iterator = pending.listIterator(pending.size());
+		while(iterator.hasPrevious())
+		{
+			Request request = iterator.previous();
+			if(request.isIdenticalTo(duplicate))
+			{
+				request.joined.add(duplicate.requestID);
+				return true;
+			}
+			if(duplicate.conflictsWith(request))
+			{
+				return false;
+			}
+		}
+		for(Request request : running)
+		{
+			if(request.isIdenticalTo(duplicate))
+			{
+				request.joined.add(duplicate.requestID);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param requestID
+	 *            a running request
+	 * @return the requests that joined it, to be sent the same replies
+	 */
+	public synchronized List<String> getJoinedRequests(String requestID)
+	{
+		for(Request request : running)
+		{
+			if(!request.joined.isEmpty() && request.requestID != null && request.requestID.equals(requestID))
+			{
+				return new ArrayList<String>(request.joined);
+			}
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Move the pending requests that don't conflict with a running request, or with a pending request ahead of them, to the running ones. Must be called holding the lock.
+	 * 
+	 * @return the requests to hand to the worker pool
+	 */
+	private List<Request> startRequests()
+	{
+		List<Request> started = new ArrayList<Request>();
+		List<Request> ahead = new ArrayList<Request>(running);
+		Iterator<Request> iterator = pending.iterator();
+		while(iterator.hasNext())
+		{
+			Request request = iterator.next();
+			if(!request.conflictsWith(ahead))
+			{
+				iterator.remove();
+				running.add(request);
+				started.add(request);
+			}
+			else if(request.scope == null && request.write)
+			{
+				// nothing can overtake a request on the whole connection
+				break;
+			}
+			ahead.add(request);
+		}
+		return started;
+	}
+
+	private void dispatch(List<Request> started)
+	{
+		for(Request request : started)
+		{
+			try
+			{
+				executor.execute(request);
+			}
+			catch(RejectedExecutionException e)
+			{
+				logger.warn("Worker pool rejected " + request.type + " request", e);
+				finished(request);
+			}
+		}
+	}
+
+	private void finished(Request request)
+	{
+		List<Request> started;
+		synchronized(this)
+		{
+			running.remove(request);
+			started = startRequests();
+		}
+		dispatch(started);
+	}
+
+	/**
+	 * Drop the request if it hasn't started yet, otherwise flag it as cancelled. A request that others joined carries on for them.
+	 * 
+	 * @param requestID
+	 */
+	public void cancel(String requestID)
+	{
+		List<Request> started;
+		synchronized(this)
+		{
+			for(Request request : running)
+			{
+				request.joined.remove(requestID);
+				if(requestID.equals(request.requestID) && request.joined.isEmpty())
+				{
+					request.cancelled = true;
+				}
+			}
+			Iterator<Request> iterator = pending.iterator();
+			while(iterator.hasNext())
+			{
+				Request request = iterator.next();
+				request.joined.remove(requestID);
+				if(requestID.equals(request.requestID) && request.joined.isEmpty())
+				{
+					logger.debug("Dropped cancelled " + request.type + " request " + requestID);
+					iterator.remove();
+				}
+			}
+			// the requests that were waiting for the dropped ones may start
+			started = startRequests();
+		}
+		dispatch(started);
+	}
+
+	/**
+	 * @param requestID
+	 * @return true if the request is running and the client cancelled it, its reply won't be read
+	 */
+	public synchronized boolean isCancelled(String requestID)
+	{
+		for(Request request : running)
+		{
+			if(request.cancelled && request.requestID != null && request.requestID.equals(requestID))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Drop the requests that haven't started. The running ones carry on.
+	 */
+	public void shutdown()
+	{
+		synchronized(this)
+		{
+			shutdown = true;
+			pending.clear();
+		}
+	}
+
+	private class Request implements Runnable
+	{
+		private final InboundMessages type;
+		private final String requestID;
+		private final Object scope;
+		private final boolean write;
+		private final String flightKey;
+		private final Runnable task;
+		private boolean cancelled = false;
+		private final List<String> joined = new ArrayList<String>(1);
+
+		Request(InboundMessages type, String requestID, Object scope, boolean write, String flightKey, Runnable task)
+		{
+			this.type = type;
+			this.requestID = requestID;
+			this.scope = scope;
+			this.write = write;
+			this.flightKey = flightKey;
+			this.task = task;
+		}
+
+		boolean conflictsWith(List<Request> requests)
+		{
+			for(Request request : requests)
+			{
+				if(conflictsWith(request))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		boolean conflictsWith(Request request)
+		{
+			return (write || request.write) && (scope == null || request.scope == null || scope.equals(request.scope));
+		}
+
+		boolean isIdenticalTo(Request request)
+		{
+			return flightKey != null && flightKey.equals(request.flightKey) && !cancelled;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				task.run();
+			}
+			catch(RuntimeException e)
+			{
+				logger.warn("Failed to execute " + type + " request", e);
+			}
+			finally
+			{
+				finished(this);
+			}
+		}
+	}
+}
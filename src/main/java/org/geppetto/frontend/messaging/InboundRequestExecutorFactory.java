@@ -0,0 +1,379 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.geppetto.frontend.messages.InboundMessageDecoder;
+import org.geppetto.frontend.messages.InboundMessages;
+
+/**
+ * Creates the {@link InboundRequestExecutor} of each connection.
+ *
+ * The factory owns a single worker pool of <code>workerThreads</code> threads, the number of available processors if not positive, shared by all the executors it creates, so adding
+ * connections doesn't add threads.
+ *
+ * The executors share identical requests of the types in <code>singleFlightMessageTypes</code>, drop the retries of a request received within <code>idempotencyWindow</code> milliseconds and
+ * refuse the requests of a connection that has <code>maxPendingRequests</code> already, telling the client to retry after <code>busyRetryAfter</code> milliseconds, see
+ * {@link InboundRequestExecutor}. Identical requests of the types in <code>sharedSingleFlightMessageTypes</code>, whose replies don't depend on the connection, are shared across every
+ * connection by the {@link SingleFlightGroup} of the factory instead.
+ *
+ * With <code>admissionControlEnabled</code> it also creates the {@link RequestAdmission} of each connection. The {@link RequestClass} of message types is set with
+ * <code>messageTypeClasses</code>, and a connection can make <code>requestRates</code> requests per second of each class, up to <code>requestBursts</code> at once. The connections of a user
+ * together can make <code>userRateMultiplier</code> times as many.
+ *
+ * The compressed payload of a binary message may uncompress to <code>maxUncompressedPayloadLength</code> bytes at most, see {@link InboundMessageDecoder}.
+ */
+public class InboundRequestExecutorFactory
+{
+
+	private int workerThreads = 0;
+	private int maxPendingRequests = 16;
+	private Set<InboundMessages> inlineMessageTypes = EnumSet.of(InboundMessages.CLIENT_CAPABILITIES, InboundMessages.RESYNC, InboundMessages.CREDIT, InboundMessages.FILE_CHUNK_ACK,
+			InboundMessages.CANCEL);
+	private Set<InboundMessages> readOnlyMessageTypes = EnumSet.noneOf(InboundMessages.class);
+	private Set<InboundMessages> singleFlightMessageTypes = EnumSet.noneOf(InboundMessages.class);
+	private Set<InboundMessages> sharedSingleFlightMessageTypes = EnumSet.noneOf(InboundMessages.class);
+	private long idempotencyWindow = 10000;
+	private long busyRetryAfter = 1000;
+	private boolean admissionControlEnabled = false;
+	private Map<InboundMessages, RequestClass> messageTypeClasses;
+	private Map<InboundMessages, RequestClass> admissionClasses;
+	private Map<RequestClass, Double> requestRates;
+	private Map<RequestClass, Integer> requestBursts;
+	private double userRateMultiplier = 2;
+	private long maxUncompressedPayloadLength = InboundMessageDecoder.DEFAULT_MAX_UNCOMPRESSED_LENGTH;
+
+	/**
+	 * The number of users whose buckets are kept, beyond which the buckets of the users who have been idle for a while are forgotten.
+	 */
+	private static final int MAX_USER_BUCKETS = 1024;
+
+	private final ConcurrentHashMap<String, Map<RequestClass, TokenBucket>> userBuckets = new ConcurrentHashMap<String, Map<RequestClass, TokenBucket>>();
+	private ExecutorService workerExecutor;
+	private final SingleFlightGroup singleFlightGroup = new SingleFlightGroup();
+
+	public InboundRequestExecutor getRequestExecutor()
+	{
+		return new InboundRequestExecutor(getWorkerExecutor(), maxPendingRequests, inlineMessageTypes, readOnlyMessageTypes, singleFlightMessageTypes, idempotencyWindow, busyRetryAfter);
+	}
+
+	/**
+	 * @return the group sharing identical requests of the <code>sharedSingleFlightMessageTypes</code> across every connection
+	 */
+	public SingleFlightGroup getSingleFlightGroup()
+	{
+		return singleFlightGroup;
+	}
+
+	/**
+	 * @param user
+	 *            the login of the user of the connection, null if not known
+	 */
+	public RequestAdmission getRequestAdmission(String user)
+	{
+		if(!admissionControlEnabled)
+		{
+			return new RequestAdmission(messageTypeClasses, new EnumMap<RequestClass, TokenBucket>(RequestClass.class), null);
+		}
+		return new RequestAdmission(getAdmissionClasses(), createBuckets(1), user != null ? getUserBuckets(user) : null);
+	}
+
+	/**
+	 * @return the configured classes of message types, where the inline types are never limited since flow control and cancellation depend on them
+	 */
+	private synchronized Map<InboundMessages, RequestClass> getAdmissionClasses()
+	{
+		if(admissionClasses == null)
+		{
+			admissionClasses = new EnumMap<InboundMessages, RequestClass>(InboundMessages.class);
+			if(messageTypeClasses != null)
+			{
+				admissionClasses.putAll(messageTypeClasses);
+			}
+			if(inlineMessageTypes != null)
+			{
+				for(InboundMessages type : inlineMessageTypes)
+				{
+					admissionClasses.put(type, RequestClass.CONTROL);
+				}
+			}
+		}
+		return admissionClasses;
+	}
+
+	private Map<RequestClass, TokenBucket> getUserBuckets(String user)
+	{
+		Map<RequestClass, TokenBucket> buckets = userBuckets.get(user);
+		if(buckets == null)
+		{
+			if(userBuckets.size() >= MAX_USER_BUCKETS)
+			{
+				forgetIdleUsers();
+			}
+			Map<RequestClass, TokenBucket> created = createBuckets(userRateMultiplier);
+			buckets = userBuckets.putIfAbsent(user, created);
+			if(buckets == null)
+			{
+				buckets = created;
+			}
+		}
+		return buckets;
+	}
+
+	/**
+	 * Forget the buckets that are full, a user who comes back gets full buckets anyway.
+	 */
+	private void forgetIdleUsers()
+	{
+		Iterator<Map<RequestClass, TokenBucket>> iterator = userBuckets.values().iterator();
+		while(iterator.hasNext())
+		{
+			boolean idle = true;
+			for(TokenBucket bucket : iterator.next().values())
+			{
+				idle &= bucket.isFull();
+			}
+			if(idle)
+			{
+				iterator.remove();
+			}
+		}
+	}
+
+	private Map<RequestClass, TokenBucket> createBuckets(double multiplier)
+	{
+		Map<RequestClass, TokenBucket> buckets = new EnumMap<RequestClass, TokenBucket>(RequestClass.class);
+		for(RequestClass requestClass : RequestClass.values())
+		{
+			Double rate = requestRates != null ? requestRates.get(requestClass) : null;
+			Integer burst = requestBursts != null ? requestBursts.get(requestClass) : null;
+			double classRate = rate != null ? rate : requestClass.getDefaultRate();
+			int classBurst = burst != null ? burst : requestClass.getDefaultBurst();
+			if(requestClass != RequestClass.CONTROL && classRate > 0)
+			{
+				buckets.put(requestClass, new TokenBucket(classRate * multiplier, (int) Math.ceil(classBurst * multiplier)));
+			}
+		}
+		return buckets;
+	}
+
+	private synchronized ExecutorService getWorkerExecutor()
+	{
+		if(workerExecutor == null)
+		{
+			int threads = workerThreads > 0 ? workerThreads : Runtime.getRuntime().availableProcessors();
+
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+			executor.allowCoreThreadTimeOut(true);
+			workerExecutor = executor;
+		}
+		return workerExecutor;
+	}
+
+	/**
+	 * Stop the shared worker pool. Called by Spring when the application context is closed.
+	 */
+	public synchronized void shutdown()
+	{
+		if(workerExecutor != null)
+		{
+			workerExecutor.shutdownNow();
+			workerExecutor = null;
+		}
+	}
+
+	public int getWorkerThreads()
+	{
+		return workerThreads;
+	}
+
+	public void setWorkerThreads(int workerThreads)
+	{
+		this.workerThreads = workerThreads;
+	}
+
+	public int getMaxPendingRequests()
+	{
+		return maxPendingRequests;
+	}
+
+	public void setMaxPendingRequests(int maxPendingRequests)
+	{
+		this.maxPendingRequests = maxPendingRequests;
+	}
+
+	public Set<InboundMessages> getInlineMessageTypes()
+	{
+		return inlineMessageTypes;
+	}
+
+	public void setInlineMessageTypes(Set<InboundMessages> inlineMessageTypes)
+	{
+		this.inlineMessageTypes = inlineMessageTypes;
+	}
+
+	public Set<InboundMessages> getReadOnlyMessageTypes()
+	{
+		return readOnlyMessageTypes;
+	}
+
+	public void setReadOnlyMessageTypes(Set<InboundMessages> readOnlyMessageTypes)
+	{
+		this.readOnlyMessageTypes = readOnlyMessageTypes;
+	}
+
+	public Set<InboundMessages> getSingleFlightMessageTypes()
+	{
+		return singleFlightMessageTypes;
+	}
+
+	public void setSingleFlightMessageTypes(Set<InboundMessages> singleFlightMessageTypes)
+	{
+		this.singleFlightMessageTypes = singleFlightMessageTypes;
+	}
+
+	public Set<InboundMessages> getSharedSingleFlightMessageTypes()
+	{
+		return sharedSingleFlightMessageTypes;
+	}
+
+	public void setSharedSingleFlightMessageTypes(Set<InboundMessages> sharedSingleFlightMessageTypes)
+	{
+		this.sharedSingleFlightMessageTypes = sharedSingleFlightMessageTypes;
+	}
+
+	public long getIdempotencyWindow()
+	{
+		return idempotencyWindow;
+	}
+
+	public void setIdempotencyWindow(long idempotencyWindow)
+	{
+		this.idempotencyWindow = idempotencyWindow;
+	}
+
+	public long getBusyRetryAfter()
+	{
+		return busyRetryAfter;
+	}
+
+	public void setBusyRetryAfter(long busyRetryAfter)
+	{
+		this.busyRetryAfter = busyRetryAfter;
+	}
+
+	public boolean isAdmissionControlEnabled()
+	{
+		return admissionControlEnabled;
+	}
+
+	public void setAdmissionControlEnabled(boolean admissionControlEnabled)
+	{
+		this.admissionControlEnabled = admissionControlEnabled;
+	}
+
+	public Map<InboundMessages, RequestClass> getMessageTypeClasses()
+	{
+		return messageTypeClasses;
+	}
+
+	public void setMessageTypeClasses(Map<InboundMessages, RequestClass> messageTypeClasses)
+	{
+		this.messageTypeClasses = messageTypeClasses;
+	}
+
+	public Map<RequestClass, Double> getRequestRates()
+	{
+		return requestRates;
+	}
+
+	public void setRequestRates(Map<RequestClass, Double> requestRates)
+	{
+		this.requestRates = requestRates;
+	}
+
+	public Map<RequestClass, Integer> getRequestBursts()
+	{
+		return requestBursts;
+	}
+
+	public void setRequestBursts(Map<RequestClass, Integer> requestBursts)
+	{
+		this.requestBursts = requestBursts;
+	}
+
+	public double getUserRateMultiplier()
+	{
+		return userRateMultiplier;
+	}
+
+	public void setUserRateMultiplier(double userRateMultiplier)
+	{
+		this.userRateMultiplier = userRateMultiplier;
+	}
+
+	public long getMaxUncompressedPayloadLength()
+	{
+		return maxUncompressedPayloadLength;
+	}
+
+	public void setMaxUncompressedPayloadLength(long maxUncompressedPayloadLength)
+	{
+		this.maxUncompressedPayloadLength = maxUncompressedPayloadLength;
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory
+	{
+
+		private final AtomicInteger threadCount = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "geppetto-request-worker-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A fast LZ77 codec that writes the LZ4 block format, implemented in plain Java. It compresses less than deflate but costs a fraction of the CPU, which suits large and frequent messages.
+ *
+ * The compressed data is the uncompressed length (4 bytes, little endian) followed by a single LZ4 block. The block is compressed when the stream is closed.
+ */
+public class Lz4Codec implements CompressionCodec
+{
+
+	public static final String NAME = "lz4";
+
+	public static final byte ID = 2;
+
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5;
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_DISTANCE = 65535;
+	private static final int HASH_LOG = 12;
+	private static final int SKIP_TRIGGER = 6;
+
+	/**
+	 * The hash table of the match finder, one per thread so that it isn't allocated for every message.
+	 */
+	private static final ThreadLocal<int[]> HASH_TABLES = new ThreadLocal<int[]>()
+	{
+		@Override
+		protected int[] initialValue()
+		{
+			return new int[1 << HASH_LOG];
+		}
+	};
+
+	private final BufferPool buffers;
+
+	public Lz4Codec()
+	{
+		this(new BufferPool());
+	}
+
+	/**
+	 * @param buffers
+	 *            the pool the uncompressed data is collected in and compressed into
+	 */
+	public Lz4Codec(BufferPool buffers)
+	{
+		this.buffers = buffers;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public byte getId()
+	{
+		return ID;
+	}
+
+	@Override
+	public OutputStream compress(final OutputStream out) throws IOException
+	{
+		return new OutputStream()
+		{
+			private final PooledOutputStream uncompressed = new PooledOutputStream(buffers, BufferPool.MIN_BUFFER_SIZE);
+			private boolean closed = false;
+
+			@Override
+			public void write(int b)
+			{
+				uncompressed.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len)
+			{
+				uncompressed.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				if(closed)
+				{
+					return;
+				}
+				closed = true;
+
+				int count = uncompressed.getLength();
+				byte[] compressed = buffers.borrow(maxCompressedLength(count));
+				try
+				{
+					int length = compress(uncompressed.getBuffer(), count, compressed);
+
+					out.write(count);
+					out.write(count >>> 8);
+					out.write(count >>> 16);
+					out.write(count >>> 24);
+					out.write(compressed, 0, length);
+					out.close();
+				}
+				finally
+				{
+					buffers.release(compressed);
+					uncompressed.release();
+				}
+			}
+		};
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out, int level) throws IOException
+	{
+		// lz4 has a single level
+		return compress(out);
+	}
+
+	@Override
+	public boolean hasLevels()
+	{
+		return false;
+	}
+
+	private static int maxCompressedLength(int length)
+	{
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Compress src into dst as a single LZ4 block.
+	 *
+	 * @return the length of the compressed block
+	 */
+	static int compress(byte[] src, int srcLength, byte[] dst)
+	{
+		int[] table = HASH_TABLES.get();
+		Arrays.fill(table, -1);
+
+		int anchor = 0;
+		int ip = 0;
+		int op = 0;
+		int matchSearchLimit = srcLength - MF_LIMIT;
+		int matchLengthLimit = srcLength - LAST_LITERALS;
+
+		while(ip < matchSearchLimit)
+		{
+			int sequence = readInt(src, ip);
+			int hash = hash(sequence);
+			int ref = table[hash];
+			table[hash] = ip;
+
+			if(ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence)
+			{
+				// move faster through data that doesn't compress
+				ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+				continue;
+			}
+
+			while(ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1])
+			{
+				ip--;
+				ref--;
+			}
+
+			int matchLength = MIN_MATCH;
+			while(ip + matchLength < matchLengthLimit && src[ip + matchLength] == src[ref + matchLength])
+			{
+				matchLength++;
+			}
+
+			op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+			ip += matchLength;
+			anchor = ip;
+		}
+
+		// the block always ends with literals
+		return writeSequence(src, anchor, srcLength - anchor, 0, 0, dst, op);
+	}
+
+	private static int writeSequence(byte[] src, int literalStart, int literalLength, int offset, int matchLength, byte[] dst, int op)
+	{
+		int tokenPosition = op++;
+		int token;
+
+		if(literalLength >= 15)
+		{
+			token = 15 << 4;
+			op = writeLength(literalLength - 15, dst, op);
+		}
+		else
+		{
+			token = literalLength << 4;
+		}
+		System.arraycopy(src, literalStart, dst, op, literalLength);
+		op += literalLength;
+
+		if(matchLength > 0)
+		{
+			dst[op++] = (byte) offset;
+			dst[op++] = (byte) (offset >>> 8);
+
+			int length = matchLength - MIN_MATCH;
+			if(length >= 15)
+			{
+				token |= 15;
+				op = writeLength(length - 15, dst, op);
+			}
+			else
+			{
+				token |= length;
+			}
+		}
+
+		dst[tokenPosition] = (byte) token;
+		return op;
+	}
+
+	private static int writeLength(int length, byte[] dst, int op)
+	{
+		while(length >= 255)
+		{
+			dst[op++] = (byte) 255;
+			length -= 255;
+		}
+		dst[op++] = (byte) length;
+		return op;
+	}
+
+	private static int readInt(byte[] src, int i)
+	{
+		return (src[i] & 0xff) | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff) << 16 | (src[i + 3] & 0xff) << 24;
+	}
+
+	private static int hash(int sequence)
+	{
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+}
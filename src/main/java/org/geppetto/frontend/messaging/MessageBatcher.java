@@ -0,0 +1,301 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geppetto.frontend.messages.OutboundMessages;
+import org.geppetto.frontend.messages.TransportMessageWriter;
+
+/**
+ * Collects small messages of a sender into batches.
+ *
+ * Messages of the types in <code>batchedMessageTypes</code> are collected for up to <code>batchWindow</code> milliseconds, or until they add up to <code>maxBatchLength</code> characters, and
+ * handed to the sink together as one {@link OutboundMessages#BATCH} message, a JSON array of their envelopes, so that they are compressed as a unit. A batch of one is handed over as the message
+ * itself. Messages that are not batched must be preceded by a {@link #flush()}, so that replies stay in order.
+ */
+public class MessageBatcher
+{
+
+	/**
+	 * Sends the batches.
+	 */
+	public interface Sink
+	{
+		void send(String requestId, OutboundMessages type, String update) throws IOException;
+	}
+
+	private final Set<OutboundMessages> batchedMessageTypes;
+
+	private final int batchWindow;
+
+	private final int maxBatchLength;
+
+	/**
+	 * Fires the end of batch windows.
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Sends the batches whose window ended, the scheduler thread is shared by all the connections and must not write to a socket.
+	 */
+	private final Executor writerExecutor;
+
+	private final Sink sink;
+
+	/**
+	 * Run when a batch could not be sent.
+	 */
+	private final Runnable failureTask;
+
+	/**
+	 * True once the client declared it can unpack batches.
+	 */
+	private volatile boolean batchesSupported = false;
+
+	/**
+	 * The batch being collected, its length and the task that sends it at the end of the window.
+	 */
+	private List<BatchedMessage> batch = new ArrayList<>();
+	private int batchLength = 0;
+	private ScheduledFuture<?> batchTimeout;
+	private final Object batchLock = new Object();
+
+	/**
+	 * Held while a batch is sent, so that batches and the messages sent after them go out in order.
+	 */
+	private final Object batchSendLock = new Object();
+
+	private static final Log logger = LogFactory.getLog(MessageBatcher.class);
+
+	/**
+	 * @param batchedMessageTypes
+	 *            the message types to batch
+	 * @param batchWindow
+	 *            the longest time in milliseconds a batched message waits for others
+	 * @param maxBatchLength
+	 *            a batch is sent as soon as its messages add up to this many characters
+	 * @param scheduler
+	 *            fires the end of batch windows
+	 * @param writerExecutor
+	 *            sends the batches whose window ended
+	 * @param sink
+	 *            sends the batches
+	 * @param failureTask
+	 *            run when a batch could not be sent
+	 */
+	public MessageBatcher(Set<OutboundMessages> batchedMessageTypes, int batchWindow, int maxBatchLength, ScheduledExecutorService scheduler, Executor writerExecutor, Sink sink,
+			Runnable failureTask)
+	{
+		this.batchedMessageTypes = batchedMessageTypes;
+		this.batchWindow = batchWindow;
+		this.maxBatchLength = maxBatchLength;
+		this.scheduler = scheduler;
+		this.writerExecutor = writerExecutor;
+		this.sink = sink;
+		this.failureTask = failureTask;
+	}
+
+	/**
+	 * @return true if the message is to be added to the batch rather than sent on its own
+	 */
+	public boolean isBatched(OutboundMessages messageType, String update)
+	{
+		return batchesSupported && batchedMessageTypes != null && batchedMessageTypes.contains(messageType) && update != null && update.length() < maxBatchLength;
+	}
+
+	/**
+	 * Add a message to the batch, sending the batch if it is full.
+	 */
+	public void add(String requestID, OutboundMessages messageType, String update)
+	{
+		boolean full;
+		synchronized(batchLock)
+		{
+			batch.add(new BatchedMessage(requestID, messageType, update));
+			batchLength += update.length();
+			full = batchLength >= maxBatchLength;
+			if(!full && batchTimeout == null)
+			{
+				batchTimeout = scheduler.schedule(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						writerExecutor.execute(new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								flush();
+							}
+						});
+					}
+				}, batchWindow, TimeUnit.MILLISECONDS);
+			}
+		}
+		if(full)
+		{
+			flush();
+		}
+	}
+
+	/**
+	 * Send the messages batched so far, as a single message unless there is only one.
+	 */
+	public void flush()
+	{
+		synchronized(batchSendLock)
+		{
+			List<BatchedMessage> messages;
+			synchronized(batchLock)
+			{
+				if(batch.isEmpty())
+				{
+					return;
+				}
+				messages = batch;
+				batch = new ArrayList<>();
+				batchLength = 0;
+				if(batchTimeout != null)
+				{
+					batchTimeout.cancel(false);
+					batchTimeout = null;
+				}
+			}
+
+			try
+			{
+				if(messages.size() == 1)
+				{
+					BatchedMessage message = messages.get(0);
+					sink.send(message.requestID, message.type, message.update);
+				}
+				else
+				{
+					StringWriter json = new StringWriter();
+					json.write('[');
+					for(int i = 0; i < messages.size(); i++)
+					{
+						if(i > 0)
+						{
+							json.write(',');
+						}
+						BatchedMessage message = messages.get(i);
+						TransportMessageWriter.write(json, message.requestID, message.type, message.update);
+					}
+					json.write(']');
+					logger.debug(String.format("Sending batch of %d messages", messages.size()));
+					sink.send(null, OutboundMessages.BATCH, json.toString());
+				}
+			}
+			catch(Exception e)
+			{
+				logger.warn("Failed to send batch", e);
+				failureTask.run();
+			}
+		}
+	}
+
+	/**
+	 * Take the messages of a request out of the batch.
+	 * 
+	 * @return the types of the messages taken out
+	 */
+	public List<OutboundMessages> remove(String requestID)
+	{
+		List<OutboundMessages> removed = new ArrayList<>();
+		synchronized(batchLock)
+		{
+			Iterator<BatchedMessage> iterator = batch.iterator();
+			while(iterator.hasNext())
+			{
+				BatchedMessage message = iterator.next();
+				if(requestID.equals(message.requestID))
+				{
+					iterator.remove();
+					batchLength -= message.update.length();
+					removed.add(message.type);
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Drop the batch being collected.
+	 */
+	public void shutdown()
+	{
+		synchronized(batchLock)
+		{
+			if(batchTimeout != null)
+			{
+				batchTimeout.cancel(false);
+				batchTimeout = null;
+			}
+			batch = new ArrayList<>();
+			batchLength = 0;
+		}
+	}
+
+	public void setBatchesSupported(boolean supported)
+	{
+		this.batchesSupported = supported;
+	}
+
+	private static class BatchedMessage
+	{
+
+		private final String requestID;
+		private final OutboundMessages type;
+		private final String update;
+
+		public BatchedMessage(String requestID, OutboundMessages type, String update)
+		{
+			this.requestID = requestID;
+			this.type = type;
+			this.update = update;
+		}
+	}
+}
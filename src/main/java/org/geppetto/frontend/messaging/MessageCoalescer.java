@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geppetto.frontend.messages.OutboundMessages;
+
+/**
+ * Queues messages in a processing lane, keeping only the latest message of each type and scope.
+ *
+ * A message waiting in the lane is replaced by a newer message with the same type and scope (the experiment or aspect it refers to, by default the request that started the stream), it keeps its
+ * place in the lane. A slow client therefore always receives the latest state and no time is spent processing and compressing messages that would be outdated by the time they are sent. Once a
+ * message starts being processed newer messages with the same key are queued behind it.
+ */
+public class MessageCoalescer
+{
+
+	/**
+	 * Processes the messages when their turn comes in the lane.
+	 */
+	public interface Processor
+	{
+		/**
+		 * @param enqueueTime
+		 *            when the latest content merged into the message was queued, from {@link System#nanoTime()}
+		 */
+		void process(String requestId, OutboundMessages type, String update, String scope, long enqueueTime);
+	}
+
+	private final PausableSerialExecutor lane;
+
+	private final Processor processor;
+
+	/**
+	 * Messages waiting in the lane, by coalescing key.
+	 */
+	private final Map<String, CoalescedMessage> pendingMessages = new HashMap<>();
+
+	private static final Log logger = LogFactory.getLog(MessageCoalescer.class);
+
+	/**
+	 * @param lane
+	 *            the processing lane
+	 * @param processor
+	 *            processes the messages
+	 */
+	public MessageCoalescer(PausableSerialExecutor lane, Processor processor)
+	{
+		this.lane = lane;
+		this.processor = processor;
+	}
+
+	/**
+	 * Queue a message unless a message with the same type and scope is still waiting, in which case the waiting message takes the content of the new one.
+	 */
+	public void submit(String requestID, OutboundMessages messageType, String update, String scope) throws InterruptedException
+	{
+		String coalescingKey = messageType + "/" + (scope != null ? scope : requestID);
+		CoalescedMessage message;
+
+		synchronized(pendingMessages)
+		{
+			message = pendingMessages.get(coalescingKey);
+
+			// the queue may have discarded the waiting message to make room for others
+			if(message != null && lane.getQueue().contains(message))
+			{
+				message.replace(requestID, update);
+				logger.debug("Coalesced " + coalescingKey);
+				return;
+			}
+
+			message = new CoalescedMessage(requestID, messageType, update, scope, coalescingKey);
+			pendingMessages.put(coalescingKey, message);
+		}
+
+		lane.submit(message);
+	}
+
+	/**
+	 * Take the messages of a request out of the lane.
+	 * 
+	 * @return the types of the messages taken out
+	 */
+	public List<OutboundMessages> remove(String requestID)
+	{
+		List<OutboundMessages> removed = new ArrayList<>();
+		synchronized(pendingMessages)
+		{
+			Iterator<Runnable> iterator = lane.getQueue().iterator();
+			while(iterator.hasNext())
+			{
+				Runnable task = iterator.next();
+				if(task instanceof CoalescedMessage && requestID.equals(((CoalescedMessage) task).requestId))
+				{
+					CoalescedMessage message = (CoalescedMessage) task;
+					iterator.remove();
+					pendingMessages.remove(message.coalescingKey);
+					removed.add(message.type);
+				}
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Forget the waiting messages, called when the lane is cleared.
+	 */
+	public void clear()
+	{
+		synchronized(pendingMessages)
+		{
+			pendingMessages.clear();
+		}
+	}
+
+	private class CoalescedMessage implements Runnable
+	{
+
+		private String requestId;
+		private final OutboundMessages type;
+		private String update;
+		private final String scope;
+		private final String coalescingKey;
+		private long enqueueTime = System.nanoTime();
+
+		public CoalescedMessage(String requestId, OutboundMessages type, String update, String scope, String coalescingKey)
+		{
+			this.requestId = requestId;
+			this.type = type;
+			this.update = update;
+			this.scope = scope;
+			this.coalescingKey = coalescingKey;
+		}
+
+		/**
+		 * Replace the content of this message with a newer one. Must be called holding the lock on pendingMessages.
+		 */
+		void replace(String requestId, String update)
+		{
+			this.requestId = requestId;
+			this.update = update;
+			this.enqueueTime = System.nanoTime();
+		}
+
+		public void run()
+		{
+			String requestId;
+			String update;
+			long enqueueTime;
+
+			// from now on newer messages with the same key are queued rather than merged into this one
+			synchronized(pendingMessages)
+			{
+				if(pendingMessages.get(coalescingKey) == this)
+				{
+					pendingMessages.remove(coalescingKey);
+				}
+				requestId = this.requestId;
+				update = this.update;
+				enqueueTime = this.enqueueTime;
+			}
+
+			processor.process(requestId, type, update, scope, enqueueTime);
+		}
+	}
+}
@@ -0,0 +1,427 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geppetto.frontend.messages.OutboundMessages;
+import org.geppetto.frontend.messages.TransportMessageWriter;
+import org.geppetto.frontend.messaging.CompressionStatistics.Estimate;
+
+/**
+ * Compresses the messages of a sender into binary frames.
+ *
+ * Compression is done with a {@link CompressionCodec}. Messages shorter than <code>minMessageLengthForCompression</code> are not compressed. Clients advertise the codecs they can decode, the codec
+ * is the one configured for the message type if the client supports it, otherwise the first of <code>preferredCodecs</code> the client supports, otherwise gzip. Messages shorter than
+ * <code>minMessageLengthForCompression</code> but at least <code>minMessageLengthForSmallMessageCodec</code> long are compressed with <code>smallMessageCodec</code>, typically a
+ * {@link DictionaryDeflateCodec}, if the client supports it.
+ *
+ * With <code>compressionStatistics</code> set, compression is adaptive: the compressor looks at how well and how fast the previous messages of the same type compressed and leaves the message as
+ * text when compression saves less than <code>minCompressionSaving</code> of its length. With <code>bandwidthAwareCompression</code> the bandwidth the {@link FrameWriter} measured is taken into
+ * account as well and the message is sent as text, compressed at <code>compressionLevel</code> or compressed at the fastest level, whichever is expected to reach the client first.
+ *
+ * A gzip compressed message starts with a 0 byte, a message compressed with another codec starts with a 2 byte followed by the id of the codec. The JSON envelope of a message is written by
+ * {@link TransportMessageWriter} straight into the compressing stream, and the frame is assembled in arrays borrowed from a {@link BufferPool}.
+ */
+public class MessageCompressor
+{
+
+	private final Map<String, CompressionCodec> codecs;
+
+	private final BufferPool bufferPool;
+
+	private final FrameWriter frameWriter;
+
+	private final SharedFrameEncoder sharedFrameEncoder;
+
+	/**
+	 * The minimum message size for compression. Messages smaller than this size are not compressed.
+	 */
+	private int minMessageLengthForCompression = 20000;
+
+	/**
+	 * The codec for messages shorter than <code>minMessageLengthForCompression</code>, if supported by the client. If null then such messages are not compressed.
+	 */
+	private String smallMessageCodec;
+
+	/**
+	 * The minimum message size for compression with <code>smallMessageCodec</code>.
+	 */
+	private int minMessageLengthForSmallMessageCodec = 1000;
+
+	/**
+	 * The compression level of the codecs that have levels, from 0 to 9 or -1 for the default level.
+	 */
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * Statistics of the compression of previous messages. If null then messages longer than <code>minMessageLengthForCompression</code> are always compressed.
+	 */
+	private CompressionStatistics compressionStatistics;
+
+	/**
+	 * The minimum fraction of the length of a message that compression must save for the message to be compressed.
+	 */
+	private double minCompressionSaving = 0.1;
+
+	/**
+	 * One message of a type in this many is compressed with an option the statistics did not choose, so that the statistics of every option stay current.
+	 */
+	private int compressionSampleInterval = 20;
+
+	/**
+	 * If true then the measured bandwidth of the connection weighs in the compression decisions.
+	 */
+	private boolean bandwidthAwareCompression = false;
+
+	/**
+	 * Codec names in order of preference, the first one supported by the client is used.
+	 */
+	private List<String> preferredCodecs;
+
+	/**
+	 * The codec to use for specific message types, if supported by the client.
+	 */
+	private Map<OutboundMessages, String> messageTypeCodecs;
+
+	/**
+	 * The codecs the client can decode. Until the client advertises them only gzip is used.
+	 */
+	private volatile Set<String> clientCodecs = Collections.singleton(GzipCodec.NAME);
+
+	private static final Log logger = LogFactory.getLog(MessageCompressor.class);
+
+	/**
+	 * First byte of a binary frame holding a gzip compressed message.
+	 */
+	private static final int GZIP_MESSAGE = 0;
+
+	/**
+	 * First byte of a binary frame holding a message compressed with the codec whose id is in the second byte.
+	 */
+	private static final int COMPRESSED_MESSAGE = 2;
+
+	/**
+	 * Returned instead of a compression level when a message is better sent as text.
+	 */
+	private static final int NO_COMPRESSION = Integer.MIN_VALUE;
+
+	private static final CompressionCodec DEFAULT_CODEC = new GzipCodec(Deflater.DEFAULT_COMPRESSION);
+
+	/**
+	 * @param codecs
+	 *            the codecs available to compress messages, by name
+	 * @param bufferPool
+	 *            where the frames are assembled
+	 * @param frameWriter
+	 *            measures the bandwidth of the connection
+	 * @param sharedFrameEncoder
+	 *            builds the frames of the messages shared with other connections
+	 */
+	public MessageCompressor(Map<String, CompressionCodec> codecs, BufferPool bufferPool, FrameWriter frameWriter, SharedFrameEncoder sharedFrameEncoder)
+	{
+		this.codecs = codecs;
+		this.bufferPool = bufferPool;
+		this.frameWriter = frameWriter;
+		this.sharedFrameEncoder = sharedFrameEncoder;
+	}
+
+	/**
+	 * @param shared
+	 *            true to share the compressed message with the other connections sending it, see {@link SharedFrameEncoder}
+	 * @return the binary frame, header included, holding the compressed message, or null if the message is to be sent as text. The frame is in pooled memory, released once it is sent.
+	 */
+	public PooledOutputStream compress(String requestId, final OutboundMessages type, final String update, boolean shared) throws IOException
+	{
+		// the envelope adds a few dozen characters to the payload, so the decision is taken on the payload length
+		if(update == null)
+		{
+			return null;
+		}
+
+		CompressionCodec codec = update.length() >= minMessageLengthForCompression ? selectCodec(type) : selectSmallMessageCodec(update.length());
+		if(codec == null)
+		{
+			return null;
+		}
+
+		int level = selectCompressionLevel(type, codec, update.length());
+		if(level == NO_COMPRESSION)
+		{
+			logger.debug(String.format("Compression of %s with %s not worth it, sending text", type, codec.getName()));
+			return null;
+		}
+
+		if(shared)
+		{
+			final CompressionCodec sharedCodec = codec;
+			final int sharedLevel = level;
+			PooledOutputStream sharedMessage = sharedFrameEncoder.encode(requestId, type, update, codec, level, new SharedFrameEncoder.Compression()
+			{
+				@Override
+				public void write(PooledOutputStream out) throws IOException
+				{
+					writeCompressed(out, sharedCodec, sharedLevel, null, type, update);
+				}
+			});
+			if(sharedMessage != null)
+			{
+				return sharedMessage;
+			}
+		}
+
+		// JSON usually compresses to well under a quarter of its length, the stream grows if it doesn't
+		PooledOutputStream compressedMessage = new PooledOutputStream(bufferPool, update.length() / 4);
+
+		// gzip keeps the original header so that older clients can still read it
+		if(codec.getId() == GzipCodec.ID)
+		{
+			compressedMessage.write(GZIP_MESSAGE);
+		}
+		else
+		{
+			compressedMessage.write(COMPRESSED_MESSAGE);
+			compressedMessage.write(codec.getId());
+		}
+
+		try
+		{
+			writeCompressed(compressedMessage, codec, level, requestId, type, update);
+		}
+		catch(IOException | RuntimeException e)
+		{
+			compressedMessage.release();
+			throw e;
+		}
+
+		return compressedMessage;
+	}
+
+	/**
+	 * Compress the message, its envelope included, into a stream and record how well it compressed.
+	 */
+	private void writeCompressed(PooledOutputStream out, CompressionCodec codec, int level, String requestId, OutboundMessages type, String update) throws IOException
+	{
+		long startTime = System.nanoTime();
+		int headerLength = out.getLength();
+
+		try(Writer writer = new OutputStreamWriter(codec.compress(out, level), StandardCharsets.UTF_8))
+		{
+			TransportMessageWriter.write(writer, requestId, type, update);
+		}
+
+		long elapsed = System.nanoTime() - startTime;
+		if(compressionStatistics != null)
+		{
+			compressionStatistics.record(type, codec, level, update.length(), out.getLength() - headerLength, elapsed);
+		}
+
+		logger.debug(String.format("Created and compressed json with %s at level %d in %dms", codec.getName(), level, elapsed / 1000000));
+	}
+
+	/**
+	 * Decide from the statistics of the previous messages of the same type whether the message is worth compressing, and at which level.
+	 *
+	 * Compressing a message costs the time to compress it plus the time to transmit the compressed bytes, sending it as text costs the time to transmit all of its bytes. Without a measure of the
+	 * bandwidth only the saving is considered. Every <code>compressionSampleInterval</code> messages of a type the option that was not chosen is tried, otherwise a type that once compressed badly
+	 * would never be compressed again.
+	 *
+	 * @return the compression level or {@link #NO_COMPRESSION}
+	 */
+	private int selectCompressionLevel(OutboundMessages type, CompressionCodec codec, int length)
+	{
+		if(compressionStatistics == null)
+		{
+			return compressionLevel;
+		}
+
+		Estimate configured = compressionStatistics.getEstimate(type, codec, compressionLevel);
+		if(configured == null)
+		{
+			// nothing measured yet
+			return compressionLevel;
+		}
+
+		boolean sample = compressionStatistics.isSample(type, compressionSampleInterval);
+		double bandwidth = frameWriter.getBandwidth();
+
+		if(!bandwidthAwareCompression || bandwidth <= 0)
+		{
+			if(configured.getSaving() >= minCompressionSaving || sample)
+			{
+				return compressionLevel;
+			}
+			return NO_COMPRESSION;
+		}
+
+		boolean hasFastLevel = codec.hasLevels() && compressionLevel != Deflater.BEST_SPEED;
+		Estimate fast = hasFastLevel ? compressionStatistics.getEstimate(type, codec, Deflater.BEST_SPEED) : null;
+
+		double textCost = length / bandwidth;
+		double configuredCost = length * (configured.getNanosPerByte() + configured.getRatio() / bandwidth);
+		double fastCost = fast != null ? length * (fast.getNanosPerByte() + fast.getRatio() / bandwidth) : Double.MAX_VALUE;
+
+		int level = NO_COMPRESSION;
+		double cost = textCost;
+		if(configured.getSaving() >= minCompressionSaving && configuredCost < cost)
+		{
+			level = compressionLevel;
+			cost = configuredCost;
+		}
+		if(fast != null && fast.getSaving() >= minCompressionSaving && fastCost < cost)
+		{
+			level = Deflater.BEST_SPEED;
+		}
+
+		if(sample)
+		{
+			// try the next option so that its statistics stay current
+			level = level == compressionLevel && hasFastLevel ? Deflater.BEST_SPEED : compressionLevel;
+		}
+
+		logger.debug(String.format("%s with %s, %s, fast level %s, bandwidth %.1f MB/s, level %d", type, codec.getName(), configured, fast, bandwidth * 1000, level));
+
+		return level;
+	}
+
+	private CompressionCodec selectCodec(OutboundMessages messageType)
+	{
+		Set<String> clientCodecs = this.clientCodecs;
+
+		if(messageTypeCodecs != null)
+		{
+			String name = messageTypeCodecs.get(messageType);
+			if(name != null && clientCodecs.contains(name) && codecs.containsKey(name))
+			{
+				return codecs.get(name);
+			}
+		}
+
+		if(preferredCodecs != null)
+		{
+			for(String name : preferredCodecs)
+			{
+				if(clientCodecs.contains(name) && codecs.containsKey(name))
+				{
+					return codecs.get(name);
+				}
+			}
+		}
+
+		CompressionCodec gzip = codecs.get(GzipCodec.NAME);
+		return gzip != null ? gzip : DEFAULT_CODEC;
+	}
+
+	private CompressionCodec selectSmallMessageCodec(int length)
+	{
+		if(smallMessageCodec != null && length >= minMessageLengthForSmallMessageCodec && clientCodecs.contains(smallMessageCodec))
+		{
+			return codecs.get(smallMessageCodec);
+		}
+		return null;
+	}
+
+	/**
+	 * @param codecs
+	 *            names of the compression codecs the client can decode
+	 */
+	public void setClientCodecs(Collection<String> codecs)
+	{
+		Set<String> clientCodecs = new HashSet<>(codecs);
+		// every client can read gzip
+		clientCodecs.add(GzipCodec.NAME);
+		this.clientCodecs = clientCodecs;
+		logger.info("Client supports codecs " + clientCodecs);
+	}
+
+	public void setMinMessageLengthForCompression(int minMessageLengthForCompression)
+	{
+		this.minMessageLengthForCompression = minMessageLengthForCompression;
+	}
+
+	public void setSmallMessageCodec(String smallMessageCodec)
+	{
+		this.smallMessageCodec = smallMessageCodec;
+	}
+
+	public void setMinMessageLengthForSmallMessageCodec(int minMessageLengthForSmallMessageCodec)
+	{
+		this.minMessageLengthForSmallMessageCodec = minMessageLengthForSmallMessageCodec;
+	}
+
+	public void setCompressionLevel(int compressionLevel)
+	{
+		this.compressionLevel = compressionLevel;
+	}
+
+	public void setCompressionStatistics(CompressionStatistics compressionStatistics)
+	{
+		this.compressionStatistics = compressionStatistics;
+	}
+
+	public void setMinCompressionSaving(double minCompressionSaving)
+	{
+		this.minCompressionSaving = minCompressionSaving;
+	}
+
+	public void setCompressionSampleInterval(int compressionSampleInterval)
+	{
+		this.compressionSampleInterval = compressionSampleInterval;
+	}
+
+	public void setBandwidthAwareCompression(boolean bandwidthAwareCompression)
+	{
+		this.bandwidthAwareCompression = bandwidthAwareCompression;
+	}
+
+	public void setPreferredCodecs(List<String> preferredCodecs)
+	{
+		this.preferredCodecs = preferredCodecs;
+	}
+
+	public void setMessageTypeCodecs(Map<OutboundMessages, String> messageTypeCodecs)
+	{
+		this.messageTypeCodecs = messageTypeCodecs;
+	}
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geppetto.frontend.messages.OutboundMessages;
+
+/**
+ * Tells the queued messages that have gone stale.
+ *
+ * A queued message of a type listed in <code>messageMaxAges</code> goes stale once it has waited longer than the maximum age of its type, in milliseconds. The sender checks it when the message
+ * comes out of a queue, before it is processed and compressed or before it is sent, and drops it if stale; the drop is counted in the {@link MessageSenderMetrics}. Under load the queues hence keep
+ * to the messages that are still worth sending, while types without a maximum age are always sent.
+ */
+public class MessageExpiry
+{
+
+	private final Map<OutboundMessages, Long> messageMaxAges;
+
+	private final MessageSenderMetrics metrics;
+
+	private static final Log logger = LogFactory.getLog(MessageExpiry.class);
+
+	/**
+	 * @param messageMaxAges
+	 *            the longest time in milliseconds a queued message of a type may wait, null if no type goes stale
+	 * @param metrics
+	 *            where the stale messages dropped are counted
+	 */
+	public MessageExpiry(Map<OutboundMessages, Long> messageMaxAges, MessageSenderMetrics metrics)
+	{
+		this.messageMaxAges = messageMaxAges;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param enqueueTime
+	 *            when the message was queued, from {@link System#nanoTime()}
+	 * @return true if the message waited longer than the maximum age of its type
+	 */
+	public boolean isStale(OutboundMessages messageType, long enqueueTime)
+	{
+		Long maxAge = messageMaxAges != null ? messageMaxAges.get(messageType) : null;
+		return maxAge != null && System.nanoTime() - enqueueTime > TimeUnit.MILLISECONDS.toNanos(maxAge);
+	}
+
+	/**
+	 * Count a stale message the caller is about to drop, if it is stale.
+	 * 
+	 * @param enqueueTime
+	 *            when the message was queued, from {@link System#nanoTime()}
+	 * @return true if the message is stale and must be dropped
+	 */
+	public boolean dropIfStale(OutboundMessages messageType, long enqueueTime)
+	{
+		if(!isStale(messageType, enqueueTime))
+		{
+			return false;
+		}
+		metrics.recordStaleDrop(messageType);
+		logger.debug(String.format("Dropped stale %s message queued %d ms ago", messageType, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - enqueueTime)));
+		return true;
+	}
+}
@@ -33,6 +33,8 @@
 package org.geppetto.frontend.messaging;
 
 import java.nio.file.Path;
+import java.util.Collection;
+import org.apache.catalina.websocket.WsOutbound;
 import org.geppetto.frontend.messages.OutboundMessages;
 
 public interface MessageSender
@@ -43,8 +45,146 @@ public interface MessageSender
 
 	void sendMessage(String requestID, OutboundMessages type, String update);
 
+	/**
+	 * Send a message that belongs to a given scope, e.g. an experiment or an aspect. Senders that coalesce messages only replace a waiting message with a newer one of the same type and scope, and
+	 * only messages with a scope are delta encoded.
+	 *
+	 * @param requestID
+	 * @param type
+	 * @param update
+	 * @param scope
+	 *            the experiment or aspect the message refers to, if null the request ID is used for coalescing and the message is never delta encoded
+	 */
+	void sendMessage(String requestID, OutboundMessages type, String update, String scope);
+
 	void sendFile(Path path);
 
+	/**
+	 * The client received a chunk of a file, send the next one.
+	 *
+	 * @param transferId
+	 * @param received
+	 *            the number of bytes of the file the client has, the next chunk starts there; null to carry on after the last chunk sent
+	 */
+	void acknowledgeFileChunk(int transferId, Long received);
+
+	/**
+	 * @param supported
+	 *            true if the client can receive files in chunks
+	 */
+	void setChunkedFilesSupported(boolean supported);
+
+	/**
+	 * @param supported
+	 *            true if the client can join a binary message sent in fragments
+	 */
+	void setFragmentsSupported(boolean supported);
+
+	/**
+	 * @param supported
+	 *            true if the client can unpack a batch of messages
+	 */
+	void setBatchesSupported(boolean supported);
+
+	/**
+	 * Send a message that other connections are likely to be sent too, e.g. the reply to identical requests, so that it is compressed once for all of them.
+	 *
+	 * @param requestID
+	 * @param messageType
+	 * @param update
+	 */
+	void sendSharedMessage(String requestID, OutboundMessages messageType, String update);
+
+	/**
+	 * @param supported
+	 *            true if the client can read a message whose request id is outside of its compressed part
+	 */
+	void setSharedFramesSupported(boolean supported);
+
+	/**
+	 * @param supported
+	 *            true if the client can read time series sent as packed numbers
+	 */
+	void setNumericFramesSupported(boolean supported);
+
+	/**
+	 * @param codecs
+	 *            names of the compression codecs the client can decode
+	 */
+	void setClientCodecs(Collection<String> codecs);
+
+	/**
+	 * @param supported
+	 *            true if the client can apply delta encoded updates
+	 */
+	void setDeltaUpdatesSupported(boolean supported);
+
+	/**
+	 * Send the next delta encoded update of the given key as a keyframe, for a client that missed an update.
+	 *
+	 * @param key
+	 *            the key the client received with the updates
+	 */
+	void requestKeyframe(String key);
+
+	/**
+	 * Forget the state kept for the messages of a scope, e.g. the last delta encoded update of a project that was closed.
+	 *
+	 * @param scope
+	 */
+	void closeScope(String scope);
+
+	/**
+	 * Start flow control with the window declared by the client. From then on messages are only sent within the credit granted by the client.
+	 *
+	 * @param messages
+	 *            the initial credit, in messages
+	 * @param bytes
+	 *            the initial credit, in bytes, or characters for text messages
+	 */
+	void enableFlowControl(int messages, long bytes);
+
+	/**
+	 * Add to the credit, as the client consumed messages.
+	 *
+	 * @param messages
+	 * @param bytes
+	 */
+	void grantCredit(int messages, long bytes);
+
+	/**
+	 * @return true if the client is under flow control and has no credit left, in which case queued messages wait; producers can use it to slow down
+	 */
+	boolean isCreditExhausted();
+
+	/**
+	 * @return true if the sender keeps the frames it writes, so that it can be attached to a new connection if this one is lost
+	 */
+	boolean isResumable();
+
+	/**
+	 * The connection was lost: stop writing and only keep the frames for replay, until {@link #attach(WsOutbound, long)} is called. Only for resumable senders.
+	 */
+	void detach();
+
+	/**
+	 * Continue on a new connection from the same client, writing first the frames the client didn't receive.
+	 *
+	 * @param wsOutbound
+	 *            the outbound of the new connection
+	 * @param received
+	 *            the number of the last frame the client received before the connection was lost
+	 * @return false if some of the frames the client missed aren't kept anymore, in which case the sender stays detached
+	 */
+	boolean attach(WsOutbound wsOutbound, long received);
+
+	/**
+	 * The client cancelled a request: drop the replies to it that are waiting to be sent and the ones sent from now on.
+	 *
+	 * @param requestID
+	 */
+	void cancel(String requestID);
+
 	void pause();
 
 	void resume();
@@ -39,7 +39,11 @@ public class MessageSenderEvent extends EventObject {
 	private Type type = Type.MESSAGE_SEND_FAILED;
 
 	public static enum Type {
-		MESSAGE_SEND_FAILED
+		MESSAGE_SEND_FAILED,
+		/**
+		 * The client granted no flow control credit for too long, the connection should be closed
+		 */
+		CREDIT_TIMEOUT
 	}
 
 	public MessageSenderEvent(Object source, Type type) {
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.geppetto.frontend.messages.OutboundMessages;
+
+/**
+ * Counts, by message type, the messages {@link DefaultMessageSender} did not send, so that the effect of the queue settings can be watched under load. One instance is shared by the senders of a
+ * {@link DefaultMessageSenderFactory}.
+ */
+public class MessageSenderMetrics
+{
+
+	private final ConcurrentMap<OutboundMessages, AtomicLong> staleDrops = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<OutboundMessages, AtomicLong> cancelledDrops = new ConcurrentHashMap<>();
+
+	/**
+	 * A queued message was dropped because it waited longer than the maximum age of its type.
+	 */
+	public void recordStaleDrop(OutboundMessages type)
+	{
+		getCounter(staleDrops, type).incrementAndGet();
+	}
+
+	/**
+	 * @return the number of messages of the type dropped because they were stale
+	 */
+	public long getStaleDrops(OutboundMessages type)
+	{
+		AtomicLong counter = staleDrops.get(type);
+		return counter != null ? counter.get() : 0;
+	}
+
+	/**
+	 * @return the number of messages of all types dropped because they were stale
+	 */
+	public long getStaleDrops()
+	{
+		return sum(staleDrops);
+	}
+
+	/**
+	 * A message was dropped because the client cancelled the request it replies to.
+	 */
+	public void recordCancelledDrop(OutboundMessages type)
+	{
+		getCounter(cancelledDrops, type).incrementAndGet();
+	}
+
+	/**
+	 * @return the number of messages of all types dropped because their request was cancelled
+	 */
+	public long getCancelledDrops()
+	{
+		return sum(cancelledDrops);
+	}
+
+	private static AtomicLong getCounter(ConcurrentMap<OutboundMessages, AtomicLong> counters, OutboundMessages type)
+	{
+		AtomicLong counter = counters.get(type);
+		if(counter == null)
+		{
+			AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(type, created);
+			if(counter == null)
+			{
+				counter = created;
+			}
+		}
+		return counter;
+	}
+
+	private static long sum(Map<OutboundMessages, AtomicLong> counters)
+	{
+		long sum = 0;
+		for(AtomicLong counter : counters.values())
+		{
+			sum += counter.get();
+		}
+		return sum;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "stale drops " + staleDrops + ", cancelled drops " + cancelledDrops;
+	}
+}
@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.geppetto.frontend.messages.OutboundMessages;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Builds the frames of messages whose time series are sent as packed numbers rather than JSON text.
+ *
+ * The time series of a serialized tree, e.g. the values of the watched variables in the reply to play experiment, make up most of its length and are the slowest part to parse. They are taken out of
+ * the tree and laid out so that the client can view each one as a typed array:
+ * <ul>
+ * <li>byte 0: the frame type, 3</li>
+ * <li>byte 1: the version of the layout, 1</li>
+ * <li>bytes 2-3: reserved, 0</li>
+ * <li>bytes 4-7: the length in bytes of the header, little endian</li>
+ * <li>the header, UTF-8 JSON: the request id, the message type, the tree without its time series and the table of the variables with, for each one, the path to the node the time series was taken
+ * from, the scale of its values, the number type (float32 or float64) and the number of values</li>
+ * <li>the arrays of values, in the order of the table, little endian, each one starting on a multiple of 8 bytes from the start of the frame</li>
+ * </ul>
+ * Only time series whose values all are numbers of the same scale are taken out, the others stay in the tree.
+ */
+public class NumericFrameEncoder
+{
+
+	/**
+	 * First byte of a binary frame holding a numeric message.
+	 */
+	private static final int NUMERIC_MESSAGE = 3;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_OFFSET = 8;
+
+	private static final int ALIGNMENT = 8;
+
+	private static final String TIME_SERIES = "timeSeries";
+
+	private static final String VALUE = "value";
+
+	private static final String SCALE = "scale";
+
+	private final BufferPool bufferPool;
+
+	private final Gson gson = new GsonBuilder().serializeNulls().create();
+
+	/**
+	 * Message types whose time series are sent as numeric frames.
+	 */
+	private Set<OutboundMessages> numericMessageTypes;
+
+	/**
+	 * If true then values are sent as 32 bit floats, half the size of doubles, where their precision is enough.
+	 */
+	private boolean singlePrecision = false;
+
+	/**
+	 * True once the client declared it can read numeric frames.
+	 */
+	private volatile boolean numericFramesSupported = false;
+
+	/**
+	 * @param bufferPool
+	 *            where the frames are assembled
+	 */
+	public NumericFrameEncoder(BufferPool bufferPool)
+	{
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * @return true if messages of the type are sent as numeric frames to this client
+	 */
+	public boolean isNumeric(OutboundMessages messageType)
+	{
+		return numericFramesSupported && numericMessageTypes != null && numericMessageTypes.contains(messageType);
+	}
+
+	/**
+	 * @param update
+	 *            a serialized tree
+	 * @return the numeric frame, or null if the update holds no time series to take out
+	 */
+	public PooledOutputStream encode(String requestId, OutboundMessages type, String update)
+	{
+		JsonElement tree;
+		try
+		{
+			tree = new JsonParser().parse(update);
+		}
+		catch(JsonParseException e)
+		{
+			return null;
+		}
+
+		JsonArray table = new JsonArray();
+		List<double[]> values = new ArrayList<>();
+		extract(tree, new JsonArray(), table, values);
+		if(values.isEmpty())
+		{
+			return null;
+		}
+
+		JsonObject header = new JsonObject();
+		if(requestId != null)
+		{
+			header.addProperty("requestID", requestId);
+		}
+		header.addProperty("type", type.toString());
+		header.add("update", tree);
+		header.add("variables", table);
+		byte[] headerBytes = gson.toJson(header).getBytes(StandardCharsets.UTF_8);
+
+		int valueSize = singlePrecision ? 4 : 8;
+		int length = align(HEADER_OFFSET + headerBytes.length);
+		for(double[] array : values)
+		{
+			length += align(array.length * valueSize);
+		}
+
+		PooledOutputStream frame = new PooledOutputStream(bufferPool, length);
+		frame.write(NUMERIC_MESSAGE);
+		frame.write(VERSION);
+		frame.append(2);
+		frame.append(4).order(ByteOrder.LITTLE_ENDIAN).putInt(headerBytes.length);
+		frame.write(headerBytes, 0, headerBytes.length);
+		frame.append(align(frame.getLength()) - frame.getLength());
+		for(double[] array : values)
+		{
+			ByteBuffer buffer = frame.append(align(array.length * valueSize)).order(ByteOrder.LITTLE_ENDIAN);
+			if(singlePrecision)
+			{
+				FloatBuffer floats = buffer.asFloatBuffer();
+				for(double value : array)
+				{
+					floats.put((float) value);
+				}
+			}
+			else
+			{
+				DoubleBuffer doubles = buffer.asDoubleBuffer();
+				doubles.put(array);
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * Take the time series out of a node and of its descendants.
+	 *
+	 * @param path
+	 *            the names, or indexes in arrays, leading from the root to the node
+	 */
+	private void extract(JsonElement node, JsonArray path, JsonArray table, List<double[]> values)
+	{
+		if(node.isJsonObject())
+		{
+			JsonObject object = node.getAsJsonObject();
+			JsonElement timeSeries = object.get(TIME_SERIES);
+			if(timeSeries != null && addVariable(timeSeries, path, table, values))
+			{
+				object.remove(TIME_SERIES);
+			}
+			for(Map.Entry<String, JsonElement> child : object.entrySet())
+			{
+				JsonArray childPath = copy(path);
+				childPath.add(new JsonPrimitive(child.getKey()));
+				extract(child.getValue(), childPath, table, values);
+			}
+		}
+		else if(node.isJsonArray())
+		{
+			JsonArray array = node.getAsJsonArray();
+			for(int i = 0; i < array.size(); i++)
+			{
+				JsonArray childPath = copy(path);
+				childPath.add(new JsonPrimitive(i));
+				extract(array.get(i), childPath, table, values);
+			}
+		}
+	}
+
+	/**
+	 * @param timeSeries
+	 *            an object or array of quantities, each one with a value and a scale
+	 * @return true if the values were added, false if the time series has to stay in the tree
+	 */
+	private boolean addVariable(JsonElement timeSeries, JsonArray path, JsonArray table, List<double[]> values)
+	{
+		List<JsonElement> quantities = new ArrayList<>();
+		if(timeSeries.isJsonObject())
+		{
+			for(Map.Entry<String, JsonElement> quantity : timeSeries.getAsJsonObject().entrySet())
+			{
+				quantities.add(quantity.getValue());
+			}
+		}
+		else if(timeSeries.isJsonArray())
+		{
+			for(JsonElement quantity : timeSeries.getAsJsonArray())
+			{
+				quantities.add(quantity);
+			}
+		}
+		if(quantities.isEmpty())
+		{
+			return false;
+		}
+
+		double[] array = new double[quantities.size()];
+		JsonElement scale = null;
+		for(int i = 0; i < array.length; i++)
+		{
+			if(!quantities.get(i).isJsonObject())
+			{
+				return false;
+			}
+			JsonObject quantity = quantities.get(i).getAsJsonObject();
+			JsonElement value = quantity.get(VALUE);
+			if(value == null || !value.isJsonPrimitive() || !value.getAsJsonPrimitive().isNumber())
+			{
+				return false;
+			}
+			JsonElement quantityScale = quantity.has(SCALE) ? quantity.get(SCALE) : null;
+			if(quantity.entrySet().size() != (quantityScale != null ? 2 : 1) || (i > 0 && !sameScale(scale, quantityScale)))
+			{
+				return false;
+			}
+			scale = quantityScale;
+			array[i] = value.getAsDouble();
+		}
+
+		JsonObject variable = new JsonObject();
+		variable.add("path", path);
+		if(scale != null)
+		{
+			variable.add(SCALE, scale);
+		}
+		variable.addProperty("type", singlePrecision ? "float32" : "float64");
+		variable.addProperty("length", array.length);
+		table.add(variable);
+		values.add(array);
+		return true;
+	}
+
+	private static boolean sameScale(JsonElement scale, JsonElement other)
+	{
+		return scale == null ? other == null : scale.equals(other);
+	}
+
+	private static JsonArray copy(JsonArray path)
+	{
+		JsonArray copy = new JsonArray();
+		copy.addAll(path);
+		return copy;
+	}
+
+	private static int align(int position)
+	{
+		return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	public void setNumericFramesSupported(boolean supported)
+	{
+		this.numericFramesSupported = supported;
+	}
+
+	public void setNumericMessageTypes(Set<OutboundMessages> numericMessageTypes)
+	{
+		this.numericMessageTypes = numericMessageTypes;
+	}
+
+	public void setSinglePrecision(boolean singlePrecision)
+	{
+		this.singlePrecision = singlePrecision;
+	}
+}
@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <code>PausableSerialExecutor</code> runs tasks one at a time, in submission order, on top of a shared executor.
+ *
+ * Each connection owns its own serial executors (lanes) while the threads doing the work are shared by every connection. At most one task of a lane is running at any time, so the order of
+ * messages sent to a client is preserved. After each task the lane yields its thread back to the shared executor, so a busy connection cannot starve the others.
+ *
+ * The backing queue is bounded. When it is full the oldest task is discarded if <code>discardOldestIfFull</code> is true. Otherwise {@link #submit(Runnable)} blocks the submitting thread until
+ * there is space, which is meant for the threads producing the messages, while a task of another lane hands its work over with {@link #offer(Runnable, PausableSerialExecutor, Runnable)}, which
+ * never blocks: if there is no space that lane is held until this one takes a task from its queue, so the shared threads are never kept waiting by a slow connection.
+ *
+ * When paused the lane stops handing tasks to the shared executor. Tasks submitted while paused stay in the queue until the lane is resumed.
+ *
+ * A running task that finds it can't proceed yet, e.g. for lack of flow control credit, can hold itself: the lane then stops until it is released and runs the held task again before the tasks in
+ * the queue, so the order is kept.
+ */
+public class PausableSerialExecutor
+{
+
+	private final Executor executor;
+	private final BlockingQueue<Runnable> queue;
+	private final boolean discardOldestIfFull;
+	private final Object lock = new Object();
+
+	private boolean paused = false;
+	private boolean held = false;
+	private Runnable heldTask;
+	private boolean scheduled = false;
+	private boolean shutdown = false;
+
+	/**
+	 * The lanes held until there is space in the queue
+	 */
+	private final List<PausableSerialExecutor> waitingLanes = new ArrayList<>();
+
+	private static final Log logger = LogFactory.getLog(PausableSerialExecutor.class);
+
+	private final Runnable drainTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			drainOne();
+		}
+	};
+
+	public PausableSerialExecutor(Executor executor, int maxQueueSize, boolean discardOldestIfFull)
+	{
+		this.executor = executor;
+		this.queue = new ArrayBlockingQueue<>(maxQueueSize);
+		this.discardOldestIfFull = discardOldestIfFull;
+	}
+
+	/**
+	 * Queue a task for execution.
+	 *
+	 * @param task
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting for space in the queue
+	 */
+	public void submit(Runnable task) throws InterruptedException
+	{
+		synchronized(lock)
+		{
+			if(shutdown)
+			{
+				throw new RejectedExecutionException("Serial executor has been shut down");
+			}
+		}
+
+		if(discardOldestIfFull)
+		{
+			while(!queue.offer(task))
+			{
+				queue.poll();
+			}
+		}
+		else
+		{
+			queue.put(task);
+		}
+
+		schedule();
+	}
+
+	/**
+	 * Queue a task for execution without blocking. Called by a task running in another lane: if the queue is full that lane is held with the retry task, which runs again once this lane takes a
+	 * task from its queue.
+	 *
+	 * @param task
+	 * @param waitingLane
+	 *            the lane of the calling task
+	 * @param retry
+	 *            the task to run in the waiting lane to offer the task again
+	 * @return true if the task was queued
+	 */
+	public boolean offer(Runnable task, PausableSerialExecutor waitingLane, Runnable retry)
+	{
+		synchronized(lock)
+		{
+			if(shutdown)
+			{
+				throw new RejectedExecutionException("Serial executor has been shut down");
+			}
+			if(discardOldestIfFull)
+			{
+				while(!queue.offer(task))
+				{
+					queue.poll();
+				}
+			}
+			else if(!queue.offer(task))
+			{
+				// the waiting lane is always taken after this one, never the other way round
+				waitingLane.hold(retry);
+				if(!waitingLanes.contains(waitingLane))
+				{
+					waitingLanes.add(waitingLane);
+				}
+				return false;
+			}
+		}
+
+		schedule();
+		return true;
+	}
+
+	/**
+	 * Release the lanes waiting for space in the queue. Called without holding the lock.
+	 */
+	private void releaseWaitingLanes()
+	{
+		List<PausableSerialExecutor> lanes;
+		synchronized(lock)
+		{
+			if(waitingLanes.isEmpty())
+			{
+				return;
+			}
+			lanes = new ArrayList<>(waitingLanes);
+			waitingLanes.clear();
+		}
+		for(PausableSerialExecutor lane : lanes)
+		{
+			lane.release();
+		}
+	}
+
+	private void schedule()
+	{
+		synchronized(lock)
+		{
+			if(scheduled || paused || held || shutdown || (queue.isEmpty() && heldTask == null))
+			{
+				return;
+			}
+			scheduled = true;
+		}
+
+		try
+		{
+			executor.execute(drainTask);
+		}
+		catch(RejectedExecutionException e)
+		{
+			logger.warn("Shared executor rejected queued messages", e);
+			synchronized(lock)
+			{
+				scheduled = false;
+			}
+		}
+	}
+
+	private void drainOne()
+	{
+		Runnable task;
+		boolean dequeued = false;
+		synchronized(lock)
+		{
+			if(paused || held || shutdown)
+			{
+				task = null;
+			}
+			else if(heldTask != null)
+			{
+				task = heldTask;
+				heldTask = null;
+			}
+			else
+			{
+				task = queue.poll();
+				dequeued = task != null;
+			}
+			if(task == null)
+			{
+				scheduled = false;
+				return;
+			}
+		}
+
+		if(dequeued)
+		{
+			releaseWaitingLanes();
+		}
+
+		try
+		{
+			task.run();
+		}
+		catch(RuntimeException e)
+		{
+			logger.warn("Queued task failed", e);
+		}
+		finally
+		{
+			synchronized(lock)
+			{
+				scheduled = false;
+			}
+			// hand the thread back to the shared executor before running the next task
+			schedule();
+		}
+	}
+
+	public void setPaused(boolean paused)
+	{
+		synchronized(lock)
+		{
+			this.paused = paused;
+		}
+
+		if(!paused)
+		{
+			schedule();
+		}
+	}
+
+	public boolean isPaused()
+	{
+		synchronized(lock)
+		{
+			return paused;
+		}
+	}
+
+	/**
+	 * Stop running tasks until {@link #release()} is called, then run the given task first. Typically called by the running task with itself.
+	 *
+	 * @param task
+	 */
+	public void hold(Runnable task)
+	{
+		synchronized(lock)
+		{
+			held = true;
+			heldTask = task;
+		}
+	}
+
+	/**
+	 * Run the held task, then carry on with the queue.
+	 */
+	public void release()
+	{
+		synchronized(lock)
+		{
+			held = false;
+		}
+		schedule();
+	}
+
+	public boolean isHeld()
+	{
+		synchronized(lock)
+		{
+			return held;
+		}
+	}
+
+	/**
+	 * Remove all the tasks waiting in the queue, and the held task if any. A task that is already running is not affected.
+	 */
+	public void clear()
+	{
+		synchronized(lock)
+		{
+			held = false;
+			heldTask = null;
+		}
+		queue.clear();
+		releaseWaitingLanes();
+	}
+
+	public BlockingQueue<Runnable> getQueue()
+	{
+		return queue;
+	}
+
+	public void shutdown()
+	{
+		synchronized(lock)
+		{
+			shutdown = true;
+		}
+		queue.clear();
+		releaseWaitingLanes();
+	}
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A {@link DeflaterOutputStream} compressing with a deflater borrowed from a {@link DeflaterPool}, given back when the stream is closed.
+ */
+public class PooledDeflaterOutputStream extends DeflaterOutputStream
+{
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final DeflaterPool pool;
+	private final int level;
+	private final boolean nowrap;
+	private boolean released = false;
+
+	/**
+	 * @param out
+	 * @param pool
+	 * @param level
+	 *            the compression level, from 0 to 9 or -1 for the default level
+	 * @param nowrap
+	 *            true for raw deflate data, without the zlib header
+	 */
+	public PooledDeflaterOutputStream(OutputStream out, DeflaterPool pool, int level, boolean nowrap)
+	{
+		super(out, pool.borrow(level, nowrap), BUFFER_SIZE);
+		this.pool = pool;
+		this.level = level;
+		this.nowrap = nowrap;
+	}
+
+	/**
+	 * Set the preset dictionary, before anything is written.
+	 */
+	public void setDictionary(byte[] dictionary)
+	{
+		def.setDictionary(dictionary);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if(released)
+		{
+			return;
+		}
+		try
+		{
+			super.close();
+		}
+		finally
+		{
+			released = true;
+			pool.release(def, level, nowrap);
+		}
+	}
+}
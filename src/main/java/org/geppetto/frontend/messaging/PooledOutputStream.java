@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An output stream collecting bytes in arrays borrowed from a {@link BufferPool}, used to assemble a binary frame. When the array is full a larger one is borrowed and the smaller one given back.
+ *
+ * {@link #close()} does nothing, so that codecs can close the stream when they finish, the array is given back to the pool with {@link #release()} once the frame is sent.
+ */
+public class PooledOutputStream extends OutputStream
+{
+
+	private final BufferPool pool;
+
+	private byte[] buffer;
+
+	private int length = 0;
+
+	/**
+	 * @param pool
+	 * @param size
+	 *            the expected length of the content
+	 */
+	public PooledOutputStream(BufferPool pool, int size)
+	{
+		this.pool = pool;
+		this.buffer = pool.borrow(size);
+	}
+
+	/**
+	 * Wrap a frame that is shared rather than pooled, e.g. one cached by an {@link EncodedMessageCache}. Nothing can be written to it and releasing it leaves the array alone.
+	 */
+	public PooledOutputStream(byte[] frame)
+	{
+		this.pool = null;
+		this.buffer = frame;
+		this.length = frame.length;
+	}
+
+	@Override
+	public void write(int b)
+	{
+		ensureCapacity(length + 1);
+		buffer[length++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len)
+	{
+		ensureCapacity(length + len);
+		System.arraycopy(b, off, buffer, length, len);
+		length += len;
+	}
+
+	/**
+	 * Append <code>length</code> bytes, set to zero, to be filled through the returned buffer.
+	 *
+	 * @return a buffer over the appended bytes, valid until the stream grows or is released
+	 */
+	public ByteBuffer append(int length)
+	{
+		ensureCapacity(this.length + length);
+		// a reused array holds the content of earlier messages, none of it must leak in padding
+		Arrays.fill(buffer, this.length, this.length + length, (byte) 0);
+		ByteBuffer appended = ByteBuffer.wrap(buffer, this.length, length).slice();
+		this.length += length;
+		return appended;
+	}
+
+	private void ensureCapacity(int capacity)
+	{
+		if(pool == null)
+		{
+			throw new IllegalStateException("Shared frames are read only");
+		}
+		if(capacity > buffer.length)
+		{
+			byte[] larger = pool.borrow(Math.max(capacity, buffer.length * 2));
+			System.arraycopy(buffer, 0, larger, 0, length);
+			pool.release(buffer);
+			buffer = larger;
+		}
+	}
+
+	/**
+	 * @return the array holding the content, valid until the stream is released
+	 */
+	public byte[] getBuffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public int getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * @return a heap buffer wrapping the content, valid until the stream is released
+	 */
+	public ByteBuffer toByteBuffer()
+	{
+		return ByteBuffer.wrap(buffer, 0, length);
+	}
+
+	/**
+	 * @return a copy of the content
+	 */
+	public byte[] toByteArray()
+	{
+		byte[] copy = new byte[length];
+		System.arraycopy(buffer, 0, copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * Give the array back to the pool. The stream can't be used afterwards.
+	 */
+	public void release()
+	{
+		if(buffer != null && pool != null)
+		{
+			pool.release(buffer);
+		}
+		buffer = null;
+	}
+
+	/**
+	 * Does nothing, see {@link #release()}.
+	 */
+	@Override
+	public void close()
+	{
+	}
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.Map;
+
+/**
+ * Orders the writes to a WebSocket by {@link MessagePriority}: when the lock is released it goes to a waiting writer of the highest priority.
+ *
+ * Among the writers of that priority the {@link MessageChannel}s take turns, weighted round-robin: the channel whose turn it is gets the lock for as many writes as its weight while it has writers
+ * waiting, then the turn goes to the next channel with writers waiting.
+ *
+ * A message is written while holding the lock, so a high priority message waits at most for the message being written. Large binary messages are sent in fragments, each written under its own
+ * hold of the lock, so the wait is for one fragment rather than a whole bulk payload, and the fragments of messages on different channels are interleaved.
+ *
+ * Writers of the same priority and channel are not ordered, messages that must stay in order are sent from the same thread.
+ */
+public class PriorityWriteLock
+{
+
+	/**
+	 * Number of writers waiting, by priority and channel.
+	 */
+	private final int[][] waiting = new int[MessagePriority.values().length][MessageChannel.values().length];
+
+	private final int[] weights = new int[MessageChannel.values().length];
+
+	private boolean locked = false;
+
+	/**
+	 * The channel whose turn it is and the writes it has left in its turn.
+	 */
+	private int turn = 0;
+	private int turnWrites = 0;
+
+	public PriorityWriteLock()
+	{
+		this(null);
+	}
+
+	/**
+	 * @param channelWeights
+	 *            weights of the channels, the default weight for those not listed
+	 */
+	public PriorityWriteLock(Map<MessageChannel, Integer> channelWeights)
+	{
+		for(MessageChannel channel : MessageChannel.values())
+		{
+			Integer weight = channelWeights != null ? channelWeights.get(channel) : null;
+			weights[channel.ordinal()] = Math.max(1, weight != null ? weight : channel.getDefaultWeight());
+		}
+	}
+
+	public void lock(MessagePriority priority)
+	{
+		lock(priority, MessageChannel.CONTROL);
+	}
+
+	/**
+	 * Wait until the lock is free, no writer of a higher priority is waiting and it is the turn of the channel. Interrupts are deferred until the lock is acquired, so that a message is never lost
+	 * halfway.
+	 */
+	public synchronized void lock(MessagePriority priority, MessageChannel channel)
+	{
+		boolean interrupted = false;
+		waiting[priority.ordinal()][channel.ordinal()]++;
+		while(locked || isHigherPriorityWaiting(priority) || getNextChannel(priority) != channel.ordinal())
+		{
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		waiting[priority.ordinal()][channel.ordinal()]--;
+		locked = true;
+
+		if(turn == channel.ordinal() && turnWrites > 0)
+		{
+			turnWrites--;
+		}
+		else
+		{
+			turn = channel.ordinal();
+			turnWrites = weights[turn] - 1;
+		}
+
+		if(interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized void unlock()
+	{
+		locked = false;
+		notifyAll();
+	}
+
+	private boolean isHigherPriorityWaiting(MessagePriority priority)
+	{
+		for(int i = priority.ordinal() + 1; i < waiting.length; i++)
+		{
+			for(int count : waiting[i])
+			{
+				if(count > 0)
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the channel, among those with writers of the given priority waiting, whose turn it is
+	 */
+	private int getNextChannel(MessagePriority priority)
+	{
+		int[] channels = waiting[priority.ordinal()];
+		if(turnWrites > 0 && channels[turn] > 0)
+		{
+			return turn;
+		}
+		for(int i = 1; i <= channels.length; i++)
+		{
+			int channel = (turn + i) % channels.length;
+			if(channels[channel] > 0)
+			{
+				return channel;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import org.geppetto.frontend.messages.OutboundMessages;
+
+/**
+ * The last frames written to a client, so that a client which lost its connection can be sent what it missed rather than reloading everything.
+ *
+ * Frames are numbered from 1 in the order they are written, by the {@link FrameWriter} which sends the number with each frame, and the client tells the number of the last frame it got when it
+ * reconnects. The buffer holds at most <code>capacity</code> bytes, counting two bytes per character of a text frame, the oldest frames are dropped to make room.
+ *
+ * A text frame is kept as the message it carries, the payload string the sender was given already, and its envelope is only written again if the frame is replayed, so that keeping it costs no
+ * copy. A binary frame is held in pooled memory that is given back once written, it has to be copied, which is why sessions can only be resumed when a buffer is configured: every binary frame
+ * of every connection would be copied otherwise.
+ */
+public class ReplayBuffer
+{
+
+	private final long capacity;
+
+	/**
+	 * Roughly the length of the envelope of a text message, counted with its payload.
+	 */
+	private static final int ENVELOPE_LENGTH = 64;
+
+	private final Deque<Frame> frames = new ArrayDeque<>();
+
+	private long size = 0;
+
+	/**
+	 * Number of the last frame added or skipped.
+	 */
+	private long lastSequence = 0;
+
+	/**
+	 * Number of the oldest frame still held, or lastSequence + 1 if none is.
+	 */
+	private long firstSequence = 1;
+
+	/**
+	 * @param capacity
+	 *            the most bytes the frames can take
+	 */
+	public ReplayBuffer(long capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Add a text frame, holding the message written by {@link org.geppetto.frontend.messages.TransportMessageWriter}.
+	 *
+	 * @param sequence
+	 *            the number of the frame, the one after the last frame added
+	 */
+	public synchronized void add(long sequence, String requestId, OutboundMessages type, String update)
+	{
+		Frame frame = new Frame(type, null);
+		frame.requestId = requestId;
+		frame.update = update;
+		add(sequence, frame, 2L * ((update != null ? update.length() : 0) + ENVELOPE_LENGTH));
+	}
+
+	/**
+	 * Add a binary frame, kept as it is: the caller gives up the array.
+	 *
+	 * @param sequence
+	 *            the number of the frame, the one after the last frame added
+	 */
+	public synchronized void add(long sequence, byte[] binary)
+	{
+		add(sequence, new Frame(null, binary), binary.length);
+	}
+
+	/**
+	 * Count a frame that is not kept, e.g. a file streamed from disk. It can't be replayed, nor can anything before it.
+	 *
+	 * @param sequence
+	 *            the number of the frame, the one after the last frame added
+	 */
+	public synchronized void skip(long sequence)
+	{
+		frames.clear();
+		size = 0;
+		lastSequence = sequence;
+		firstSequence = sequence + 1;
+	}
+
+	private void add(long sequence, Frame frame, long length)
+	{
+		frame.sequence = sequence;
+		frame.length = length;
+		lastSequence = sequence;
+
+		if(length > capacity)
+		{
+			// the frame can't be replayed, nor can anything before it
+			frames.clear();
+			size = 0;
+			firstSequence = lastSequence + 1;
+			return;
+		}
+
+		while(size + length > capacity)
+		{
+			Frame oldest = frames.removeFirst();
+			size -= oldest.length;
+			firstSequence = oldest.sequence + 1;
+		}
+		if(frames.isEmpty())
+		{
+			firstSequence = frame.sequence;
+		}
+		frames.addLast(frame);
+		size += length;
+	}
+
+	/**
+	 * @param received
+	 *            the number of the last frame the client received
+	 * @return the frames the client didn't receive, in order, or null if some of them were already dropped
+	 */
+	public synchronized List<Frame> getFramesAfter(long received)
+	{
+		if(received < firstSequence - 1 || received > lastSequence)
+		{
+			return null;
+		}
+		List<Frame> missed = new ArrayList<>((int) (lastSequence - received));
+		for(Frame frame : frames)
+		{
+			if(frame.sequence > received)
+			{
+				missed.add(frame);
+			}
+		}
+		return missed;
+	}
+
+	/**
+	 * @return the number of the last frame added or skipped, which is also the number of frames written so far
+	 */
+	public synchronized long getLastSequence()
+	{
+		return lastSequence;
+	}
+
+	/**
+	 * A frame written to the client, either a text message or binary.
+	 */
+	public static class Frame
+	{
+
+		private final OutboundMessages type;
+		private String requestId;
+		private String update;
+		private final byte[] binary;
+		private long sequence;
+		private long length;
+
+		private Frame(OutboundMessages type, byte[] binary)
+		{
+			this.type = type;
+			this.binary = binary;
+		}
+
+		public boolean isText()
+		{
+			return binary == null;
+		}
+
+		public String getRequestId()
+		{
+			return requestId;
+		}
+
+		public OutboundMessages getType()
+		{
+			return type;
+		}
+
+		public String getUpdate()
+		{
+			return update;
+		}
+
+		public byte[] getBinary()
+		{
+			return binary;
+		}
+
+		public long getSequence()
+		{
+			return sequence;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.Map;
+import org.geppetto.frontend.messages.InboundMessages;
+
+/**
+ * Admission control of the requests of a connection. Each {@link RequestClass} but {@link RequestClass#CONTROL} has a {@link TokenBucket} for the connection and one for its user, shared with the
+ * other connections of the same user, and a request is admitted only if both have a token. A refused request is not queued: the client is told to retry later.
+ */
+public class RequestAdmission
+{
+
+	private final Map<InboundMessages, RequestClass> messageTypeClasses;
+	private final Map<RequestClass, TokenBucket> connectionBuckets;
+	private final Map<RequestClass, TokenBucket> userBuckets;
+
+	/**
+	 * @param messageTypeClasses
+	 *            the class of message types, {@link RequestClass#UPDATE} for the types not listed
+	 * @param connectionBuckets
+	 *            the buckets of the connection, by class
+	 * @param userBuckets
+	 *            the buckets of the user, by class, null if the user isn't known
+	 */
+	public RequestAdmission(Map<InboundMessages, RequestClass> messageTypeClasses, Map<RequestClass, TokenBucket> connectionBuckets, Map<RequestClass, TokenBucket> userBuckets)
+	{
+		this.messageTypeClasses = messageTypeClasses;
+		this.connectionBuckets = connectionBuckets;
+		this.userBuckets = userBuckets;
+	}
+
+	/**
+	 * @param type
+	 * @return 0 if the request is admitted, otherwise the time in milliseconds after which the client can retry
+	 */
+	public long admit(InboundMessages type)
+	{
+		RequestClass requestClass = getRequestClass(type);
+		TokenBucket connectionBucket = connectionBuckets.get(requestClass);
+		TokenBucket userBucket = userBuckets != null ? userBuckets.get(requestClass) : null;
+
+		long wait = connectionBucket != null ? connectionBucket.tryAcquire() : 0;
+		if(wait > 0)
+		{
+			return wait;
+		}
+		wait = userBucket != null ? userBucket.tryAcquire() : 0;
+		if(wait > 0)
+		{
+			if(connectionBucket != null)
+			{
+				connectionBucket.release();
+			}
+			return wait;
+		}
+		return 0;
+	}
+
+	public RequestClass getRequestClass(InboundMessages type)
+	{
+		RequestClass requestClass = messageTypeClasses != null ? messageTypeClasses.get(type) : null;
+		return requestClass != null ? requestClass : RequestClass.UPDATE;
+	}
+}
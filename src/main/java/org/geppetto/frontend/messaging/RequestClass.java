@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+/**
+ * Cost class of an inbound message type. Each class has its own rate limits, see {@link RequestAdmission}, so that a client flooding cheap reads doesn't use up its allowance of expensive loads
+ * and the other way round.
+ */
+public enum RequestClass
+{
+	/**
+	 * Protocol messages, e.g. flow control credit, never limited.
+	 */
+	CONTROL(0, 0),
+
+	/**
+	 * Requests that read the state of a project, e.g. trees.
+	 */
+	READ(20, 40),
+
+	/**
+	 * Requests that change the state of a project, e.g. parameters and watched variables, the default.
+	 */
+	UPDATE(5, 20),
+
+	/**
+	 * Requests that take the simulation server a while, e.g. loading, running and persisting projects and experiments.
+	 */
+	LOAD(1, 10);
+
+	private final double defaultRate;
+	private final int defaultBurst;
+
+	private RequestClass(double defaultRate, int defaultBurst)
+	{
+		this.defaultRate = defaultRate;
+		this.defaultBurst = defaultBurst;
+	}
+
+	/**
+	 * @return the number of requests per second a connection can make in the long run, not positive if unlimited
+	 */
+	public double getDefaultRate()
+	{
+		return defaultRate;
+	}
+
+	/**
+	 * @return the number of requests a connection can make at once after being idle
+	 */
+	public int getDefaultBurst()
+	{
+		return defaultBurst;
+	}
+}
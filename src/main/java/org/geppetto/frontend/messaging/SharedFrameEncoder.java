@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import org.geppetto.frontend.messages.OutboundMessages;
+
+/**
+ * Builds the frames of messages compressed once for all the connections sending the same payload.
+ *
+ * Request ids differ per client, so the message is compressed without its request id and kept in an {@link EncodedMessageCache} shared by the senders. A shared frame starts with a 6 byte, the id of
+ * the codec, the length of the request id and the request id, followed by the compressed message. A message without request id is sent as the very frame that is cached.
+ */
+public class SharedFrameEncoder
+{
+
+	/**
+	 * Compresses a message, its envelope without request id included, into a frame.
+	 */
+	public interface Compression
+	{
+		void write(PooledOutputStream out) throws IOException;
+	}
+
+	/**
+	 * The cache of compressed messages shared by all the senders. If null then messages are never shared.
+	 */
+	private final EncodedMessageCache encodedMessageCache;
+
+	private final BufferPool bufferPool;
+
+	/**
+	 * Message types whose compressed form is shared with the other connections sending the same payload.
+	 */
+	private Set<OutboundMessages> sharedMessageTypes;
+
+	/**
+	 * True once the client declared it can read shared frames.
+	 */
+	private volatile boolean sharedFramesSupported = false;
+
+	/**
+	 * First byte of a binary frame holding a shared message.
+	 */
+	private static final int SHARED_MESSAGE = 6;
+
+	/**
+	 * Length of the header of a shared frame without request id: type, codec and request id length.
+	 */
+	private static final int SHARED_MESSAGE_HEADER_LENGTH = 3;
+
+	private static final int MAX_SHARED_REQUEST_ID_LENGTH = 255;
+
+	/**
+	 * @param encodedMessageCache
+	 *            the cache shared by the senders, or null to never share messages
+	 * @param bufferPool
+	 *            where the frames are assembled
+	 */
+	public SharedFrameEncoder(EncodedMessageCache encodedMessageCache, BufferPool bufferPool)
+	{
+		this.encodedMessageCache = encodedMessageCache;
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * @return true if messages of the type are compressed once for all the connections
+	 */
+	public boolean isShared(OutboundMessages messageType)
+	{
+		return encodedMessageCache != null && sharedMessageTypes != null && sharedMessageTypes.contains(messageType);
+	}
+
+	/**
+	 * @param compression
+	 *            compresses the message when it is not in the cache
+	 * @return the shared frame, or null if the client cannot read shared frames or the request id is too long to fit in one
+	 */
+	public PooledOutputStream encode(String requestId, OutboundMessages type, String update, CompressionCodec codec, int level, final Compression compression) throws IOException
+	{
+		if(!sharedFramesSupported || encodedMessageCache == null)
+		{
+			return null;
+		}
+		byte[] requestIdBytes = requestId != null ? requestId.getBytes(StandardCharsets.UTF_8) : new byte[0];
+		if(requestIdBytes.length > MAX_SHARED_REQUEST_ID_LENGTH)
+		{
+			return null;
+		}
+
+		final int codecId = codec.getId();
+		final int expectedLength = update.length() / 4;
+		byte[] frame = encodedMessageCache.get(type, codec.getName(), level, update, new Callable<byte[]>()
+		{
+			@Override
+			public byte[] call() throws IOException
+			{
+				PooledOutputStream out = new PooledOutputStream(bufferPool, expectedLength);
+				try
+				{
+					out.write(SHARED_MESSAGE);
+					out.write(codecId);
+					out.write(0);
+					compression.write(out);
+					return out.toByteArray();
+				}
+				finally
+				{
+					out.release();
+				}
+			}
+		});
+
+		if(requestIdBytes.length == 0)
+		{
+			return new PooledOutputStream(frame);
+		}
+
+		PooledOutputStream message = new PooledOutputStream(bufferPool, frame.length + requestIdBytes.length);
+		message.write(SHARED_MESSAGE);
+		message.write(frame[1]);
+		message.write(requestIdBytes.length);
+		message.write(requestIdBytes, 0, requestIdBytes.length);
+		message.write(frame, SHARED_MESSAGE_HEADER_LENGTH, frame.length - SHARED_MESSAGE_HEADER_LENGTH);
+		return message;
+	}
+
+	public void setSharedFramesSupported(boolean supported)
+	{
+		this.sharedFramesSupported = supported;
+	}
+
+	public void setSharedMessageTypes(Set<OutboundMessages> sharedMessageTypes)
+	{
+		this.sharedMessageTypes = sharedMessageTypes;
+	}
+}
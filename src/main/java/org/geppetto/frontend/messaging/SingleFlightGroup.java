@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.geppetto.frontend.messages.InboundMessages;
+
+/**
+ * <code>SingleFlightGroup</code> shares identical requests across every connection, e.g. the status of the experiments of a project polled by every client that has it open. The first request with
+ * a key leads the flight and is executed, identical requests received from any connection while it is in flight follow it: they aren't executed and are sent the replies of the leader.
+ *
+ * A request is identified by the sender of its connection and its requestID, the sender outlives the connection when a session is resumed. A request that follows a flight after the leader
+ * sent its replies, or whose leader won't run, is handed back to be told to send it again.
+ */
+public class SingleFlightGroup
+{
+
+	private final Map<String, Flight> flights = new HashMap<String, Flight>();
+
+	private final Map<Participant, Flight> leaders = new HashMap<Participant, Flight>();
+
+	/**
+	 * @param key
+	 *            equal for identical requests
+	 * @param type
+	 *            the type of the message of the request
+	 * @param sender
+	 *            the sender of the connection that received the request
+	 * @param requestID
+	 * @return true if the request follows an identical one in flight, false if it leads a new flight and must be executed
+	 */
+	public synchronized boolean join(String key, InboundMessages type, MessageSender sender, String requestID)
+	{
+		Participant participant = new Participant(type, sender, requestID);
+		Flight flight = flights.get(key);
+		if(flight == null)
+		{
+			flight = new Flight(key, participant);
+			flights.put(key, flight);
+			leaders.put(participant, flight);
+			return false;
+		}
+		if(!flight.leader.equals(participant) && !flight.followers.contains(participant))
+		{
+			flight.followers.add(participant);
+		}
+		// a retry of a request in flight is dropped, it gets the replies of the first
+		return true;
+	}
+
+	/**
+	 * @param sender
+	 * @param requestID
+	 *            a request leading a flight
+	 * @return the requests following it, to be sent the same reply
+	 */
+	public synchronized List<Participant> getFollowers(MessageSender sender, String requestID)
+	{
+		Flight flight = leaders.get(new Participant(null, sender, requestID));
+		if(flight == null || flight.followers.isEmpty())
+		{
+			return Collections.emptyList();
+		}
+		flight.served = flight.followers.size();
+		return new ArrayList<Participant>(flight.followers);
+	}
+
+	/**
+	 * End the flight led by the request, the next identical request leads a new one.
+	 * 
+	 * @param sender
+	 * @param requestID
+	 * @return the requests that followed it but weren't sent a reply
+	 */
+	public synchronized List<Participant> land(MessageSender sender, String requestID)
+	{
+		Flight flight = leaders.remove(new Participant(null, sender, requestID));
+		if(flight == null)
+		{
+			return Collections.emptyList();
+		}
+		flights.remove(flight.key);
+		return flight.followers.subList(flight.served, flight.followers.size());
+	}
+
+	/**
+	 * The client cancelled a request. A request following another one stops following it, a request leading a flight carries on for its followers.
+	 * 
+	 * @param sender
+	 * @param requestID
+	 * @return false if the request leads a flight with followers and must not be cancelled
+	 */
+	public synchronized boolean cancel(MessageSender sender, String requestID)
+	{
+		Participant participant = new Participant(null, sender, requestID);
+		Flight flight = leaders.get(participant);
+		if(flight != null)
+		{
+			if(!flight.followers.isEmpty())
+			{
+				return false;
+			}
+			leaders.remove(participant);
+			flights.remove(flight.key);
+			return true;
+		}
+		for(Flight followed : flights.values())
+		{
+			int index = followed.followers.indexOf(participant);
+			if(index >= 0)
+			{
+				followed.removeFollower(index);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The session of the sender ended: its requests stop following, and the flights it leads end since its requests may never run.
+	 * 
+	 * @param sender
+	 * @return the requests that followed the flights it led, to be told to send them again
+	 */
+	public synchronized List<Participant> abandon(MessageSender sender)
+	{
+		List<Participant> orphans = new ArrayList<Participant>();
+		Iterator<Flight> iterator = flights.values().iterator();
+		while(iterator.hasNext())
+		{
+			Flight flight = iterator.next();
+			if(flight.leader.sender == sender)
+			{
+				iterator.remove();
+				leaders.remove(flight.leader);
+				for(Participant follower : flight.followers)
+				{
+					if(follower.sender != sender)
+					{
+						orphans.add(follower);
+					}
+				}
+				continue;
+			}
+			for(int i = flight.followers.size() - 1; i >= 0; i--)
+			{
+				if(flight.followers.get(i).sender == sender)
+				{
+					flight.removeFollower(i);
+				}
+			}
+		}
+		return orphans;
+	}
+
+	/**
+	 * A request of a connection, identified by the sender of the connection and its requestID.
+	 */
+	public static class Participant
+	{
+		private final InboundMessages type;
+		private final MessageSender sender;
+		private final String requestID;
+
+		Participant(InboundMessages type, MessageSender sender, String requestID)
+		{
+			this.type = type;
+			this.sender = sender;
+			this.requestID = requestID;
+		}
+
+		public InboundMessages getType()
+		{
+			return type;
+		}
+
+		public MessageSender getSender()
+		{
+			return sender;
+		}
+
+		public String getRequestID()
+		{
+			return requestID;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(!(obj instanceof Participant))
+			{
+				return false;
+			}
+			Participant other = (Participant) obj;
+			return sender == other.sender && (requestID == null ? other.requestID == null : requestID.equals(other.requestID));
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return System.identityHashCode(sender) * 31 + (requestID != null ? requestID.hashCode() : 0);
+		}
+	}
+
+	private static class Flight
+	{
+		private final String key;
+		private final Participant leader;
+		private final List<Participant> followers = new ArrayList<Participant>(1);
+		// the followers sent the reply of the leader, the first ones
+		private int served = 0;
+
+		Flight(String key, Participant leader)
+		{
+			this.key = key;
+			this.leader = leader;
+		}
+
+		void removeFollower(int index)
+		{
+			followers.remove(index);
+			if(index < served)
+			{
+				served--;
+			}
+		}
+	}
+
+}
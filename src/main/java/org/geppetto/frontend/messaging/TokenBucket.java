@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter. The bucket holds up to <code>burst</code> tokens and is refilled with <code>rate</code> tokens per second, each request takes one.
+ */
+public class TokenBucket
+{
+
+	private final double tokensPerNano;
+	private final double capacity;
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * @param rate
+	 *            the number of tokens added per second
+	 * @param burst
+	 *            the number of tokens the bucket holds, it starts full
+	 */
+	public TokenBucket(double rate, int burst)
+	{
+		this.tokensPerNano = rate / TimeUnit.SECONDS.toNanos(1);
+		this.capacity = Math.max(burst, 1);
+		this.tokens = capacity;
+	}
+
+	/**
+	 * Take a token, or tell how long until there is one. Both are worked out in one step, so that a token refilled in between can't make a refused request look admissible.
+	 * 
+	 * @return 0 if a token was taken, otherwise the time in milliseconds until one is available, at least 1
+	 */
+	public synchronized long tryAcquire()
+	{
+		refill();
+		if(tokens >= 1)
+		{
+			tokens--;
+			return 0;
+		}
+		double wait = (1 - tokens) / tokensPerNano;
+		return Math.max((long) Math.ceil(wait / TimeUnit.MILLISECONDS.toNanos(1)), 1);
+	}
+
+	/**
+	 * Give back a token taken by {@link #tryAcquire()} for a request that was refused after all.
+	 */
+	public synchronized void release()
+	{
+		tokens = Math.min(tokens + 1, capacity);
+	}
+
+	/**
+	 * @return true if the bucket is full, i.e. it was not used for a while
+	 */
+	public synchronized boolean isFull()
+	{
+		refill();
+		return tokens >= capacity;
+	}
+
+	private void refill()
+	{
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+		lastRefill = now;
+	}
+}
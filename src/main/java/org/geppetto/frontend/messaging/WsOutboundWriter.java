@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.messaging;
+
+import java.io.IOException;
+import java.io.Writer;
+import org.apache.catalina.websocket.WsOutbound;
+
+/**
+ * Streams characters into a text message of a WebSocket. The outbound buffers the characters and sends them in fragments, {@link #close()} sends the final fragment of the message.
+ *
+ * The caller must hold the lock on the outbound while writing, so that other messages can't be interleaved with the fragments of this one.
+ */
+public class WsOutboundWriter extends Writer
+{
+
+	private final WsOutbound wsOutbound;
+	private long length = 0;
+
+	public WsOutboundWriter(WsOutbound wsOutbound)
+	{
+		this.wsOutbound = wsOutbound;
+	}
+
+	@Override
+	public void write(int c) throws IOException
+	{
+		wsOutbound.writeTextData((char) c);
+		length++;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException
+	{
+		for(int i = off; i < off + len; i++)
+		{
+			wsOutbound.writeTextData(cbuf[i]);
+		}
+		length += len;
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException
+	{
+		for(int i = off; i < off + len; i++)
+		{
+			wsOutbound.writeTextData(str.charAt(i));
+		}
+		length += len;
+	}
+
+	/**
+	 * Does nothing, flushing the outbound would end the message.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+	}
+
+	/**
+	 * Send the final fragment of the message.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		wsOutbound.flush();
+	}
+
+	/**
+	 * @return the number of characters written
+	 */
+	public long getLength()
+	{
+		return length;
+	}
+}
@@ -57,7 +57,8 @@
 			Experiment_deleted : "experiment_deleted",
 			Experiment_active : "experiment_active",
 			Volatile_project_loaded:"project:volatile",
-			Project_persisted:"project:persisted"
+			Project_persisted:"project:persisted",
+			File_download_progress:"file:download_progress"
 		};
 define(function(require) {
 	return function(GEPPETTO) {
@@ -256,6 +256,10 @@ define(function(require) {
 
 			WEBSOCKET_CLOSED: "Info: WebSocket connection closed",
 
+			WEBSOCKET_RECONNECTING: "Info: WebSocket connection lost, reconnecting",
+
+			WEBSOCKET_SESSION_RESUMED: "Info: WebSocket session resumed",
+
 			CLEAR_CANVAS: "Inbound Message Received: Clear canvas",
 
 			INVALID_SIMULATION_FILE: "Invalid Simulation File",
@@ -365,6 +369,12 @@ define(function(require) {
 			 */
 			SERVER_CONNECTION_ERROR: "Error communicating with Geppetto. \nReload page if problems persits",
 
+			SESSION_LOST: "Connection Lost",
+
+			SESSION_LOST_MESSAGE: "The connection to Geppetto was lost for too long and the project was closed. Please refresh your browser if you wish to continue",
+
+			REQUEST_THROTTLED: "Too many requests, the server refused $1. Try again in $2 seconds",
+
 			/**
 			 * Node Resources
 			 */
@@ -40,6 +40,9 @@ define(function(require)
 {
 
 	var ParameterNode = require('nodes/ParameterNode');
+
+	// the last experiment load requested, the user doesn't want it anymore once another experiment is picked
+	var loadExperimentRequest = null;
 	return Backbone.Model.extend(
 	{
 
@@ -239,7 +242,11 @@ define(function(require)
 			{};
 			parameters["experimentId"] = this.id;
 			parameters["projectId"] = this.getParent().getId();
-			GEPPETTO.MessageSocket.send("load_experiment", parameters);
+			if(loadExperimentRequest != null)
+			{
+				GEPPETTO.MessageSocket.cancel(loadExperimentRequest);
+			}
+			loadExperimentRequest = GEPPETTO.MessageSocket.send("load_experiment", parameters);
 			GEPPETTO.trigger('project:show_spinner');
 			GEPPETTO.trigger(Events.Experiment_active);
 		},
@@ -460,7 +467,44 @@ define(function(require)
 					this.parameters.push(key);
 				}
 
-				GEPPETTO.MessageSocket.send("set_parameters", parameters);
+				GEPPETTO.MessageSocket.sendCompressed("set_parameters", parameters);
+
+				return "Sending request to set parameters";
+			}
+		},
+
+		/**
+		 * Sets the parameters of several aspects in a single request, the project is saved once
+		 * and the model tree is updated once for all of them.
+		 * 
+		 * @command ExperimentNode.setParametersBatch(parametersByAspect)
+		 * @param {Object} parametersByAspect - the parameters to set, arrays of parameter nodes by aspect path
+		 */
+		setParametersBatch : function(parametersByAspect)
+		{
+			if (this.status == GEPPETTO.Resources.ExperimentStatus.DESIGN)
+			{
+				var commands = [];
+				this.parameters = new Array();
+				for ( var aspectPath in parametersByAspect)
+				{
+					var newParameters = parametersByAspect[aspectPath];
+					var modelParameters =
+					{};
+					for ( var index in newParameters)
+					{
+						modelParameters[newParameters[index].getInstancePath()] = newParameters[index].getValue();
+						this.parameters.push(index);
+					}
+					commands.push({type: "set_parameters", data: {modelAspectPath: aspectPath, modelParameters: modelParameters}});
+				}
+				var parameters =
+				{};
+				parameters["experimentId"] = this.id;
+				parameters["projectId"] = this.getParent().getId();
+				parameters["commands"] = commands;
+
+				GEPPETTO.MessageSocket.sendCompressed("batch", parameters);
 
 				return "Sending request to set parameters";
 			}
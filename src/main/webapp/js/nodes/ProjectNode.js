@@ -267,7 +267,7 @@ define([ 'jquery', 'underscore', 'backbone',
 			if(content != null && content != "") {
 				//Updates the simulation controls visibility
 
-				GEPPETTO.MessageSocket.send("load_project_from_content", content);
+				GEPPETTO.MessageSocket.sendCompressed("load_project_from_content", content);
 				this.initializationTime = new Date();
 				GEPPETTO.Console.debugLog("Message sent : " + this.initializationTime.getTime());
 				GEPPETTO.Console.debugLog(GEPPETTO.Resources.MESSAGE_OUTBOUND_LOAD);
@@ -109,7 +109,7 @@ define(function(require) {
 							}
 							break;
 						case GEPPETTO.SimulationHandler.MESSAGE_TYPE.PLAY_EXPERIMENT:
-							var payload = JSON.parse(parsedServerMessage.data);
+							var payload = GEPPETTO.SimulationHandler.getPayload(parsedServerMessage);
 							var timeSeries = 
 								hhcell.electrical.SimulationTree.hhpop[0].bioPhys1.membraneProperties.naChans.na.h.q.getTimeSeries();
 							GEPPETTO.SimulationHandler.playExperiment(payload);
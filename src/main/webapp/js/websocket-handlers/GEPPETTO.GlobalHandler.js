@@ -58,6 +58,7 @@ define(function(require)
 			SCRIPT_FETCHED : "script_fetched",
 			SERVER_AVAILABLE : "server_available",
 			SERVER_UNAVAILABLE : "server_unavailable",
+			THROTTLED : "throttled",
 		};
 
 		var messageHandler =
@@ -67,6 +68,7 @@ define(function(require)
 		messageHandler[messageTypes.CLIENT_ID] = function(payload)
 		{
 			GEPPETTO.MessageSocket.setClientID(payload.clientID);
+			GEPPETTO.MessageSocket.sendCapabilities();
 		};
 
 		// clear canvas, used when loading a new model or re-loading previous
@@ -157,6 +159,15 @@ define(function(require)
 			GEPPETTO.FE.observersDialog(GEPPETTO.Resources.SERVER_UNAVAILABLE, payload.message);
 		};
 
+		// The server refused a request because the client sent too many, nothing else comes for it
+		messageHandler[messageTypes.THROTTLED] = function(payload)
+		{
+			var throttled = JSON.parse(payload.throttled);
+			var seconds = Math.ceil(throttled.retryAfter / 1000);
+			GEPPETTO.trigger("hide:spinner");
+			GEPPETTO.Console.log(GEPPETTO.Resources.REQUEST_THROTTLED.replace("$1", throttled.type).replace("$2", seconds));
+		};
+
 		GEPPETTO.GlobalHandler =
 		{
 			onMessage : function(parsedServerMessage)
@@ -45,6 +45,68 @@ define(function(require) {
 		var nextID = 0;
 		var connectionInterval = 300;
 		var pako = require("pako");
+
+		// types of binary messages, written in the first byte
+		var BINARY_MESSAGE_TYPES = {
+			GZIP_MESSAGE: 0,
+			FILE: 1,
+			COMPRESSED_MESSAGE: 2,
+			NUMERIC_MESSAGE: 3,
+			FILE_CHUNK: 4,
+			FRAGMENT: 5,
+			SHARED_MESSAGE: 6,
+			SEQUENCED: 7
+		};
+
+		// fragments of large binary messages received so far, by message id
+		var fragmentedMessages = {};
+
+		// files being received in chunks, by transfer id
+		var fileTransfers = {};
+
+		// version of the preset dictionary for deflate, a new dictionary gets a new version, 0 while none is published
+		var DICTIONARY_VERSION = 0;
+		var DICTIONARY_URL = "geppetto/dictionaries/geppetto-" + DICTIONARY_VERSION + ".dict";
+		var dictionary = null;
+
+		// delta encoded updates: type of the messages carrying them, member listing removed members, and last state by key
+		var DELTA_UPDATE = "delta_update";
+		var DELTA_REMOVED = "__removed__";
+		var deltaStates = {};
+
+		// payloads shorter than this are sent as text by sendCompressed, compressing them doesn't pay off.
+		// Longer ones are sent in a binary message compressed with the codec of this id (raw deflate)
+		var COMPRESSION_THRESHOLD = 1024;
+		var DEFLATE = 1;
+
+		// type of the messages holding a batch of messages
+		var BATCH = "batch";
+
+		// resumable session: the token the server sent, null if the session can't be resumed, and the number of the last frame received in it,
+		// the server numbers the frames of resumable sessions. If the connection is lost the client reconnects with both and the server sends what was missed
+		var SESSION = "session";
+		var session = null;
+		var received = 0;
+		var serverHost = null;
+		var closing = false;
+		var reconnectAttempts = 0;
+		var RECONNECT_INTERVAL = 2000;
+		var MAX_RECONNECT_ATTEMPTS = 15;
+
+		// flow control window: the server sends at most this many messages and bytes (characters for text messages) ahead of what was consumed,
+		// credit is granted back once half of the window has been consumed
+		var CREDIT_WINDOW = {messages: 32, bytes: 8 * 1024 * 1024};
+		var consumed = {messages: 0, bytes: 0};
+
+		// codecs this client can decode, by the id the server writes in the second byte of a compressed message
+		var codecs = {
+			0: {name: "gzip", uncompress: gzipUncompress},
+			1: {name: "deflate", uncompress: deflateUncompress},
+			2: {name: "lz4", uncompress: lz4Uncompress},
+			3: {name: "deflate-dict-" + DICTIONARY_VERSION, uncompress: dictionaryUncompress, isAvailable: function() {
+				return dictionary != null;
+			}}
+		};
 		
 		/**
 		 * Web socket creation and communication
@@ -58,13 +120,22 @@ define(function(require) {
             //flag used to connect using ws protocol if wss failed
             failsafe : false,
 
-			connect: function(host) {
+			connect: function(host, resume) {
+				var url = host;
+				if(resume) {
+					// the token of the session goes in the first message, URLs end up in logs
+					url = host + "?resume=true";
+				}
+				else {
+					serverHost = host;
+				}
+
 				if('WebSocket' in window) {
-					GEPPETTO.MessageSocket.socket = new WebSocket(host);
+					GEPPETTO.MessageSocket.socket = new WebSocket(url);
 					GEPPETTO.MessageSocket.socket.binaryType = "arraybuffer";
 				}
 				else if('MozWebSocket' in window) {
-					GEPPETTO.MessageSocket.socket = new MozWebSocket(host);
+					GEPPETTO.MessageSocket.socket = new MozWebSocket(url);
 				}
 				else {
 					GEPPETTO.Console.debugLog(GEPPETTO.Resources.WEBSOCKET_NOT_SUPPORTED);
@@ -72,6 +143,12 @@ define(function(require) {
 				}
 
 				GEPPETTO.MessageSocket.socket.onopen = function() {
+					if(resume) {
+						// the handlers are attached already, the server says whether the session was resumed
+						GEPPETTO.MessageSocket.socket.send(messageTemplate(GEPPETTO.MessageSocket.createRequestID(), "resume", {token: session, received: received}));
+						return;
+					}
+
 					//enable load simulation button, and welcome message buttons
 					GEPPETTO.FE.postSocketConnection();
 					
@@ -84,6 +161,9 @@ define(function(require) {
 
 				GEPPETTO.MessageSocket.socket.onclose = function() {
 					GEPPETTO.Console.debugLog(GEPPETTO.Resources.WEBSOCKET_CLOSED);
+					if(session != null && !closing) {
+						reconnect();
+					}
 				};
 
 				GEPPETTO.MessageSocket.socket.onmessage = function(msg) {
@@ -92,7 +172,7 @@ define(function(require) {
 					if(messageData == "ping") {
 						return;
 					}
-	
+
 					// if it's a binary (possibly compressed) then determine its type and process it
 					if (messageData instanceof ArrayBuffer) {
 						processBinaryMessage(messageData);
@@ -103,10 +183,21 @@ define(function(require) {
 						parseAndNotify(messageData);
 					}
 
+					// the message was consumed, give the credit back
+					consumed.messages++;
+					consumed.bytes += messageData instanceof ArrayBuffer ? messageData.byteLength : messageData.length;
+					if(consumed.messages >= CREDIT_WINDOW.messages / 2 || consumed.bytes >= CREDIT_WINDOW.bytes / 2) {
+						GEPPETTO.MessageSocket.sendControl("credit", consumed);
+						consumed = {messages: 0, bytes: 0};
+					}
 				};
 
                 //Detects problems when connecting to Geppetto server
                 GEPPETTO.MessageSocket.socket.onerror = function(evt) {
+                    if(session != null) {
+                        // the socket is closed next and the client tries to resume the session
+                        return;
+                    }
                     var message = GEPPETTO.Resources.SERVER_CONNECTION_ERROR;
                     //Attempt to connect using ws first time wss fails,
                     //if ws fails too then don't try again and display info error window
@@ -122,6 +213,8 @@ define(function(require) {
 
 			/**
 			 * Sends messages to the server
+			 *
+			 * @returns the requestID of the message, to cancel it
 			 */
 			send: function(command, parameter) {
 				var requestID = this.createRequestID();
@@ -132,8 +225,46 @@ define(function(require) {
 				}
 
 				this.waitForConnection(messageTemplate(requestID, command, parameter), connectionInterval);
+				return requestID;
+			},
+
+			/**
+			 * Sends messages with a large payload, e.g. the content of a project, compressed in a binary message
+			 *
+			 * @returns the requestID of the message, to cancel it
+			 */
+			sendCompressed: function(command, parameter) {
+				var payload = typeof parameter === "string" ? parameter : JSON.stringify(parameter);
+				if(payload.length < COMPRESSION_THRESHOLD) {
+					return this.send(command, parameter);
+				}
+
+				var requestID = this.createRequestID();
+
+				if(GEPPETTO.ScriptRunner.isScriptRunning()) {
+					GEPPETTO.ScriptRunner.waitingForServerResponse(requestID);
+				}
+
+				this.waitForConnection(binaryMessageTemplate(requestID, command, payload), connectionInterval);
+				return requestID;
+			},
+
+			/**
+			 * Tells the server the reply to a request isn't wanted anymore, it stops working on it and drops what it didn't send yet
+			 *
+			 * @param requestID - the requestID returned by send
+			 */
+			cancel: function(requestID) {
+				this.sendControl("cancel", requestID);
 			},
 			
+			/**
+			 * Sends messages that are part of the protocol rather than commands, scripts don't wait for a reply to them
+			 */
+			sendControl: function(command, parameter) {
+				this.waitForConnection(messageTemplate(this.createRequestID(), command, parameter), connectionInterval);
+			},
+
 			waitForConnection: function(messageTemplate, interval){
 				if (this.isReady() === 1) {
 					GEPPETTO.MessageSocket.socket.send(messageTemplate);
@@ -151,7 +282,9 @@ define(function(require) {
 			},
 
 			close: function() {
-				GEPPETTO.MessageSocket.socket.close();
+				// a normal closure ends the session on the server rather than keeping it to be resumed
+				closing = true;
+				GEPPETTO.MessageSocket.socket.close(1000);
 				//dispose of handlers upon closing connection
 				messageHandlers = [];
 			},
@@ -189,6 +322,25 @@ define(function(require) {
 				clientID = id;
 			},
 
+			/**
+			 * Tells the server what this client supports, e.g. the codecs it can decode
+			 */
+			sendCapabilities: function() {
+				var that = this;
+				// the dictionary codec is only advertised once the dictionary is here
+				loadDictionary(function() {
+					var codecNames = [];
+					for(var id in codecs) {
+						if(codecs[id].isAvailable == undefined || codecs[id].isAvailable()) {
+							codecNames.push(codecs[id].name);
+						}
+					}
+					// the server starts counting credit from here
+					consumed = {messages: 0, bytes: 0};
+					that.sendControl("client_capabilities", {codecs: codecNames, deltaUpdates: true, chunkedFiles: true, fragments: true, batches: true, sharedFrames: true, numericFrames: true, flowControl: CREDIT_WINDOW});
+				});
+			},
+
 			/**
 			 * Creates a request id to send with the message to the server
 			 */
@@ -201,15 +353,12 @@ define(function(require) {
 		 * Template for Geppetto message
 		 *
 		 * @param msgtype - message type
-		 * @param payload - message payload, can be anything
+		 * @param payload - message payload, can be anything, objects are nested as they are
+		 * 			so that the server decodes them in the same pass as the message
 		 * @returns JSON stringified object
 		 */
 		function messageTemplate(id, msgtype, payload) {
 
-			if(!(typeof payload == 'string' || payload instanceof String)) {
-				payload = JSON.stringify(payload);
-			}
-
 			var object = {
 				requestID: id,
 				type: msgtype,
@@ -218,15 +367,339 @@ define(function(require) {
 			return  JSON.stringify(object);
 		}
 
+		/**
+		 * Template for Geppetto message with a compressed payload: the id of the codec (1 byte), the length of the header (2 bytes, little endian),
+		 * the header, which is the message without its payload, then the payload compressed. A string payload is compressed as it is, not as JSON,
+		 * so that e.g. the content of a project isn't escaped
+		 *
+		 * @param payload - message payload, a string
+		 * @returns the binary message
+		 */
+		function binaryMessageTemplate(id, msgtype, payload) {
+			var header = utf8Encode(JSON.stringify({requestID: id, type: msgtype}));
+			var body = pako.deflateRaw(payload);
+			var message = new Uint8Array(3 + header.length + body.length);
+			message[0] = DEFLATE;
+			message[1] = header.length & 0xff;
+			message[2] = (header.length >> 8) & 0xff;
+			message.set(header, 3);
+			message.set(body, 3 + header.length);
+			return message.buffer;
+		}
+
 		function gzipUncompress(compressedMessage) {
 			var messageBytes = new Uint8Array(compressedMessage);
 			var message = pako.ungzip(messageBytes, {to:"string"});
 			return message;
 		}
+
+		function deflateUncompress(messageBytes) {
+			return pako.inflateRaw(messageBytes, {to:"string"});
+		}
+
+		function loadDictionary(callback) {
+			if(dictionary != null || DICTIONARY_VERSION == 0) {
+				callback();
+				return;
+			}
+			var request = new XMLHttpRequest();
+			request.open("GET", DICTIONARY_URL, true);
+			request.responseType = "arraybuffer";
+			request.onload = function() {
+				if(request.status == 200) {
+					dictionary = new Uint8Array(request.response);
+				}
+				callback();
+			};
+			request.onerror = callback;
+			request.send();
+		}
+
+		/**
+		 * Uncompress raw deflate compressed with the preset dictionary, preceded by the version of the dictionary (1 byte).
+		 * pako can't be given a dictionary, instead the dictionary is put in front of the data as a stored block:
+		 * the inflater then finds it in its window, and it is dropped from the output.
+		 */
+		function dictionaryUncompress(messageBytes) {
+			if(messageBytes[0] != DICTIONARY_VERSION) {
+				throw new Error("Message compressed with dictionary version " + messageBytes[0] + ", this client has version " + DICTIONARY_VERSION);
+			}
+			var length = dictionary.length;
+			var stream = new Uint8Array(5 + length + messageBytes.length - 1);
+			// stored block header: not the last block, no compression, then the length and its complement, little endian
+			stream[0] = 0;
+			stream[1] = length & 0xff;
+			stream[2] = (length >> 8) & 0xff;
+			stream[3] = ~length & 0xff;
+			stream[4] = (~length >> 8) & 0xff;
+			stream.set(dictionary, 5);
+			stream.set(messageBytes.subarray(1), 5 + length);
+			var output = pako.inflateRaw(stream);
+			return utf8Decode(output.subarray(length));
+		}
+
+		/**
+		 * Uncompress an LZ4 block preceded by its uncompressed length (4 bytes, little endian)
+		 */
+		function lz4Uncompress(messageBytes) {
+			var length = (messageBytes[0] | (messageBytes[1] << 8) | (messageBytes[2] << 16) | (messageBytes[3] << 24)) >>> 0;
+			var output = new Uint8Array(length);
+			var ip = 4, op = 0, end = messageBytes.length, b;
+
+			while(ip < end) {
+				var token = messageBytes[ip++];
+
+				var literalLength = token >> 4;
+				if(literalLength === 15) {
+					do {
+						b = messageBytes[ip++];
+						literalLength += b;
+					} while(b === 255);
+				}
+				output.set(messageBytes.subarray(ip, ip + literalLength), op);
+				ip += literalLength;
+				op += literalLength;
+
+				// the last sequence has literals only
+				if(ip >= end) {
+					break;
+				}
+
+				var offset = messageBytes[ip] | (messageBytes[ip + 1] << 8);
+				ip += 2;
+
+				var matchLength = token & 15;
+				if(matchLength === 15) {
+					do {
+						b = messageBytes[ip++];
+						matchLength += b;
+					} while(b === 255);
+				}
+				matchLength += 4;
+
+				// matches can overlap the bytes they produce, copy one byte at a time
+				var ref = op - offset;
+				for(var i = 0; i < matchLength; i++) {
+					output[op++] = output[ref++];
+				}
+			}
+			return utf8Decode(output);
+		}
+
+		function utf8Encode(string) {
+			if(typeof TextEncoder !== "undefined") {
+				return new TextEncoder().encode(string);
+			}
+			var binary = unescape(encodeURIComponent(string));
+			var bytes = new Uint8Array(binary.length);
+			for(var i = 0; i < binary.length; i++) {
+				bytes[i] = binary.charCodeAt(i);
+			}
+			return bytes;
+		}
+
+		function utf8Decode(bytes) {
+			if(typeof TextDecoder !== "undefined") {
+				return new TextDecoder("utf-8").decode(bytes);
+			}
+			var binary = "";
+			for(var i = 0; i < bytes.length; i += 0x8000) {
+				binary += String.fromCharCode.apply(null, bytes.subarray(i, i + 0x8000));
+			}
+			return decodeURIComponent(escape(binary));
+		}
 		
-		function parseAndNotify(messageData){
+		/**
+		 * Keep a chunk of a file: a header with the transfer id, the offset of the chunk, the size of the file
+		 * and, in the first chunk only, the file name, followed by the data. The server sends the next chunk
+		 * once this one is acknowledged with the number of bytes received, the file is saved when all of it arrived.
+		 */
+		function processFileChunk(message) {
+			var view = new DataView(message);
+			var transferId = view.getUint32(1, true);
+			var offset = view.getUint32(5, true) + view.getUint32(9, true) * 4294967296;
+			var total = view.getUint32(13, true) + view.getUint32(17, true) * 4294967296;
+			var nameLength = view.getUint16(21, true);
+
+			var transfer = fileTransfers[transferId];
+			if(transfer == undefined) {
+				transfer = fileTransfers[transferId] = {
+					name: utf8Decode(new Uint8Array(message, 23, nameLength)),
+					parts: [],
+					received: 0,
+					total: total
+				};
+			}
+			if(offset != transfer.received) {
+				// a chunk sent again after a lost connection, this client has it already
+				return;
+			}
+			// a Blob slice keeps the data out of the JavaScript heap until the file is saved
+			var data = new Blob([message]).slice(23 + nameLength);
+			transfer.parts.push(data);
+			transfer.received += data.size;
+
+			GEPPETTO.trigger(Events.File_download_progress, {name: transfer.name, received: transfer.received, total: transfer.total});
+
+			if(transfer.received >= transfer.total) {
+				delete fileTransfers[transferId];
+				saveData(new Blob(transfer.parts), transfer.name);
+			}
+			else {
+				GEPPETTO.MessageSocket.sendControl("file_chunk_ack", {transferId: transferId, received: transfer.received});
+			}
+		}
+
+		/**
+		 * Keep a fragment of a large binary message: the message id and a flag set on the last fragment, followed by
+		 * a part of the message. Other messages may arrive between the fragments, once the last one is here the
+		 * message is put back together and processed as if it had been sent whole.
+		 */
+		function processFragment(message) {
+			var view = new DataView(message);
+			var id = view.getUint32(1, true);
+			var last = view.getUint8(5) == 1;
+
+			var fragments = fragmentedMessages[id] || (fragmentedMessages[id] = []);
+			fragments.push(new Uint8Array(message, 6));
+
+			if(last) {
+				delete fragmentedMessages[id];
+				var length = 0;
+				for(var i = 0; i < fragments.length; i++) {
+					length += fragments[i].length;
+				}
+				var whole = new Uint8Array(length);
+				var offset = 0;
+				for(var i = 0; i < fragments.length; i++) {
+					whole.set(fragments[i], offset);
+					offset += fragments[i].length;
+				}
+				processBinaryMessage(whole.buffer);
+			}
+		}
+
+		/**
+		 * A numeric message carries the time series of a tree as arrays of numbers, each one starting on a multiple of 8 bytes,
+		 * read through typed arrays and put back in the tree where the header says they were taken from
+		 */
+		function processNumericMessage(message) {
+			var view = new DataView(message);
+			var headerLength = view.getUint32(4, true);
+			var header = JSON.parse(utf8Decode(new Uint8Array(message, 8, headerLength)));
+
+			var offset = align(8 + headerLength);
+			for(var i = 0; i < header.variables.length; i++) {
+				var variable = header.variables[i];
+				var values = variable.type == "float32" ? new Float32Array(message, offset, variable.length) : new Float64Array(message, offset, variable.length);
+				offset += align(values.byteLength);
+
+				var node = header.update;
+				for(var j = 0; j < variable.path.length; j++) {
+					node = node[variable.path[j]];
+				}
+				var timeSeries = new Array(values.length);
+				for(var j = 0; j < values.length; j++) {
+					timeSeries[j] = {value: values[j], scale: variable.scale};
+				}
+				node.timeSeries = timeSeries;
+			}
+
+			// the update is handed over already parsed
+			notify({requestID: header.requestID, type: header.type, payload: {update: header.update}});
+		}
+
+		function align(offset) {
+			return Math.ceil(offset / 8) * 8;
+		}
+
+		/**
+		 * Apply a delta encoded update to the last state of its key, and rebuild the message the server would have sent whole.
+		 * If an update was missed the server is asked for a keyframe, and updates are ignored until it arrives.
+		 */
+		function applyDeltaUpdate(parsedServerMessage) {
+			var encoded = JSON.parse(JSON.parse(parsedServerMessage.data).update);
+			var state = deltaStates[encoded.key];
+
+			if(encoded.keyframe) {
+				state = deltaStates[encoded.key] = {seq: encoded.seq, value: encoded.delta};
+			}
+			else if(state == undefined || state.seq == null || encoded.seq != state.seq + 1) {
+				if(state == undefined || state.seq != null) {
+					deltaStates[encoded.key] = {seq: null};
+					GEPPETTO.MessageSocket.sendControl("resync", {key: encoded.key});
+				}
+				return null;
+			}
+			else {
+				applyDelta(state.value, encoded.delta);
+				state.seq = encoded.seq;
+			}
+
+			return {
+				requestID: parsedServerMessage.requestID,
+				type: encoded.type,
+				data: JSON.stringify({update: JSON.stringify(state.value)})
+			};
+		}
+
+		function applyDelta(target, delta) {
+			for(var name in delta) {
+				if(name == DELTA_REMOVED) {
+					for(var i = 0; i < delta[name].length; i++) {
+						delete target[delta[name][i]];
+					}
+				}
+				else if(isObject(delta[name]) && isObject(target[name])) {
+					applyDelta(target[name], delta[name]);
+				}
+				else {
+					target[name] = delta[name];
+				}
+			}
+		}
+
+		function isObject(value) {
+			return typeof value == "object" && value != null && !(value instanceof Array);
+		}
+
+		function parseAndNotify(messageData, requestID){
 			var parsedServerMessage = JSON.parse(messageData);
 
+			// the number of a text frame is in its envelope
+			if(parsedServerMessage.seq != undefined) {
+				received = parsedServerMessage.seq;
+			}
+
+			// a shared message is compressed once for many clients, its request id travels outside of it
+			if(requestID) {
+				parsedServerMessage.requestID = requestID;
+			}
+
+			// a batch holds the envelopes of several messages, dispatched in order as if they had come one by one
+			if(parsedServerMessage.type == BATCH) {
+				for(var i = 0; i < parsedServerMessage.messages.length; i++) {
+					notify(parsedServerMessage.messages[i]);
+				}
+			}
+			else {
+				notify(parsedServerMessage);
+			}
+		}
+
+		function notify(parsedServerMessage){
+			if(parsedServerMessage.type == SESSION) {
+				processSession(JSON.parse(JSON.parse(parsedServerMessage.data).session));
+				return;
+			}
+
+			if(parsedServerMessage.type == DELTA_UPDATE) {
+				parsedServerMessage = applyDeltaUpdate(parsedServerMessage);
+				if(parsedServerMessage == null) {
+					return;
+				}
+			}
+
 			//notify all handlers
 			for(var i = 0, len = messageHandlers.length; i < len; i++) {
 				var handler = messageHandlers[i];
@@ -236,16 +709,81 @@ define(function(require) {
 			}
 		}
 
+		/**
+		 * The session message is the first frame of a new session, or follows the frames a resumed session missed
+		 */
+		function processSession(update) {
+			if(update.resumed) {
+				reconnectAttempts = 0;
+				GEPPETTO.Console.debugLog(GEPPETTO.Resources.WEBSOCKET_SESSION_RESUMED);
+				// credit granted over the lost connection may not have arrived, the window starts over
+				GEPPETTO.MessageSocket.sendCapabilities();
+				// so may the acknowledgements of file chunks, the server carries on from what this client has
+				for(var transferId in fileTransfers) {
+					GEPPETTO.MessageSocket.sendControl("file_chunk_ack", {transferId: parseInt(transferId), received: fileTransfers[transferId].received});
+				}
+				return;
+			}
+
+			var lost = session != null;
+			session = update.token;
+			reconnectAttempts = 0;
+			if(lost) {
+				// the server started over, what this page shows is gone
+				GEPPETTO.FE.infoDialog(GEPPETTO.Resources.SESSION_LOST, GEPPETTO.Resources.SESSION_LOST_MESSAGE);
+			}
+		}
+
+		function reconnect() {
+			if(reconnectAttempts >= MAX_RECONNECT_ATTEMPTS) {
+				session = null;
+				GEPPETTO.FE.infoDialog(GEPPETTO.Resources.SESSION_LOST, GEPPETTO.Resources.SESSION_LOST_MESSAGE);
+				return;
+			}
+			reconnectAttempts++;
+			GEPPETTO.Console.debugLog(GEPPETTO.Resources.WEBSOCKET_RECONNECTING);
+			setTimeout(function() {
+				GEPPETTO.MessageSocket.connect(serverHost, true);
+			}, RECONNECT_INTERVAL);
+		}
+
 		function processBinaryMessage(message) {
 			
 			var messageBytes = new Uint8Array(message);
 
-			// if it's a binary message and first byte it's zero then assume it's a compressed json string
+			// the number of a binary frame comes first, followed by the frame itself
+			if (messageBytes[0] == BINARY_MESSAGE_TYPES.SEQUENCED){
+				received = new DataView(message).getUint32(1, true);
+				processBinaryMessage(message.slice(5));
+				return;
+			}
+
+			// if it's a binary message and first byte it's zero then assume it's a gzipped json string,
+			// if it's two the second byte tells which codec compressed the json string
 			//otherwise is a file and a 'save as' dialog is opened
-			if (messageBytes[0] == 0){
+			if (messageBytes[0] == BINARY_MESSAGE_TYPES.GZIP_MESSAGE){
 				var message = pako.ungzip(messageBytes.subarray(1), {to:"string"});
 				parseAndNotify(message);
 			}
+			else if (messageBytes[0] == BINARY_MESSAGE_TYPES.COMPRESSED_MESSAGE){
+				var codec = codecs[messageBytes[1]];
+				parseAndNotify(codec.uncompress(messageBytes.subarray(2)));
+			}
+			else if (messageBytes[0] == BINARY_MESSAGE_TYPES.NUMERIC_MESSAGE){
+				processNumericMessage(message);
+			}
+			else if (messageBytes[0] == BINARY_MESSAGE_TYPES.FILE_CHUNK){
+				processFileChunk(message);
+			}
+			else if (messageBytes[0] == BINARY_MESSAGE_TYPES.FRAGMENT){
+				processFragment(message);
+			}
+			else if (messageBytes[0] == BINARY_MESSAGE_TYPES.SHARED_MESSAGE){
+				var codec = codecs[messageBytes[1]];
+				var requestIDLength = messageBytes[2];
+				var requestID = requestIDLength > 0 ? utf8Decode(messageBytes.subarray(3, 3 + requestIDLength)) : null;
+				parseAndNotify(codec.uncompress(messageBytes.subarray(3 + requestIDLength)), requestID);
+			}
 			else{
 				var fileNameLength = messageBytes[1];
 				var fileName = String.fromCharCode.apply(null, messageBytes.subarray(2,2+fileNameLength));
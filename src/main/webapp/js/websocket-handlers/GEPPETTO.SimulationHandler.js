@@ -71,6 +71,13 @@ define(function(require) {
 
         var messageHandler = {};
 
+        /**
+         * The update of experiment messages, sent as text or, with their time series as numbers, already parsed
+         */
+        function parseUpdate(update) {
+            return typeof update == "string" ? JSON.parse(update) : update;
+        }
+
         messageHandler[messageTypes.PROJECT_LOADED] = function(payload) {        	
             GEPPETTO.SimulationHandler.loadProject(payload);            
         };
@@ -114,7 +121,7 @@ define(function(require) {
         };
         
         messageHandler[messageTypes.EXPERIMENT_UPDATE] = function(payload) {
-            var updatedRunTime = JSON.parse(payload.update);
+            var updatedRunTime = parseUpdate(payload.update);
             updateTime(updatedRunTime.time);
 
             GEPPETTO.RuntimeTreeController.updateRuntimeTree(updatedRunTime);
@@ -246,10 +253,17 @@ define(function(require) {
 				// parsed message has a type and data fields - data contains the payload of the message
 				// Switch based on parsed incoming message type
                 if(messageHandler.hasOwnProperty(parsedServerMessage.type)) {
-                    messageHandler[parsedServerMessage.type](JSON.parse(parsedServerMessage.data));
+                    messageHandler[parsedServerMessage.type](GEPPETTO.SimulationHandler.getPayload(parsedServerMessage));
                 }
 			},
-			
+
+			/**
+			 * The payload of a message, numeric messages come with theirs already parsed
+			 */
+			getPayload: function(parsedServerMessage) {
+				return parsedServerMessage.payload != undefined ? parsedServerMessage.payload : JSON.parse(parsedServerMessage.data);
+			},
+
 			persistProject : function(payload){
 				var message = JSON.parse(payload.update);
 	            var projectID = message.projectID;
@@ -324,7 +338,7 @@ define(function(require) {
 			},
 			
 			playExperiment : function(payload){
-				var updatedRunTime = JSON.parse(payload.update);
+				var updatedRunTime = parseUpdate(payload.update);
                 
 	            GEPPETTO.RuntimeTreeController.updateRuntimeTree(updatedRunTime);
 
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+
+import org.geppetto.core.model.runtime.AspectSubTreeNode;
+import org.geppetto.core.model.runtime.AspectSubTreeNode.AspectTreeType;
+import org.geppetto.core.model.state.visitors.SerializeTreeVisitor;
+import org.geppetto.frontend.controllers.AspectTreesResponse;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Checks that the reply holds, for each aspect, its path followed by the members of its serialized subtree.
+ */
+public class AspectTreesResponseTest
+{
+
+	@Test
+	public void testEmptyReply() throws IOException
+	{
+		StringWriter out = new StringWriter();
+		AspectTreesResponse response = new AspectTreesResponse(out);
+		response.finish();
+		assertEquals("[]", out.toString());
+
+		// finishing again writes nothing more
+		response.finish();
+		assertEquals("[]", out.toString());
+	}
+
+	@Test
+	public void testSubtreesFollowTheirAspectPath() throws IOException
+	{
+		AspectSubTreeNode modelTree = new AspectSubTreeNode(AspectTreeType.MODEL_TREE);
+		AspectSubTreeNode simulationTree = new AspectSubTreeNode(AspectTreeType.SIMULATION_TREE);
+
+		StringWriter out = new StringWriter();
+		AspectTreesResponse response = new AspectTreesResponse(out);
+		response.append("hhcell.electrical", modelTree);
+		// the path is escaped
+		response.append("hhcell.\"electrical\"", simulationTree);
+		response.finish();
+
+		JsonArray reply = new JsonParser().parse(out.toString()).getAsJsonArray();
+		assertEquals(2, reply.size());
+		assertAspect("hhcell.electrical", modelTree, reply.get(0).getAsJsonObject());
+		assertAspect("hhcell.\"electrical\"", simulationTree, reply.get(1).getAsJsonObject());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testNoSubtreeAfterFinish() throws IOException
+	{
+		AspectTreesResponse response = new AspectTreesResponse(new StringWriter());
+		response.finish();
+		response.append("hhcell.electrical", new AspectSubTreeNode(AspectTreeType.MODEL_TREE));
+	}
+
+	private static void assertAspect(String aspectInstancePath, AspectSubTreeNode subTree, JsonObject aspect)
+	{
+		SerializeTreeVisitor serializeTreeVisitor = new SerializeTreeVisitor();
+		subTree.apply(serializeTreeVisitor);
+		JsonObject serializedTree = new JsonParser().parse(serializeTreeVisitor.getSerializedTree()).getAsJsonObject();
+
+		assertEquals(aspectInstancePath, aspect.get("aspectInstancePath").getAsString());
+		assertEquals(serializedTree.entrySet().size() + 1, aspect.entrySet().size());
+		for(Map.Entry<String, JsonElement> member : serializedTree.entrySet())
+		{
+			assertEquals(member.getValue(), aspect.get(member.getKey()));
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.geppetto.frontend.messaging.CompressionCodec;
+import org.geppetto.frontend.messaging.DeflateCodec;
+import org.geppetto.frontend.messaging.GzipCodec;
+import org.geppetto.frontend.messaging.Lz4Codec;
+import org.junit.Test;
+
+/**
+ * Round trips the codecs through decoders other than ours: the JDK for gzip and deflate, the LZ4 block format for lz4.
+ */
+public class CompressionCodecTest
+{
+
+	@Test
+	public void testGzipHeaderAndTrailer() throws IOException
+	{
+		byte[] data = getTree(2000);
+		byte[] compressed = compress(new GzipCodec(6), data);
+
+		// the fixed header GZIPOutputStream writes
+		assertArrayEquals(new byte[] { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0 }, Arrays.copyOf(compressed, 10));
+
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		assertEquals((int) crc.getValue(), readIntLE(compressed, compressed.length - 8));
+		assertEquals(data.length, readIntLE(compressed, compressed.length - 4));
+
+		// GZIPInputStream checks the CRC and length of the trailer too
+		assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+	}
+
+	@Test
+	public void testGzipAtEveryLevel() throws IOException
+	{
+		byte[] data = getTree(500);
+		GzipCodec codec = new GzipCodec(6);
+		for(int level = -1; level <= 9; level++)
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try(OutputStream compressor = codec.compress(out, level))
+			{
+				compressor.write(data);
+			}
+			assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+		}
+	}
+
+	@Test
+	public void testGzipWrittenByteByByte() throws IOException
+	{
+		byte[] data = getTree(50);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(OutputStream compressor = new GzipCodec(6).compress(out))
+		{
+			for(byte b : data)
+			{
+				compressor.write(b);
+			}
+		}
+		assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+	}
+
+	@Test
+	public void testDeflate() throws IOException, DataFormatException
+	{
+		byte[] data = getTree(2000);
+		assertArrayEquals(data, inflate(compress(new DeflateCodec(6), data), data.length));
+	}
+
+	@Test
+	public void testEmptyMessage() throws IOException, DataFormatException
+	{
+		byte[] empty = new byte[0];
+		assertArrayEquals(empty, readAll(new GZIPInputStream(new ByteArrayInputStream(compress(new GzipCodec(6), empty)))));
+		assertArrayEquals(empty, inflate(compress(new DeflateCodec(6), empty), 0));
+		assertArrayEquals(empty, decompressLz4(compress(new Lz4Codec(), empty)));
+	}
+
+	@Test
+	public void testLz4() throws IOException
+	{
+		byte[] data = getTree(2000);
+		byte[] compressed = compress(new Lz4Codec(), data);
+		assertEquals(data.length, readIntLE(compressed, 0));
+		assertArrayEquals(data, decompressLz4(compressed));
+	}
+
+	@Test
+	public void testLz4Incompressible() throws IOException
+	{
+		byte[] data = new byte[100000];
+		new Random(42).nextBytes(data);
+		assertArrayEquals(data, decompressLz4(compress(new Lz4Codec(), data)));
+	}
+
+	@Test
+	public void testLz4LongMatchesAndShortInputs() throws IOException
+	{
+		// a single run, matches longer than a length byte and overlapping their own output
+		byte[] run = new byte[70000];
+		Arrays.fill(run, (byte) 'a');
+		assertArrayEquals(run, decompressLz4(compress(new Lz4Codec(), run)));
+
+		for(int length = 1; length < 40; length++)
+		{
+			byte[] data = Arrays.copyOf(getTree(10), length);
+			assertArrayEquals(data, decompressLz4(compress(new Lz4Codec(), data)));
+		}
+	}
+
+	/**
+	 * @return a runtime tree like JSON with repeated keys, as the messages the codecs are for
+	 */
+	private static byte[] getTree(int variables)
+	{
+		StringBuilder json = new StringBuilder("{\"network\":{");
+		for(int i = 0; i < variables; i++)
+		{
+			json.append(i > 0 ? "," : "").append("\"v").append(i).append("\":{\"_metaType\":\"VariableNode\",\"value\":").append(Math.sin(i)).append(",\"unit\":\"mV\"}");
+		}
+		return json.append("}}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] compress(CompressionCodec codec, byte[] data) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(OutputStream compressor = codec.compress(out))
+		{
+			compressor.write(data);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] inflate(byte[] compressed, int length) throws DataFormatException
+	{
+		// raw deflate data, without the zlib header
+		Inflater inflater = new Inflater(true);
+		try
+		{
+			inflater.setInput(compressed);
+			// one byte more than expected, an inflater asked for no bytes doesn't read its input
+			byte[] data = new byte[length + 1];
+			int read = 0;
+			while(!inflater.finished())
+			{
+				int n = inflater.inflate(data, read, data.length - read);
+				if(n == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary()))
+				{
+					throw new DataFormatException("Truncated deflate data");
+				}
+				read += n;
+			}
+			assertEquals(compressed.length, inflater.getTotalIn());
+			assertEquals(length, read);
+			return Arrays.copyOf(data, read);
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Decodes the uncompressed length followed by an LZ4 block, following the LZ4 block format specification.
+	 */
+	private static byte[] decompressLz4(byte[] compressed)
+	{
+		byte[] data = new byte[readIntLE(compressed, 0)];
+		int ip = 4;
+		int op = 0;
+		while(true)
+		{
+			int token = compressed[ip++] & 0xff;
+			int literalLength = token >>> 4;
+			if(literalLength == 15)
+			{
+				int b;
+				do
+				{
+					b = compressed[ip++] & 0xff;
+					literalLength += b;
+				}
+				while(b == 255);
+			}
+			System.arraycopy(compressed, ip, data, op, literalLength);
+			ip += literalLength;
+			op += literalLength;
+			if(ip == compressed.length)
+			{
+				break;
+			}
+
+			int offset = (compressed[ip++] & 0xff) | (compressed[ip++] & 0xff) << 8;
+			int matchLength = token & 0x0f;
+			if(matchLength == 15)
+			{
+				int b;
+				do
+				{
+					b = compressed[ip++] & 0xff;
+					matchLength += b;
+				}
+				while(b == 255);
+			}
+			matchLength += 4;
+			// byte by byte, a match may overlap the bytes it copies
+			for(int i = 0; i < matchLength; i++, op++)
+			{
+				data[op] = data[op - offset];
+			}
+		}
+		assertEquals(data.length, op);
+		return data;
+	}
+
+	private static int readIntLE(byte[] b, int i)
+	{
+		return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException
+	{
+		try(InputStream input = in)
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while((n = input.read(buffer)) != -1)
+			{
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		}
+	}
+}
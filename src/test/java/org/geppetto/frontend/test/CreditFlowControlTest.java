@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geppetto.frontend.messaging.CreditFlowControl;
+import org.geppetto.frontend.messaging.PausableSerialExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CreditFlowControlTest
+{
+
+	private static final long TIMEOUT = 5000;
+
+	private ScheduledExecutorService scheduler;
+
+	private final AtomicInteger timeouts = new AtomicInteger();
+
+	private final CountDownLatch timedOut = new CountDownLatch(1);
+
+	private final Runnable timeoutTask = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			timeouts.incrementAndGet();
+			timedOut.countDown();
+		}
+	};
+
+	/**
+	 * Runs the tasks of the lanes in the thread that schedules them.
+	 */
+	private static final Executor DIRECT = new Executor()
+	{
+		@Override
+		public void execute(Runnable command)
+		{
+			command.run();
+		}
+	};
+
+	@Before
+	public void setUp()
+	{
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@After
+	public void tearDown()
+	{
+		scheduler.shutdownNow();
+	}
+
+	@Test
+	public void testNoCreditNeededWithoutFlowControl()
+	{
+		CreditFlowControl credit = new CreditFlowControl(0, null, timeoutTask);
+		for(int i = 0; i < 100; i++)
+		{
+			credit.consume(1000);
+		}
+		assertFalse(credit.isExhausted());
+		assertTrue(credit.acquire(new PausableSerialExecutor(DIRECT, 10, false), null));
+	}
+
+	@Test
+	public void testMessagesAreCounted()
+	{
+		CreditFlowControl credit = new CreditFlowControl(0, null, timeoutTask);
+		credit.enable(2, 1000);
+		credit.consume(10);
+		assertFalse(credit.isExhausted());
+		credit.consume(10);
+		assertTrue(credit.isExhausted());
+		credit.grant(1, 0);
+		assertFalse(credit.isExhausted());
+	}
+
+	@Test
+	public void testBytesAreCounted()
+	{
+		CreditFlowControl credit = new CreditFlowControl(0, null, timeoutTask);
+		credit.enable(10, 100);
+		credit.consume(60);
+		assertFalse(credit.isExhausted());
+		credit.consume(60);
+		assertTrue(credit.isExhausted());
+
+		// the credit went below zero, a grant smaller than the debt isn't enough
+		credit.grant(1, 20);
+		assertTrue(credit.isExhausted());
+		credit.grant(0, 1);
+		assertFalse(credit.isExhausted());
+	}
+
+	@Test
+	public void testEmptyWindowIsIgnored()
+	{
+		CreditFlowControl credit = new CreditFlowControl(0, null, timeoutTask);
+		credit.enable(0, 100);
+		credit.consume(100);
+		assertFalse(credit.isExhausted());
+	}
+
+	@Test
+	public void testTaskIsHeldUntilCreditIsGranted()
+	{
+		final CreditFlowControl credit = new CreditFlowControl(0, null, timeoutTask);
+		credit.enable(1, 1000);
+		credit.consume(10);
+
+		final PausableSerialExecutor lane = new PausableSerialExecutor(DIRECT, 10, false);
+		final AtomicInteger runs = new AtomicInteger();
+		final AtomicInteger sent = new AtomicInteger();
+		Runnable task = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				runs.incrementAndGet();
+				if(credit.acquire(lane, this))
+				{
+					sent.incrementAndGet();
+				}
+			}
+		};
+
+		lane.getQueue().add(task);
+		lane.release();
+		assertEquals(1, runs.get());
+		assertEquals(0, sent.get());
+		assertTrue(lane.isHeld());
+
+		credit.grant(1, 10);
+		assertFalse(lane.isHeld());
+		assertEquals(2, runs.get());
+		assertEquals(1, sent.get());
+	}
+
+	@Test
+	public void testNewWindowReleasesTheLane()
+	{
+		CreditFlowControl credit = new CreditFlowControl(0, null, timeoutTask);
+		credit.enable(1, 1000);
+		credit.consume(10);
+
+		PausableSerialExecutor lane = new PausableSerialExecutor(DIRECT, 10, false);
+		assertFalse(credit.acquire(lane, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+			}
+		}));
+		assertTrue(lane.isHeld());
+
+		// a client that resumed its session declares its window again
+		credit.enable(4, 1000);
+		assertFalse(lane.isHeld());
+		assertFalse(credit.isExhausted());
+	}
+
+	@Test
+	public void testConnectionIsGivenUpWithoutCredit() throws InterruptedException
+	{
+		CreditFlowControl credit = new CreditFlowControl(50, scheduler, timeoutTask);
+		credit.enable(1, 1000);
+		credit.consume(10);
+
+		assertFalse(credit.acquire(new PausableSerialExecutor(DIRECT, 10, false), null));
+		assertTrue(timedOut.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(1, timeouts.get());
+	}
+
+	@Test
+	public void testGrantStopsTheTimeout() throws InterruptedException
+	{
+		CreditFlowControl credit = new CreditFlowControl(100, scheduler, timeoutTask);
+		credit.enable(1, 1000);
+		credit.consume(10);
+
+		assertFalse(credit.acquire(new PausableSerialExecutor(DIRECT, 10, false), null));
+		credit.grant(1, 1000);
+
+		assertFalse(timedOut.await(300, TimeUnit.MILLISECONDS));
+		assertEquals(0, timeouts.get());
+	}
+}
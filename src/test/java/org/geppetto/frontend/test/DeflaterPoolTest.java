@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.geppetto.frontend.messaging.CompressionCodec;
+import org.geppetto.frontend.messaging.DeflateCodec;
+import org.geppetto.frontend.messaging.DeflaterPool;
+import org.geppetto.frontend.messaging.GzipCodec;
+import org.junit.Test;
+
+public class DeflaterPoolTest
+{
+
+	private static final byte[] DATA = getData();
+
+	@Test
+	public void testReusedByLevelAndFormat()
+	{
+		DeflaterPool pool = new DeflaterPool();
+		Deflater deflater = pool.borrow(1, true);
+		pool.release(deflater, 1, true);
+
+		assertNotSame(deflater, pool.borrow(9, true));
+		assertNotSame(deflater, pool.borrow(1, false));
+		assertSame(deflater, pool.borrow(1, true));
+	}
+
+	@Test
+	public void testMaxIdle()
+	{
+		DeflaterPool pool = new DeflaterPool(1);
+		Deflater first = pool.borrow(6, true);
+		Deflater second = pool.borrow(6, true);
+		pool.release(first, 6, true);
+		pool.release(second, 6, true);
+
+		assertSame(first, pool.borrow(6, true));
+		Deflater created = pool.borrow(6, true);
+		assertNotSame(first, created);
+		assertNotSame(second, created);
+	}
+
+	/**
+	 * A reused deflater compresses as a new one at its level, whatever was compressed with the pool at other levels in between.
+	 */
+	@Test
+	public void testReuseAcrossLevels() throws IOException
+	{
+		DeflaterPool pool = new DeflaterPool();
+		DeflateCodec codec = new DeflateCodec(6, pool);
+		for(int round = 0; round < 3; round++)
+		{
+			for(int level : new int[] { 1, 9, -1, 0, 6 })
+			{
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				try(OutputStream compressor = codec.compress(out, level))
+				{
+					compressor.write(DATA);
+				}
+				assertArrayEquals(deflate(level), out.toByteArray());
+			}
+		}
+	}
+
+	/**
+	 * Gzip and deflate borrow the same raw deflaters.
+	 */
+	@Test
+	public void testSharedByCodecs() throws IOException
+	{
+		DeflaterPool pool = new DeflaterPool();
+		CompressionCodec gzip = new GzipCodec(1, pool);
+		CompressionCodec deflate = new DeflateCodec(1, pool);
+		for(int round = 0; round < 3; round++)
+		{
+			assertArrayEquals(deflate(1), compress(deflate));
+
+			ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+			try(GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compress(gzip))))
+			{
+				byte[] buffer = new byte[8192];
+				int n;
+				while((n = in.read(buffer)) != -1)
+				{
+					uncompressed.write(buffer, 0, n);
+				}
+			}
+			assertArrayEquals(DATA, uncompressed.toByteArray());
+		}
+	}
+
+	private static byte[] compress(CompressionCodec codec) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(OutputStream compressor = codec.compress(out))
+		{
+			compressor.write(DATA);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return the data compressed by a new deflater
+	 */
+	private static byte[] deflate(int level) throws IOException
+	{
+		Deflater deflater = new Deflater(level, true);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(DeflaterOutputStream compressor = new DeflaterOutputStream(out, deflater, 8192))
+		{
+			compressor.write(DATA);
+		}
+		finally
+		{
+			deflater.end();
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] getData()
+	{
+		StringBuilder json = new StringBuilder("[");
+		for(int i = 0; i < 5000; i++)
+		{
+			json.append(i > 0 ? "," : "").append("{\"id\":").append(i).append(",\"value\":").append(Math.cos(i)).append('}');
+		}
+		return json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
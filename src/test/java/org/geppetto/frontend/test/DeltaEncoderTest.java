@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.geppetto.frontend.messages.OutboundMessages;
+import org.geppetto.frontend.messaging.DeltaEncoder;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Decodes the encoded updates as a client does and checks that applying each delta to the previous update gives the next one.
+ */
+public class DeltaEncoderTest
+{
+
+	private static final OutboundMessages TYPE = OutboundMessages.EXPERIMENT_STATUS;
+
+	@Test
+	public void testFirstUpdateIsKeyframe()
+	{
+		JsonObject encoded = encode(new DeltaEncoder(10), "1", "{\"1\":{\"status\":\"DESIGN\"}}");
+		assertTrue(encoded.get("keyframe").getAsBoolean());
+		assertEquals(1, encoded.get("seq").getAsLong());
+		assertEquals(TYPE.toString(), encoded.get("type").getAsString());
+		assertEquals(parse("{\"1\":{\"status\":\"DESIGN\"}}"), encoded.get("delta"));
+	}
+
+	@Test
+	public void testOnlyChangesAreSent()
+	{
+		DeltaEncoder encoder = new DeltaEncoder(10);
+		encode(encoder, "1", "{\"1\":{\"status\":\"RUNNING\",\"projectID\":1},\"2\":{\"status\":\"DESIGN\",\"projectID\":1},\"3\":{\"status\":\"ERROR\"}}");
+		JsonObject encoded = encode(encoder, "1", "{\"1\":{\"status\":\"COMPLETED\",\"projectID\":1},\"2\":{\"status\":\"DESIGN\",\"projectID\":1}}");
+
+		assertFalse(encoded.get("keyframe").getAsBoolean());
+		assertEquals(parse("{\"1\":{\"status\":\"COMPLETED\"},\"" + DeltaEncoder.REMOVED + "\":[\"3\"]}"), encoded.get("delta"));
+	}
+
+	@Test
+	public void testUnchangedUpdateHasEmptyDelta()
+	{
+		DeltaEncoder encoder = new DeltaEncoder(10);
+		encode(encoder, "1", "{\"1\":{\"status\":\"DESIGN\"}}");
+		assertEquals(new JsonObject(), encode(encoder, "1", "{\"1\":{\"status\":\"DESIGN\"}}").get("delta"));
+	}
+
+	@Test
+	public void testKeyframes()
+	{
+		DeltaEncoder encoder = new DeltaEncoder(2);
+		String key = encode(encoder, "1", "{\"a\":1}").get("key").getAsString();
+		assertFalse(encode(encoder, "1", "{\"a\":2}").get("keyframe").getAsBoolean());
+		assertFalse(encode(encoder, "1", "{\"a\":3}").get("keyframe").getAsBoolean());
+		// every keyframeInterval updates
+		assertTrue(encode(encoder, "1", "{\"a\":4}").get("keyframe").getAsBoolean());
+
+		encoder.requestKeyframe(key);
+		assertTrue(encode(encoder, "1", "{\"a\":5}").get("keyframe").getAsBoolean());
+		assertFalse(encode(encoder, "1", "{\"a\":6}").get("keyframe").getAsBoolean());
+
+		encoder.requestKeyframes();
+		assertTrue(encode(encoder, "1", "{\"a\":7}").get("keyframe").getAsBoolean());
+
+		// an update that isn't an object is always sent whole
+		assertTrue(encode(encoder, "1", "[1,2]").get("keyframe").getAsBoolean());
+		assertTrue(encode(encoder, "1", "{\"a\":8}").get("keyframe").getAsBoolean());
+	}
+
+	@Test
+	public void testScopesAreIndependent()
+	{
+		DeltaEncoder encoder = new DeltaEncoder(10);
+		encode(encoder, "1", "{\"a\":1}");
+		JsonObject other = encode(encoder, "2", "{\"a\":1}");
+		assertTrue(other.get("keyframe").getAsBoolean());
+		assertEquals(1, other.get("seq").getAsLong());
+		assertEquals(2, encode(encoder, "1", "{\"a\":2}").get("seq").getAsLong());
+	}
+
+	@Test
+	public void testRemovedScopeStartsOver()
+	{
+		DeltaEncoder encoder = new DeltaEncoder(10);
+		encode(encoder, "1", "{\"a\":1}");
+		encode(encoder, "1/2", "{\"a\":1}");
+		encode(encoder, "2", "{\"a\":1}");
+		encoder.removeScope("1");
+
+		JsonObject removed = encode(encoder, "1", "{\"a\":1}");
+		assertTrue(removed.get("keyframe").getAsBoolean());
+		assertEquals(1, removed.get("seq").getAsLong());
+		assertFalse(encode(encoder, "1/2", "{\"a\":2}").get("keyframe").getAsBoolean());
+		assertFalse(encode(encoder, "2", "{\"a\":2}").get("keyframe").getAsBoolean());
+	}
+
+	/**
+	 * Members that change kind, between objects, arrays, primitives and nulls, and nested members added and removed.
+	 */
+	@Test
+	public void testApplyGivesNextUpdate()
+	{
+		String[] updates = { "{\"a\":{\"b\":1,\"c\":{\"d\":[1,2]}},\"e\":null}", "{\"a\":{\"b\":1,\"c\":{\"d\":[1,3]}},\"e\":{\"f\":true}}",
+				"{\"a\":5,\"e\":{\"f\":true,\"g\":null}}", "{\"a\":{\"x\":\"y\"},\"e\":{}}", "{\"a\":{\"x\":\"y\"},\"e\":{},\"h\":[{\"i\":1}]}", "{}", "{\"z\":\"\"}" };
+		DeltaEncoder encoder = new DeltaEncoder(100);
+		JsonElement decoded = null;
+		for(String update : updates)
+		{
+			decoded = decode(decoded, encode(encoder, "1", update));
+			assertEquals(parse(update), decoded);
+		}
+	}
+
+	@Test
+	public void testApplyGivesNextUpdateRandomly()
+	{
+		Random random = new Random(7);
+		DeltaEncoder encoder = new DeltaEncoder(25);
+		JsonObject experiments = new JsonObject();
+		JsonElement decoded = null;
+		long sequence = 0;
+		for(int i = 0; i < 500; i++)
+		{
+			mutate(experiments, random, 0);
+			JsonObject encoded = encode(encoder, "1", experiments.toString());
+			assertEquals(++sequence, encoded.get("seq").getAsLong());
+			decoded = decode(decoded, encoded);
+			assertEquals(experiments, decoded);
+			if(random.nextInt(50) == 0)
+			{
+				encoder.requestKeyframe(encoded.get("key").getAsString());
+			}
+		}
+	}
+
+	private static void mutate(JsonObject object, Random random, int depth)
+	{
+		int changes = 1 + random.nextInt(3);
+		for(int i = 0; i < changes; i++)
+		{
+			String name = Integer.toString(random.nextInt(8));
+			JsonElement member = object.get(name);
+			switch(random.nextInt(6))
+			{
+				case 0:
+					object.remove(name);
+					break;
+				case 1:
+					object.add(name, JsonNull.INSTANCE);
+					break;
+				case 2:
+					JsonArray array = new JsonArray();
+					array.add(new JsonPrimitive(random.nextInt(3)));
+					object.add(name, array);
+					break;
+				case 3:
+					if(member != null && member.isJsonObject() && depth < 3)
+					{
+						mutate(member.getAsJsonObject(), random, depth + 1);
+						break;
+					}
+					// fall through
+				case 4:
+					object.add(name, new JsonObject());
+					break;
+				default:
+					object.add(name, new JsonPrimitive(new String[] { "DESIGN", "QUEUED", "RUNNING", "COMPLETED", "ERROR" }[random.nextInt(5)]));
+			}
+		}
+	}
+
+	private static JsonObject encode(DeltaEncoder encoder, String scope, String update)
+	{
+		return parse(encoder.encode(TYPE, scope, update)).getAsJsonObject();
+	}
+
+	private static JsonElement decode(JsonElement previous, JsonObject encoded)
+	{
+		JsonElement delta = encoded.get("delta");
+		if(encoded.get("keyframe").getAsBoolean())
+		{
+			return delta;
+		}
+		return apply(previous.getAsJsonObject(), delta.getAsJsonObject());
+	}
+
+	/**
+	 * @return a copy of the object with the delta applied
+	 */
+	private static JsonObject apply(JsonObject object, JsonObject delta)
+	{
+		JsonObject applied = new JsonObject();
+		for(Map.Entry<String, JsonElement> member : object.entrySet())
+		{
+			applied.add(member.getKey(), member.getValue());
+		}
+
+		for(Map.Entry<String, JsonElement> member : delta.entrySet())
+		{
+			String name = member.getKey();
+			if(name.equals(DeltaEncoder.REMOVED))
+			{
+				List<String> removed = new ArrayList<String>();
+				for(JsonElement element : member.getValue().getAsJsonArray())
+				{
+					removed.add(element.getAsString());
+				}
+				for(String removedName : removed)
+				{
+					applied.remove(removedName);
+				}
+			}
+			else if(member.getValue().isJsonObject() && applied.has(name) && applied.get(name).isJsonObject())
+			{
+				applied.add(name, apply(applied.get(name).getAsJsonObject(), member.getValue().getAsJsonObject()));
+			}
+			else
+			{
+				applied.add(name, member.getValue());
+			}
+		}
+		return applied;
+	}
+
+	private static JsonElement parse(String json)
+	{
+		return new JsonParser().parse(json);
+	}
+}
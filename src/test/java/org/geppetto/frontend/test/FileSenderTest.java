@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.geppetto.frontend.messaging.BufferPool;
+import org.geppetto.frontend.messaging.CreditFlowControl;
+import org.geppetto.frontend.messaging.FileSender;
+import org.geppetto.frontend.messaging.FrameWriter;
+import org.geppetto.frontend.messaging.MessageChannel;
+import org.geppetto.frontend.messaging.MessagePriority;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Reads the frames a {@link FileSender} writes as a client does and checks that the chunks follow the acknowledgements.
+ */
+public class FileSenderTest
+{
+
+	private static final int CHUNK_SIZE = 100;
+
+	private Path file;
+
+	private byte[] content;
+
+	private RecordingFrameWriter frameWriter;
+
+	private FileSender fileSender;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		content = new byte[250];
+		new Random(7).nextBytes(content);
+		file = Files.createTempFile("geppetto", ".bin");
+		Files.write(file, content);
+
+		frameWriter = new RecordingFrameWriter();
+		fileSender = new FileSender(frameWriter, CHUNK_SIZE);
+		fileSender.setChunkedFilesSupported(true);
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		fileSender.shutdown();
+		Files.delete(file);
+	}
+
+	@Test
+	public void testChunksFollowAcknowledgements() throws IOException
+	{
+		fileSender.send(file);
+		assertEquals(1, frameWriter.frames.size());
+		Chunk first = new Chunk(frameWriter.frames.get(0));
+		assertEquals(0, first.offset);
+		assertEquals(content.length, first.size);
+		assertEquals(file.getFileName().toString(), first.name);
+
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		received.write(first.data);
+		while(received.size() < content.length)
+		{
+			fileSender.acknowledge(first.transferId, (long) received.size());
+			Chunk chunk = new Chunk(frameWriter.frames.get(frameWriter.frames.size() - 1));
+			assertEquals(first.transferId, chunk.transferId);
+			assertEquals(received.size(), chunk.offset);
+			assertEquals("", chunk.name);
+			received.write(chunk.data);
+		}
+
+		assertEquals(3, frameWriter.frames.size());
+		assertArrayEquals(content, received.toByteArray());
+		assertEquals(0, fileSender.getTransferCount());
+	}
+
+	@Test
+	public void testAcknowledgementWithoutCountCarriesOn() throws IOException
+	{
+		fileSender.send(file);
+		int transferId = new Chunk(frameWriter.frames.get(0)).transferId;
+		while(fileSender.getTransferCount() > 0)
+		{
+			fileSender.acknowledge(transferId, null);
+		}
+
+		long offset = 0;
+		for(byte[] frame : frameWriter.frames)
+		{
+			Chunk chunk = new Chunk(frame);
+			assertEquals(offset, chunk.offset);
+			offset += chunk.data.length;
+		}
+		assertEquals(content.length, offset);
+	}
+
+	@Test
+	public void testLostChunkIsSentAgain() throws IOException
+	{
+		fileSender.send(file);
+		Chunk first = new Chunk(frameWriter.frames.get(0));
+		long received = first.data.length;
+		fileSender.acknowledge(first.transferId, received);
+		Chunk lost = new Chunk(frameWriter.frames.get(1));
+
+		// the second chunk was lost with the connection, the resumed client still has the first one only
+		fileSender.acknowledge(first.transferId, received);
+		Chunk again = new Chunk(frameWriter.frames.get(2));
+		assertEquals(received, again.offset);
+		assertArrayEquals(lost.data, again.data);
+		assertArrayEquals(Arrays.copyOfRange(content, (int) received, (int) received + again.data.length), again.data);
+		assertEquals(1, fileSender.getTransferCount());
+
+		received += again.data.length;
+		fileSender.acknowledge(first.transferId, received);
+		Chunk last = new Chunk(frameWriter.frames.get(3));
+		assertEquals(received, last.offset);
+		assertEquals(content.length - received, last.data.length);
+		assertEquals(0, fileSender.getTransferCount());
+	}
+
+	@Test
+	public void testFirstChunkSentAgainCarriesTheName() throws IOException
+	{
+		fileSender.send(file);
+		int transferId = new Chunk(frameWriter.frames.get(0)).transferId;
+		fileSender.acknowledge(transferId, 0L);
+
+		Chunk again = new Chunk(frameWriter.frames.get(1));
+		assertEquals(0, again.offset);
+		assertEquals(file.getFileName().toString(), again.name);
+	}
+
+	@Test
+	public void testUnknownTransferIsIgnored() throws IOException
+	{
+		fileSender.acknowledge(42, 0L);
+		assertTrue(frameWriter.frames.isEmpty());
+	}
+
+	@Test
+	public void testAcknowledgementPastTheEndEndsTheTransfer() throws IOException
+	{
+		fileSender.send(file);
+		int transferId = new Chunk(frameWriter.frames.get(0)).transferId;
+		try
+		{
+			fileSender.acknowledge(transferId, (long) content.length + 1);
+		}
+		catch(IllegalArgumentException e)
+		{
+			assertEquals(0, fileSender.getTransferCount());
+			return;
+		}
+		fail("an offset past the end of the file should have been refused");
+	}
+
+	@Test
+	public void testWholeFileWithoutChunks() throws IOException
+	{
+		fileSender.setChunkedFilesSupported(false);
+		fileSender.send(file);
+
+		ByteBuffer frame = ByteBuffer.wrap(frameWriter.frames.get(0));
+		assertEquals(1, frame.get());
+		byte[] name = new byte[frame.get()];
+		frame.get(name);
+		assertEquals(file.getFileName().toString(), new String(name, StandardCharsets.UTF_8));
+		byte[] data = new byte[frame.remaining()];
+		frame.get(data);
+		assertArrayEquals(content, data);
+		assertEquals(0, fileSender.getTransferCount());
+	}
+
+	/**
+	 * A writer without a connection that keeps a copy of the frames it is given.
+	 */
+	private static class RecordingFrameWriter extends FrameWriter
+	{
+
+		private final List<byte[]> frames = new ArrayList<>();
+
+		RecordingFrameWriter()
+		{
+			super(null, null, null, null, new BufferPool(), new CreditFlowControl(0, null, null), null);
+		}
+
+		@Override
+		public void writeBinary(ByteBuffer frame, MessagePriority priority, MessageChannel channel) throws IOException
+		{
+			assertEquals(MessagePriority.LOW, priority);
+			assertEquals(MessageChannel.FILES, channel);
+			byte[] copy = new byte[frame.remaining()];
+			frame.get(copy);
+			frames.add(copy);
+		}
+
+		@Override
+		public void writeBinary(ByteBuffer header, ReadableByteChannel content, long contentLength, MessagePriority priority, MessageChannel channel) throws IOException
+		{
+			ByteBuffer frame = ByteBuffer.allocate(header.remaining() + (int) contentLength);
+			frame.put(header);
+			while(frame.hasRemaining() && content.read(frame) >= 0)
+			{
+			}
+			frames.add(frame.array());
+		}
+	}
+
+	/**
+	 * A chunk of a file as the client reads it.
+	 */
+	private static class Chunk
+	{
+
+		private final int transferId;
+		private final long offset;
+		private final long size;
+		private final String name;
+		private final byte[] data;
+
+		Chunk(byte[] frame)
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals(4, buffer.get());
+			transferId = buffer.getInt();
+			offset = buffer.getLong();
+			size = buffer.getLong();
+			byte[] name = new byte[buffer.getShort()];
+			buffer.get(name);
+			this.name = new String(name, StandardCharsets.UTF_8);
+			data = new byte[buffer.remaining()];
+			buffer.get(data);
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.catalina.websocket.WsOutbound;
+import org.geppetto.frontend.messages.OutboundMessages;
+import org.geppetto.frontend.messaging.BufferPool;
+import org.geppetto.frontend.messaging.CreditFlowControl;
+import org.geppetto.frontend.messaging.FrameWriter;
+import org.geppetto.frontend.messaging.ReplayBuffer;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Reads the frames a {@link FrameWriter} writes as a client does and checks that a client which lost its connection is sent the frames it missed, numbered as they were the first time.
+ */
+public class FrameWriterTest
+{
+
+	@Test
+	public void testFramesAreNumbered() throws IOException
+	{
+		RecordingOutbound outbound = new RecordingOutbound();
+		FrameWriter frameWriter = frameWriter(outbound, new ReplayBuffer(1024 * 1024));
+
+		frameWriter.writeText("1", OutboundMessages.GEPPETTO_VERSION, "\"v\"");
+		frameWriter.writeBinary(new byte[] { 2, 1, 2, 3 }, 4, OutboundMessages.GET_MODEL_TREE);
+
+		assertEquals(2, outbound.frames.size());
+		assertEquals(1, sequence(outbound.frames.get(0)));
+		assertEquals("1", parse(outbound.frames.get(0)).get("requestID").getAsString());
+		assertEquals(2, sequence(outbound.frames.get(1)));
+		assertArrayEquals(new byte[] { 2, 1, 2, 3 }, content(outbound.frames.get(1)));
+	}
+
+	@Test
+	public void testFramesAreNotNumberedWithoutReplay() throws IOException
+	{
+		RecordingOutbound outbound = new RecordingOutbound();
+		FrameWriter frameWriter = frameWriter(outbound, null);
+
+		frameWriter.writeText("1", OutboundMessages.GEPPETTO_VERSION, "\"v\"");
+		frameWriter.writeBinary(new byte[] { 2, 1, 2, 3 }, 4, OutboundMessages.GET_MODEL_TREE);
+
+		assertFalse(parse(outbound.frames.get(0)).has("seq"));
+		assertArrayEquals(new byte[] { 2, 1, 2, 3 }, (byte[]) outbound.frames.get(1));
+	}
+
+	@Test
+	public void testReplayAfterReconnect() throws IOException
+	{
+		RecordingOutbound lost = new RecordingOutbound();
+		FrameWriter frameWriter = frameWriter(lost, new ReplayBuffer(1024 * 1024));
+		frameWriter.writeText("1", OutboundMessages.GEPPETTO_VERSION, "\"v\"");
+		frameWriter.writeBinary(new byte[] { 2, 1, 2, 3 }, 4, OutboundMessages.GET_MODEL_TREE);
+		frameWriter.writeText("3", OutboundMessages.EXPERIMENT_STATUS, "{\"1\":\"RUNNING\"}");
+
+		// the connection is lost after the client got the first frame only, the writer goes on meanwhile
+		long received = sequence(lost.frames.get(0));
+		frameWriter.detach();
+		frameWriter.writeBinary(new byte[] { 2, 1, 4, 5 }, 4, OutboundMessages.GET_MODEL_TREE);
+		frameWriter.writeText("5", OutboundMessages.EXPERIMENT_STATUS, "{\"1\":\"COMPLETED\"}");
+		assertEquals(3, lost.frames.size());
+
+		RecordingOutbound reconnected = new RecordingOutbound();
+		assertTrue(frameWriter.attach(reconnected, received));
+		frameWriter.writeText("6", OutboundMessages.GEPPETTO_VERSION, "\"after\"");
+
+		// the frames the client missed, sent as they were the first time, then the frames written since
+		assertEquals(5, reconnected.frames.size());
+		assertArrayEquals((byte[]) lost.frames.get(1), (byte[]) reconnected.frames.get(0));
+		assertEquals(lost.frames.get(2), reconnected.frames.get(1));
+		for(int i = 0; i < reconnected.frames.size(); i++)
+		{
+			assertEquals(received + 1 + i, sequence(reconnected.frames.get(i)));
+		}
+		assertArrayEquals(new byte[] { 2, 1, 4, 5 }, content(reconnected.frames.get(2)));
+		assertEquals("5", parse(reconnected.frames.get(3)).get("requestID").getAsString());
+		assertEquals("6", parse(reconnected.frames.get(4)).get("requestID").getAsString());
+	}
+
+	@Test
+	public void testNoReplayPastDroppedFrames() throws IOException
+	{
+		RecordingOutbound lost = new RecordingOutbound();
+		// room for a few short frames only
+		FrameWriter frameWriter = frameWriter(lost, new ReplayBuffer(400));
+		for(int i = 0; i < 5; i++)
+		{
+			frameWriter.writeText(String.valueOf(i), OutboundMessages.GEPPETTO_VERSION, "\"v\"");
+		}
+		frameWriter.detach();
+
+		RecordingOutbound reconnected = new RecordingOutbound();
+		assertFalse(frameWriter.attach(reconnected, 1));
+		assertTrue(reconnected.frames.isEmpty());
+		assertTrue(frameWriter.attach(reconnected, 4));
+		assertEquals(1, reconnected.frames.size());
+		assertEquals(5, sequence(reconnected.frames.get(0)));
+	}
+
+	private static FrameWriter frameWriter(WsOutbound outbound, ReplayBuffer replayBuffer)
+	{
+		return new FrameWriter(outbound, null, null, null, new BufferPool(), new CreditFlowControl(0, null, null), replayBuffer);
+	}
+
+	/**
+	 * @return the number of a frame, from the envelope of a text frame or the header of a binary one
+	 */
+	private static long sequence(Object frame)
+	{
+		if(frame instanceof String)
+		{
+			return parse(frame).get("seq").getAsLong();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap((byte[]) frame).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(7, buffer.get());
+		return buffer.getInt() & 0xffffffffL;
+	}
+
+	/**
+	 * @return the binary frame following the number
+	 */
+	private static byte[] content(Object frame)
+	{
+		byte[] bytes = (byte[]) frame;
+		return Arrays.copyOfRange(bytes, 5, bytes.length);
+	}
+
+	private static JsonObject parse(Object frame)
+	{
+		return new JsonParser().parse((String) frame).getAsJsonObject();
+	}
+
+	/**
+	 * Keeps the frames written, text frames as strings and binary frames as byte arrays.
+	 */
+	private static class RecordingOutbound extends WsOutbound
+	{
+
+		private final List<Object> frames = new ArrayList<>();
+
+		private final StringBuilder text = new StringBuilder();
+
+		RecordingOutbound()
+		{
+			super(null, null);
+		}
+
+		@Override
+		public void writeTextData(char c)
+		{
+			text.append(c);
+		}
+
+		@Override
+		public void flush()
+		{
+			frames.add(text.toString());
+			text.setLength(0);
+		}
+
+		@Override
+		public void writeBinaryMessage(ByteBuffer message)
+		{
+			byte[] frame = new byte[message.remaining()];
+			message.get(frame);
+			frames.add(frame);
+		}
+	}
+}
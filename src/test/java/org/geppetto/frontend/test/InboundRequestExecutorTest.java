@@ -0,0 +1,411 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geppetto.frontend.messages.InboundMessages;
+import org.geppetto.frontend.messaging.InboundRequestExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InboundRequestExecutorTest
+{
+
+	private static final long TIMEOUT = 5000;
+
+	private static final InboundMessages WRITE = InboundMessages.SET_PARAMETERS;
+	private static final InboundMessages READ = InboundMessages.GET_MODEL_TREE;
+	private static final InboundMessages INLINE = InboundMessages.CREDIT;
+	private static final InboundMessages SINGLE_FLIGHT = InboundMessages.LOAD_EXPERIMENT;
+
+	private ExecutorService workers;
+
+	@Before
+	public void setUp()
+	{
+		workers = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown()
+	{
+		workers.shutdownNow();
+	}
+
+	private InboundRequestExecutor createExecutor(int maxPendingRequests, long idempotencyWindow)
+	{
+		return new InboundRequestExecutor(workers, maxPendingRequests, EnumSet.of(INLINE), EnumSet.of(READ), EnumSet.of(SINGLE_FLIGHT), idempotencyWindow, 250);
+	}
+
+	@Test
+	public void testRequestsOnAProjectRunInOrder() throws InterruptedException
+	{
+		InboundRequestExecutor executor = createExecutor(100, 10000);
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(50);
+		for(int i = 0; i < 50; i++)
+		{
+			final int index = i;
+			assertEquals(0, executor.execute(WRITE, "r" + i, 1L, null, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					int now = running.incrementAndGet();
+					maxRunning.set(Math.max(maxRunning.get(), now));
+					order.add(index);
+					running.decrementAndGet();
+					done.countDown();
+				}
+			}));
+		}
+		assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(1, maxRunning.get());
+		for(int i = 0; i < 50; i++)
+		{
+			assertEquals(Integer.valueOf(i), order.get(i));
+		}
+	}
+
+	@Test
+	public void testProjectsAndReadsRunInParallel() throws InterruptedException
+	{
+		InboundRequestExecutor executor = createExecutor(100, 10000);
+		CountDownLatch started = new CountDownLatch(4);
+		CountDownLatch gate = new CountDownLatch(1);
+		executor.execute(WRITE, "a", 1L, null, new Blocking(started, gate));
+		executor.execute(WRITE, "b", 2L, null, new Blocking(started, gate));
+		executor.execute(READ, "c", 3L, null, new Blocking(started, gate));
+		executor.execute(READ, "d", 3L, null, new Blocking(started, gate));
+		// each waits for the others to start
+		assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		gate.countDown();
+	}
+
+	@Test
+	public void testRequestOnTheConnectionWaitsForEveryProject() throws InterruptedException
+	{
+		InboundRequestExecutor executor = createExecutor(100, 10000);
+		CountDownLatch firstStarted = new CountDownLatch(1);
+		CountDownLatch firstGate = new CountDownLatch(1);
+		CountDownLatch connectionStarted = new CountDownLatch(1);
+		CountDownLatch connectionGate = new CountDownLatch(1);
+		CountDownLatch lastStarted = new CountDownLatch(1);
+
+		executor.execute(WRITE, "a", 1L, null, new Blocking(firstStarted, firstGate));
+		executor.execute(InboundMessages.LOAD_PROJECT_FROM_ID, "b", null, null, new Blocking(connectionStarted, connectionGate));
+		executor.execute(READ, "c", 2L, null, new Blocking(lastStarted, new CountDownLatch(0)));
+
+		assertTrue(firstStarted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertFalse(connectionStarted.await(100, TimeUnit.MILLISECONDS));
+		firstGate.countDown();
+		assertTrue(connectionStarted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		// nothing overtakes a request on the whole connection, not even a read on another project
+		assertFalse(lastStarted.await(100, TimeUnit.MILLISECONDS));
+		connectionGate.countDown();
+		assertTrue(lastStarted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testInlineRequestsDontWait()
+	{
+		InboundRequestExecutor executor = createExecutor(1, 10000);
+		CountDownLatch gate = new CountDownLatch(1);
+		executor.execute(InboundMessages.LOAD_PROJECT_FROM_ID, "a", null, null, new Blocking(new CountDownLatch(1), gate));
+
+		final Thread caller = Thread.currentThread();
+		final List<Thread> ranOn = new ArrayList<Thread>();
+		assertEquals(0, executor.execute(INLINE, "b", null, null, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ranOn.add(Thread.currentThread());
+			}
+		}));
+		assertEquals(Arrays.asList(caller), ranOn);
+		gate.countDown();
+	}
+
+	@Test
+	public void testCancelDropsPendingRequest() throws InterruptedException
+	{
+		InboundRequestExecutor executor = createExecutor(100, 10000);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch gate = new CountDownLatch(1);
+		Counter cancelled = new Counter();
+		CountDownLatch lastDone = new CountDownLatch(1);
+
+		executor.execute(WRITE, "a", 1L, null, new Blocking(started, gate));
+		executor.execute(WRITE, "b", 1L, null, cancelled);
+		executor.execute(WRITE, "c", 1L, null, new Blocking(lastDone, new CountDownLatch(0)));
+		assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		executor.cancel("b");
+		gate.countDown();
+		assertTrue(lastDone.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(0, cancelled.get());
+	}
+
+	@Test
+	public void testCancelFlagsRunningRequest() throws InterruptedException
+	{
+		InboundRequestExecutor executor = createExecutor(100, 10000);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch gate = new CountDownLatch(1);
+		executor.execute(WRITE, "a", 1L, null, new Blocking(started, gate));
+		assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		assertFalse(executor.isCancelled("a"));
+		executor.cancel("a");
+		assertTrue(executor.isCancelled("a"));
+		assertFalse(executor.isCancelled("b"));
+		gate.countDown();
+	}
+
+	@Test
+	public void testRetryIsDropped() throws InterruptedException
+	{
+		InboundRequestExecutor executor = createExecutor(100, 10000);
+		Counter counter = new Counter();
+		assertEquals(0, executor.execute(WRITE, "a", 1L, null, counter));
+		assertEquals(-1, executor.execute(WRITE, "a", 1L, null, counter));
+		assertEquals(0, executor.execute(WRITE, "b", 1L, null, counter));
+		counter.await(2);
+		Thread.sleep(100);
+		assertEquals(2, counter.get());
+	}
+
+	@Test
+	public void testRetryIsExecutedAfterTheWindow() throws InterruptedException
+	{
+		InboundRequestExecutor executor = createExecutor(100, 50);
+		Counter counter = new Counter();
+		assertEquals(0, executor.execute(WRITE, "a", 1L, null, counter));
+		counter.await(1);
+		Thread.sleep(100);
+		assertEquals(0, executor.execute(WRITE, "a", 1L, null, counter));
+		counter.await(2);
+
+		InboundRequestExecutor withoutWindow = createExecutor(100, 0);
+		assertEquals(0, withoutWindow.execute(WRITE, "a", 1L, null, counter));
+		assertEquals(0, withoutWindow.execute(WRITE, "a", 1L, null, counter));
+		counter.await(4);
+	}
+
+	@Test
+	public void testBusyRequestIsRefusedAndCanBeRetried() throws InterruptedException
+	{
+		InboundRequestExecutor executor = createExecutor(1, 10000);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch gate = new CountDownLatch(1);
+		Counter counter = new Counter();
+		executor.execute(WRITE, "a", 1L, null, new Blocking(started, gate));
+		assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		assertEquals(250, executor.execute(WRITE, "b", 2L, null, counter));
+		gate.countDown();
+		// a refused request isn't remembered as received, sending it again isn't a retry
+		long retryAfter;
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		do
+		{
+			retryAfter = executor.execute(WRITE, "b", 2L, null, counter);
+		}
+		while(retryAfter > 0 && System.currentTimeMillis() < deadline);
+		assertEquals(0, retryAfter);
+		counter.await(1);
+	}
+
+	@Test
+	public void testIdenticalRequestJoins() throws InterruptedException
+	{
+		InboundRequestExecutor executor = createExecutor(100, 10000);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch gate = new CountDownLatch(1);
+		Counter counter = new Counter();
+		executor.execute(SINGLE_FLIGHT, "a", 1L, "k", new Blocking(started, gate));
+		assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		assertEquals(0, executor.execute(SINGLE_FLIGHT, "b", 1L, "k", counter));
+		assertEquals(Arrays.asList("b"), executor.getJoinedRequests("a"));
+
+		// the joined request keeps the first one going when the client cancels it
+		executor.cancel("a");
+		assertFalse(executor.isCancelled("a"));
+		executor.cancel("b");
+		assertTrue(executor.getJoinedRequests("a").isEmpty());
+
+		// a different key, or a type that isn't single flight, doesn't join
+		executor.execute(SINGLE_FLIGHT, "c", 2L, "other", counter);
+		executor.execute(WRITE, "d", 2L, "k", counter);
+		gate.countDown();
+		counter.await(2);
+	}
+
+	@Test
+	public void testIdenticalRequestDoesntOvertakeConflictingOne() throws InterruptedException
+	{
+		InboundRequestExecutor executor = createExecutor(100, 10000);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch gate = new CountDownLatch(1);
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		CountDownLatch done = new CountDownLatch(3);
+
+		executor.execute(WRITE, "blocker", 1L, null, new Blocking(started, gate));
+		assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		executor.execute(SINGLE_FLIGHT, "a", 1L, "k", new Recorder(order, "a", done));
+		executor.execute(WRITE, "w", 1L, null, new Recorder(order, "w", done));
+		executor.execute(SINGLE_FLIGHT, "b", 1L, "k", new Recorder(order, "b", done));
+		assertTrue(executor.getJoinedRequests("a").isEmpty());
+
+		executor.execute(SINGLE_FLIGHT, "c", 1L, "k", new Recorder(order, "c", done));
+		gate.countDown();
+		assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		Thread.sleep(100);
+		// c joined b, which waited for w
+		assertEquals(Arrays.asList("a", "w", "b"), order);
+	}
+
+	@Test
+	public void testShutdownDropsPendingRequests() throws InterruptedException
+	{
+		InboundRequestExecutor executor = createExecutor(100, 10000);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch gate = new CountDownLatch(1);
+		Counter counter = new Counter();
+		executor.execute(WRITE, "a", 1L, null, new Blocking(started, gate));
+		executor.execute(WRITE, "b", 1L, null, counter);
+		assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		executor.shutdown();
+		assertEquals(-1, executor.execute(WRITE, "c", 2L, null, counter));
+		gate.countDown();
+		Thread.sleep(100);
+		assertEquals(0, counter.get());
+	}
+
+	/**
+	 * Tells it started and waits for the gate to open.
+	 */
+	private static class Blocking implements Runnable
+	{
+		private final CountDownLatch started;
+		private final CountDownLatch gate;
+
+		Blocking(CountDownLatch started, CountDownLatch gate)
+		{
+			this.started = started;
+			this.gate = gate;
+		}
+
+		@Override
+		public void run()
+		{
+			started.countDown();
+			try
+			{
+				gate.await(TIMEOUT, TimeUnit.MILLISECONDS);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static class Recorder implements Runnable
+	{
+		private final List<String> order;
+		private final String name;
+		private final CountDownLatch done;
+
+		Recorder(List<String> order, String name, CountDownLatch done)
+		{
+			this.order = order;
+			this.name = name;
+			this.done = done;
+		}
+
+		@Override
+		public void run()
+		{
+			order.add(name);
+			done.countDown();
+		}
+	}
+
+	private static class Counter implements Runnable
+	{
+		private int count = 0;
+
+		@Override
+		public synchronized void run()
+		{
+			count++;
+			notifyAll();
+		}
+
+		synchronized int get()
+		{
+			return count;
+		}
+
+		synchronized void await(int expected) throws InterruptedException
+		{
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while(count < expected && System.currentTimeMillis() < deadline)
+			{
+				wait(deadline - System.currentTimeMillis());
+			}
+			assertEquals(expected, count);
+		}
+	}
+}
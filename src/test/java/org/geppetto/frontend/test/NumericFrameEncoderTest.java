@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import org.geppetto.frontend.messages.OutboundMessages;
+import org.geppetto.frontend.messaging.BufferPool;
+import org.geppetto.frontend.messaging.NumericFrameEncoder;
+import org.geppetto.frontend.messaging.PooledOutputStream;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Decodes the numeric frames as a client does and checks that putting the time series back into the tree gives the update that was encoded.
+ */
+public class NumericFrameEncoderTest
+{
+
+	private static final OutboundMessages TYPE = OutboundMessages.PLAY_EXPERIMENT;
+
+	private static final String UPDATE = "{\"hhcell\":{\"SimulationTree\":{\"time\":{\"unit\":\"s\",\"timeSeries\":[{\"value\":0.0,\"scale\":null},{\"value\":0.5,\"scale\":null}]},"
+			+ "\"hhpop\":[{\"v\":{\"unit\":\"V\",\"timeSeries\":[{\"value\":-0.065,\"scale\":\"m\"},{\"value\":-0.0649,\"scale\":\"m\"}]}}]},\"aspectInstancePath\":\"hhcell\"}}";
+
+	@Test
+	public void testTimeSeriesArePacked()
+	{
+		JsonObject header = new JsonObject();
+		JsonElement decoded = decode(encode(encoder(false), "1", UPDATE), header);
+
+		assertEquals("1", header.get("requestID").getAsString());
+		assertEquals(TYPE.toString(), header.get("type").getAsString());
+		assertEquals(2, header.get("variables").getAsJsonArray().size());
+		// the values are no longer in the tree that is sent as text
+		assertFalse(header.get("update").toString().contains("timeSeries"));
+		assertEquals(parse(UPDATE), decoded);
+	}
+
+	@Test
+	public void testSinglePrecision()
+	{
+		JsonObject header = new JsonObject();
+		JsonElement decoded = decode(encode(encoder(true), null, UPDATE), header);
+
+		assertFalse(header.has("requestID"));
+		assertEquals("float32", header.get("variables").getAsJsonArray().get(0).getAsJsonObject().get("type").getAsString());
+		JsonArray timeSeries = decoded.getAsJsonObject().getAsJsonObject("hhcell").getAsJsonObject("SimulationTree").getAsJsonArray("hhpop").get(0).getAsJsonObject().getAsJsonObject("v")
+				.getAsJsonArray("timeSeries");
+		assertEquals(-0.065, timeSeries.get(0).getAsJsonObject().get("value").getAsDouble(), 1e-7);
+		assertEquals(-0.0649, timeSeries.get(1).getAsJsonObject().get("value").getAsDouble(), 1e-7);
+	}
+
+	@Test
+	public void testTimeSeriesObject()
+	{
+		String update = "{\"v\":{\"timeSeries\":{\"quantity0\":{\"value\":1},\"quantity1\":{\"value\":2}}}}";
+		JsonElement decoded = decode(encode(encoder(false), "1", update), new JsonObject());
+		assertEquals(parse("{\"v\":{\"timeSeries\":[{\"value\":1.0},{\"value\":2.0}]}}"), decoded);
+	}
+
+	@Test
+	public void testOtherTimeSeriesStayInTree()
+	{
+		NumericFrameEncoder encoder = encoder(false);
+		// a value that is not a number, quantities with more than a value and a scale, or scales that differ
+		assertNull(encoder.encode("1", TYPE, "{\"v\":{\"timeSeries\":[{\"value\":\"a\"}]}}"));
+		assertNull(encoder.encode("1", TYPE, "{\"v\":{\"timeSeries\":[{\"value\":1,\"unit\":\"V\"}]}}"));
+		assertNull(encoder.encode("1", TYPE, "{\"v\":{\"timeSeries\":[{\"value\":1,\"scale\":\"m\"},{\"value\":1,\"scale\":\"u\"}]}}"));
+		assertNull(encoder.encode("1", TYPE, "{\"v\":{\"timeSeries\":[]}}"));
+		assertNull(encoder.encode("1", TYPE, "not json {"));
+
+		String update = "{\"a\":{\"timeSeries\":[{\"value\":1,\"unit\":\"V\"}]},\"b\":{\"timeSeries\":[{\"value\":1}]}}";
+		JsonObject header = new JsonObject();
+		assertEquals(parse(update), decode(encode(encoder, "1", update), header));
+		assertEquals(1, header.get("variables").getAsJsonArray().size());
+		assertTrue(header.get("update").toString().contains("unit"));
+	}
+
+	@Test
+	public void testOnlyForClientsThatSupportIt()
+	{
+		NumericFrameEncoder encoder = new NumericFrameEncoder(new BufferPool());
+		encoder.setNumericMessageTypes(Collections.singleton(TYPE));
+		assertFalse(encoder.isNumeric(TYPE));
+		encoder.setNumericFramesSupported(true);
+		assertTrue(encoder.isNumeric(TYPE));
+		assertFalse(encoder.isNumeric(OutboundMessages.EXPERIMENT_UPDATE));
+	}
+
+	private static NumericFrameEncoder encoder(boolean singlePrecision)
+	{
+		NumericFrameEncoder encoder = new NumericFrameEncoder(new BufferPool());
+		encoder.setNumericMessageTypes(Collections.singleton(TYPE));
+		encoder.setNumericFramesSupported(true);
+		encoder.setSinglePrecision(singlePrecision);
+		return encoder;
+	}
+
+	private static byte[] encode(NumericFrameEncoder encoder, String requestId, String update)
+	{
+		PooledOutputStream frame = encoder.encode(requestId, TYPE, update);
+		try
+		{
+			return frame.toByteArray();
+		}
+		finally
+		{
+			frame.release();
+		}
+	}
+
+	/**
+	 * @param header
+	 *            filled with the header of the frame
+	 * @return the tree with the time series put back
+	 */
+	private static JsonElement decode(byte[] frame, JsonObject header)
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(3, buffer.get());
+		assertEquals(1, buffer.get());
+		int headerLength = buffer.getInt(4);
+		JsonObject parsed = parse(new String(frame, 8, headerLength, StandardCharsets.UTF_8)).getAsJsonObject();
+		for(Map.Entry<String, JsonElement> entry : parsed.entrySet())
+		{
+			header.add(entry.getKey(), entry.getValue());
+		}
+
+		JsonElement tree = parse(header.get("update").toString());
+		int offset = align(8 + headerLength);
+		for(JsonElement element : header.get("variables").getAsJsonArray())
+		{
+			JsonObject variable = element.getAsJsonObject();
+			boolean float32 = variable.get("type").getAsString().equals("float32");
+			int length = variable.get("length").getAsInt();
+			assertEquals(0, offset % 8);
+
+			JsonElement node = tree;
+			for(JsonElement name : variable.get("path").getAsJsonArray())
+			{
+				node = name.getAsJsonPrimitive().isNumber() ? node.getAsJsonArray().get(name.getAsInt()) : node.getAsJsonObject().get(name.getAsString());
+			}
+			JsonArray timeSeries = new JsonArray();
+			for(int i = 0; i < length; i++)
+			{
+				JsonObject quantity = new JsonObject();
+				quantity.add("value", new JsonPrimitive(float32 ? buffer.getFloat(offset + i * 4) : buffer.getDouble(offset + i * 8)));
+				if(variable.has("scale"))
+				{
+					quantity.add("scale", variable.get("scale"));
+				}
+				timeSeries.add(quantity);
+			}
+			node.getAsJsonObject().add("timeSeries", timeSeries);
+			offset += align(length * (float32 ? 4 : 8));
+		}
+		assertEquals(frame.length, offset);
+		return tree;
+	}
+
+	private static int align(int position)
+	{
+		return (position + 7) / 8 * 8;
+	}
+
+	private static JsonElement parse(String json)
+	{
+		return new JsonParser().parse(json);
+	}
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.geppetto.core.model.runtime.AspectSubTreeNode;
+import org.geppetto.frontend.controllers.BatchExecutionException;
+import org.geppetto.frontend.controllers.ParametersCommand;
+import org.junit.Test;
+
+/**
+ * Checks that the commands of a batch are carried out in order and that a failing command reports the ones carried out before it.
+ */
+public class ParametersCommandTest
+{
+
+	@Test
+	public void testCommandsAreCarriedOutInOrder() throws BatchExecutionException
+	{
+		RecordingTarget target = new RecordingTarget(-1);
+		List<ParametersCommand> commands = Arrays.asList(command("a", "1"), command("b", "2"), command("a", "3"));
+
+		Map<String, AspectSubTreeNode> setParameters = ParametersCommand.apply(commands, target);
+
+		assertEquals(Arrays.asList("a=1", "b=2", "a=3"), target.calls);
+		assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(setParameters.keySet()));
+	}
+
+	@Test
+	public void testFailingCommandStopsTheBatch()
+	{
+		RecordingTarget target = new RecordingTarget(2);
+		List<ParametersCommand> commands = Arrays.asList(command("a", "1"), command("b", "2"), command("c", "3"), command("d", "4"));
+		try
+		{
+			ParametersCommand.apply(commands, target);
+			fail("the third command should have failed");
+		}
+		catch(BatchExecutionException e)
+		{
+			assertEquals(2, e.getAppliedCommands());
+			assertEquals(Arrays.asList("a", "b"), new ArrayList<String>(e.getChangedAspects().keySet()));
+			assertSame(target.failure, e.getCause());
+			assertTrue(e.getMessage().contains("Command 3"));
+		}
+		assertEquals(Arrays.asList("a=1", "b=2", "c=3"), target.calls);
+	}
+
+	@Test
+	public void testFailingFirstCommandChangesNothing()
+	{
+		try
+		{
+			ParametersCommand.apply(Arrays.asList(command("a", "1")), new RecordingTarget(0));
+			fail("the command should have failed");
+		}
+		catch(BatchExecutionException e)
+		{
+			assertEquals(0, e.getAppliedCommands());
+			assertTrue(e.getChangedAspects().isEmpty());
+		}
+	}
+
+	private static ParametersCommand command(String aspect, String value)
+	{
+		return new ParametersCommand(aspect, Collections.singletonMap("p", value));
+	}
+
+	/**
+	 * Records the commands it's given and fails the one at the given index.
+	 */
+	private static class RecordingTarget implements ParametersCommand.Target
+	{
+		private final int failAt;
+
+		private final List<String> calls = new ArrayList<String>();
+
+		private final Exception failure = new IllegalStateException("failed");
+
+		RecordingTarget(int failAt)
+		{
+			this.failAt = failAt;
+		}
+
+		@Override
+		public AspectSubTreeNode setModelParameters(String aspectInstancePath, Map<String, String> parameters) throws Exception
+		{
+			calls.add(aspectInstancePath + "=" + parameters.get("p"));
+			if(calls.size() - 1 == failAt)
+			{
+				throw failure;
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.geppetto.frontend.messages.InboundMessages;
+import org.geppetto.frontend.messaging.RequestAdmission;
+import org.geppetto.frontend.messaging.RequestClass;
+import org.geppetto.frontend.messaging.TokenBucket;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that requests are admitted within the tokens of both the connection and the user, and that a refused request tells when to retry.
+ */
+public class RequestAdmissionTest
+{
+
+	/**
+	 * Slow enough for no token to be refilled while a test runs.
+	 */
+	private static final double NO_REFILL = 0.001;
+
+	private static final InboundMessages READ = InboundMessages.GET_MODEL_TREE;
+	private static final InboundMessages UPDATE = InboundMessages.SET_PARAMETERS;
+	private static final InboundMessages CONTROL = InboundMessages.CREDIT;
+
+	private Map<InboundMessages, RequestClass> messageTypeClasses;
+
+	@Before
+	public void setUp()
+	{
+		messageTypeClasses = new EnumMap<>(InboundMessages.class);
+		messageTypeClasses.put(READ, RequestClass.READ);
+		messageTypeClasses.put(CONTROL, RequestClass.CONTROL);
+	}
+
+	@Test
+	public void testBurstThenWait()
+	{
+		TokenBucket bucket = new TokenBucket(1, 3);
+		for(int i = 0; i < 3; i++)
+		{
+			assertEquals(0, bucket.tryAcquire());
+		}
+		long wait = bucket.tryAcquire();
+		assertTrue(wait >= 1 && wait <= 1000);
+	}
+
+	@Test
+	public void testRefill() throws InterruptedException
+	{
+		TokenBucket bucket = new TokenBucket(1000, 1);
+		assertEquals(0, bucket.tryAcquire());
+		Thread.sleep(20);
+		assertEquals(0, bucket.tryAcquire());
+	}
+
+	@Test
+	public void testReleaseAndFull()
+	{
+		TokenBucket bucket = new TokenBucket(NO_REFILL, 2);
+		assertTrue(bucket.isFull());
+		bucket.tryAcquire();
+		assertFalse(bucket.isFull());
+		bucket.release();
+		assertTrue(bucket.isFull());
+
+		// never more tokens than the bucket holds
+		bucket.release();
+		assertEquals(0, bucket.tryAcquire());
+		assertEquals(0, bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire() > 0);
+	}
+
+	@Test
+	public void testClassesHaveTheirOwnBuckets()
+	{
+		RequestAdmission admission = new RequestAdmission(messageTypeClasses, buckets(2), null);
+		assertEquals(0, admission.admit(READ));
+		assertEquals(0, admission.admit(READ));
+		assertTrue(admission.admit(READ) > 0);
+
+		// the types not listed are updates, their tokens weren't used
+		assertEquals(RequestClass.UPDATE, admission.getRequestClass(UPDATE));
+		assertEquals(0, admission.admit(UPDATE));
+	}
+
+	@Test
+	public void testControlIsNeverLimited()
+	{
+		RequestAdmission admission = new RequestAdmission(messageTypeClasses, buckets(1), buckets(1));
+		for(int i = 0; i < 100; i++)
+		{
+			assertEquals(0, admission.admit(CONTROL));
+		}
+	}
+
+	@Test
+	public void testUserBucketsAreSharedByConnections()
+	{
+		Map<RequestClass, TokenBucket> user = buckets(3);
+		Map<RequestClass, TokenBucket> second = buckets(2);
+		RequestAdmission firstAdmission = new RequestAdmission(messageTypeClasses, buckets(2), user);
+		RequestAdmission secondAdmission = new RequestAdmission(messageTypeClasses, second, user);
+
+		assertEquals(0, firstAdmission.admit(READ));
+		assertEquals(0, firstAdmission.admit(READ));
+		assertEquals(0, secondAdmission.admit(READ));
+		// the second connection has a token left but its user doesn't
+		assertTrue(secondAdmission.admit(READ) > 0);
+
+		// the token taken from the connection for the refused request was given back
+		assertEquals(0, second.get(RequestClass.READ).tryAcquire());
+		assertTrue(second.get(RequestClass.READ).tryAcquire() > 0);
+	}
+
+	/**
+	 * @return buckets for the limited classes, each one holding <code>burst</code> tokens
+	 */
+	private static Map<RequestClass, TokenBucket> buckets(int burst)
+	{
+		Map<RequestClass, TokenBucket> buckets = new EnumMap<>(RequestClass.class);
+		buckets.put(RequestClass.READ, new TokenBucket(NO_REFILL, burst));
+		buckets.put(RequestClass.UPDATE, new TokenBucket(NO_REFILL, burst));
+		buckets.put(RequestClass.LOAD, new TokenBucket(NO_REFILL, burst));
+		return buckets;
+	}
+}
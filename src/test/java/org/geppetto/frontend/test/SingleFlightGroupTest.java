@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2011 - 2015 OpenWorm.
+ * http://openworm.org
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the MIT License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/MIT
+ *
+ * Contributors:
+ *     	OpenWorm - http://openworm.org/people.html
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR
+ * OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE
+ * USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *******************************************************************************/
+package org.geppetto.frontend.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.geppetto.frontend.messages.InboundMessages;
+import org.geppetto.frontend.messaging.DefaultMessageSender;
+import org.geppetto.frontend.messaging.MessageSender;
+import org.geppetto.frontend.messaging.SingleFlightGroup;
+import org.geppetto.frontend.messaging.SingleFlightGroup.Participant;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks which identical requests follow a flight, which ones are sent the reply of its leader and which ones are handed back to be sent again.
+ */
+public class SingleFlightGroupTest
+{
+
+	private static final String KEY = "experiment_status/1";
+
+	private static final InboundMessages TYPE = InboundMessages.EXPERIMENT_STATUS;
+
+	private SingleFlightGroup group;
+
+	private MessageSender leader;
+
+	private MessageSender first;
+
+	private MessageSender second;
+
+	@Before
+	public void setUp()
+	{
+		group = new SingleFlightGroup();
+		// the senders only identify the connections, they are never initialized
+		leader = new DefaultMessageSender();
+		first = new DefaultMessageSender();
+		second = new DefaultMessageSender();
+	}
+
+	@Test
+	public void testFollowersAreSentTheReplyOfTheLeader()
+	{
+		assertFalse(group.join(KEY, TYPE, leader, "1"));
+		assertTrue(group.join(KEY, TYPE, first, "1"));
+		assertTrue(group.join(KEY, TYPE, second, "7"));
+		// a retry joins once
+		assertTrue(group.join(KEY, TYPE, first, "1"));
+		// requests of another key aren't shared
+		assertFalse(group.join("experiment_status/2", TYPE, first, "2"));
+
+		List<Participant> followers = group.getFollowers(leader, "1");
+		assertEquals(2, followers.size());
+		assertSame(first, followers.get(0).getSender());
+		assertEquals("1", followers.get(0).getRequestID());
+		assertEquals(TYPE, followers.get(0).getType());
+		assertSame(second, followers.get(1).getSender());
+		assertEquals("7", followers.get(1).getRequestID());
+
+		assertTrue(group.land(leader, "1").isEmpty());
+		// the next identical request leads a new flight
+		assertFalse(group.join(KEY, TYPE, second, "8"));
+	}
+
+	@Test
+	public void testLateFollowersAreHandedBack()
+	{
+		group.join(KEY, TYPE, leader, "1");
+		group.join(KEY, TYPE, first, "1");
+		assertEquals(1, group.getFollowers(leader, "1").size());
+
+		// joins after the leader sent its replies
+		group.join(KEY, TYPE, second, "1");
+		List<Participant> late = group.land(leader, "1");
+		assertEquals(1, late.size());
+		assertSame(second, late.get(0).getSender());
+	}
+
+	@Test
+	public void testCancelledFollowerStopsFollowing()
+	{
+		group.join(KEY, TYPE, leader, "1");
+		group.join(KEY, TYPE, first, "1");
+		group.join(KEY, TYPE, second, "1");
+
+		assertTrue(group.cancel(first, "1"));
+		List<Participant> followers = group.getFollowers(leader, "1");
+		assertEquals(1, followers.size());
+		assertSame(second, followers.get(0).getSender());
+	}
+
+	@Test
+	public void testCancelledServedFollowerKeepsLateFollowers()
+	{
+		group.join(KEY, TYPE, leader, "1");
+		group.join(KEY, TYPE, first, "1");
+		group.join(KEY, TYPE, second, "1");
+		group.getFollowers(leader, "1");
+
+		group.cancel(first, "1");
+		MessageSender late = new DefaultMessageSender();
+		group.join(KEY, TYPE, late, "1");
+		List<Participant> handedBack = group.land(leader, "1");
+		assertEquals(1, handedBack.size());
+		assertSame(late, handedBack.get(0).getSender());
+	}
+
+	@Test
+	public void testLeaderWithFollowersCarriesOn()
+	{
+		group.join(KEY, TYPE, leader, "1");
+		group.join(KEY, TYPE, first, "1");
+		assertFalse(group.cancel(leader, "1"));
+		assertEquals(1, group.getFollowers(leader, "1").size());
+	}
+
+	@Test
+	public void testLeaderWithoutFollowersIsCancelled()
+	{
+		group.join(KEY, TYPE, leader, "1");
+		assertTrue(group.cancel(leader, "1"));
+		assertFalse(group.join(KEY, TYPE, first, "1"));
+	}
+
+	@Test
+	public void testAbandonedFlightsHandBackTheirFollowers()
+	{
+		group.join(KEY, TYPE, leader, "1");
+		group.join(KEY, TYPE, first, "1");
+		group.join("experiment_status/2", TYPE, second, "1");
+		group.join("experiment_status/2", TYPE, leader, "2");
+
+		List<Participant> orphans = group.abandon(leader);
+		assertEquals(1, orphans.size());
+		assertSame(first, orphans.get(0).getSender());
+		// the flight of the abandoned sender ended, it no longer follows the other one
+		assertFalse(group.join(KEY, TYPE, first, "2"));
+		assertTrue(group.getFollowers(second, "1").isEmpty());
+	}
+}